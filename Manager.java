@@ -1,19 +1,44 @@
 package chatapp_combined;
 
+import chatapp_combined.Utility.ConsoleRenderer;
+import chatapp_combined.history.HistoryRecord;
+import chatapp_combined.history.MessageHistory;
+import chatapp_combined.loadCommand.LoadGenerator;
+import chatapp_combined.loadCommand.RunLoad;
 import chatapp_combined.messagesCommand.Message;
 import chatapp_combined.messagesCommand.ReceiveMessage;
 import chatapp_combined.messagesCommand.SendMessage;
+import chatapp_combined.messagesCommand.TaskExecutor;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.serverCommand.ChatServer;
+import chatapp_combined.serverCommand.StartServer;
 import chatapp_combined.streamsCommand.CloseStream;
 import chatapp_combined.streamsCommand.Stream;
+import chatapp_combined.streamsCommand.TlsChannel;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static chatapp_combined.Utility.CommonUtils.ANSI_CYAN;
 import static chatapp_combined.Utility.CommonUtils.ANSI_RESET;
+import static chatapp_combined.Utility.CommonUtils.ANSI_YELLOW;
+import static chatapp_combined.Utility.CommonUtils.getTimeString;
+import static chatapp_combined.Utility.ConfigUtils.getBoolean;
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+import static chatapp_combined.Utility.ConfigUtils.getLong;
+import static chatapp_combined.Utility.ConfigUtils.getString;
+import static chatapp_combined.Utility.ReceivingMessageUtils.printHistoryRecord;
 
 /**
  * The type Manager class handles the setup and management of the chat application,
@@ -23,16 +48,40 @@ import static chatapp_combined.Utility.CommonUtils.ANSI_RESET;
  */
 public final class Manager {
 
-    private static final int PORT = 4444;
+    private static final int PORT = getInt("port", 4444);
+    private static final String HOST = getString("host", "localhost");
+
+    // -Dchatapp.mode=peer (default) | server | client | load
+    private static final String MODE_PEER = "peer";
+    private static final String MODE_SERVER = "server";
+    private static final String MODE_CLIENT = "client";
+    private static final String MODE_LOAD = "load";
 
     private static final String USER_1 = "USER_1";
     private static final String USER_2 = "USER_2";
 
+    // The history shown on startup: the last -Dchatapp.history.show messages, or those from -Dchatapp.history.from
+    // until -Dchatapp.history.to (e.g. 2024-05-01T09:00), both local date-times
+    private static final int HISTORY_SHOW = getInt("history.show", 20);
+    private static final String HISTORY_FROM = getString("history.from", null);
+    private static final String HISTORY_TO = getString("history.to", null);
+
+    // A client reconnects to the server when the connection is lost, -Dchatapp.reconnect=false ends the chat instead.
+    // The delays start at -Dchatapp.reconnect.initialMillis and double up to -Dchatapp.reconnect.maxMillis, each one
+    // cut by a random part of up to half, so clients that lost the server at once do not all come back at once.
+    // They only start over once a connection has lasted the longest delay, a server that takes the connection and
+    // closes it again right away (the old connection still holds the name) is not retried at full speed
+    private static final boolean RECONNECT = getBoolean("reconnect", true);
+    private static final long RECONNECT_INITIAL_MILLIS = Math.max(1, getLong("reconnect.initialMillis", 500));
+    private static final long RECONNECT_MAX_MILLIS = Math.max(RECONNECT_INITIAL_MILLIS,
+            getLong("reconnect.maxMillis", 30_000));
+
 
     private static ServerSocket serverSocket;
     private static Socket clientSocket;
     private static DataInputStream inputStream;
     private static DataOutputStream outputStream;
+    private static ByteChannel channel;     // The channel the streams are over, the socket's own or a TLS one
 
     /**
      * Private constructor does not allow an instance to be created
@@ -44,32 +93,45 @@ public final class Manager {
 
     /**
      * Manage.manage()
-     * Main business logic for managing the connection
+     * Main business logic for managing the connection, in the mode chosen with -Dchatapp.mode
      *
      * @throws IOException          the io exception
      * @throws InterruptedException the interrupted exception
      */
     public static void manage() throws IOException, InterruptedException {
+        MetricsRegistry.startReporter();
+
+        switch (getString("mode", MODE_PEER)) {
+            case MODE_PEER -> managePeers();
+            case MODE_SERVER -> manageServer();
+            case MODE_CLIENT -> manageClient();
+            case MODE_LOAD -> manageLoad();
+            default -> throw new IllegalStateException("Unexpected value: " + getString("mode", MODE_PEER));
+        }
+    }
+
+    /**
+     * Two-party chat: the first user listens on the port and the second one connects to it.
+     */
+    private static void managePeers() throws IOException, InterruptedException {
         // If we want to choose names for us
         // String username;
 
         try {
-            serverSocket = new ServerSocket(PORT);
+            serverSocket = openServerSocket();
             clientSocket = serverSocket.accept();
-            outputStream = new DataOutputStream(clientSocket.getOutputStream());
-            inputStream = new DataInputStream(clientSocket.getInputStream());
+            openStreams(false);
 
-            System.out.println(ANSI_CYAN + USER_1 + " has joined the chat!" + ANSI_RESET);
+            ConsoleRenderer.println(ANSI_CYAN + USER_1 + " has joined the chat!" + ANSI_RESET);
 
-            execute(USER_1);
+            execute(USER_1, false, false);
         } catch (IOException | InterruptedException e) {
-            clientSocket = new Socket("localhost", PORT);
-            outputStream = new DataOutputStream(clientSocket.getOutputStream());
-            inputStream = new DataInputStream(clientSocket.getInputStream());
+            clientSocket = openSocket();
+            openStreams(true);
 
-            System.out.println(ANSI_CYAN + USER_2 + " has joined the chat!" + ANSI_RESET);
+            ConsoleRenderer.println(ANSI_CYAN + USER_2 + " has joined the chat!" + ANSI_RESET);
 
-            execute(USER_2);
+            execute(USER_2, true, false);
         } finally {
             // Close all streams and sockets
             final Stream stream = new Stream(serverSocket, clientSocket, inputStream, outputStream);
@@ -78,22 +140,199 @@ public final class Manager {
         }
     }
 
-    private static void execute(String username) throws InterruptedException, IOException {
-        startChatting(username);
+    /**
+     * Runs the multi-user server on the port until it is stopped.
+     */
+    private static void manageServer() throws IOException {
+        final int loops = getInt("server.loops", Runtime.getRuntime().availableProcessors());
+
+        final StartServer startServer = new StartServer(new ChatServer(PORT, loops));
+        startServer.execute();
+    }
+
+    /**
+     * Runs a load test of simulated clients against the multi-user server on the host and port, see
+     * {@link LoadGenerator} for its settings.
+     */
+    private static void manageLoad() {
+        final RunLoad runLoad = new RunLoad(new LoadGenerator(HOST, PORT, TaskExecutor.fromConfig()));
+        runLoad.execute();
+    }
+
+    /**
+     * Connects to a multi-user server and introduces the user with its name. A lost connection is replaced,
+     * the session of the user goes on over the new one.
+     */
+    private static void manageClient() throws IOException, InterruptedException {
+        final String username = getString("user", System.getProperty("user.name"));
+
+        try {
+            clientSocket = openSocket();
+            openStreams(true);
+
+            ConsoleRenderer.println(ANSI_CYAN + username + " has joined the chat!" + ANSI_RESET);
+
+            if (!RECONNECT) {
+                execute(username, true, true);
+                return;
+            }
+            keepConnected(startChatting(username, true, true));
+        } finally {
+            final Stream stream = new Stream(null, clientSocket, inputStream, outputStream);
+            final CloseStream closeStream = new CloseStream(stream);
+            closeStream.execute();
+        }
+    }
+
+    /**
+     * Reconnects every time the connection of the message is lost, with exponential backoff between the attempts.
+     */
+    private static void keepConnected(final Message message) throws InterruptedException {
+        message.enableReconnect();
+
+        long delay = RECONNECT_INITIAL_MILLIS;
+        long connectedAt = System.currentTimeMillis();
+        while (true) {
+            message.awaitDisconnect();
+
+            if (System.currentTimeMillis() - connectedAt >= RECONNECT_MAX_MILLIS) {
+                delay = RECONNECT_INITIAL_MILLIS;
+            }
+            while (true) {
+                final long jitteredDelay = delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+                ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + "Connection lost, reconnecting in " +
+                        jitteredDelay + " ms." + ANSI_RESET);
+                Thread.sleep(jitteredDelay);
+
+                try {
+                    final Stream lost = new Stream(null, clientSocket, inputStream, outputStream);
+                    new CloseStream(lost).execute();
+
+                    clientSocket = openSocket();
+                    openStreams(true);
+                    message.reconnect(inputStream, outputStream, channel);
+
+                    ConsoleRenderer.println(ANSI_CYAN + getTimeString() + "Reconnected." + ANSI_RESET);
+                    connectedAt = System.currentTimeMillis();
+                    break;
+                } catch (IOException e) {
+                    ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + "Reconnecting failed: " + e.getMessage() +
+                            ANSI_RESET);
+                } finally {
+                    delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the listening socket through a channel, the accepted sockets then have channels too.
+     */
+    private static ServerSocket openServerSocket() throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+
+        try {
+            serverChannel.bind(new InetSocketAddress(PORT));
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        return serverChannel.socket();
+    }
+
+    /**
+     * Opens the streams over the connected socket. With -Dchatapp.tls=true they go over a {@link TlsChannel}
+     * whose handshake is completed first, the side that connected is the client of it. Reconnecting to the
+     * same server resumes the TLS session.
+     */
+    private static void openStreams(final boolean connected) throws IOException {
+        channel = clientSocket.getChannel();
+        if (!TlsChannel.isEnabled()) {
+            outputStream = new DataOutputStream(clientSocket.getOutputStream());
+            inputStream = new DataInputStream(clientSocket.getInputStream());
+            return;
+        }
+
+        final TlsChannel tlsChannel = connected
+                ? TlsChannel.client(clientSocket.getChannel(), HOST, PORT)
+                : TlsChannel.server(clientSocket.getChannel());
+        try {
+            tlsChannel.handshake();
+        } catch (IOException e) {
+            tlsChannel.close();
+            throw e;
+        }
+        channel = tlsChannel;
+        outputStream = new DataOutputStream(tlsChannel.newOutputStream());
+        inputStream = new DataInputStream(tlsChannel.newInputStream());
+    }
+
+    /**
+     * Connects through a channel, so files can be sent with zero-copy transfers.
+     */
+    private static Socket openSocket() throws IOException {
+        return SocketChannel.open(new InetSocketAddress(HOST, PORT)).socket();
+    }
+
+    private static void execute(String username, boolean initiator, boolean announceName)
+            throws InterruptedException, IOException {
+        startChatting(username, initiator, announceName);
 
         Thread.currentThread().join();
     }
 
-    private static void startChatting(String username) {
-        final Message message = new Message(inputStream, outputStream, username);
+    private static Message startChatting(String username, boolean initiator, boolean announceName) throws IOException {
+        final MessageHistory history = MessageHistory.open(username);
+        if (history != null) {
+            showHistory(history);
+        }
+
+        final Message message = new Message(inputStream, outputStream, channel, username, history);
+
+        // The side that connected offers the newer protocol, the other side answers
+        if (initiator) {
+            message.sendHello();
+        }
+        // A server learns the name after the hello, it delivers the stored messages in the agreed version
+        if (announceName) {
+            message.sendName(username);
+        }
+
+
+        // Platform or virtual threads, chosen with -Dchatapp.threads
+        final TaskExecutor executor = TaskExecutor.fromConfig();
 
         // Send a message using a separate thread
-        final SendMessage sendMessage = new SendMessage(message);
+        final SendMessage sendMessage = new SendMessage(message, executor);
         sendMessage.execute();
 
         // Receive a message using a separate thread
-        final ReceiveMessage receiveMessage = new ReceiveMessage(message);
+        final ReceiveMessage receiveMessage = new ReceiveMessage(message, executor);
         receiveMessage.execute();
+
+        return message;
+    }
+
+    /**
+     * Prints the messages of the history chosen with -Dchatapp.history.show or -Dchatapp.history.from and
+     * -Dchatapp.history.to, before the chat goes on.
+     */
+    private static void showHistory(final MessageHistory history) throws IOException {
+        final List<HistoryRecord> records;
+        if (HISTORY_FROM != null) {
+            final long from = toEpochMillis(HISTORY_FROM);
+            records = history.range(from, HISTORY_TO != null ? toEpochMillis(HISTORY_TO) : Long.MAX_VALUE);
+        } else {
+            records = history.last(HISTORY_SHOW);
+        }
+
+        for (HistoryRecord record : records) {
+            printHistoryRecord(record);
+        }
+    }
+
+    private static long toEpochMillis(final String localDateTime) {
+        return LocalDateTime.parse(localDateTime).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
 }
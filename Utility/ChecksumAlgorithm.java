@@ -0,0 +1,177 @@
+package chatapp_combined.Utility;
+
+import chatapp_combined.protocol.Headers;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+import static chatapp_combined.Utility.ConfigUtils.getString;
+
+/**
+ * The type Checksum algorithm.
+ * The checksums a file can be verified with end to end. The sender picks one with -Dchatapp.file.checksum
+ * (md5 by default, crc32c, sha256 or xxh64) and names it in the {@link Headers#CHECKSUM_ALGORITHM} header of the
+ * frame that announces the file, the receiver computes the same one. A file without the header, and every version 1
+ * file, is verified with MD5.
+ *
+ * @author Dimitar Kolev
+ */
+public enum ChecksumAlgorithm {
+
+    /**
+     * MD5, what every client understands.
+     */
+    MD5(1, "md5"),
+    /**
+     * CRC32C, computed with the CRC instructions of the CPU. Catches transmission errors, not tampering.
+     */
+    CRC32C(2, "crc32c"),
+    /**
+     * SHA-256, for files that have to be protected against tampering.
+     */
+    SHA_256(3, "sha256"),
+    /**
+     * XXH64, a fast non-cryptographic hash that keeps up with a fast network on one core.
+     */
+    XXH64(4, "xxh64");
+
+
+    /**
+     * Computes a checksum step by step.
+     */
+    public interface Hasher {
+
+        /**
+         * Adds the remaining bytes of the buffer, the position of the buffer is moved to its limit.
+         *
+         * @param data the data
+         */
+        void update(ByteBuffer data);
+
+        /**
+         * Completes the checksum.
+         *
+         * @return the checksum
+         */
+        byte[] digest();
+
+    }
+
+
+    private final int id;
+    private final String settingName;
+
+
+    ChecksumAlgorithm(final int id, final String settingName) {
+        this.id = id;
+        this.settingName = settingName;
+    }
+
+
+    /**
+     * Gets the id the algorithm is named by on the wire.
+     *
+     * @return the id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Starts a new checksum.
+     *
+     * @return the hasher
+     */
+    public Hasher newHasher() {
+        return switch (this) {
+            case MD5 -> messageDigest("MD5");
+            case SHA_256 -> messageDigest("SHA-256");
+            case CRC32C -> new Hasher() {
+                private final CRC32C crc = new CRC32C();
+
+                @Override
+                public void update(final ByteBuffer data) {
+                    crc.update(data);
+                }
+
+                @Override
+                public byte[] digest() {
+                    return ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).array();
+                }
+            };
+            case XXH64 -> new Xxh64Hasher();
+        };
+    }
+
+    /**
+     * Adds the header that names the algorithm. MD5 is left out, so the frames stay what older clients expect.
+     *
+     * @param headers the headers of the frame that announces the file
+     * @return the headers
+     */
+    public Headers putInto(final Headers headers) {
+        return this == MD5 ? headers : headers.put(Headers.CHECKSUM_ALGORITHM, new byte[]{(byte) id});
+    }
+
+    /**
+     * The algorithm chosen with -Dchatapp.file.checksum.
+     *
+     * @return the checksum algorithm
+     */
+    public static ChecksumAlgorithm fromConfig() {
+        final String name = getString("file.checksum", MD5.settingName);
+
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm.settingName.equals(name)) {
+                return algorithm;
+            }
+        }
+        throw new IllegalStateException("Unexpected value: " + name);
+    }
+
+    /**
+     * The algorithm named by the headers of the frame that announces a file.
+     *
+     * @param headers the headers
+     * @return the checksum algorithm, MD5 if the headers do not name one
+     * @throws ProtocolException If the algorithm is unknown.
+     */
+    public static ChecksumAlgorithm fromHeaders(final Headers headers) throws ProtocolException {
+        final byte[] value = headers.get(Headers.CHECKSUM_ALGORITHM);
+        if (value == null) {
+            return MD5;
+        }
+
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (value.length == 1 && algorithm.id == value[0]) {
+                return algorithm;
+            }
+        }
+        throw new ProtocolException("Unknown checksum algorithm");
+    }
+
+    private static Hasher messageDigest(final String algorithm) {
+        final MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return new Hasher() {
+            @Override
+            public void update(final ByteBuffer data) {
+                messageDigest.update(data);
+            }
+
+            @Override
+            public byte[] digest() {
+                return messageDigest.digest();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,71 @@
+package chatapp_combined.Utility;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * The type Chunk checksum.
+ * Computes the CRC32C of the chunks of a file from memory-mapped windows, so the content is not copied into
+ * the heap for it. A window is reused for as long as the chunks fall into it. Every sending thread has its own.
+ *
+ * @author Dimitar Kolev
+ */
+final class ChunkChecksum {
+
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+
+    private final FileChannel fileChannel;
+    private final long fileLength;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+
+    /**
+     * Instantiates a new Chunk checksum.
+     *
+     * @param fileChannel the channel of the file
+     * @param fileLength  the length of the file
+     */
+    ChunkChecksum(final FileChannel fileChannel, final long fileLength) {
+        this.fileChannel = fileChannel;
+        this.fileLength = fileLength;
+    }
+
+
+    /**
+     * Computes the checksum of a chunk.
+     *
+     * @param position    the position of the chunk
+     * @param chunkLength the length of the chunk
+     * @return the CRC32C
+     * @throws IOException If the file cannot be mapped.
+     */
+    int compute(final long position, final int chunkLength) throws IOException {
+        final CRC32C crc = new CRC32C();
+        crc.update(slice(position, chunkLength));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Gets the content of a chunk from the window, e.g. to compress it.
+     *
+     * @param position    the position of the chunk
+     * @param chunkLength the length of the chunk
+     * @return a view of the chunk, valid until the next call
+     * @throws IOException If the file cannot be mapped.
+     */
+    ByteBuffer slice(final long position, final int chunkLength) throws IOException {
+        if (window == null || position < windowStart || position + chunkLength > windowStart + window.capacity()) {
+            final long windowLength = Math.min(Math.max(WINDOW_SIZE, chunkLength), fileLength - position);
+            window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, windowLength);
+            windowStart = position;
+        }
+
+        return window.slice((int) (position - windowStart), chunkLength);
+    }
+
+}
@@ -2,8 +2,8 @@ package chatapp_combined.Utility;
 
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.time.LocalTime;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 
@@ -26,9 +26,23 @@ public final class CommonUtils {
 
 
     private static final int START_IDX = 0; // Array starting index
-    private static final int BYTES_FOR_INTEGER = 4; // Number of bytes to represent an integer
     private static final int BYTES_FOR_LONG = 8; // Number of bytes to represent a long
     private static final String DATE_FORMAT = "HH:mm:ss";
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern(DATE_FORMAT)
+            .withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final long MILLIS_PER_SECOND = 1000;
+
+
+    /**
+     * The time string of one second.
+     */
+    private record TimeString(long second, String text) {
+    }
+
+
+    private static volatile TimeString cachedTimeString;
 
 
     /**
@@ -46,10 +60,7 @@ public final class CommonUtils {
      * @return A byte array representing the integer.
      */
     public static byte[] convertIntToByteArray(final int value) {
-        final ByteBuffer buffer = ByteBuffer.allocate(BYTES_FOR_INTEGER);
-        buffer.putInt(value);
-
-        return buffer.array();
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
     }
 
     /**
@@ -59,9 +70,8 @@ public final class CommonUtils {
      * @return An integer represented by the byte array.
      */
     public static int convertByteArrayToInt(final byte[] byteArray) {
-        final ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-
-        return buffer.getInt();
+        return (byteArray[0] & 0xFF) << 24 | (byteArray[1] & 0xFF) << 16 | (byteArray[2] & 0xFF) << 8 |
+                (byteArray[3] & 0xFF);
     }
 
     /**
@@ -71,10 +81,12 @@ public final class CommonUtils {
      * @return The byte array representation of the long value.
      */
     public static byte[] convertLongToByteArray(final long value) {
-        final ByteBuffer buffer = ByteBuffer.allocate(BYTES_FOR_LONG);
-        buffer.putLong(value);
+        final byte[] byteArray = new byte[BYTES_FOR_LONG];
 
-        return buffer.array();
+        for (int i = BYTES_FOR_LONG - 1, shifted = 0; i >= START_IDX; i--, shifted += Byte.SIZE) {
+            byteArray[i] = (byte) (value >>> shifted);
+        }
+        return byteArray;
     }
 
     /**
@@ -84,9 +96,12 @@ public final class CommonUtils {
      * @return The long value represented by the byte array.
      */
     public static long convertByteArrayToLong(final byte[] byteArray) {
-        final ByteBuffer buffer = ByteBuffer.wrap(byteArray);
+        long value = 0;
 
-        return buffer.getLong();
+        for (int i = START_IDX; i < BYTES_FOR_LONG; i++) {
+            value = value << Byte.SIZE | (byteArray[i] & 0xFF);
+        }
+        return value;
     }
 
     /**
@@ -95,11 +110,25 @@ public final class CommonUtils {
      * @return A string representing the current time.
      */
     public static String getTimeString() {
-        final LocalTime currentTime = LocalTime.now();
-        final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(DATE_FORMAT);
-        final String formattedTime = currentTime.format(formatter);
+        // Formatted once per second, every line printed within the same second shares the string
+        final long second = System.currentTimeMillis() / MILLIS_PER_SECOND;
+        TimeString timeString = cachedTimeString;
+
+        if (timeString == null || timeString.second() != second) {
+            timeString = new TimeString(second, "[" + TIME_FORMATTER.format(Instant.ofEpochSecond(second)) + "] ");
+            cachedTimeString = timeString;
+        }
+        return timeString.text();
+    }
 
-        return "[" + formattedTime + "] ";
+    /**
+     * Generates a string representation of a point in time with its date, e.g. for messages from the history.
+     *
+     * @param epochMillis The time in epoch milliseconds.
+     * @return A string representing the date and the time.
+     */
+    public static String getDateTimeString(final long epochMillis) {
+        return "[" + DATE_TIME_FORMATTER.format(Instant.ofEpochMilli(epochMillis)) + "] ";
     }
 
     /**
@@ -110,12 +139,20 @@ public final class CommonUtils {
      * @throws IOException If an I/O error occurs.
      */
     public static int getLength(final DataInputStream inputStream) throws IOException {
-        // Read the bytes representing the length of the message or command
-        final byte[] commandLength = new byte[BYTES_FOR_INTEGER]; // first 4 bytes
-        inputStream.readFully(commandLength, START_IDX, BYTES_FOR_INTEGER);
+        // The first 4 bytes, big-endian like convertIntToByteArray writes them
+        return inputStream.readInt();
+    }
 
-        // Convert the byte array to an integer
-        return convertByteArrayToInt(commandLength);
+    /**
+     * Reads and retrieves the length of a message or command whose first byte has already been read.
+     *
+     * @param firstByte   the first of the 4 bytes of the length
+     * @param inputStream the inputStream
+     * @return The length of the message or command.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static int getLength(final int firstByte, final DataInputStream inputStream) throws IOException {
+        return firstByte << 24 | inputStream.readUnsignedByte() << 16 | inputStream.readUnsignedShort();
     }
 
 }
@@ -0,0 +1,81 @@
+package chatapp_combined.Utility;
+
+/**
+ * The type Config utils.
+ * Reads the runtime switches of the chat application from the JVM system properties,
+ * e.g. {@code -Dchatapp.mode=server}.
+ *
+ * @author Dimitar Kolev
+ */
+public final class ConfigUtils {
+
+    private static final String PREFIX = "chatapp.";
+
+
+    /**
+     * Private constructor does not allow an instance to be created
+     */
+    private ConfigUtils() {
+
+    }
+
+
+    /**
+     * Returns the value of a string setting.
+     *
+     * @param name         The name of the setting without the "chatapp." prefix.
+     * @param defaultValue The value used when the setting is not present.
+     * @return The configured value or the default one.
+     */
+    public static String getString(final String name, final String defaultValue) {
+        final String value = System.getProperty(PREFIX + name);
+
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Returns the value of an integer setting.
+     *
+     * @param name         The name of the setting without the "chatapp." prefix.
+     * @param defaultValue The value used when the setting is not present.
+     * @return The configured value or the default one.
+     */
+    public static int getInt(final String name, final int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    /**
+     * Returns the value of a long setting.
+     *
+     * @param name         The name of the setting without the "chatapp." prefix.
+     * @param defaultValue The value used when the setting is not present.
+     * @return The configured value or the default one.
+     */
+    public static long getLong(final String name, final long defaultValue) {
+        final String value = getString(name, null);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + PREFIX + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Returns the value of a boolean setting.
+     *
+     * @param name         The name of the setting without the "chatapp." prefix.
+     * @param defaultValue The value used when the setting is not present.
+     * @return The configured value or the default one.
+     */
+    public static boolean getBoolean(final String name, final boolean defaultValue) {
+        final String value = getString(name, null);
+
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+}
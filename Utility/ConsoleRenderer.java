@@ -0,0 +1,121 @@
+package chatapp_combined.Utility;
+
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static chatapp_combined.Utility.ConfigUtils.getBoolean;
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+
+/**
+ * The type Console renderer.
+ * The single writer of the console. Threads only publish the lines they want shown, one renderer thread takes
+ * whatever is pending and prints it in one write, so a slow terminal never holds up the thread that reads a socket.
+ * The lines are shown in the order they were published in, and the pending ones are still printed when the
+ * application exits. If the renderer falls behind by -Dchatapp.console.maxPending lines (default 65536), further
+ * lines are dropped and counted instead of making the publishers wait.
+ * <p>
+ * With -Dchatapp.console.headless=true nothing is rendered at all, for benchmarks and servers whose console
+ * nobody reads.
+ *
+ * @author Dimitar Kolev
+ */
+public final class ConsoleRenderer {
+
+    private static final boolean HEADLESS = getBoolean("console.headless", false);
+    private static final int MAX_PENDING = getInt("console.maxPending", 64 * 1024);
+    private static final int MAX_BATCH_LINES = 1024;
+
+    private static final BlockingQueue<String> PENDING = new LinkedBlockingQueue<>(MAX_PENDING);
+
+    static {
+        if (!HEADLESS) {
+            final Thread renderer = new Thread(ConsoleRenderer::renderLines, "Console Renderer Thread");
+            renderer.setDaemon(true);
+            renderer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(ConsoleRenderer::renderPending, "Console Flush Thread"));
+        }
+    }
+
+
+    /**
+     * The count of the dropped lines, registered with the first one. The registry prints through the renderer, so
+     * the renderer does not ask it for a metric while it is being initialized.
+     */
+    private static final class Dropped {
+
+        private static final Counter LINES = MetricsRegistry.counter("console.lines.dropped");
+
+    }
+
+
+    /**
+     * Private constructor does not allow an instance to be created
+     */
+    private ConsoleRenderer() {
+
+    }
+
+
+    /**
+     * Tells whether lines are rendered, a caller can skip building a line that would be dropped anyway.
+     *
+     * @return false in headless mode
+     */
+    public static boolean isEnabled() {
+        return !HEADLESS;
+    }
+
+    /**
+     * Publishes a line to be shown. Returns right away, the line is printed by the renderer thread.
+     *
+     * @param line the line, without the line separator
+     */
+    public static void println(final String line) {
+        if (!HEADLESS && !PENDING.offer(line)) {
+            Dropped.LINES.increment();
+        }
+    }
+
+    private static void renderLines() {
+        final List<String> batch = new ArrayList<>(MAX_BATCH_LINES);
+
+        while (true) {
+            try {
+                batch.add(PENDING.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            PENDING.drainTo(batch, MAX_BATCH_LINES - 1);
+            render(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Prints what is still pending, called when the application exits.
+     */
+    private static void renderPending() {
+        final List<String> batch = new ArrayList<>();
+        PENDING.drainTo(batch);
+        render(batch);
+    }
+
+    /**
+     * Prints the lines in one write. The renderer thread and the exit hook share the console through this lock.
+     */
+    private static synchronized void render(final List<String> lines) {
+        final StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append(System.lineSeparator());
+        }
+
+        System.out.print(text);
+        System.out.flush();
+    }
+
+}
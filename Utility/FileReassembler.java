@@ -0,0 +1,768 @@
+package chatapp_combined.Utility;
+
+import chatapp_combined.messagesCommand.TaskExecutor;
+import chatapp_combined.protocol.Compression;
+import chatapp_combined.protocol.FlowControl;
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.FrameHeader;
+import chatapp_combined.protocol.Headers;
+import chatapp_combined.protocol.Opcode;
+import chatapp_combined.streamsCommand.OutboundQueue;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import static chatapp_combined.Utility.CommonUtils.*;
+import static chatapp_combined.Utility.ReceivingFileUtils.*;
+
+/**
+ * The type File reassembler.
+ * Rebuilds the files of multiplexed transfers. The chunks of several transfers can arrive interleaved with
+ * each other and with chat frames, every chunk is written at the position of the file it belongs to.
+ * <p>
+ * A resumable transfer is written to "name.part" next to a "name.part.blocks" sidecar that lists every chunk
+ * whose CRC32C matched. When the same file is offered again after a lost connection, the sender is told to resume
+ * after the verified part. A chunk that fails its checksum is asked for again, so corruption costs one chunk.
+ * <p>
+ * When the sender of an offered file asks for it, the chunks also come over extra data connections that the
+ * receiver accepts on a port of its own, see {@link StripeReceiver}. They are read by threads of their own,
+ * the state they share with the thread that receives the frames is guarded by the lock of the transfer.
+ * <p>
+ * A chunk with a {@link Headers#RAW_LENGTH} header is deflated, it is read whole and inflated before it is
+ * verified and written like any other chunk.
+ * <p>
+ * When the sender takes part in the {@link FlowControl flow control}, the content of every chunk is given back to
+ * it as credit once it is written, so the sender never gets more than a window ahead of the disk.
+ *
+ * @author Dimitar Kolev
+ */
+public final class FileReassembler {
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String SIDECAR_SUFFIX = ".part.blocks";
+    private static final int SIDECAR_HEADER_SIZE = 2 * Long.BYTES;             // File length, file version
+    private static final int SIDECAR_RECORD_SIZE = Long.BYTES + 2 * Integer.BYTES; // Offset, length, CRC32C
+    private static final int MAX_STRIPES = 64;
+    private static final long HASH_BATCH_SIZE = 8L * 1024 * 1024; // The verified part is hashed in regions of 8MB
+    private static final int MAX_COMPRESSED_CHUNK_SIZE = 16 * 1024 * 1024;
+
+
+    /**
+     * The state of one incoming transfer.
+     */
+    private static final class Transfer {
+
+        private final String senderName;
+        private final File file;
+        private final long fileLength;
+        private final boolean resumable;
+        private File partFile;
+        private File sidecarFile;
+        private RandomAccessFile randomAccessFile;
+        private FileChannel fileChannel;
+        private FileChannel sidecarChannel;
+        private ChecksumAlgorithm checksumAlgorithm;
+        private HashingPipeline hashingPipeline;
+        private long position;        // The end of the last chunk of a transfer that is not resumable
+        private long digestPosition;  // The file is handed over to the hashing pipeline up to here
+        private long verifiedPrefix;  // Everything up to here has been verified
+        private final TreeMap<Long, Long> verifiedChunks = new TreeMap<>(); // Verified chunks after the prefix
+        private long unsyncedBytes;
+        private long resumeOffset;    // Where the sender resumed, the bytes before it were received earlier
+        private final long startNanos = System.nanoTime();
+        private volatile boolean skipped;
+        private StripeReceiver stripeReceiver; // The data connections of a striped transfer
+
+        private Transfer(final String senderName, final File file, final long fileLength, final boolean resumable) {
+            this.senderName = senderName;
+            this.file = file;
+            this.fileLength = fileLength;
+            this.resumable = resumable;
+        }
+
+    }
+
+
+    private final DataInputStream inputStream;
+    private final ReadableByteChannel socketChannel;
+    private final InetAddress localAddress; // Where the data connections of a striped transfer are accepted
+    private final OutboundQueue outboundQueue;
+    private final ByteBuffer buffer;
+    private final Map<Long, Transfer> transfers = new HashMap<>();
+    private final Compression compression = new Compression();
+    private ByteBuffer compressedChunk = ByteBuffer.allocate(0); // Grown to the largest compressed chunk
+    private byte[] inflatedChunk = new byte[0];
+    private FlowControl flowControl; // Null until the sender takes part in it
+
+
+    /**
+     * Instantiates a new File reassembler.
+     *
+     * @param inputStream   the DataInputStream the frames are read from
+     * @param socketChannel the channel of the socket behind the stream, or null
+     * @param outboundQueue the queue the answers to the sender go through
+     */
+    public FileReassembler(final DataInputStream inputStream, final SocketChannel socketChannel,
+                           final OutboundQueue outboundQueue) {
+        final boolean throughChannel = socketChannel != null && CHANNEL_MODE.equals(RECEIVE_MODE);
+
+        this.inputStream = inputStream;
+        this.socketChannel = throughChannel ? socketChannel : null;
+        this.localAddress = socketChannel != null ? socketChannel.socket().getLocalAddress() : null;
+        this.outboundQueue = outboundQueue;
+        this.buffer = throughChannel ? ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE) : ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+    }
+
+
+    /**
+     * Grants the sender a window of credit and gives back the content of every chunk from now on, called once
+     * the sender has said it waits for credit.
+     *
+     * @throws IOException If the connection is gone.
+     */
+    public void enableFlowControl() throws IOException {
+        if (flowControl == null) {
+            flowControl = new FlowControl();
+            outboundQueue.enqueue(FlowControl.encode(FlowControl.WINDOW));
+        }
+    }
+
+    /**
+     * Opens the file of a transfer announced by a {@link Opcode#FILE_START} frame.
+     *
+     * @param senderName The name of the sender.
+     * @param header     The header of the frame.
+     * @throws IOException If an I/O error occurs or the frame is malformed.
+     */
+    public void start(final String senderName, final FrameHeader header) throws IOException {
+        final Transfer transfer = openTransfer(senderName, header, false);
+        if (transfer.skipped) {
+            return;
+        }
+
+        try {
+            openFile(transfer, transfer.file);
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + "Receiving file..." + ANSI_RESET);
+        } catch (IOException e) {
+            fail(transfer, e);
+        }
+    }
+
+    /**
+     * Opens the file of a resumable transfer offered by a {@link Opcode#FILE_OFFER} frame, and answers
+     * with the offset the sender resumes from. If the sender would like to stripe the file, the answer also
+     * tells it where to open the data connections.
+     *
+     * @param senderName The name of the sender.
+     * @param header     The header of the frame.
+     * @throws IOException If an I/O error occurs or the frame is malformed.
+     */
+    public void offer(final String senderName, final FrameHeader header) throws IOException {
+        final long transferId = header.headers().getLong(Headers.TRANSFER_ID);
+        final long fileVersion = header.headers().getLong(Headers.FILE_VERSION);
+        final Transfer transfer = openTransfer(senderName, header, true);
+
+        if (!transfer.skipped) {
+            try {
+                openPartialFile(transfer, fileVersion);
+            } catch (IOException e) {
+                fail(transfer, e);
+            }
+        }
+
+        // A skipped file needs nothing from the sender
+        final long resumeOffset = transfer.skipped ? transfer.fileLength : transfer.verifiedPrefix;
+        transfer.resumeOffset = resumeOffset;
+        if (resumeOffset > 0 && !transfer.skipped) {
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + "Resuming file from byte " + resumeOffset + "..." + ANSI_RESET);
+        } else if (!transfer.skipped) {
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + "Receiving file..." + ANSI_RESET);
+        }
+
+        final Headers acceptHeaders = new Headers().putLong(Headers.TRANSFER_ID, transferId)
+                .putLong(Headers.CHUNK_OFFSET, resumeOffset);
+        if (header.headers().get(Headers.STRIPES) != null && resumeOffset < transfer.fileLength) {
+            openStripes(transfer, transferId, header.headers().getInt(Headers.STRIPES), acceptHeaders);
+        }
+
+        // The answers go with the chat frames, ahead of any chunk this side is sending
+        outboundQueue.enqueue(ByteBuffer.wrap(FrameCodec.encode(Opcode.FILE_ACCEPT, acceptHeaders, new byte[0])));
+        if (resumeOffset == transfer.fileLength) {
+            answer(Opcode.FILE_ACK, transferId, 0);
+        }
+    }
+
+    /**
+     * Writes the payload of a {@link Opcode#FILE_CHUNK} frame to the file of its transfer.
+     *
+     * @param header The header of the frame.
+     * @throws IOException If an I/O error occurs or the chunk does not belong to an open transfer.
+     */
+    public void chunk(final FrameHeader header) throws IOException {
+        final long transferId = header.headers().getLong(Headers.TRANSFER_ID);
+        final Transfer transfer = getTransfer(transferId);
+        final int rawLength = Compression.rawLength(header, MAX_COMPRESSED_CHUNK_SIZE);
+        final long chunkLength = rawLength < 0 ? header.payloadLength() : rawLength;
+        final long offset = transfer.resumable ? header.headers().getLong(Headers.CHUNK_OFFSET) : transfer.position;
+
+        if (offset < 0 || chunkLength > transfer.fileLength - offset) {
+            throw new ProtocolException("Chunk past the end of the file " + transfer.file.getName());
+        }
+
+        if (transfer.skipped) {
+            inputStream.skipNBytes(header.payloadLength());
+            transfer.position += chunkLength;
+        } else {
+            final ByteBuffer source = rawLength < 0 ? null : inflateChunk(header, rawLength);
+            if (transfer.resumable) {
+                receiveVerifiedChunk(transfer, transferId, offset, chunkLength, header.headers().getInt(Headers.CHECKSUM),
+                        source);
+            } else {
+                receiveChunk(transfer, offset, chunkLength, null, source);
+                transfer.position += chunkLength;
+            }
+        }
+
+        if (flowControl != null) {
+            flowControl.consume(chunkLength);
+            final long credit = flowControl.takeCredit();
+            if (credit > 0) {
+                outboundQueue.enqueue(FlowControl.encode(credit));
+            }
+        }
+    }
+
+    /**
+     * Reads a compressed chunk whole and inflates it.
+     *
+     * @return the content of the chunk, valid until the next chunk
+     */
+    private ByteBuffer inflateChunk(final FrameHeader header, final int rawLength) throws IOException {
+        final int payloadLength = (int) header.payloadLength();
+        if (compressedChunk.capacity() < payloadLength) {
+            compressedChunk = socketChannel != null ? ByteBuffer.allocateDirect(payloadLength) : ByteBuffer.allocate(payloadLength);
+        }
+        if (inflatedChunk.length != rawLength) {
+            inflatedChunk = new byte[rawLength];
+        }
+
+        readFully(compressedChunk.clear().limit(payloadLength));
+        compression.inflate(compressedChunk, inflatedChunk);
+        return ByteBuffer.wrap(inflatedChunk);
+    }
+
+    /**
+     * Completes a transfer closed by a {@link Opcode#FILE_END} frame and checks its checksum.
+     * An empty checksum means that the sender gave up on the file, a resumable file is kept for the next try.
+     *
+     * @param header The header of the frame.
+     * @throws IOException If an I/O error occurs or the frame does not belong to an open transfer.
+     */
+    public void end(final FrameHeader header) throws IOException {
+        final long transferId = header.headers().getLong(Headers.TRANSFER_ID);
+        final Transfer transfer = getTransfer(transferId);
+        final byte[] receivedFileHash = FrameCodec.readPayload(header, MAX_HASH_SIZE, inputStream);
+        transfers.remove(transferId);
+        FILES_RECEIVING.decrement();
+
+        if (transfer.skipped) {
+            return;
+        }
+        close(transfer);
+
+        if (receivedFileHash.length == 0) {
+            FILES_RECEIVE_FAILED.increment();
+            abort(transfer);
+            return;
+        }
+
+        final long receivedLength;
+        synchronized (transfer) {
+            receivedLength = transfer.resumable ? transfer.verifiedPrefix : transfer.position;
+        }
+        if (receivedLength != transfer.fileLength) {
+            transfer.hashingPipeline.close();
+            throw new ProtocolException("Transfer ended before the end of the file " + transfer.file.getName());
+        }
+
+        final boolean hashesMatch = Arrays.equals(receivedFileHash, finishDigest(transfer));
+        if (transfer.resumable) {
+            if (hashesMatch) {
+                Files.move(transfer.partFile.toPath(), transfer.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                transfer.partFile.delete();
+            }
+            transfer.sidecarFile.delete();
+        }
+        recordFileReceived(transfer.fileLength - transfer.resumeOffset, transfer.startNanos, hashesMatch);
+        printResult(hashesMatch, transfer.senderName);
+    }
+
+    /**
+     * Drops the transfers that are still open, called when the connection is lost.
+     */
+    public void abortAll() {
+        for (Transfer transfer : transfers.values()) {
+            closeStripes(transfer);
+            if (!transfer.skipped) {
+                close(transfer);
+                abort(transfer);
+                FILES_RECEIVE_FAILED.increment();
+            }
+        }
+        FILES_RECEIVING.add(-transfers.size());
+        transfers.clear();
+    }
+
+    private Transfer openTransfer(final String senderName, final FrameHeader header, final boolean resumable)
+            throws IOException {
+        final long transferId = header.headers().getLong(Headers.TRANSFER_ID);
+        final long fileLength = header.headers().getLong(Headers.FILE_LENGTH);
+        final String fileName = header.headers().getString(Headers.FILE_NAME);
+        if (fileName == null || fileLength < 0 || transfers.containsKey(transferId)) {
+            throw new ProtocolException("Invalid start of transfer " + transferId);
+        }
+        inputStream.skipNBytes(header.payloadLength());
+
+        // A resumable file keeps its name to find its partial copy, any other file gets a name of its own
+        final File file = resumable ? new File(DIR_TO_RECEIVE, fileName) : unusedFile(fileName);
+        final Transfer transfer = new Transfer(senderName, file, fileLength, resumable);
+        transfer.checksumAlgorithm = ChecksumAlgorithm.fromHeaders(header.headers());
+        transfers.put(transferId, transfer);
+        FILES_RECEIVING.increment();
+
+        // Refuse the file before writing anything if the disk cannot hold it, the chunks are still read to keep the stream in sync
+        if (!hasFreeSpace(transfer.file, fileLength)) {
+            ConsoleRenderer.println(ANSI_RED + getTimeString() + "Not enough free space to receive " + fileName +
+                    " (" + fileLength + " bytes). The file is skipped." + ANSI_RESET);
+            transfer.skipped = true;
+        }
+        return transfer;
+    }
+
+    /**
+     * Finds a name that does not overwrite an earlier file: "name.ext", then "name (1).ext" and so on.
+     */
+    private static File unusedFile(final String fileName) {
+        final int dot = fileName.lastIndexOf('.');
+        final String baseName = dot > 0 ? fileName.substring(0, dot) : fileName;
+        final String extension = dot > 0 ? fileName.substring(dot) : "";
+
+        File file = new File(DIR_TO_RECEIVE, fileName);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(DIR_TO_RECEIVE, baseName + " (" + i + ")" + extension);
+        }
+        return file;
+    }
+
+    private void openFile(final Transfer transfer, final File file) throws IOException {
+        transfer.randomAccessFile = new RandomAccessFile(file, "rw");
+        transfer.fileChannel = transfer.randomAccessFile.getChannel();
+        // Preallocate the file to the announced length
+        transfer.randomAccessFile.setLength(transfer.fileLength);
+
+        // A file that arrives in order is hashed from the buffers it is read into, a resumable one from the disk
+        // as its verified part grows
+        transfer.hashingPipeline = transfer.resumable
+                ? new HashingPipeline(transfer.checksumAlgorithm, 0, false)
+                : new HashingPipeline(transfer.checksumAlgorithm, CHANNEL_BUFFER_SIZE, socketChannel != null);
+    }
+
+    /**
+     * Opens the partial file and its sidecar. The verified chunks of an earlier try are kept when the sidecar
+     * describes the same version of the file, otherwise the transfer starts over.
+     */
+    private void openPartialFile(final Transfer transfer, final long fileVersion) throws IOException {
+        transfer.partFile = new File(DIR_TO_RECEIVE, transfer.file.getName() + PART_SUFFIX);
+        transfer.sidecarFile = new File(DIR_TO_RECEIVE, transfer.file.getName() + SIDECAR_SUFFIX);
+
+        final ByteBuffer kept = transfer.partFile.exists() ? loadSidecar(transfer, fileVersion) : null;
+        if (kept == null) {
+            transfer.partFile.delete();
+        }
+
+        openFile(transfer, transfer.partFile);
+
+        transfer.sidecarChannel = FileChannel.open(transfer.sidecarFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        final ByteBuffer header = ByteBuffer.allocate(SIDECAR_HEADER_SIZE).putLong(transfer.fileLength).putLong(fileVersion);
+        writeFully(transfer.sidecarChannel, header.flip());
+        if (kept != null) {
+            writeFully(transfer.sidecarChannel, kept);
+        }
+
+        // The part kept from the earlier try is hashed while the rest arrives
+        transfer.hashingPipeline.submit(transfer.fileChannel, 0, transfer.verifiedPrefix);
+        transfer.digestPosition = transfer.verifiedPrefix;
+    }
+
+    /**
+     * Accepts the data connections of a striped transfer and adds their port and secret to the answer.
+     * Without a socket to bind next to, or when the port cannot be bound, the file comes through the chat connection.
+     */
+    private void openStripes(final Transfer transfer, final long transferId, final int stripes,
+                             final Headers acceptHeaders) {
+        if (localAddress == null || transfer.skipped || stripes < 1) {
+            return;
+        }
+
+        try {
+            transfer.stripeReceiver = new StripeReceiver(localAddress, Math.min(stripes, MAX_STRIPES),
+                    transfer.fileChannel, transfer.fileLength, new StripeSink(transfer, transferId));
+        } catch (IOException e) {
+            return;
+        }
+
+        transfer.stripeReceiver.start(TaskExecutor.fromConfig());
+        acceptHeaders.putInt(Headers.DATA_PORT, transfer.stripeReceiver.getPort())
+                .put(Headers.DATA_TOKEN, transfer.stripeReceiver.getToken());
+    }
+
+    /**
+     * Reads the sidecar of an earlier try and finds how much of the file was verified from its start.
+     *
+     * @return the records of the verified prefix, or null if the sidecar belongs to another file
+     */
+    private static ByteBuffer loadSidecar(final Transfer transfer, final long fileVersion) throws IOException {
+        if (!transfer.sidecarFile.exists()) {
+            return null;
+        }
+
+        final ByteBuffer sidecar = ByteBuffer.wrap(Files.readAllBytes(transfer.sidecarFile.toPath()));
+        if (sidecar.remaining() < SIDECAR_HEADER_SIZE || sidecar.getLong() != transfer.fileLength ||
+                sidecar.getLong() != fileVersion) {
+            return null;
+        }
+
+        // The records by offset, a chunk verified twice keeps its last record
+        final TreeMap<Long, Integer> records = new TreeMap<>();
+        while (sidecar.remaining() >= SIDECAR_RECORD_SIZE) {
+            records.put(sidecar.getLong(), sidecar.position());
+            sidecar.position(sidecar.position() + SIDECAR_RECORD_SIZE - Long.BYTES);
+        }
+
+        // Only the verified prefix is kept, the sender resumes right after it
+        final ByteBuffer kept = ByteBuffer.allocate(records.size() * SIDECAR_RECORD_SIZE);
+        long prefix = 0;
+        for (Map.Entry<Long, Integer> record : records.entrySet()) {
+            if (record.getKey() > prefix) {
+                break;
+            }
+            final int length = sidecar.getInt(record.getValue());
+            final int checksum = sidecar.getInt(record.getValue() + Integer.BYTES);
+
+            kept.putLong(record.getKey()).putInt(length).putInt(checksum);
+            prefix = Math.max(prefix, record.getKey() + length);
+        }
+
+        transfer.verifiedPrefix = Math.min(prefix, transfer.fileLength);
+        return kept.flip();
+    }
+
+    /**
+     * Receives a chunk of a resumable transfer. The chunk is written while its CRC32C is computed, a chunk
+     * that does not match is asked for again and its bytes are overwritten by the next copy.
+     */
+    private void receiveVerifiedChunk(final Transfer transfer, final long transferId, final long offset,
+                                      final long chunkLength, final int checksum, final ByteBuffer source)
+            throws IOException {
+        final CRC32C crc = new CRC32C();
+        receiveChunk(transfer, offset, chunkLength, crc, source);
+        if (transfer.skipped) {
+            return;
+        }
+
+        if ((int) crc.getValue() != checksum) {
+            answer(Opcode.FILE_NACK, transferId, offset);
+            return;
+        }
+        chunkVerified(transfer, transferId, offset, (int) chunkLength, checksum);
+    }
+
+    /**
+     * Records a chunk whose checksum matched in the sidecar, and tells the sender once the file is complete.
+     * Whatever the chunk adds to the verified part of the file is handed over to the hashing pipeline.
+     * Called by the thread that receives the frames and by the threads of the data connections.
+     */
+    private void chunkVerified(final Transfer transfer, final long transferId, final long offset,
+                               final int chunkLength, final int checksum) throws IOException {
+        final boolean complete;
+
+        synchronized (transfer) {
+            if (transfer.skipped || !transfer.sidecarChannel.isOpen()) {
+                return;
+            }
+
+            final boolean wasComplete = transfer.verifiedPrefix == transfer.fileLength;
+            markVerified(transfer, offset, offset + chunkLength);
+
+            final ByteBuffer record = ByteBuffer.allocate(SIDECAR_RECORD_SIZE)
+                    .putLong(offset).putInt(chunkLength).putInt(checksum);
+            try {
+                writeFully(transfer.sidecarChannel, record.flip());
+                final long unhashed = transfer.verifiedPrefix - transfer.digestPosition;
+                if (unhashed >= HASH_BATCH_SIZE || (unhashed > 0 && transfer.verifiedPrefix == transfer.fileLength)) {
+                    transfer.hashingPipeline.submit(transfer.fileChannel, transfer.digestPosition,
+                            transfer.verifiedPrefix - transfer.digestPosition);
+                    transfer.digestPosition = transfer.verifiedPrefix;
+                }
+            } catch (IOException e) {
+                fail(transfer, e);
+                return;
+            }
+            complete = !wasComplete && transfer.verifiedPrefix == transfer.fileLength;
+        }
+
+        if (complete) {
+            answer(Opcode.FILE_ACK, transferId, 0);
+        }
+    }
+
+    private static void markVerified(final Transfer transfer, final long start, final long end) {
+        transfer.verifiedChunks.merge(start, end, Math::max);
+
+        Map.Entry<Long, Long> next = transfer.verifiedChunks.firstEntry();
+        while (next != null && next.getKey() <= transfer.verifiedPrefix) {
+            transfer.verifiedPrefix = Math.max(transfer.verifiedPrefix, next.getValue());
+            transfer.verifiedChunks.pollFirstEntry();
+            next = transfer.verifiedChunks.firstEntry();
+        }
+    }
+
+    /**
+     * Reads the payload of a chunk and writes it at the offset. The chunk of a resumable transfer is checked
+     * with its CRC32C on the way, the chunk of any other transfer is handed over to the hashing pipeline.
+     * The payload comes from the connection, or from the source when the chunk has been inflated.
+     */
+    private void receiveChunk(final Transfer transfer, final long offset, final long chunkLength, final CRC32C crc,
+                              final ByteBuffer source) throws IOException {
+        long written = 0;
+
+        while (written < chunkLength) {
+            // A transfer that is skipped half way stops handing buffers over, its pipeline is closed
+            final boolean hashed = !transfer.resumable && !transfer.skipped;
+            final ByteBuffer target = hashed ? transfer.hashingPipeline.acquire() : buffer.clear();
+
+            target.limit((int) Math.min(target.capacity(), chunkLength - written));
+            if (source != null) {
+                target.put(source.slice(source.position(), target.remaining())).flip();
+                source.position(source.position() + target.limit());
+            } else {
+                readFully(target);
+            }
+
+            if (transfer.skipped) {
+                written += target.remaining();
+                continue;
+            }
+
+            if (crc != null) {
+                crc.update(target.duplicate());
+            }
+            written += writeChunk(transfer, target, offset + written);
+            if (hashed) {
+                transfer.hashingPipeline.submit(target.rewind());
+            }
+        }
+
+        if (!transfer.resumable && !transfer.skipped) {
+            transfer.digestPosition += chunkLength;
+        }
+    }
+
+    /**
+     * Writes the bytes to the disk. A failing disk only drops this transfer, the connection goes on.
+     *
+     * @return the number of bytes consumed from the buffer
+     */
+    private int writeChunk(final Transfer transfer, final ByteBuffer chunk, final long position) {
+        final int length = chunk.remaining();
+
+        try {
+            long filePosition = position;
+            while (chunk.hasRemaining()) {
+                filePosition += transfer.fileChannel.write(chunk, filePosition);
+            }
+
+            transfer.unsyncedBytes += length;
+            if (transfer.unsyncedBytes >= SYNC_INTERVAL) {
+                transfer.fileChannel.force(false);
+                if (transfer.sidecarChannel != null) {
+                    transfer.sidecarChannel.force(false);
+                }
+                transfer.unsyncedBytes = 0;
+            }
+        } catch (IOException e) {
+            fail(transfer, e);
+        }
+        return length;
+    }
+
+    /**
+     * Waits for the hashing pipeline to complete the checksum of the file.
+     */
+    private static byte[] finishDigest(final Transfer transfer) throws IOException {
+        return transfer.hashingPipeline.finish();
+    }
+
+    private void answer(final Opcode opcode, final long transferId, final long offset) throws IOException {
+        final Headers headers = new Headers().putLong(Headers.TRANSFER_ID, transferId);
+        if (opcode != Opcode.FILE_ACK) {
+            headers.putLong(Headers.CHUNK_OFFSET, offset);
+        }
+
+        // The answers go with the chat frames, ahead of any chunk this side is sending
+        outboundQueue.enqueue(ByteBuffer.wrap(FrameCodec.encode(opcode, headers, new byte[0])));
+    }
+
+    private Transfer getTransfer(final long transferId) throws ProtocolException {
+        final Transfer transfer = transfers.get(transferId);
+        if (transfer == null) {
+            throw new ProtocolException("Unknown transfer " + transferId);
+        }
+        return transfer;
+    }
+
+    private void readFully(final ByteBuffer target) throws IOException {
+        if (socketChannel != null) {
+            while (target.hasRemaining()) {
+                if (socketChannel.read(target) < 0) {
+                    throw new EOFException();
+                }
+            }
+        } else {
+            inputStream.readFully(target.array(), target.position(), target.remaining());
+            target.position(target.limit());
+        }
+        target.flip();
+    }
+
+    private static void writeFully(final FileChannel fileChannel, final ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            fileChannel.write(data);
+        }
+    }
+
+    /**
+     * Reports a transfer that stopped before its end. A resumable file is kept for the next try.
+     */
+    private static void abort(final Transfer transfer) {
+        closeHashing(transfer);
+        if (transfer.resumable) {
+            ConsoleRenderer.println(ANSI_RED + getTimeString() + "The transfer of " + transfer.file.getName() +
+                    " stopped. The received part is kept, sending the file again resumes it." + ANSI_RESET);
+        } else {
+            ConsoleRenderer.println(ANSI_RED + getTimeString() + "The transfer of " + transfer.file.getName() +
+                    " was aborted." + ANSI_RESET);
+            transfer.file.delete();
+        }
+    }
+
+    private static void fail(final Transfer transfer, final IOException e) {
+        synchronized (transfer) {
+            if (transfer.skipped) {
+                return;
+            }
+
+            ConsoleRenderer.println(ANSI_RED + getTimeString() + "The file " + transfer.file.getName() +
+                    " cannot be written (" + e.getMessage() + "). The file is skipped." + ANSI_RESET);
+            FILES_RECEIVE_FAILED.increment();
+            close(transfer);
+            closeHashing(transfer);
+            (transfer.resumable ? transfer.partFile : transfer.file).delete();
+            if (transfer.sidecarFile != null) {
+                transfer.sidecarFile.delete();
+            }
+            transfer.skipped = true;
+        }
+    }
+
+    private static void closeHashing(final Transfer transfer) {
+        if (transfer.hashingPipeline != null) {
+            transfer.hashingPipeline.close();
+        }
+    }
+
+    private static void closeStripes(final Transfer transfer) {
+        if (transfer.stripeReceiver != null) {
+            transfer.stripeReceiver.close();
+        }
+    }
+
+    /**
+     * Closes the files of a transfer. A resumable file is flushed first, so the sidecar never lists
+     * chunks that are not on the disk.
+     */
+    private static void close(final Transfer transfer) {
+        closeStripes(transfer);
+        synchronized (transfer) {
+            try {
+                if (transfer.resumable && transfer.fileChannel != null && transfer.fileChannel.isOpen()) {
+                    transfer.fileChannel.force(false);
+                }
+                if (transfer.randomAccessFile != null) {
+                    transfer.randomAccessFile.close();
+                }
+                if (transfer.sidecarChannel != null) {
+                    transfer.sidecarChannel.close();
+                }
+            } catch (IOException e) {
+                ConsoleRenderer.println(ANSI_RED + "Failed to close " + transfer.file.getName() + ANSI_RESET);
+            }
+        }
+    }
+
+
+
+    /**
+     * Hands the chunks of the data connections of one transfer to the state it shares with the receive thread.
+     */
+    private final class StripeSink implements StripeReceiver.ChunkSink {
+
+        private final Transfer transfer;
+        private final long transferId;
+
+        private StripeSink(final Transfer transfer, final long transferId) {
+            this.transfer = transfer;
+            this.transferId = transferId;
+        }
+
+        @Override
+        public void onChunk(final long offset, final int length, final int checksum, final boolean verified) {
+            try {
+                if (verified) {
+                    chunkVerified(transfer, transferId, offset, length, checksum);
+                } else {
+                    answer(Opcode.FILE_NACK, transferId, offset);
+                }
+            } catch (IOException e) {
+                // The connection is gone, the receive thread drops the transfer
+            }
+        }
+
+        @Override
+        public void onWriteFailure(final IOException e) {
+            fail(transfer, e);
+        }
+
+    }
+
+}
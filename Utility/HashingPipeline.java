@@ -0,0 +1,147 @@
+package chatapp_combined.Utility;
+
+import chatapp_combined.messagesCommand.TaskExecutor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The type Hashing pipeline.
+ * Computes the checksum of a file on a thread of its own, so the socket and the disk never wait for the hash.
+ * The I/O thread takes a free buffer from the pool, fills it, writes it and hands it over, then goes on with
+ * the next buffer while the hashing thread works through the previous ones. A buffer goes back to the pool once
+ * it is hashed, so the I/O thread only waits when it is a whole pool ahead. Regions of a file that are already on
+ * the disk can be handed over as well, they are hashed from memory-mapped windows.
+ *
+ * @author Dimitar Kolev
+ */
+public final class HashingPipeline {
+
+    private static final int POOL_SIZE = 4;
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+
+    private final ChecksumAlgorithm.Hasher hasher;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final BlockingQueue<ByteBuffer> filledBuffers = new LinkedBlockingQueue<>();
+    private final CompletableFuture<byte[]> digest = new CompletableFuture<>();
+    private volatile boolean closed;
+
+
+    /**
+     * Instantiates a new Hashing pipeline and starts its thread.
+     *
+     * @param algorithm  the checksum to compute
+     * @param bufferSize the size of the pooled buffers, 0 if only regions of a file are hashed
+     * @param direct     whether the pooled buffers are direct, for the I/O of a channel
+     */
+    public HashingPipeline(final ChecksumAlgorithm algorithm, final int bufferSize, final boolean direct) {
+        this.hasher = algorithm.newHasher();
+        this.freeBuffers = new ArrayBlockingQueue<>(POOL_SIZE);
+
+        if (bufferSize > 0) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                freeBuffers.add(direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+            }
+        }
+        TaskExecutor.fromConfig().execute("Hash File Thread", this::hashBuffers);
+    }
+
+
+    /**
+     * Takes a free buffer, waits while all of them are being hashed.
+     *
+     * @return the cleared buffer
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    public ByteBuffer acquire() throws InterruptedIOException {
+        try {
+            return freeBuffers.take().clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Hands a filled buffer over to the hashing thread. The buffer must not be touched afterwards.
+     *
+     * @param buffer a buffer of the pool, its remaining bytes are hashed
+     */
+    public void submit(final ByteBuffer buffer) {
+        filledBuffers.add(buffer);
+    }
+
+    /**
+     * Hands a region of a file over to the hashing thread. The region is mapped right away, so the file
+     * may be closed before it is hashed.
+     *
+     * @param fileChannel the channel of the file
+     * @param position    the start of the region
+     * @param length      the length of the region
+     * @throws IOException If the region cannot be mapped.
+     */
+    public void submit(final FileChannel fileChannel, final long position, final long length) throws IOException {
+        for (long offset = 0; offset < length; offset += WINDOW_SIZE) {
+            final long size = Math.min(WINDOW_SIZE, length - offset);
+            filledBuffers.add(fileChannel.map(FileChannel.MapMode.READ_ONLY, position + offset, size));
+        }
+    }
+
+    /**
+     * Waits until everything handed over is hashed.
+     *
+     * @return the checksum
+     * @throws IOException If a region could not be read or the thread is interrupted.
+     */
+    public byte[] finish() throws IOException {
+        filledBuffers.add(END);
+
+        try {
+            return digest.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the hashing thread of a file that is given up. What was handed over is no longer hashed,
+     * its buffers still go back to the pool.
+     */
+    public void close() {
+        closed = true;
+        filledBuffers.add(END);
+    }
+
+    private void hashBuffers() {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = filledBuffers.take()) != END) {
+                if (!closed) {
+                    hasher.update(buffer);
+                }
+                if (!buffer.isReadOnly() && freeBuffers.remainingCapacity() > 0) {
+                    freeBuffers.add(buffer);
+                }
+            }
+            digest.complete(hasher.digest());
+        } catch (InterruptedException e) {
+            digest.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            // A mapped region of a file that failed underneath it
+            digest.completeExceptionally(e);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package chatapp_combined.Utility;
+
+import chatapp_combined.protocol.FrameHeader;
+import chatapp_combined.protocol.Headers;
+import chatapp_combined.protocol.Opcode;
+
+import java.net.ProtocolException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The type Outgoing transfers.
+ * The answers of the receiver to the resumable files this side is sending. The receive thread reads the
+ * {@link Opcode#FILE_ACCEPT}, {@link Opcode#FILE_NACK} and {@link Opcode#FILE_ACK} frames and passes them
+ * to the thread that sends the file.
+ *
+ * @author Dimitar Kolev
+ */
+public final class OutgoingTransfers {
+
+    /**
+     * An answer of the receiver.
+     *
+     * @param opcode  the kind of the answer
+     * @param offset  the resume offset of an accept, the offset of the chunk to resend of a nack, 0 for an ack
+     * @param headers all the headers of the answer, e.g. where to open the data connections of a striped file
+     */
+    public record Signal(Opcode opcode, long offset, Headers headers) {
+    }
+
+
+    private final Map<Long, BlockingQueue<Signal>> transfers = new ConcurrentHashMap<>();
+
+
+    /**
+     * Starts collecting the answers to a transfer.
+     *
+     * @param transferId the id of the transfer
+     * @return the answers, in the order they arrive
+     */
+    public BlockingQueue<Signal> open(final long transferId) {
+        final BlockingQueue<Signal> signals = new LinkedBlockingQueue<>();
+        transfers.put(transferId, signals);
+        return signals;
+    }
+
+    /**
+     * Stops collecting the answers to a transfer.
+     *
+     * @param transferId the id of the transfer
+     */
+    public void close(final long transferId) {
+        transfers.remove(transferId);
+    }
+
+    /**
+     * Passes an answer of the receiver to the thread sending the file. Answers to transfers that are
+     * no longer being sent are dropped.
+     *
+     * @param header the header of the frame, the frame has no payload
+     * @throws ProtocolException If the frame is malformed.
+     */
+    public void onSignal(final FrameHeader header) throws ProtocolException {
+        final long transferId = header.headers().getLong(Headers.TRANSFER_ID);
+        final long offset = header.opcode() == Opcode.FILE_ACK ? 0 : header.headers().getLong(Headers.CHUNK_OFFSET);
+        if (header.payloadLength() != 0 || offset < 0) {
+            throw new ProtocolException("Malformed " + header.opcode() + " frame");
+        }
+
+        final BlockingQueue<Signal> signals = transfers.get(transferId);
+        if (signals != null) {
+            signals.add(new Signal(header.opcode(), offset, header.headers()));
+        }
+    }
+
+}
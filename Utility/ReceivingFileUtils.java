@@ -1,15 +1,31 @@
 package chatapp_combined.Utility;
 
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.Gauge;
+import chatapp_combined.metrics.Histogram;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.FrameHeader;
+import chatapp_combined.protocol.Handshake;
+import chatapp_combined.protocol.Headers;
+import chatapp_combined.protocol.Opcode;
+
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import static chatapp_combined.Utility.CommonUtils.*;
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+import static chatapp_combined.Utility.ConfigUtils.getString;
 
 
 /**
@@ -25,10 +41,24 @@ public final class ReceivingFileUtils {
      */
     private static final int LONG_SIZE = 8;
     private static final int START_IDX = 0;
-    private static final int CHUNK_SIZE = 1024;
+    // -Dchatapp.file.streamBufferSize, the size of the chunks read from the stream
+    private static final int PIPELINE_BUFFER_SIZE = getInt("file.streamBufferSize", 64 * 1024);
+
+    static final String DIR_TO_RECEIVE = "receivedFiles";
+    private static final int HASH_SIZE = 16; // MD5 generates a hash of 16 bytes (128 bits)
+    static final int MAX_HASH_SIZE = 64;
+
+    // -Dchatapp.file.receiveMode=channel (default when the socket has a channel) | stream
+    static final String RECEIVE_MODE = getString("file.receiveMode", "channel");
+    static final String CHANNEL_MODE = "channel";
+    static final int CHANNEL_BUFFER_SIZE = getInt("file.bufferSize", 256 * 1024); // -Dchatapp.file.bufferSize
+    static final long SYNC_INTERVAL = 64L * 1024 * 1024; // At most 64MB of dirty pages per transfer
 
-    private static final String DIR_TO_RECEIVE = "receivedFiles";
-    private static final String CHECKSUM_ALGORITHM = "MD5";
+    private static final Counter FILES_RECEIVED = MetricsRegistry.counter("files.received");
+    private static final Counter FILE_BYTES_RECEIVED = MetricsRegistry.counter("files.received.bytes");
+    static final Counter FILES_RECEIVE_FAILED = MetricsRegistry.counter("files.receive.failed");
+    static final Gauge FILES_RECEIVING = MetricsRegistry.gauge("files.receiving");
+    private static final Histogram RECEIVE_RATE = MetricsRegistry.histogram("files.receive.kBps");
 
     /**
      * Private constructor does not allow an instance to be created
@@ -46,6 +76,20 @@ public final class ReceivingFileUtils {
      * @throws IOException If an I/O error occurs.
      */
     public static void receiveFile(final String senderName, final DataInputStream inputStream) throws IOException {
+        receiveFile(senderName, inputStream, null);
+    }
+
+    /**
+     * Receives a file from the sender. When the channel of the socket is given, the content is read with it
+     * straight into a preallocated file (disable with -Dchatapp.file.receiveMode=stream).
+     *
+     * @param senderName    The name of the sender.
+     * @param inputStream   The DataInputStream from which the header is read.
+     * @param socketChannel The channel of the socket behind the stream, or null.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void receiveFile(final String senderName, final DataInputStream inputStream,
+                                   final ReadableByteChannel socketChannel) throws IOException {
         // Read the total length of the file
         final long fileLength = getFileLength(inputStream);
 
@@ -55,74 +99,254 @@ public final class ReceivingFileUtils {
         // Read the fileName
         final String fileName = getFileName(fileNameLength, inputStream);
 
+        receiveFileContent(fileLength, fileName, inputStream, socketChannel, senderName, Handshake.VERSION_1,
+                ChecksumAlgorithm.MD5);
+    }
+
+    /**
+     * Receives a file announced by a version 2 {@link Opcode#FILE} frame whose header has already been read.
+     *
+     * @param senderName    The name of the sender.
+     * @param header        The header of the frame.
+     * @param inputStream   The DataInputStream from which the file is read.
+     * @param socketChannel The channel of the socket behind the stream, or null.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void receiveFile(final String senderName, final FrameHeader header, final DataInputStream inputStream,
+                                   final ReadableByteChannel socketChannel) throws IOException {
+        final String fileName = header.headers().getString(Headers.FILE_NAME);
+        if (fileName == null) {
+            throw new ProtocolException("File frame without a file name");
+        }
+
+        receiveFileContent(header.payloadLength(), fileName, inputStream, socketChannel, senderName, Handshake.VERSION_2,
+                ChecksumAlgorithm.fromHeaders(header.headers()));
+    }
+
+    /**
+     * Receives the content and the checksum of a file whose header has been read.
+     *
+     * @param fileLength    The total length of the file.
+     * @param fileName      The name of the file.
+     * @param inputStream   The DataInputStream from which the file is read.
+     * @param socketChannel The channel of the socket behind the stream, or null.
+     * @param senderName    The name of the sender.
+     * @param version       The protocol version of the frames.
+     * @param algorithm     The checksum the file is closed with.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void receiveFileContent(final long fileLength, final String fileName, final DataInputStream inputStream,
+                                           final ReadableByteChannel socketChannel, final String senderName,
+                                           final int version, final ChecksumAlgorithm algorithm) throws IOException {
         // Create a file object to receive the file
         final File fileToReceive = new File(DIR_TO_RECEIVE, fileName);
 
-        // Receive the file inputStream chunks of 1024 bytes (1KB)
-        receiveFileInChunks(fileLength, fileToReceive, inputStream, senderName);
+        // Refuse the file before writing anything if the disk cannot hold it, the bytes are still read to keep the stream in sync
+        if (!hasFreeSpace(fileToReceive, fileLength)) {
+            ConsoleRenderer.println(ANSI_RED + getTimeString() + "Not enough free space to receive " + fileName +
+                    " (" + fileLength + " bytes). The file is skipped." + ANSI_RESET);
+            inputStream.skipNBytes(fileLength);
+            readFileHash(inputStream, version);
+            return;
+        }
+
+        FILES_RECEIVING.increment();
+        try {
+            if (socketChannel != null && CHANNEL_MODE.equals(RECEIVE_MODE)) {
+                receiveFileThroughChannel(fileLength, fileToReceive, inputStream, socketChannel, senderName, version,
+                        new HashingPipeline(algorithm, CHANNEL_BUFFER_SIZE, true));
+            } else {
+                receiveFileInChunks(fileLength, fileToReceive, inputStream, senderName, version,
+                        new HashingPipeline(algorithm, PIPELINE_BUFFER_SIZE, false));
+            }
+        } finally {
+            FILES_RECEIVING.decrement();
+        }
     }
 
     /**
-     * Receives the file inputStream chunks of specified size and writes it to the disk.
+     * Reads the checksum that closes a file, raw in version 1 and as a {@link Opcode#FILE_END} frame in version 2.
+     *
+     * @param inputStream The DataInputStream from which the checksum is read.
+     * @param version     The protocol version of the frames.
+     * @return The received checksum.
+     * @throws IOException If an I/O error occurs or the frame is not the end of the file.
+     */
+    private static byte[] readFileHash(final DataInputStream inputStream, final int version) throws IOException {
+        if (version < Handshake.VERSION_2) {
+            final byte[] receivedFileHash = new byte[HASH_SIZE];
+            inputStream.readFully(receivedFileHash);
+
+            return receivedFileHash;
+        }
+
+        final int firstByte = inputStream.readUnsignedByte();
+        final FrameHeader header = FrameCodec.isVersion2(firstByte) ? FrameCodec.readHeader(firstByte, inputStream) : null;
+        if (header == null || header.opcode() != Opcode.FILE_END) {
+            throw new ProtocolException("Expected the end of the file");
+        }
+
+        return FrameCodec.readPayload(header, MAX_HASH_SIZE, inputStream);
+    }
+
+    /**
+     * Checks whether the disk of the receiving directory can hold the file.
+     *
+     * @param fileToReceive The file to be received.
+     * @param fileLength    The total length of the file.
+     * @return true if there is enough usable space.
+     */
+    static boolean hasFreeSpace(final File fileToReceive, final long fileLength) {
+        final File directory = fileToReceive.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+
+        return directory.getUsableSpace() >= fileLength;
+    }
+
+    /**
+     * Receives the file with the socket channel into a file preallocated to its final length.
+     * The data goes from a direct buffer to the disk with positional writes, and the written pages are flushed
+     * every {@link #SYNC_INTERVAL} bytes, so a multi-GB file never piles up gigabytes of dirty page cache.
+     * The buffers are hashed by the pipeline while the next ones are read.
      *
      * @param fileLength    The total length of the file.
      * @param fileToReceive The file object to write the received file.
-     * @param inputStream   The DataInputStream from which the file is read.
+     * @param inputStream   The DataInputStream from which the checksum is read.
+     * @param socketChannel The channel from which the file is read.
      * @param senderName    The name of the sender.
+     * @param version         The protocol version of the frames.
+     * @param hashingPipeline The pipeline that computes the checksum.
      */
-    private static void receiveFileInChunks(final long fileLength, final File fileToReceive, final DataInputStream inputStream,
-                                            final String senderName) throws IOException {
-        try (FileOutputStream fileOutputStream = new FileOutputStream(fileToReceive)) {
-            System.out.println(ANSI_YELLOW + getTimeString() + "Receiving file..." + ANSI_RESET);
+    private static void receiveFileThroughChannel(final long fileLength, final File fileToReceive,
+                                                  final DataInputStream inputStream,
+                                                  final ReadableByteChannel socketChannel, final String senderName,
+                                                  final int version, final HashingPipeline hashingPipeline)
+            throws IOException {
+        final long startNanos = System.nanoTime();
 
-            // Set the chunk size for reading the file
-            //final int chunkSize = CHUNK_SIZE;      // sends 9.67GB for 4 min and 56 seconds
-            //final int chunkSize = CHUNK_SIZE * 4;  // sends 9.67GB for 5 min and 38 seconds
-            //final int chunkSize = CHUNK_SIZE * 8;  // sends 9.67GB for 4 min and 56 seconds
-            //final int chunkSize = CHUNK_SIZE * 16; // checksum failed
-            //final int chunkSize = CHUNK_SIZE * 32; // checksum failed
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(fileToReceive, "rw");
+             FileChannel fileChannel = randomAccessFile.getChannel()) {
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + "Receiving file..." + ANSI_RESET);
 
-            final byte[] buffer = new byte[CHUNK_SIZE];
+            // Preallocate the file to the announced length
+            randomAccessFile.setLength(fileLength);
 
-            // Create a MessageDigest instance for checksum calculation
-            final MessageDigest messageDigest = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+            long position = 0;
+            long unsyncedBytes = 0;
 
-            int bytesRead;
-            long totalBytesLeft = fileLength;
-            final long end = (fileLength / CHUNK_SIZE) + 1;
-
-            // Read the file inputStream chunks
-            for (int i = 0; i < end; i++) {
-                bytesRead = inputStream.read(buffer, START_IDX, (int) Math.min(totalBytesLeft, CHUNK_SIZE));
-                fileOutputStream.write(buffer, START_IDX, bytesRead);
-                messageDigest.update(buffer, START_IDX, bytesRead); // Update the file hash with the new chunk
-                totalBytesLeft -= CHUNK_SIZE;
+            while (position < fileLength) {
+                final ByteBuffer buffer = hashingPipeline.acquire();
+                buffer.limit((int) Math.min(CHANNEL_BUFFER_SIZE, fileLength - position));
+                if (socketChannel.read(buffer) < 0) {
+                    throw new EOFException();
+                }
+                buffer.flip();
+
+                // Write the chunk to the disk, then hand the same bytes over to be hashed
+                unsyncedBytes += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+                hashingPipeline.submit(buffer.rewind());
+
+                if (unsyncedBytes >= SYNC_INTERVAL) {
+                    fileChannel.force(false);
+                    unsyncedBytes = 0;
+                }
             }
 
             // Receive the hash of the file as byte[]
-            final int hashSize = 16; // MD5 generates a hash of 16 bytes (128 bits)
-            final byte[] receivedFileHash = new byte[hashSize];
-            inputStream.readFully(receivedFileHash);
-            // System.out.println("received file checkSum:   " + new String(receivedFileHash, StandardCharsets.UTF_16)); // For testing
+            final byte[] receivedFileHash = readFileHash(inputStream, version);
 
-            // Calculate the hash of the received file
-            final byte[] calcFileHash = messageDigest.digest();
-            // System.out.println("calculated file checkSum: " + new String(calcFileHash, StandardCharsets.UTF_16)); // For testing
+            final boolean hashesMatch = Arrays.equals(receivedFileHash, hashingPipeline.finish());
+            recordFileReceived(fileLength, startNanos, hashesMatch);
+            printResult(hashesMatch, senderName);
+        } catch (IOException ex) {
+            hashingPipeline.close();
+            FILES_RECEIVE_FAILED.increment();
+            ConsoleRenderer.println(ANSI_RED + "Nothing to be received. Connection lost!" + ANSI_RESET);
+            fileToReceive.deleteOnExit();
+        }
+    }
 
-            // Compare received hash and calculated hash to verify file integrity
-            if (Arrays.equals(receivedFileHash, calcFileHash)) {
-                System.out.printf(ANSI_YELLOW + "%sFile received by %s!" + ANSI_RESET + System.lineSeparator(),
-                        getTimeString(), senderName);
-            } else {
-                System.out.println(ANSI_RED + getTimeString() +
-                        " Received file hash doesn't match calculated hash. File may be corrupted." +
-                        " Try to send it again." + ANSI_RESET);
+    /**
+     * Receives the file in chunks of specified size and writes it to the disk. The chunks are hashed by
+     * the pipeline while the next ones are read.
+     *
+     * @param fileLength      The total length of the file.
+     * @param fileToReceive   The file object to write the received file.
+     * @param inputStream     The DataInputStream from which the file is read.
+     * @param senderName      The name of the sender.
+     * @param version         The protocol version of the frames.
+     * @param hashingPipeline The pipeline that computes the checksum.
+     */
+    private static void receiveFileInChunks(final long fileLength, final File fileToReceive, final DataInputStream inputStream,
+                                            final String senderName, final int version,
+                                            final HashingPipeline hashingPipeline) throws IOException {
+        final long startNanos = System.nanoTime();
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(fileToReceive)) {
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + "Receiving file..." + ANSI_RESET);
+
+            long totalBytesLeft = fileLength;
+
+            // Read the file in chunks, a chunk is always read whole so the stream stays in sync
+            while (totalBytesLeft > 0) {
+                final ByteBuffer buffer = hashingPipeline.acquire();
+                final int chunkLength = (int) Math.min(totalBytesLeft, buffer.capacity());
+
+                inputStream.readFully(buffer.array(), START_IDX, chunkLength);
+                fileOutputStream.write(buffer.array(), START_IDX, chunkLength);
+                hashingPipeline.submit(buffer.limit(chunkLength)); // Update the file hash with the new chunk
+                totalBytesLeft -= chunkLength;
             }
+
+            // Receive the hash of the file as byte[]
+            final byte[] receivedFileHash = readFileHash(inputStream, version);
+
+            // Compare received hash and calculated hash to verify file integrity
+            final boolean hashesMatch = Arrays.equals(receivedFileHash, hashingPipeline.finish());
+            recordFileReceived(fileLength, startNanos, hashesMatch);
+            printResult(hashesMatch, senderName);
         } catch (IOException ex) {
-            System.out.println(ANSI_RED + "Nothing to be received. Connection lost!" + ANSI_RESET);
+            hashingPipeline.close();
+            FILES_RECEIVE_FAILED.increment();
+            ConsoleRenderer.println(ANSI_RED + "Nothing to be received. Connection lost!" + ANSI_RESET);
             fileToReceive.deleteOnExit();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Counts a received file and records the rate it was received at, or counts it as failed if it is corrupted.
+     *
+     * @param bytes       The bytes of the file that were received.
+     * @param startNanos  When the transfer started.
+     * @param hashesMatch Whether the received hash and the calculated hash are equal.
+     */
+    static void recordFileReceived(final long bytes, final long startNanos, final boolean hashesMatch) {
+        if (!hashesMatch) {
+            FILES_RECEIVE_FAILED.increment();
+            return;
+        }
+
+        FILES_RECEIVED.increment();
+        FILE_BYTES_RECEIVED.add(bytes);
+        RECEIVE_RATE.recordRate(bytes, startNanos);
+    }
+
+    /**
+     * Prints whether the received file passed the integrity check.
+     *
+     * @param hashesMatch Whether the received hash and the calculated hash are equal.
+     * @param senderName  The name of the sender.
+     */
+    static void printResult(final boolean hashesMatch, final String senderName) {
+        if (hashesMatch) {
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + "File received by " + senderName + "!" + ANSI_RESET);
+        } else {
+            ConsoleRenderer.println(ANSI_RED + getTimeString() +
+                    " Received file hash doesn't match calculated hash. File may be corrupted." +
+                    " Try to send it again." + ANSI_RESET);
         }
     }
 
@@ -1,9 +1,15 @@
 package chatapp_combined.Utility;
 
+import chatapp_combined.history.HistoryRecord;
+import chatapp_combined.protocol.FrameCodec;
+
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 
+import static chatapp_combined.Utility.CommonUtils.ANSI_BLUE;
+import static chatapp_combined.Utility.CommonUtils.ANSI_RESET;
+import static chatapp_combined.Utility.CommonUtils.getDateTimeString;
 import static chatapp_combined.Utility.CommonUtils.getLength;
 import static chatapp_combined.Utility.CommonUtils.getTimeString;
 
@@ -16,6 +22,10 @@ import static chatapp_combined.Utility.CommonUtils.getTimeString;
 public final class ReceivingMessageUtils {
 
     private static final int START_IDX = 0;
+    private static final int COMMAND_LENGTH = 2;
+    private static final String MESSAGE_COMMAND = "-m";
+    private static final String FILE_COMMAND = "-f";
+    private static final String NAME_COMMAND = "-n";
 
 
     /**
@@ -41,7 +51,56 @@ public final class ReceivingMessageUtils {
         final String message = getMessage(messageLength, inputStream);
 
         // Print the received message along with the sender's name and timestamp
-        System.out.println(getTimeString() + senderName + ": " + message);
+        printMessage(senderName, message);
+    }
+
+    /**
+     * Prints a received message to the console.
+     *
+     * @param senderName the sender name
+     * @param message    the message
+     */
+    public static void printMessage(final String senderName, final String message) {
+        if (ConsoleRenderer.isEnabled()) {
+            ConsoleRenderer.println(getTimeString() + senderName + ": " + message);
+        }
+    }
+
+    /**
+     * Prints a message from the history with its date, the messages of the user in blue like when they were sent.
+     *
+     * @param record the message
+     */
+    public static void printHistoryRecord(final HistoryRecord record) {
+        final String line = getDateTimeString(record.timestamp()) + (record.sent() ? "Me" : record.sender()) + ": " +
+                record.text();
+
+        ConsoleRenderer.println(record.sent() ? ANSI_BLUE + line + ANSI_RESET : line);
+    }
+
+    /**
+     * Reads the length-prefixed text of a "-m" or "-n" frame without printing it.
+     *
+     * @param inputStream the input stream
+     * @return The text.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static String readText(final DataInputStream inputStream) throws IOException {
+        final int textLength = getLength(inputStream);
+
+        return getMessage(textLength, inputStream);
+    }
+
+    /**
+     * Receives the name the other side announces for the frames that follow.
+     *
+     * @param inputStream the input stream
+     * @return The name of the sender.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static String receiveName(final DataInputStream inputStream) throws IOException {
+        // The name is framed exactly like a message
+        return readText(inputStream);
     }
 
     /**
@@ -53,6 +112,20 @@ public final class ReceivingMessageUtils {
      * @throws IOException If an I/O error occurs.
      */
     public static String getCommand(final int commandLength, final DataInputStream inputStream) throws IOException {
+        // The known commands are two bytes, "-" and a letter, and are returned without allocating anything
+        if (commandLength == COMMAND_LENGTH) {
+            final int dash = inputStream.readUnsignedByte();
+            final int letter = inputStream.readUnsignedByte();
+            final String command = dash != '-' ? null : switch (letter) {
+                case 'm' -> MESSAGE_COMMAND;
+                case 'f' -> FILE_COMMAND;
+                case 'n' -> NAME_COMMAND;
+                default -> null;
+            };
+
+            return command != null ? command : new String(new byte[]{(byte) dash, (byte) letter}, StandardCharsets.UTF_8);
+        }
+
         // Read the bytes representing the command and construct a String
         final byte[] commandBytes = new byte[commandLength];
         inputStream.readFully(commandBytes, START_IDX, commandLength);
@@ -68,11 +141,8 @@ public final class ReceivingMessageUtils {
      * @throws IOException If an I/O error occurs.
      */
     private static String getMessage(final int messageLength, final DataInputStream inputStream) throws IOException {
-        // Read the bytes representing the message and construct a String
-        final byte[] messageBytes = new byte[messageLength];
-        inputStream.readFully(messageBytes, START_IDX, messageLength);
-
-        return new String(messageBytes, StandardCharsets.UTF_8);
+        // Read the bytes representing the message through a pooled buffer and construct a String
+        return FrameCodec.readText(messageLength, inputStream);
     }
 
 }
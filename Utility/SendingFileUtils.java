@@ -1,15 +1,44 @@
 package chatapp_combined.Utility;
 
 
+import chatapp_combined.Utility.OutgoingTransfers.Signal;
+import chatapp_combined.messagesCommand.TaskExecutor;
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.Gauge;
+import chatapp_combined.metrics.Histogram;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.Compression;
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.Handshake;
+import chatapp_combined.protocol.Headers;
+import chatapp_combined.protocol.Opcode;
+import chatapp_combined.streamsCommand.OutboundQueue;
+
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static chatapp_combined.Utility.CommonUtils.*;
+import static chatapp_combined.Utility.ConfigUtils.getBoolean;
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+import static chatapp_combined.Utility.ConfigUtils.getLong;
 
 /**
  * Utility class for sending files in a chat application.
@@ -23,8 +52,23 @@ public final class SendingFileUtils {
      */
     public static final int CHUNK_SIZE = 1024;
     private static final int START_IDX = 0;
-    private static final String CHECKSUM_ALGORITHM = "MD5";
-    private static final String FILES_DIR = "filesToSend";
+    // The checksum of version 2 files, version 1 files are always closed with MD5
+    private static final ChecksumAlgorithm CHECKSUM = ChecksumAlgorithm.fromConfig();
+    // -Dchatapp.file.streamBufferSize, the size of the chunks written to the stream when zero-copy is not used
+    private static final int PIPELINE_BUFFER_SIZE = getInt("file.streamBufferSize", 64 * 1024);
+    private static final boolean ZERO_COPY = getBoolean("file.zeroCopy", true);
+    // The size of the chunks of a multiplexed transfer, a chat message waits for at most one of them
+    private static final int MULTIPLEX_CHUNK_SIZE = getInt("file.chunkSize", 256 * 1024);
+    // How long the sender of a resumable file waits for an answer of the receiver
+    private static final long ANSWER_TIMEOUT_SECONDS = getLong("file.answerTimeoutSeconds", 120);
+    // The number of data connections a resumable file is striped over, 1 keeps it on the chat connection
+    private static final int STREAMS = getInt("file.streams", 1);
+
+    private static final Counter FILES_SENT = MetricsRegistry.counter("files.sent");
+    private static final Counter FILE_BYTES_SENT = MetricsRegistry.counter("files.sent.bytes");
+    private static final Counter FILES_SEND_FAILED = MetricsRegistry.counter("files.send.failed");
+    private static final Gauge FILES_SENDING = MetricsRegistry.gauge("files.sending");
+    private static final Histogram SEND_RATE = MetricsRegistry.histogram("files.send.kBps");
 
 
     /**
@@ -43,104 +87,410 @@ public final class SendingFileUtils {
      * @throws IOException If an I/O error occurs.
      */
     public static void sendFileBytes(final String message, final DataOutputStream outputStream) throws IOException {
-        final int endCommandIdx = 2;
-        // Separate the command from the full inputted string
-        final String command = new String(Arrays.copyOfRange(message.getBytes(), START_IDX, endCommandIdx));
+        sendFileBytes(message, outputStream, null);
+    }
+
+    /**
+     * Sends a file over a DataOutputStream. When the channel of the socket is given, the file content is
+     * moved by the kernel with {@link FileChannel#transferTo} and never copied into the heap
+     * (disable with -Dchatapp.file.zeroCopy=false).
+     *
+     * @param message       The message containing the file path.
+     * @param outputStream  The DataOutputStream for sending data.
+     * @param socketChannel The channel of the socket behind the stream, or null.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void sendFileBytes(final String message, final DataOutputStream outputStream,
+                                     final WritableByteChannel socketChannel) throws IOException {
+        sendFileBytes(message, outputStream, socketChannel, Handshake.VERSION_1);
+    }
+
+    /**
+     * Sends a file in the frame format of the negotiated protocol version. Version 2 announces the file
+     * with a {@link Opcode#FILE} frame and closes it with a {@link Opcode#FILE_END} frame carrying the checksum.
+     *
+     * @param message       The message containing the file path.
+     * @param outputStream  The DataOutputStream for sending data.
+     * @param socketChannel The channel of the socket behind the stream, or null.
+     * @param version       The protocol version of the connection.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void sendFileBytes(final String message, final DataOutputStream outputStream,
+                                     final WritableByteChannel socketChannel, final int version) throws IOException {
         // Separate the filepath from the full inputted string
-        final String path = new String(Arrays.copyOfRange(message.getBytes(), endCommandIdx + 1, message.length()));
+        final File file = new File(getPath(message));
+
+        // Checks if the file exists
+        if (doesFileNotExist(file)) {
+            return;
+        }
+
+        final long fileLength = file.length();
+        final String fileName = file.getName();
 
-        // Get the length of the command in byte[]
-        final int totalLengthCommand = command.length();
-        final byte[] totalLengthCommandAsByteArray = convertIntToByteArray(totalLengthCommand);
+        // At first, send the bytes that represent the command length, the command, the length of the file,
+        // the length of the fileName, and the fileName
+        if (version < Handshake.VERSION_2) {
+            sendAllBytesArray(outputStream, encodeVersion1Header(message, fileLength, fileName));
+        } else {
+            final Headers headers = CHECKSUM.putInto(new Headers().putString(Headers.FILE_NAME, fileName));
+            sendAllBytesArray(outputStream, FrameCodec.encodeHeader(Opcode.FILE, headers, fileLength));
+        }
+
+        // Now, send the file in chunks
+        FILES_SENDING.increment();
+        try {
+            if (ZERO_COPY && socketChannel != null) {
+                sendFileZeroCopy(outputStream, socketChannel, file, fileLength, version);
+            } else {
+                sendFileInChunks(outputStream, file, fileLength, version);
+            }
+        } finally {
+            FILES_SENDING.decrement();
+        }
+    }
 
-        // Get the command in byte[]
-        final byte[] commandBytes = command.getBytes();
+    /**
+     * Sends a file as a resumable multiplexed transfer. The file is offered with a {@link Opcode#FILE_OFFER} frame
+     * and the receiver answers with the offset to resume from, then the rest of the file goes out in
+     * {@link Opcode#FILE_CHUNK} frames that carry their offset and a CRC32C. A chunk the receiver could not verify
+     * is sent again, and once the receiver has every chunk the file is closed with a {@link Opcode#FILE_END} frame.
+     * The frames go through the bulk lane of the queue, so chat frames keep going out between the chunks.
+     * The chunks are moved with {@link FileChannel#transferTo} and the checksum is computed at the same time.
+     * <p>
+     * With -Dchatapp.file.streams=N the receiver is asked to take the chunks over N extra data connections instead,
+     * which fills a long fat link that a single stream cannot. The chunks are verified the same way and the ones
+     * the receiver could not verify, or that were on a connection that failed, are sent again on the chat connection.
+     * <p>
+     * When the receiver can inflate them, the chunks that go through the chat connection are deflated, unless
+     * a few samples show that the file hardly shrinks, see {@link Compression}. A compressed chunk is read through
+     * a mapped window of the file instead of being moved with {@link FileChannel#transferTo}.
+     *
+     * @param message           The message containing the file path.
+     * @param outboundQueue     The queue of the connection.
+     * @param outgoingTransfers The answers of the receiver.
+     * @param transferId        The id of the transfer, unique on the connection.
+     * @param peerAddress       The address of the receiver, or null if the file cannot be striped.
+     * @param executor          The executor that runs the threads of the data connections.
+     * @param compress          Whether the receiver inflates compressed chunks.
+     */
+    public static void sendFileMultiplexed(final String message, final OutboundQueue outboundQueue,
+                                           final OutgoingTransfers outgoingTransfers, final long transferId,
+                                           final InetAddress peerAddress, final TaskExecutor executor,
+                                           final boolean compress) {
+        sendMultiplexed(new File(getPath(message)), null, outboundQueue, outgoingTransfers, transferId, peerAddress,
+                executor, compress);
+    }
 
-        final File file = new File(path);
+    /**
+     * Uploads a file to the attachment store of the server, see {@link #sendFileMultiplexed}. The offer carries
+     * the SHA-256 of the file, so the file is hashed before it is offered. The server skips the upload if it already
+     * has the content, and shares the attachment once it is stored.
+     *
+     * @param path              The path of the file.
+     * @param address           Who the attachment is shared with: "#room", "@name" or empty for everyone.
+     * @param outboundQueue     The queue of the connection.
+     * @param outgoingTransfers The answers of the server.
+     * @param transferId        The id of the transfer, unique on the connection.
+     */
+    public static void sendAttachment(final String path, final String address, final OutboundQueue outboundQueue,
+                                      final OutgoingTransfers outgoingTransfers, final long transferId) {
+        sendMultiplexed(new File(path), address, outboundQueue, outgoingTransfers, transferId, null, null, false);
+    }
 
+    /**
+     * Sends a file as a resumable multiplexed transfer, or as an attachment when it has an address.
+     */
+    private static void sendMultiplexed(final File file, final String attachmentAddress, final OutboundQueue outboundQueue,
+                                        final OutgoingTransfers outgoingTransfers, final long transferId,
+                                        final InetAddress peerAddress, final TaskExecutor executor,
+                                        final boolean compress) {
         // Checks if the file exists
-        if (doesFileNotExist(file.getName())) {
+        if (doesFileNotExist(file)) {
             return;
         }
 
-        // Get the file length in byte[]
+        // The store keys the attachments by their SHA-256
+        final ChecksumAlgorithm algorithm = attachmentAddress == null ? CHECKSUM : ChecksumAlgorithm.SHA_256;
         final long fileLength = file.length();
-        final byte[] fileLengthAsByteArray = convertLongToByteArray(fileLength);
+        final Headers offerHeaders = new Headers().putLong(Headers.TRANSFER_ID, transferId)
+                .putString(Headers.FILE_NAME, file.getName()).putLong(Headers.FILE_LENGTH, fileLength)
+                .putLong(Headers.FILE_VERSION, file.lastModified());
+        algorithm.putInto(offerHeaders);
+        if (STREAMS > 1 && peerAddress != null) {
+            offerHeaders.putInt(Headers.STRIPES, STREAMS);
+        }
+        final BlockingQueue<Signal> signals = outgoingTransfers.open(transferId);
+        final long startNanos = System.nanoTime();
+        FILES_SENDING.increment();
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             Compression compression = new Compression()) {
+            final CompletableFuture<byte[]> fileHash = hashFile(fileChannel, fileLength, algorithm);
+            final ChunkSender chunkSender = new ChunkSender(outboundQueue, fileChannel, fileLength, transferId,
+                    compress && compression.isCompressible(fileChannel, fileLength) ? compression : null);
+
+            if (attachmentAddress != null) {
+                offerHeaders.putString(Headers.ATTACHMENT, attachmentAddress).put(Headers.CONTENT_HASH, fileHash.join());
+            }
+            outboundQueue.enqueueBulk(ByteBuffer.wrap(FrameCodec.encode(Opcode.FILE_OFFER, offerHeaders, new byte[0])));
 
-        final String fileName = file.getName();
+            final Signal accept = awaitSignal(signals);
+            if (accept.opcode() != Opcode.FILE_ACCEPT || accept.offset() > fileLength) {
+                throw new ProtocolException("Unexpected answer to the offer: " + accept);
+            }
+
+            if (attachmentAddress != null && accept.offset() == fileLength && fileLength > 0) {
+                ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + " The server already has the file, sharing it..." +
+                        ANSI_RESET);
+            } else if (accept.offset() > 0) {
+                ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + " Resuming file from byte " + accept.offset() + "..." + ANSI_RESET);
+            } else {
+                ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + " Sending file..." + ANSI_RESET);
+            }
 
-        // Get the fileName length in byte[]
-        final int totalLengthFileName = fileName.length();
-        final byte[] totalLengthFileNameAsByteArray = convertIntToByteArray(totalLengthFileName);
+            long start = accept.offset();
+            final byte[] dataToken = accept.headers().get(Headers.DATA_TOKEN);
+            if (dataToken != null && peerAddress != null) {
+                final InetSocketAddress dataAddress = new InetSocketAddress(peerAddress, accept.headers().getInt(Headers.DATA_PORT));
+                ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + " Striping the file over " + STREAMS + " connections..." +
+                        ANSI_RESET);
+
+                final List<Long> left = new StripeSender(fileChannel, fileLength, start, MULTIPLEX_CHUNK_SIZE,
+                        dataAddress, dataToken).send(STREAMS, executor);
+                for (long position : left) {
+                    chunkSender.send(position);
+                }
+                start = fileLength;
+            }
 
-        // Get the fileName in byte[]
-        final byte[] fileNameBytes = fileName.getBytes();
+            for (long position = start; position < fileLength; position += MULTIPLEX_CHUNK_SIZE) {
+                Signal signal;
+                while ((signal = signals.poll()) != null) {
+                    resendChunk(chunkSender, signal);
+                }
+                chunkSender.send(position);
+            }
 
-        // Construct a byte[] consists of: the bytes of command length, the command bytes, the length of the file,
-        // the length of the filename, and the filename itself
-        final byte[] allBytesArray = fillAllBytesArray(totalLengthCommandAsByteArray, commandBytes, fileLengthAsByteArray,
-                totalLengthFileNameAsByteArray, fileNameBytes);
+            // Resend what the receiver could not verify, until it has every chunk
+            Signal signal;
+            while ((signal = awaitSignal(signals)).opcode() != Opcode.FILE_ACK) {
+                resendChunk(chunkSender, signal);
+            }
 
-        // At first, send the bytes that represent the command length, the command, the length of the file as byte[],
-        // the length of the fileName, and the fileName in byte[]
-        sendAllBytesArray(outputStream, allBytesArray);
+            // The file stays open until the last chunk is written
+            final Headers endHeaders = new Headers().putLong(Headers.TRANSFER_ID, transferId);
+            outboundQueue.enqueueBulk(ByteBuffer.wrap(FrameCodec.encode(Opcode.FILE_END, endHeaders, fileHash.join())))
+                    .join();
+
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + " File sent!" + ANSI_RESET);
+            recordFileSent(fileLength - accept.offset(), startNanos);
+        } catch (IOException | CompletionException ex) {
+            FILES_SEND_FAILED.increment();
+            ConsoleRenderer.println(ANSI_RED + "Connection lost! The file may be corrupted." + ANSI_RESET);
+        } catch (TimeoutException e) {
+            FILES_SEND_FAILED.increment();
+            ConsoleRenderer.println(ANSI_RED + getTimeString() + " No answer from the receiver. Send the file again to resume it." +
+                    ANSI_RESET);
+            abortTransfer(outboundQueue, transferId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            FILES_SENDING.decrement();
+            outgoingTransfers.close(transferId);
+        }
+    }
 
-        // Now, send the file in chunks
-        sendFileInChunks(outputStream, file, fileLength);
+    private static Signal awaitSignal(final BlockingQueue<Signal> signals) throws InterruptedException, TimeoutException {
+        final Signal signal = signals.poll(ANSWER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (signal == null) {
+            throw new TimeoutException();
+        }
+        return signal;
     }
 
-    private static boolean doesFileNotExist(final String path) {
-        final File directory = new File(FILES_DIR);
-        final File fileToCheck = new File(directory, path);
+    private static void resendChunk(final ChunkSender chunkSender, final Signal signal) throws IOException {
+        if (signal.opcode() != Opcode.FILE_NACK) {
+            throw new ProtocolException("Unexpected answer during the transfer: " + signal);
+        }
+        chunkSender.send(signal.offset());
+    }
 
-        if (!fileToCheck.exists()) {
-            System.out.println(ANSI_RED + "File does not exist!" + ANSI_RESET);
+    /**
+     * Tells the receiver to stop waiting for the file, it keeps what it has for a later resume.
+     */
+    private static void abortTransfer(final OutboundQueue outboundQueue, final long transferId) {
+        final Headers headers = new Headers().putLong(Headers.TRANSFER_ID, transferId);
+
+        try {
+            outboundQueue.enqueueBulk(ByteBuffer.wrap(FrameCodec.encode(Opcode.FILE_END, headers, new byte[0])));
+        } catch (IOException e) {
+            ConsoleRenderer.println(ANSI_RED + "Connection lost!" + ANSI_RESET);
+        }
+    }
+
+    /**
+     * Separates the file path from the full inputted string.
+     *
+     * @param message The message containing the file path.
+     * @return The file path.
+     */
+    private static String getPath(final String message) {
+        final int endCommandIdx = 2;
+
+        return message.substring(endCommandIdx + 1);
+    }
+
+    /**
+     * Checks the file that is about to be opened, the path the user gave and not a name looked up elsewhere.
+     */
+    private static boolean doesFileNotExist(final File file) {
+        if (!file.isFile()) {
+            ConsoleRenderer.println(ANSI_RED + "File does not exist!" + ANSI_RESET);
             return true;
         }
         return false;
     }
 
     /**
-     * Sends the file in chunks over a DataOutputStream.
+     * Sends the file in chunks over a DataOutputStream. The chunks are hashed by a {@link HashingPipeline},
+     * so reading the next chunk overlaps with hashing the previous ones.
      *
      * @param outputStream The DataOutputStream for sending data.
      * @param file         The file to be sent.
      * @param fileLength   The length of the file.
+     * @param version      The protocol version of the connection.
      */
-    private static void sendFileInChunks(final DataOutputStream outputStream, final File file, final long fileLength)
-            throws IOException {
-        try (FileInputStream fileInputStream = new FileInputStream(file)) {
-            System.out.println(ANSI_YELLOW + getTimeString() + " Sending file..." + ANSI_RESET);
-
-            final int chunkSize = CHUNK_SIZE; // Size of each chunk
+    private static void sendFileInChunks(final DataOutputStream outputStream, final File file, final long fileLength,
+                                         final int version) throws IOException {
+        final HashingPipeline hashingPipeline = new HashingPipeline(checksumFor(version), PIPELINE_BUFFER_SIZE, false);
+        final long startNanos = System.nanoTime();
 
-            final byte[] buffer = new byte[chunkSize];
-
-            MessageDigest md = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+        try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + " Sending file..." + ANSI_RESET);
 
-            int bytesRead;
             long totalBytesLeft = fileLength;
-            final long end = (fileLength / chunkSize) + 1;
-            for (int i = 0; i < end; i++) {
-                bytesRead = fileInputStream.read(buffer, START_IDX, (int) Math.min(totalBytesLeft, chunkSize));
-                outputStream.write(buffer, START_IDX, bytesRead);
-                md.update(buffer, START_IDX, bytesRead); // Update the file hash every time we write a new chunk to the stream
-                totalBytesLeft -= chunkSize;
+            while (totalBytesLeft > 0) {
+                final ByteBuffer buffer = hashingPipeline.acquire();
+                final int bytesRead = fileInputStream.readNBytes(buffer.array(), START_IDX,
+                        (int) Math.min(totalBytesLeft, buffer.capacity()));
+                if (bytesRead == 0) {
+                    throw new EOFException();
+                }
+
+                outputStream.write(buffer.array(), START_IDX, bytesRead);
+                hashingPipeline.submit(buffer.limit(bytesRead));
+                totalBytesLeft -= bytesRead;
             }
 
-            // Completes the hash computation and returns the final value of the hash as byte[]
-            final byte[] fileHash = md.digest();
+            // Send the hash of the file as byte[]
+            sendFileHash(outputStream, hashingPipeline.finish(), version);
+
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + " File sent!" + ANSI_RESET);
+            recordFileSent(fileLength, startNanos);
+        } catch (IOException ex) {
+            hashingPipeline.close();
+            FILES_SEND_FAILED.increment();
+            ConsoleRenderer.println(ANSI_RED + "Connection lost! The file may be corrupted." + ANSI_RESET);
+        }
+    }
+
+    /**
+     * Sends the file with sendfile(2). The checksum is computed at the same time on another thread
+     * from memory-mapped windows of the file, so the content is not read a second time into the heap.
+     *
+     * @param outputStream  The DataOutputStream for sending the checksum.
+     * @param socketChannel The channel of the socket.
+     * @param file          The file to be sent.
+     * @param fileLength    The length of the file.
+     * @param version       The protocol version of the connection.
+     */
+    private static void sendFileZeroCopy(final DataOutputStream outputStream, final WritableByteChannel socketChannel,
+                                         final File file, final long fileLength, final int version) {
+        final long startNanos = System.nanoTime();
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + " Sending file..." + ANSI_RESET);
+
+            final CompletableFuture<byte[]> fileHash = hashFile(fileChannel, fileLength, checksumFor(version));
+
+            long position = 0;
+            while (position < fileLength) {
+                final long transferred = fileChannel.transferTo(position, fileLength - position, socketChannel);
+                // Nothing is transferred past the end, a file that shrank while it is sent would never be done
+                if (transferred == 0 && position >= fileChannel.size()) {
+                    throw new EOFException();
+                }
+                position += transferred;
+            }
 
             // Send the hash of the file as byte[]
-            outputStream.write(fileHash);
-            outputStream.flush();
+            sendFileHash(outputStream, fileHash.join(), version);
 
-            System.out.println(ANSI_YELLOW + getTimeString() + " File sent!" + ANSI_RESET);
-        } catch (IOException | NoSuchAlgorithmException ex) {
-            System.out.println(ANSI_RED + "Connection lost! The file may be corrupted." + ANSI_RESET);
+            ConsoleRenderer.println(ANSI_YELLOW + getTimeString() + " File sent!" + ANSI_RESET);
+            recordFileSent(fileLength, startNanos);
+        } catch (IOException | CompletionException ex) {
+            FILES_SEND_FAILED.increment();
+            ConsoleRenderer.println(ANSI_RED + "Connection lost! The file may be corrupted." + ANSI_RESET);
         }
     }
 
+    /**
+     * Counts a file that was sent and records the rate it was sent at.
+     *
+     * @param bytes      The bytes of the file that were sent.
+     * @param startNanos When the transfer started.
+     */
+    private static void recordFileSent(final long bytes, final long startNanos) {
+        FILES_SENT.increment();
+        FILE_BYTES_SENT.add(bytes);
+        SEND_RATE.recordRate(bytes, startNanos);
+    }
+
+    /**
+     * Sends the checksum that closes the file, raw in version 1 and as a frame in version 2.
+     *
+     * @param outputStream The DataOutputStream for sending data.
+     * @param fileHash     The checksum of the file.
+     * @param version      The protocol version of the connection.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void sendFileHash(final DataOutputStream outputStream, final byte[] fileHash, final int version)
+            throws IOException {
+        outputStream.write(version < Handshake.VERSION_2 ? fileHash : FrameCodec.encode(Opcode.FILE_END, null, fileHash));
+        outputStream.flush();
+    }
+
+    /**
+     * Starts computing the checksum of a file from memory-mapped windows, on a {@link HashingPipeline} thread
+     * while the file is being sent.
+     *
+     * @param fileChannel The channel of the file.
+     * @param fileLength  The length of the file.
+     * @param algorithm   The checksum to compute.
+     * @return The checksum, once it is computed.
+     */
+    private static CompletableFuture<byte[]> hashFile(final FileChannel fileChannel, final long fileLength,
+                                                      final ChecksumAlgorithm algorithm) throws IOException {
+        final HashingPipeline hashingPipeline = new HashingPipeline(algorithm, 0, false);
+        hashingPipeline.submit(fileChannel, 0, fileLength);
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return hashingPipeline.finish();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * The checksum a file is closed with in a protocol version.
+     */
+    private static ChecksumAlgorithm checksumFor(final int version) {
+        return version < Handshake.VERSION_2 ? ChecksumAlgorithm.MD5 : CHECKSUM;
+    }
+
     /**
      * Sends a byte array over a DataOutputStream.
      *
@@ -157,45 +507,82 @@ public final class SendingFileUtils {
     }
 
     /**
-     * Fills a byte array with various components of the file to be sent.
+     * Encodes the header of a version 1 file in one array: the length of the command, the command,
+     * the length of the file, the length of the file name and the file name.
      *
-     * @param totalLengthCommandAsByteArray  The length of the command.
-     * @param commandBytes                   The command bytes.
-     * @param fileLengthAsByteArray          The length of the file.
-     * @param totalLengthFileNameAsByteArray The length of the file name.
-     * @param fileNameBytes                  The file name bytes.
-     * @return The filled byte array.
-     */
-    private static byte[] fillAllBytesArray(final byte[] totalLengthCommandAsByteArray, final byte[] commandBytes,
-                                            final byte[] fileLengthAsByteArray, final byte[] totalLengthFileNameAsByteArray,
-                                            final byte[] fileNameBytes) {
-        final int allLengths = totalLengthCommandAsByteArray.length + commandBytes.length +
-                fileLengthAsByteArray.length + totalLengthFileNameAsByteArray.length + fileNameBytes.length;
-        final byte[] allBytesArray = new byte[allLengths];
-
-        int idx = START_IDX;
-
-        for (byte b : totalLengthCommandAsByteArray) {
-            allBytesArray[idx++] = b;
-        }
+     * @param message    The message containing the command.
+     * @param fileLength The length of the file.
+     * @param fileName   The name of the file.
+     * @return The encoded header.
+     */
+    private static byte[] encodeVersion1Header(final String message, final long fileLength, final String fileName) {
+        final int commandLength = 2; // e.g. "-f"
+        final byte[] fileNameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + commandLength + Long.BYTES + Integer.BYTES +
+                fileNameBytes.length);
+
+        buffer.putInt(commandLength);
+        buffer.put((byte) message.charAt(START_IDX));
+        buffer.put((byte) message.charAt(START_IDX + 1));
+        buffer.putLong(fileLength);
+        buffer.putInt(fileNameBytes.length);
+        buffer.put(fileNameBytes);
+
+        return buffer.array();
+    }
 
-        for (byte b : commandBytes) {
-            allBytesArray[idx++] = b;
-        }
 
-        for (byte b : fileLengthAsByteArray) {
-            allBytesArray[idx++] = b;
+    /**
+     * Queues the chunks of one transfer.
+     */
+    private static final class ChunkSender {
+
+        private final OutboundQueue outboundQueue;
+        private final FileChannel fileChannel;
+        private final long fileLength;
+        private final long transferId;
+        private final ChunkChecksum chunkChecksum;
+        private final Compression compression; // Null when the chunks are sent as they are
+
+        private ChunkSender(final OutboundQueue outboundQueue, final FileChannel fileChannel, final long fileLength,
+                            final long transferId, final Compression compression) {
+            this.outboundQueue = outboundQueue;
+            this.fileChannel = fileChannel;
+            this.fileLength = fileLength;
+            this.transferId = transferId;
+            this.chunkChecksum = new ChunkChecksum(fileChannel, fileLength);
+            this.compression = compression;
         }
 
-        for (byte b : totalLengthFileNameAsByteArray) {
-            allBytesArray[idx++] = b;
-        }
+        /**
+         * Queues the chunk that starts at the position.
+         *
+         * @param position the position of the chunk
+         * @throws IOException If the position is outside the file or the connection is gone.
+         */
+        private void send(final long position) throws IOException {
+            if (position < 0 || position >= fileLength) {
+                throw new ProtocolException("No chunk at " + position);
+            }
+
+            final int chunkLength = (int) Math.min(MULTIPLEX_CHUNK_SIZE, fileLength - position);
+            final Headers headers = new Headers().putLong(Headers.TRANSFER_ID, transferId)
+                    .putLong(Headers.CHUNK_OFFSET, position).putInt(Headers.CHECKSUM, chunkChecksum.compute(position, chunkLength));
+
+            // The checksum is of the content of the file, a compressed chunk is verified once it is inflated
+            if (compression != null) {
+                final byte[] frame = compression.encode(Opcode.FILE_CHUNK, headers,
+                        chunkChecksum.slice(position, chunkLength));
+                if (frame != null) {
+                    outboundQueue.enqueueBulk(ByteBuffer.wrap(frame), chunkLength);
+                    return;
+                }
+            }
 
-        for (byte b : fileNameBytes) {
-            allBytesArray[idx++] = b;
+            final byte[] chunkHeader = FrameCodec.encodeHeader(Opcode.FILE_CHUNK, headers, chunkLength);
+            outboundQueue.enqueueBulk(ByteBuffer.wrap(chunkHeader), fileChannel, position, chunkLength);
         }
 
-        return allBytesArray;
     }
 
 }
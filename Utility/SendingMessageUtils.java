@@ -1,10 +1,13 @@
 package chatapp_combined.Utility;
 
+import chatapp_combined.protocol.BufferPool;
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.Handshake;
+import chatapp_combined.protocol.Opcode;
+
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
-
-import static chatapp_combined.Utility.CommonUtils.convertIntToByteArray;
+import java.nio.ByteBuffer;
 
 /**
  * The type Sending message utils.
@@ -14,6 +17,7 @@ import static chatapp_combined.Utility.CommonUtils.convertIntToByteArray;
 public final class SendingMessageUtils {
 
     private static final int START_IDX = 0;
+    private static final int COMMAND_LENGTH = 2; // e.g. "-m"
 
 
     /**
@@ -38,82 +42,103 @@ public final class SendingMessageUtils {
     }
 
     /**
-     * Prepares a message to be sent by converting it to a byte array.
+     * Sends a message in the frame format of the negotiated protocol version.
      *
-     * @param message The message to convert.
-     * @return A byte array representing the command and the message.
+     * @param messageToSend The message to send, including its "-m" command.
+     * @param outputStream  The DataOutputStream to send the message through.
+     * @param version       The protocol version of the connection.
+     * @throws IOException If an I/O error occurs.
      */
-    private static byte[] bytesToSend(final String message) {
-        // Define the index where the command part of the message ends
-        final int endCommandIdx = 2;
+    public static void sendMessageBytes(final String messageToSend, final DataOutputStream outputStream,
+                                       final int version) throws IOException {
+        outputStream.write(encodeMessage(messageToSend, version));
+        outputStream.flush();
+    }
 
-        // Extract the command part from the message (e.g., "-m" or "-f")
-        final String command = new String(Arrays.copyOfRange(message.getBytes(), START_IDX, endCommandIdx));
+    /**
+     * Encodes a message in the frame format of the negotiated protocol version, without sending it.
+     *
+     * @param messageToSend The message to send, including its "-m" command.
+     * @param version       The protocol version of the connection.
+     * @return The encoded frame.
+     */
+    public static byte[] encodeMessage(final String messageToSend, final int version) {
+        if (version < Handshake.VERSION_2) {
+            return bytesToSend(messageToSend);
+        }
 
-        // Convert the length of the command to a byte array
-        final int totalLengthCommand = command.length();
-        final byte[] totalLengthCommandAsByteArray = convertIntToByteArray(totalLengthCommand);
+        // Version 2 replaces the 4-byte length and the "-m" string with one opcode byte
+        return FrameCodec.encode(Opcode.MESSAGE, null, messageToSend.substring(textStart(messageToSend)));
+    }
 
-        // Convert the command itself to a byte array
-        final byte[] commandBytes = command.getBytes();
+    /**
+     * Encodes a message in the frame format of the negotiated protocol version straight into a buffer of the pool.
+     * Nothing but the buffer is needed, which goes back to the pool once the frame is written.
+     *
+     * @param messageToSend The message to send, including its "-m" command.
+     * @param version       The protocol version of the connection.
+     * @param pool          The pool the buffer is taken from.
+     * @return The encoded frame, ready to be read.
+     */
+    public static ByteBuffer encodeMessage(final String messageToSend, final int version, final BufferPool pool) {
+        if (version < Handshake.VERSION_2) {
+            final int textLength = FrameCodec.utf8Length(messageToSend, textStart(messageToSend));
+            final ByteBuffer buffer = pool.acquire(version1Length(textLength));
+            writeVersion1(buffer, messageToSend, textLength);
 
-        // Calculate the length of the actual message (excluding the command and a separating space)
-        final int totalLengthMessage = message.length() - totalLengthCommand - 1;
-        final byte[] totalLengthMessageAsByteArray = convertIntToByteArray(totalLengthMessage);
+            return buffer.flip();
+        }
 
-        // Extract the actual message part by trimming off the command and the separating space
-        final int startIdx = totalLengthCommand + 1;
-        final int endIdx = totalLengthMessage + totalLengthCommand + 1;
-        final String trimmedMessage = new String(Arrays.copyOfRange(message.getBytes(), startIdx, endIdx));
-        final byte[] messageBytes = trimmedMessage.getBytes();
+        return FrameCodec.encode(Opcode.MESSAGE, null, messageToSend, textStart(messageToSend), pool);
+    }
 
-        // Calculate the total length of all byte arrays combined
-        final int allBytes = totalLengthCommandAsByteArray.length + commandBytes.length +
-                totalLengthMessageAsByteArray.length + messageBytes.length;
+    /**
+     * Prepares a message to be sent by converting it to a byte array: the length of the command, the command,
+     * the length of the message and the message, in one pass over the string.
+     *
+     * @param message The message to convert.
+     * @return A byte array representing the command and the message.
+     */
+    public static byte[] bytesToSend(final String message) {
+        final int textLength = FrameCodec.utf8Length(message, textStart(message));
+        final ByteBuffer buffer = ByteBuffer.allocate(version1Length(textLength));
+        writeVersion1(buffer, message, textLength);
 
-        // Merge all byte arrays into a single byte array and return it
-        return fillAllBytesArray(totalLengthCommandAsByteArray, commandBytes, totalLengthMessageAsByteArray,
-                messageBytes, allBytes);
+        return buffer.array();
     }
 
     /**
-     * Merges multiple byte arrays into a single byte array.
+     * Gets the length of a message encoded as a version 1 frame.
      *
-     * @param totalLengthCommandAsByteArray byte array representing the length of the command
-     * @param commandBytes                  byte array of the command itself
-     * @param totalLengthMessageAsByteArray byte array representing the length of the message
-     * @param messageBytes                  byte array of the message itself
-     * @param allBytes                      total length of the final merged byte array
-     * @return a single byte array containing all provided byte arrays in sequence
+     * @param textLength The length of the text of the message in bytes.
+     * @return The length in bytes.
      */
-    private static byte[] fillAllBytesArray(final byte[] totalLengthCommandAsByteArray, final byte[] commandBytes,
-                                            final byte[] totalLengthMessageAsByteArray, final byte[] messageBytes,
-                                            final int allBytes) {
-        // Create a new byte array to hold all the parts
-        final byte[] allBytesArray = new byte[allBytes];
-
-        // Index to keep track of the current position in the final byte array
-        int idx = START_IDX;
-
-        // Copy each part into the final byte array sequentially
-        for (byte b : totalLengthCommandAsByteArray) {
-            allBytesArray[idx++] = b;
-        }
+    private static int version1Length(final int textLength) {
+        return 2 * Integer.BYTES + COMMAND_LENGTH + textLength;
+    }
 
-        for (byte b : commandBytes) {
-            allBytesArray[idx++] = b;
-        }
+    /**
+     * Writes a message as a version 1 frame.
+     *
+     * @param buffer     The buffer, with room for {@link #version1Length} bytes.
+     * @param message    The message, including its command.
+     * @param textLength The length of the text of the message in bytes.
+     */
+    private static void writeVersion1(final ByteBuffer buffer, final String message, final int textLength) {
+        final int textStart = textStart(message);
 
-        for (byte b : totalLengthMessageAsByteArray) {
-            allBytesArray[idx++] = b;
-        }
+        // The command, e.g. "-m", is always ASCII
+        buffer.putInt(COMMAND_LENGTH);
+        buffer.put((byte) message.charAt(START_IDX));
+        buffer.put((byte) message.charAt(START_IDX + 1));
 
-        for (byte b : messageBytes) {
-            allBytesArray[idx++] = b;
-        }
+        // The length of the message in bytes, then the message after the command and the separating space
+        buffer.putInt(textLength);
+        FrameCodec.writeUtf8(buffer, message, textStart, textLength);
+    }
 
-        // Return the fully assembled byte array
-        return allBytesArray;
+    private static int textStart(final String message) {
+        return Math.min(COMMAND_LENGTH + 1, message.length());
     }
 
 }
@@ -0,0 +1,221 @@
+package chatapp_combined.Utility;
+
+import chatapp_combined.messagesCommand.TaskExecutor;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32C;
+
+import static chatapp_combined.Utility.ReceivingFileUtils.CHANNEL_BUFFER_SIZE;
+import static chatapp_combined.Utility.StripeSender.CHUNK_HEADER_SIZE;
+import static chatapp_combined.Utility.StripeSender.TOKEN_SIZE;
+
+/**
+ * The type Stripe receiver.
+ * Accepts the data connections of one striped transfer on a port of its own and writes the chunks they carry
+ * at their positions in the file. Every connection is read by its own thread, the checksum of a chunk is
+ * computed while it is written and the result is handed to the {@link ChunkSink}. Only connections that present
+ * the secret of the transfer are read.
+ *
+ * @author Dimitar Kolev
+ */
+final class StripeReceiver {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+
+    /**
+     * Receives the outcome of the chunks, called from the threads that read the data connections.
+     */
+    interface ChunkSink {
+
+        /**
+         * Called once a chunk is on the disk.
+         *
+         * @param offset   the position of the chunk
+         * @param length   the length of the chunk
+         * @param checksum the CRC32C the sender announced
+         * @param verified whether the written bytes match it
+         */
+        void onChunk(long offset, int length, int checksum, boolean verified);
+
+        /**
+         * Called when a chunk cannot be written to the disk.
+         *
+         * @param e the failure
+         */
+        void onWriteFailure(IOException e);
+
+    }
+
+
+    private final ServerSocketChannel serverChannel;
+    private final int stripes;
+    private final byte[] token = new byte[TOKEN_SIZE];
+    private final FileChannel fileChannel;
+    private final long fileLength;
+    private final ChunkSink chunkSink;
+    private final List<SocketChannel> channels = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+
+    /**
+     * Instantiates a new Stripe receiver and binds its port.
+     *
+     * @param bindAddress the address of the chat connection, the data connections come to the same interface
+     * @param stripes     the most data connections accepted
+     * @param fileChannel the channel of the file
+     * @param fileLength  the length of the file
+     * @param chunkSink   the receiver of the outcome of the chunks
+     * @throws IOException If the port cannot be bound.
+     */
+    StripeReceiver(final InetAddress bindAddress, final int stripes, final FileChannel fileChannel,
+                   final long fileLength, final ChunkSink chunkSink) throws IOException {
+        this.serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(bindAddress, 0), stripes);
+        this.stripes = stripes;
+        this.fileChannel = fileChannel;
+        this.fileLength = fileLength;
+        this.chunkSink = chunkSink;
+        RANDOM.nextBytes(token);
+    }
+
+
+    /**
+     * Starts accepting the data connections.
+     *
+     * @param executor the executor that runs the accepting thread and a thread per connection
+     */
+    void start(final TaskExecutor executor) {
+        executor.execute("Accept Stripe Thread", () -> acceptStripes(executor));
+    }
+
+    /**
+     * Gets the port the data connections are accepted on.
+     *
+     * @return the port
+     */
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Gets the secret the data connections have to present.
+     *
+     * @return the token
+     */
+    byte[] getToken() {
+        return token.clone();
+    }
+
+    /**
+     * Stops accepting and closes the data connections.
+     */
+    void close() {
+        closed = true;
+        closeQuietly(serverChannel);
+        for (SocketChannel channel : channels) {
+            closeQuietly(channel);
+        }
+    }
+
+    private void acceptStripes(final TaskExecutor executor) {
+        try {
+            for (int i = 0; i < stripes; i++) {
+                final SocketChannel channel = serverChannel.accept();
+                channels.add(channel);
+                if (closed) {
+                    closeQuietly(channel);
+                    return;
+                }
+                executor.execute("Receive Stripe Thread " + i, () -> receiveStripe(channel));
+            }
+        } catch (IOException e) {
+            // Closed, the transfer is over
+        } finally {
+            closeQuietly(serverChannel);
+        }
+    }
+
+    private void receiveStripe(final SocketChannel channel) {
+        final ByteBuffer header = ByteBuffer.allocate(Math.max(TOKEN_SIZE, CHUNK_HEADER_SIZE));
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+
+        try (channel) {
+            header.limit(TOKEN_SIZE);
+            if (!readFully(channel, header) || !MessageDigest.isEqual(token, Arrays.copyOf(header.array(), TOKEN_SIZE))) {
+                return;
+            }
+
+            while (readFully(channel, header.clear().limit(CHUNK_HEADER_SIZE))) {
+                final long offset = header.getLong();
+                final int length = header.getInt();
+                final int checksum = header.getInt();
+                if (offset < 0 || length <= 0 || length > fileLength - offset) {
+                    throw new ProtocolException("Chunk past the end of the file");
+                }
+
+                final CRC32C crc = new CRC32C();
+                long written = 0;
+                while (written < length) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), length - written));
+                    if (!readFully(channel, buffer)) {
+                        throw new EOFException();
+                    }
+
+                    crc.update(buffer.duplicate());
+                    try {
+                        while (buffer.hasRemaining()) {
+                            written += fileChannel.write(buffer, offset + written);
+                        }
+                    } catch (IOException e) {
+                        chunkSink.onWriteFailure(e);
+                        return;
+                    }
+                }
+                chunkSink.onChunk(offset, length, checksum, (int) crc.getValue() == checksum);
+            }
+        } catch (IOException e) {
+            // The sender sends the chunks of a lost connection again through the chat connection
+        }
+    }
+
+    /**
+     * Fills the buffer from the channel and flips it.
+     *
+     * @return false if the channel ended before the first byte
+     */
+    private static boolean readFully(final SocketChannel channel, final ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+                if (target.position() == 0) {
+                    return false;
+                }
+                throw new EOFException();
+            }
+        }
+        target.flip();
+        return true;
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package chatapp_combined.Utility;
+
+import chatapp_combined.messagesCommand.TaskExecutor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The type Stripe sender.
+ * Sends the chunks of a file over several data connections at once, next to the chat connection. Every connection
+ * takes the next chunk from a shared cursor, so a fast connection simply takes more chunks and a slow one never
+ * holds the others back. A chunk goes out as its offset, length and CRC32C followed by the bytes, which are moved
+ * with {@link FileChannel#transferTo}.
+ *
+ * @author Dimitar Kolev
+ */
+final class StripeSender {
+
+    /**
+     * The length of the secret a data connection starts with.
+     */
+    static final int TOKEN_SIZE = 16;
+    /**
+     * The length of the header of a chunk on a data connection: offset, length, CRC32C.
+     */
+    static final int CHUNK_HEADER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+
+
+    private final FileChannel fileChannel;
+    private final long fileLength;
+    private final int chunkSize;
+    private final InetSocketAddress address;
+    private final byte[] token;
+    private final AtomicLong cursor;
+    private final Queue<Long> failedChunks = new ConcurrentLinkedQueue<>();
+
+
+    /**
+     * Instantiates a new Stripe sender.
+     *
+     * @param fileChannel the channel of the file
+     * @param fileLength  the length of the file
+     * @param startOffset the offset of the first chunk to send
+     * @param chunkSize   the length of the chunks
+     * @param address     the address the receiver accepts the data connections on
+     * @param token       the secret the receiver expects from them
+     */
+    StripeSender(final FileChannel fileChannel, final long fileLength, final long startOffset, final int chunkSize,
+                 final InetSocketAddress address, final byte[] token) {
+        this.fileChannel = fileChannel;
+        this.fileLength = fileLength;
+        this.chunkSize = chunkSize;
+        this.address = address;
+        this.token = token;
+        this.cursor = new AtomicLong(startOffset);
+    }
+
+
+    /**
+     * Sends the chunks over the given number of connections and waits until they are all written.
+     * A connection that fails hands its chunks back, since it is not known which of them arrived.
+     *
+     * @param stripes  the number of data connections
+     * @param executor the executor that runs a thread per connection
+     * @return the offsets of the chunks that still have to be sent through the chat connection
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    List<Long> send(final int stripes, final TaskExecutor executor) throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(stripes);
+
+        for (int i = 0; i < stripes; i++) {
+            executor.execute("Send Stripe Thread " + i, () -> {
+                try {
+                    sendStripe();
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+        finished.await();
+
+        // The chunks no connection got to, when all of them failed
+        final List<Long> left = new ArrayList<>(failedChunks);
+        for (long offset = cursor.get(); offset < fileLength; offset += chunkSize) {
+            left.add(offset);
+        }
+        return left;
+    }
+
+    private void sendStripe() {
+        final List<Long> sentChunks = new ArrayList<>();
+        final ChunkChecksum chunkChecksum = new ChunkChecksum(fileChannel, fileLength);
+        final ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            writeFully(channel, ByteBuffer.wrap(token));
+
+            long offset;
+            while ((offset = cursor.getAndAdd(chunkSize)) < fileLength) {
+                sentChunks.add(offset);
+                final int chunkLength = (int) Math.min(chunkSize, fileLength - offset);
+
+                header.clear().putLong(offset).putInt(chunkLength).putInt(chunkChecksum.compute(offset, chunkLength));
+                writeFully(channel, header.flip());
+
+                long written = 0;
+                while (written < chunkLength) {
+                    final long transferred = fileChannel.transferTo(offset + written, chunkLength - written, channel);
+                    // Nothing is transferred past the end, a file that shrank while it is sent would never be done
+                    if (transferred == 0 && offset + written >= fileChannel.size()) {
+                        throw new EOFException();
+                    }
+                    written += transferred;
+                }
+            }
+        } catch (IOException e) {
+            failedChunks.addAll(sentChunks);
+        }
+    }
+
+    private static void writeFully(final SocketChannel channel, final ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package chatapp_combined.Utility;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The type Timing wheel.
+ * A hashed timing wheel: a ring of slots, one per tick, each holding a linked list of the timeouts that expire in
+ * it. Scheduling and cancelling a timeout link and unlink it in O(1), and a tick only looks at the timeouts of
+ * one slot, so any number of timeouts cost the same per tick. A timeout more than one turn of the wheel away
+ * stays in its slot until the turn it is due. Deadlines are rounded up to the next tick.
+ * <p>
+ * An instance is used by one thread, which calls {@link #advance()} at least once a tick.
+ *
+ * @author Dimitar Kolev
+ */
+public final class TimingWheel {
+
+    /**
+     * A scheduled task, pending until it runs or is cancelled.
+     */
+    public static final class Timeout {
+
+        private final Runnable task;
+        private long deadlineTick;
+        private Timeout previous;
+        private Timeout next;
+        private boolean pending;    // Whether it is linked into its slot
+        private boolean due;        // Whether it has fallen due and waits for its task to run
+
+        private Timeout(final Runnable task) {
+            this.task = task;
+        }
+
+    }
+
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    private final ArrayDeque<Timeout> expired = new ArrayDeque<>();
+    private long currentTick;   // The last tick that was processed
+    private int size;
+
+
+    /**
+     * Instantiates a new Timing wheel. It has as many slots as it takes for one turn to cover the span.
+     *
+     * @param tickMillis the length of a tick
+     * @param spanMillis the delay most timeouts are scheduled with
+     */
+    public TimingWheel(final long tickMillis, final long spanMillis) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        final long ticks = Math.max(2, (spanMillis + tickMillis - 1) / Math.max(1, tickMillis));
+        final int slotCount = Integer.highestOneBit((int) Math.min(1 << 20, ticks - 1)) << 1; // A power of two
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+    }
+
+
+    /**
+     * Schedules a task.
+     *
+     * @param task        the task, it runs on the thread that advances the wheel
+     * @param delayMillis the delay
+     * @return the timeout, to cancel the task
+     */
+    public Timeout schedule(final Runnable task, final long delayMillis) {
+        final Timeout timeout = new Timeout(task);
+        // The tick that is in progress has begun already, so the deadline is counted from its end
+        final long elapsedTicks = (System.nanoTime() - startNanos) / tickNanos;
+        final long delayTicks = (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos;
+        timeout.deadlineTick = Math.max(currentTick, elapsedTicks) + 1 + delayTicks;
+
+        final int slot = (int) (timeout.deadlineTick & mask);
+        timeout.next = slots[slot];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        slots[slot] = timeout;
+        timeout.pending = true;
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancels a task that has not run yet.
+     *
+     * @param timeout the timeout of the task
+     * @return false if the task has already run or was cancelled
+     */
+    public boolean cancel(final Timeout timeout) {
+        if (timeout.due) {
+            // Fallen due in the tick being processed, another task of that tick cancels it before it runs
+            timeout.due = false;
+            return true;
+        }
+        if (!timeout.pending) {
+            return false;
+        }
+
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * Runs the tasks of every tick that has passed since the last call.
+     *
+     * @return the number of tasks run
+     */
+    public int advance() {
+        final long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+        if (nowTick <= currentTick) {
+            return 0;
+        }
+
+        // After a long pause every slot is looked at once, whatever has fallen due in it expires
+        final long ticks = Math.min(nowTick - currentTick, slots.length);
+        for (long tick = nowTick - ticks + 1; tick <= nowTick; tick++) {
+            Timeout timeout = slots[(int) (tick & mask)];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.deadlineTick <= nowTick) {
+                    unlink(timeout);
+                    timeout.due = true;
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        currentTick = nowTick;
+
+        // The tasks run once the slots are consistent, a task may schedule or cancel others
+        int count = 0;
+        Timeout timeout;
+        while ((timeout = expired.poll()) != null) {
+            if (timeout.due) {
+                timeout.due = false;
+                timeout.task.run();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the time until the next tick, how long the owning thread may wait before it advances the wheel.
+     *
+     * @return the time in milliseconds, at least 1
+     */
+    public long millisToNextTick() {
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        final long nextTickNanos = (elapsedNanos / tickNanos + 1) * tickNanos;
+
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTickNanos - elapsedNanos + 999_999));
+    }
+
+    /**
+     * Tells whether no task is pending.
+     *
+     * @return true if there is none
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void unlink(final Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.pending = false;
+        size--;
+    }
+
+}
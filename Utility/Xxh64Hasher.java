@@ -0,0 +1,108 @@
+package chatapp_combined.Utility;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The type Xxh64 hasher.
+ * A streaming XXH64 with seed 0. The input is consumed in stripes of 32 bytes read as four little-endian longs,
+ * a partial stripe is kept until the next update.
+ *
+ * @author Dimitar Kolev
+ */
+final class Xxh64Hasher implements ChecksumAlgorithm.Hasher {
+
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_SIZE = 32;
+
+
+    private final ByteBuffer stripe = ByteBuffer.allocate(STRIPE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long accumulator1 = PRIME_1 + PRIME_2;
+    private long accumulator2 = PRIME_2;
+    private long accumulator3 = 0;
+    private long accumulator4 = -PRIME_1;
+    private long totalLength;
+
+
+    @Override
+    public void update(final ByteBuffer data) {
+        final ByteBuffer input = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        data.position(data.limit());
+        totalLength += input.remaining();
+
+        // Complete the stripe left over from the last update
+        if (stripe.position() > 0) {
+            while (stripe.hasRemaining() && input.hasRemaining()) {
+                stripe.put(input.get());
+            }
+            if (stripe.hasRemaining()) {
+                return;
+            }
+            consumeStripe(stripe.flip());
+            stripe.clear();
+        }
+
+        while (input.remaining() >= STRIPE_SIZE) {
+            consumeStripe(input);
+        }
+        stripe.put(input);
+    }
+
+    @Override
+    public byte[] digest() {
+        long hash;
+        if (totalLength >= STRIPE_SIZE) {
+            hash = Long.rotateLeft(accumulator1, 1) + Long.rotateLeft(accumulator2, 7) +
+                    Long.rotateLeft(accumulator3, 12) + Long.rotateLeft(accumulator4, 18);
+            hash = mergeRound(hash, accumulator1);
+            hash = mergeRound(hash, accumulator2);
+            hash = mergeRound(hash, accumulator3);
+            hash = mergeRound(hash, accumulator4);
+        } else {
+            hash = PRIME_5;
+        }
+        hash += totalLength;
+
+        final ByteBuffer tail = stripe.flip();
+        while (tail.remaining() >= Long.BYTES) {
+            hash ^= round(0, tail.getLong());
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+        }
+        if (tail.remaining() >= Integer.BYTES) {
+            hash ^= Integer.toUnsignedLong(tail.getInt()) * PRIME_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME_2 + PRIME_3;
+        }
+        while (tail.hasRemaining()) {
+            hash ^= (tail.get() & 0xFF) * PRIME_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME_1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+
+        return ByteBuffer.allocate(Long.BYTES).putLong(hash).array();
+    }
+
+    private void consumeStripe(final ByteBuffer input) {
+        accumulator1 = round(accumulator1, input.getLong());
+        accumulator2 = round(accumulator2, input.getLong());
+        accumulator3 = round(accumulator3, input.getLong());
+        accumulator4 = round(accumulator4, input.getLong());
+    }
+
+    private static long round(final long accumulator, final long input) {
+        return Long.rotateLeft(accumulator + input * PRIME_2, 31) * PRIME_1;
+    }
+
+    private static long mergeRound(final long hash, final long accumulator) {
+        return (hash ^ round(0, accumulator)) * PRIME_1 + PRIME_4;
+    }
+
+}
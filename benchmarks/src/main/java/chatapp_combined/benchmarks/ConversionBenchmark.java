@@ -0,0 +1,85 @@
+package chatapp_combined.benchmarks;
+
+import chatapp_combined.Utility.CommonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The type Conversion benchmark.
+ * Measures the conversions between numbers and bytes that every version 1 frame goes through.
+ *
+ * @author Dimitar Kolev
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConversionBenchmark {
+
+    private int intValue;
+    private long longValue;
+    private ByteArrayInputStream lengthBytes;
+    private DataInputStream lengthStream;
+
+
+    /**
+     * Prepares the values and a stream that holds one length.
+     */
+    @Setup
+    public void setUp() {
+        intValue = 0x01020304;
+        longValue = 0x0102030405060708L;
+        lengthBytes = new ByteArrayInputStream(CommonUtils.convertIntToByteArray(intValue));
+        lengthStream = new DataInputStream(lengthBytes);
+    }
+
+
+    /**
+     * Converts an int to its 4 bytes.
+     *
+     * @return the bytes
+     */
+    @Benchmark
+    public byte[] convertIntToByteArray() {
+        return CommonUtils.convertIntToByteArray(intValue);
+    }
+
+    /**
+     * Converts a long to its 8 bytes.
+     *
+     * @return the bytes
+     */
+    @Benchmark
+    public byte[] convertLongToByteArray() {
+        return CommonUtils.convertLongToByteArray(longValue);
+    }
+
+    /**
+     * Reads the length that opens a frame.
+     *
+     * @return the length
+     * @throws IOException never, the stream is in memory
+     */
+    @Benchmark
+    public int getLength() throws IOException {
+        lengthBytes.reset();
+
+        return CommonUtils.getLength(lengthStream);
+    }
+
+}
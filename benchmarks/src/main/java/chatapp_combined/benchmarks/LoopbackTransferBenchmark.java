@@ -0,0 +1,169 @@
+package chatapp_combined.benchmarks;
+
+import chatapp_combined.Utility.CommonUtils;
+import chatapp_combined.Utility.ReceivingFileUtils;
+import chatapp_combined.Utility.ReceivingMessageUtils;
+import chatapp_combined.Utility.SendingFileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The type Loopback transfer benchmark.
+ * Sends a file with {@link SendingFileUtils#sendFileBytes} and receives it with {@link ReceivingFileUtils#receiveFile}
+ * over a loopback connection, one file per operation. The score is the time per file, the throughput is the file size
+ * divided by it.
+ * <p>
+ * The buffer size is the -Dchatapp.file.bufferSize and -Dchatapp.file.streamBufferSize of both sides, and the mode is
+ * either "channel", the zero-copy send and the channel receive, or "stream", both sides going through the streams.
+ * The settings are read once per JVM, so every combination of the parameters runs in a fork of its own.
+ * The files are created in filesToSend and received into receivedFiles under the working directory.
+ *
+ * @author Dimitar Kolev
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackTransferBenchmark {
+
+    private static final String FILES_DIR = "filesToSend";
+    private static final String DIR_TO_RECEIVE = "receivedFiles";
+    private static final String SENDER_NAME = "bench";
+
+
+    @Param({"1048576", "16777216", "268435456"})
+    private long fileSize;
+
+    @Param({"65536", "262144", "1048576"})
+    private int bufferSize;
+
+    @Param({"channel", "stream"})
+    private String mode;
+
+    private File fileToSend;
+    private String sendCommand;
+    private ServerSocketChannel serverChannel;
+    private SocketChannel senderChannel;
+    private SocketChannel receiverChannel;
+    private DataOutputStream outputStream;
+    private DataInputStream inputStream;
+    private ExecutorService sender;
+
+
+    /**
+     * Applies the settings before the utilities read them, writes the file and connects the two sides.
+     *
+     * @throws IOException If the file cannot be written or the connection fails.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final boolean channelMode = "channel".equals(mode);
+        System.setProperty("chatapp.file.bufferSize", String.valueOf(bufferSize));
+        System.setProperty("chatapp.file.streamBufferSize", String.valueOf(bufferSize));
+        System.setProperty("chatapp.file.zeroCopy", String.valueOf(channelMode));
+        System.setProperty("chatapp.file.receiveMode", mode);
+        // The utilities report every file on the console
+        System.setProperty("chatapp.console.headless", "true");
+
+        fileToSend = new File(FILES_DIR, "bench-" + fileSize + ".bin");
+        sendCommand = "-f " + FILES_DIR + "/" + fileToSend.getName();
+        writeRandomFile(fileToSend, fileSize);
+        new File(DIR_TO_RECEIVE).mkdirs();
+
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        senderChannel = SocketChannel.open(serverChannel.getLocalAddress());
+        receiverChannel = serverChannel.accept();
+        outputStream = new DataOutputStream(senderChannel.socket().getOutputStream());
+        inputStream = new DataInputStream(receiverChannel.socket().getInputStream());
+        sender = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Closes the connection and deletes the files.
+     *
+     * @throws IOException If the connection cannot be closed.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.shutdownNow();
+        senderChannel.close();
+        receiverChannel.close();
+        serverChannel.close();
+        fileToSend.delete();
+        new File(DIR_TO_RECEIVE, fileToSend.getName()).delete();
+    }
+
+
+    /**
+     * Sends one file and waits until it is received and verified.
+     *
+     * @return the command the receiver read
+     * @throws Exception If the transfer fails.
+     */
+    @Benchmark
+    public String transfer() throws Exception {
+        final boolean channelMode = "channel".equals(mode);
+        final Future<?> sent = sender.submit(() -> {
+            SendingFileUtils.sendFileBytes(sendCommand, outputStream, channelMode ? senderChannel : null);
+            return null;
+        });
+
+        // The receive loop of a client, for a version 1 file frame
+        final String command = ReceivingMessageUtils.getCommand(CommonUtils.getLength(inputStream), inputStream);
+        ReceivingFileUtils.receiveFile(SENDER_NAME, inputStream, channelMode ? receiverChannel : null);
+
+        sent.get();
+        return command;
+    }
+
+    private static void writeRandomFile(final File file, final long length) throws IOException {
+        file.getParentFile().mkdirs();
+
+        final Random random = new Random(length);
+        final ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel fileChannel = randomAccessFile.getChannel()) {
+            randomAccessFile.setLength(0);
+
+            long position = 0;
+            while (position < length) {
+                random.nextBytes(buffer.array());
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+            }
+        }
+    }
+
+}
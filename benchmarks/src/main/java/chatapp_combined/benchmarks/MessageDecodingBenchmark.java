@@ -0,0 +1,100 @@
+package chatapp_combined.benchmarks;
+
+import chatapp_combined.Utility.CommonUtils;
+import chatapp_combined.Utility.ReceivingMessageUtils;
+import chatapp_combined.Utility.SendingMessageUtils;
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.FrameHeader;
+import chatapp_combined.protocol.Handshake;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The type Message decoding benchmark.
+ * Measures the receive path of a client, from the first byte of a message frame to its text,
+ * the same calls the receive loop makes for each protocol version.
+ *
+ * @author Dimitar Kolev
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageDecodingBenchmark {
+
+    private static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+
+
+    @Param({"16", "256", "4096"})
+    private int messageLength;
+
+    private ByteArrayInputStream version1Bytes;
+    private DataInputStream version1Stream;
+    private ByteArrayInputStream version2Bytes;
+    private DataInputStream version2Stream;
+
+
+    /**
+     * Encodes one message frame of each version to be decoded over and over.
+     */
+    @Setup
+    public void setUp() {
+        final String message = "-m " + "a".repeat(messageLength);
+
+        version1Bytes = new ByteArrayInputStream(SendingMessageUtils.encodeMessage(message, Handshake.VERSION_1));
+        version1Stream = new DataInputStream(version1Bytes);
+        version2Bytes = new ByteArrayInputStream(SendingMessageUtils.encodeMessage(message, Handshake.VERSION_2));
+        version2Stream = new DataInputStream(version2Bytes);
+    }
+
+
+    /**
+     * Decodes a version 1 frame: the length and the "-m" command, then the length-prefixed text.
+     *
+     * @param blackhole the blackhole
+     * @throws IOException never, the stream is in memory
+     */
+    @Benchmark
+    public void decodeVersion1(final Blackhole blackhole) throws IOException {
+        version1Bytes.reset();
+
+        final int firstByte = version1Stream.readUnsignedByte();
+        final int commandLength = CommonUtils.getLength(firstByte, version1Stream);
+        blackhole.consume(ReceivingMessageUtils.getCommand(commandLength, version1Stream));
+        blackhole.consume(ReceivingMessageUtils.readText(version1Stream));
+    }
+
+    /**
+     * Decodes a version 2 frame: the header, then the payload as text.
+     *
+     * @return the text
+     * @throws IOException never, the stream is in memory
+     */
+    @Benchmark
+    public String decodeVersion2() throws IOException {
+        version2Bytes.reset();
+
+        final int firstByte = version2Stream.readUnsignedByte();
+        final FrameHeader header = FrameCodec.readHeader(firstByte, version2Stream);
+
+        return FrameCodec.readPayloadText(header, MAX_MESSAGE_LENGTH, version2Stream);
+    }
+
+}
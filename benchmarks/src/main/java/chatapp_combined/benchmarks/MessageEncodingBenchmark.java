@@ -0,0 +1,109 @@
+package chatapp_combined.benchmarks;
+
+import chatapp_combined.Utility.SendingMessageUtils;
+import chatapp_combined.protocol.BufferPool;
+import chatapp_combined.protocol.Handshake;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The type Message encoding benchmark.
+ * Measures how a typed "-m" line becomes the bytes of a frame, in both protocol versions. Run with -prof gc
+ * to compare the allocations of the array and the pooled encoders.
+ *
+ * @author Dimitar Kolev
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageEncodingBenchmark {
+
+    @Param({"16", "256", "4096"})
+    private int messageLength;
+
+    private String message;
+
+
+    /**
+     * Builds the line to encode.
+     */
+    @Setup
+    public void setUp() {
+        message = "-m " + "a".repeat(messageLength);
+    }
+
+
+    /**
+     * Encodes the line as a version 1 frame.
+     *
+     * @return the frame
+     */
+    @Benchmark
+    public byte[] bytesToSend() {
+        return SendingMessageUtils.bytesToSend(message);
+    }
+
+    /**
+     * Encodes the line as a version 1 frame through the versioned entry point.
+     *
+     * @return the frame
+     */
+    @Benchmark
+    public byte[] encodeMessageVersion1() {
+        return SendingMessageUtils.encodeMessage(message, Handshake.VERSION_1);
+    }
+
+    /**
+     * Encodes the line as a version 2 frame.
+     *
+     * @return the frame
+     */
+    @Benchmark
+    public byte[] encodeMessageVersion2() {
+        return SendingMessageUtils.encodeMessage(message, Handshake.VERSION_2);
+    }
+
+    /**
+     * Encodes the line as a version 1 frame into a pooled buffer and gives the buffer back, as the writer does.
+     *
+     * @return the number of encoded bytes
+     */
+    @Benchmark
+    public int encodePooledVersion1() {
+        return encodePooled(Handshake.VERSION_1);
+    }
+
+    /**
+     * Encodes the line as a version 2 frame into a pooled buffer and gives the buffer back, as the writer does.
+     *
+     * @return the number of encoded bytes
+     */
+    @Benchmark
+    public int encodePooledVersion2() {
+        return encodePooled(Handshake.VERSION_2);
+    }
+
+    private int encodePooled(final int version) {
+        final ByteBuffer frame = SendingMessageUtils.encodeMessage(message, version, BufferPool.direct());
+        final int length = frame.remaining();
+        BufferPool.direct().release(frame);
+
+        return length;
+    }
+
+}
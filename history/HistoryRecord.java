@@ -0,0 +1,15 @@
+package chatapp_combined.history;
+
+/**
+ * The type History record.
+ * One message of the history, as it was sent or received.
+ *
+ * @param sequence  the sequence number, one more than the message before it
+ * @param timestamp when the message was recorded, in epoch milliseconds, never earlier than the message before it
+ * @param sent      whether the message was sent by this user
+ * @param sender    the name of the user who sent the message
+ * @param text      the text of the message
+ * @author Dimitar Kolev
+ */
+public record HistoryRecord(long sequence, long timestamp, boolean sent, String sender, String text) {
+}
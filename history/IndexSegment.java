@@ -0,0 +1,281 @@
+package chatapp_combined.history;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The type Index segment.
+ * An immutable part of the search index on the disk, covering a range of sequence numbers. The file holds the
+ * postings lists, then the terms in UTF-8, then a dictionary entry of fixed size per term, sorted by the bytes of
+ * the terms, and a footer. The file is memory-mapped and a term is found by a binary search over the dictionary,
+ * so nothing but the lists a query needs is ever read.
+ *
+ * @author Dimitar Kolev
+ */
+final class IndexSegment implements PostingsSource {
+
+    static final String SUFFIX = ".idx";
+    static final String TEMPORARY_SUFFIX = ".tmp";
+
+    // The offset and the length of the term, the offset and the length of its list and the number of records
+    private static final int ENTRY_SIZE = 2 * Integer.BYTES + Long.BYTES + 2 * Integer.BYTES;
+    private static final int FOOTER_SIZE = 2 * Integer.BYTES + 4 * Long.BYTES;
+    private static final int MAGIC = 0x43484958; // "CHIX"
+
+
+    private final Path file;
+    private final MappedByteBuffer map;
+    private final int termCount;
+    private final long termsOffset;
+    private final long entriesOffset;
+    private final long firstSequence;
+    private final long lastSequence;
+
+
+    private IndexSegment(final Path file, final MappedByteBuffer map) throws IOException {
+        this.file = file;
+        this.map = map;
+
+        final int footer = map.capacity() - FOOTER_SIZE;
+        if (footer < 0 || map.getInt(footer + FOOTER_SIZE - Integer.BYTES) != MAGIC) {
+            throw new IOException("Corrupt search index " + file.getFileName());
+        }
+        this.termCount = map.getInt(footer);
+        this.termsOffset = map.getLong(footer + Integer.BYTES);
+        this.entriesOffset = map.getLong(footer + Integer.BYTES + Long.BYTES);
+        this.firstSequence = map.getLong(footer + Integer.BYTES + 2 * Long.BYTES);
+        this.lastSequence = map.getLong(footer + Integer.BYTES + 3 * Long.BYTES);
+    }
+
+
+    /**
+     * Maps a segment file.
+     *
+     * @param file the file
+     * @return the segment
+     * @throws IOException If the file cannot be mapped or is not a complete segment.
+     */
+    static IndexSegment open(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new IndexSegment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    @Override
+    public Postings.Cursor cursor(final String term) {
+        final int entry = find(term.getBytes(StandardCharsets.UTF_8));
+
+        return entry < 0 ? null : cursor(entry);
+    }
+
+    /**
+     * Opens a cursor over the postings list of a dictionary entry.
+     *
+     * @param entry the index of the entry
+     * @return the cursor
+     */
+    Postings.Cursor cursor(final int entry) {
+        final int position = entryPosition(entry);
+        final int listOffset = (int) map.getLong(position + 2 * Integer.BYTES);
+        final int listLength = map.getInt(position + 2 * Integer.BYTES + Long.BYTES);
+        final int count = map.getInt(position + 3 * Integer.BYTES + Long.BYTES);
+
+        return new Postings.Cursor(map.slice(listOffset, listLength), firstSequence, count);
+    }
+
+    /**
+     * Gets the term of a dictionary entry.
+     *
+     * @param entry the index of the entry
+     * @return the UTF-8 bytes of the term
+     */
+    byte[] term(final int entry) {
+        final int position = entryPosition(entry);
+        final byte[] term = new byte[map.getInt(position + Integer.BYTES)];
+        map.get((int) termsOffset + map.getInt(position), term);
+        return term;
+    }
+
+    int termCount() {
+        return termCount;
+    }
+
+    @Override
+    public long firstSequence() {
+        return firstSequence;
+    }
+
+    @Override
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    long size() {
+        return map.capacity();
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * Binary search over the dictionary, comparing the bytes of the terms where they are mapped.
+     */
+    private int find(final byte[] term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = compare(middle, term);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private int compare(final int entry, final byte[] term) {
+        final int position = entryPosition(entry);
+        final int offset = (int) termsOffset + map.getInt(position);
+        final int length = map.getInt(position + Integer.BYTES);
+
+        for (int i = 0; i < Math.min(length, term.length); i++) {
+            final int difference = (map.get(offset + i) & 0xFF) - (term[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - term.length;
+    }
+
+    private int entryPosition(final int entry) {
+        return (int) entriesOffset + entry * ENTRY_SIZE;
+    }
+
+
+    /**
+     * Writes a segment file, term by term in the order of their bytes. The postings lists are streamed to the
+     * file, the terms and the dictionary are kept until the end. The file only gets its name once it is
+     * complete and on the disk.
+     */
+    static final class Writer {
+
+        private final Path directory;
+        private final Path temporaryFile;
+        private final long firstSequence;
+        private final long lastSequence;
+        private final DataOutputStream postings;
+        private final FileOutputStream fileStream;
+        private final ByteArrayOutputStream terms = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        private final DataOutputStream entries = new DataOutputStream(entryBytes);
+        private long postingsLength;
+        private int termCount;
+
+
+        /**
+         * Instantiates a new Writer.
+         *
+         * @param directory     the directory of the index
+         * @param firstSequence the first sequence number the segment covers
+         * @param lastSequence  the last sequence number the segment covers
+         * @throws IOException If the file cannot be created.
+         */
+        Writer(final Path directory, final long firstSequence, final long lastSequence) throws IOException {
+            this.directory = directory;
+            this.firstSequence = firstSequence;
+            this.lastSequence = lastSequence;
+            this.temporaryFile = directory.resolve(fileName(firstSequence, lastSequence) + TEMPORARY_SUFFIX);
+            this.fileStream = new FileOutputStream(temporaryFile.toFile());
+            this.postings = new DataOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+        }
+
+
+        /**
+         * Adds a term, after all the terms added so far.
+         *
+         * @param term  the UTF-8 bytes of the term
+         * @param list  the postings list, relative to the first sequence number of the segment
+         * @param count the number of records in the list
+         * @throws IOException If the list cannot be written.
+         */
+        void add(final byte[] term, final ByteBuffer list, final int count) throws IOException {
+            entries.writeInt(terms.size());
+            entries.writeInt(term.length);
+            entries.writeLong(postingsLength);
+            entries.writeInt(list.remaining());
+            entries.writeInt(count);
+            terms.write(term);
+            termCount++;
+
+            postingsLength += list.remaining();
+            if (list.hasArray()) {
+                postings.write(list.array(), list.arrayOffset() + list.position(), list.remaining());
+            } else {
+                final byte[] bytes = new byte[list.remaining()];
+                list.duplicate().get(bytes);
+                postings.write(bytes);
+            }
+        }
+
+        /**
+         * Writes the terms, the dictionary and the footer and gives the file its name.
+         *
+         * @return the segment
+         * @throws IOException If the file cannot be written.
+         */
+        IndexSegment finish() throws IOException {
+            final long termsOffset = postingsLength;
+            terms.writeTo(postings);
+            final long entriesOffset = termsOffset + terms.size();
+            entryBytes.writeTo(postings);
+
+            postings.writeInt(termCount);
+            postings.writeLong(termsOffset);
+            postings.writeLong(entriesOffset);
+            postings.writeLong(firstSequence);
+            postings.writeLong(lastSequence);
+            postings.writeInt(MAGIC);
+            postings.flush();
+            fileStream.getChannel().force(true);
+            postings.close();
+
+            final Path file = directory.resolve(fileName(firstSequence, lastSequence) + SUFFIX);
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+            return open(file);
+        }
+
+        /**
+         * Gives up the file, e.g. when it could not be written.
+         */
+        void abort() {
+            try {
+                postings.close();
+                Files.deleteIfExists(temporaryFile);
+            } catch (IOException e) {
+                // Deleted when the index is opened the next time
+            }
+        }
+
+    }
+
+    private static String fileName(final long firstSequence, final long lastSequence) {
+        return String.format("%020d-%020d", firstSequence, lastSequence);
+    }
+
+}
@@ -0,0 +1,393 @@
+package chatapp_combined.history;
+
+import chatapp_combined.Utility.ConsoleRenderer;
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.Histogram;
+import chatapp_combined.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static chatapp_combined.Utility.CommonUtils.ANSI_RED;
+import static chatapp_combined.Utility.CommonUtils.ANSI_RESET;
+import static chatapp_combined.Utility.ConfigUtils.getBoolean;
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+import static chatapp_combined.Utility.ConfigUtils.getLong;
+import static chatapp_combined.Utility.ConfigUtils.getString;
+
+/**
+ * The type Message history.
+ * Keeps every message a user sends and receives in an append-only log under -Dchatapp.history.dir
+ * (default chatHistory), in a directory of its own per user. The log rolls over to a new segment once a segment
+ * holds -Dchatapp.history.segmentBytes bytes (default 16 MB) or -Dchatapp.history.segmentRecords records
+ * (default 65536), and every segment is named after the sequence number of its first record.
+ * <p>
+ * Finding the last messages or the messages of a time range is a binary search over the segments and their
+ * memory-mapped indexes, followed by one sequential read of the log, however long the history has grown.
+ * <p>
+ * Records are written through to the disk in batches, after every -Dchatapp.history.fsyncRecords records
+ * (default 64) and every -Dchatapp.history.fsyncMillis milliseconds (default 1000) if anything is pending,
+ * 0 turns either one off. What is not forced yet is still in the page cache, so only a crash of the machine
+ * can lose it. -Dchatapp.history.enabled=false keeps no history at all.
+ * <p>
+ * Every message is also added to a {@link SearchIndex} in the index directory next to the log. An index that is
+ * behind the log, e.g. after a crash, catches up from the log when the history is opened.
+ *
+ * @author Dimitar Kolev
+ */
+public final class MessageHistory implements AutoCloseable {
+
+    private static final boolean ENABLED = getBoolean("history.enabled", true);
+    private static final String DIRECTORY = getString("history.dir", "chatHistory");
+    private static final long SEGMENT_BYTES = getLong("history.segmentBytes", 16 << 20);
+    private static final int SEGMENT_RECORDS = getInt("history.segmentRecords", 64 * 1024);
+    private static final int FSYNC_RECORDS = getInt("history.fsyncRecords", 64);
+    private static final long FSYNC_MILLIS = getLong("history.fsyncMillis", 1000);
+    private static final String LOCK_FILE = "history.lock";
+    private static final String INDEX_DIRECTORY = "index";
+    private static final int CATCH_UP_RECORDS = 4096;
+
+    private static final Counter RECORDS_APPENDED = MetricsRegistry.counter("history.records.appended");
+    private static final Counter FSYNCS = MetricsRegistry.counter("history.fsyncs");
+    private static final Histogram APPEND_NANOS = MetricsRegistry.histogram("history.append.nanos");
+
+
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Path directory;
+    // Sorted by their first sequence number, the last one is appended to
+    private final List<Segment> segments;
+    // Null once it could not be written, the history is still kept
+    private SearchIndex index;
+    private ByteBuffer recordBuffer = ByteBuffer.allocate(1024);
+    private long lastTimestamp;
+    private int unsyncedRecords;
+    private boolean closed;
+
+
+    private MessageHistory(final FileChannel lockChannel, final FileLock lock, final Path directory,
+                           final List<Segment> segments, final SearchIndex index) {
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        this.directory = directory;
+        this.segments = segments;
+        this.index = index;
+
+        for (Segment segment : segments) {
+            if (segment.count() > 0) {
+                lastTimestamp = segment.timestampAt(segment.count() - 1);
+            }
+        }
+    }
+
+
+    /**
+     * Opens the history of a user, recovering its last segment, and keeps it open until the application exits.
+     *
+     * @param userName the name of the user
+     * @return the history, or null if no history is kept or another instance of the user holds it
+     * @throws IOException If the log cannot be opened.
+     */
+    public static MessageHistory open(final String userName) throws IOException {
+        if (!ENABLED) {
+            return null;
+        }
+
+        final Path directory = Path.of(DIRECTORY, userName.replaceAll("[^\\w.-]", "_"));
+        Files.createDirectories(directory);
+
+        final FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        final FileLock lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            warn("The history of " + userName + " is used by another instance and is not kept");
+            return null;
+        }
+
+        final List<Long> baseSequences;
+        try (Stream<Path> files = Files.list(directory)) {
+            baseSequences = files.map(file -> Segment.baseSequenceOf(file.getFileName().toString()))
+                    .filter(baseSequence -> baseSequence >= 0).sorted().toList();
+        }
+
+        final List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < baseSequences.size(); i++) {
+            segments.add(Segment.open(directory, baseSequences.get(i), SEGMENT_RECORDS, i == baseSequences.size() - 1));
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.open(directory, 0, SEGMENT_RECORDS, true));
+        }
+
+        final MessageHistory history = new MessageHistory(lockChannel, lock, directory, segments,
+                SearchIndex.open(directory.resolve(INDEX_DIRECTORY)));
+        history.catchUpIndex();
+        Runtime.getRuntime().addShutdownHook(new Thread(history::close, "History Close Thread"));
+        if (FSYNC_MILLIS > 0) {
+            final Thread syncer = new Thread(history::syncPeriodically, "History Sync Thread");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+        return history;
+    }
+
+    /**
+     * Appends a message. The chat goes on if the history cannot be written, it is only kept no longer.
+     *
+     * @param sent   whether the message was sent by this user
+     * @param sender the name of the user who sent the message
+     * @param text   the text of the message
+     */
+    public synchronized void append(final boolean sent, final String sender, final String text) {
+        if (closed) {
+            return;
+        }
+
+        final long startNanos = System.nanoTime();
+        try {
+            Segment segment = segments.get(segments.size() - 1);
+            if (segment.isFull(SEGMENT_BYTES)) {
+                segment.force();
+                segment = Segment.open(directory, segment.nextSequence(), SEGMENT_RECORDS, true);
+                segments.add(segment);
+            }
+
+            // The timestamps never go back, even if the clock does, so they can be searched
+            lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+            final byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+            final byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            final int length = Segment.RECORD_HEADER + Segment.BODY_HEADER + senderBytes.length + textBytes.length;
+            if (recordBuffer.capacity() < length) {
+                recordBuffer = ByteBuffer.allocate(Math.max(length, 2 * recordBuffer.capacity()));
+            }
+
+            Segment.encode(recordBuffer.clear(), segment.nextSequence(), lastTimestamp, sent, senderBytes, textBytes);
+            final long sequence = segment.nextSequence();
+            segment.append(recordBuffer.flip(), lastTimestamp);
+            RECORDS_APPENDED.increment();
+            index(sequence, sender, text);
+
+            if (++unsyncedRecords == FSYNC_RECORDS) {
+                sync();
+            }
+        } catch (IOException e) {
+            warn("The history cannot be written and is no longer kept: " + e.getMessage());
+            close();
+        }
+        APPEND_NANOS.recordSince(startNanos);
+    }
+
+    /**
+     * Reads the last messages.
+     *
+     * @param count the number of messages
+     * @return the messages, oldest first
+     * @throws IOException If the log cannot be read.
+     */
+    public synchronized List<HistoryRecord> last(final int count) throws IOException {
+        final long nextSequence = nextSequence();
+
+        return read(Math.max(segments.get(0).baseSequence(), nextSequence - count), nextSequence);
+    }
+
+    /**
+     * Reads the messages of a time range.
+     *
+     * @param fromMillis the start of the range in epoch milliseconds, inclusive
+     * @param toMillis   the end of the range in epoch milliseconds, inclusive
+     * @return the messages, oldest first
+     * @throws IOException If the log cannot be read.
+     */
+    public synchronized List<HistoryRecord> range(final long fromMillis, final long toMillis) throws IOException {
+        final long toSequence = toMillis == Long.MAX_VALUE ? nextSequence() : firstSequenceAtOrAfter(toMillis + 1);
+
+        return read(firstSequenceAtOrAfter(fromMillis), toSequence);
+    }
+
+    /**
+     * Finds the messages that match a query.
+     *
+     * @param query      the query
+     * @param maxResults the number of messages to find at most, the newest ones
+     * @return the messages, oldest first
+     * @throws IOException If the index or the log cannot be read.
+     */
+    public synchronized List<HistoryRecord> search(final SearchQuery query, final int maxResults) throws IOException {
+        if (index == null) {
+            return List.of();
+        }
+
+        final long fromSequence = query.afterMillis() == Long.MIN_VALUE ? 0 : firstSequenceAtOrAfter(query.afterMillis());
+        final long toSequence = query.beforeMillis() == Long.MAX_VALUE ? nextSequence() :
+                firstSequenceAtOrAfter(query.beforeMillis());
+        final List<Long> sequences = index.search(query, fromSequence, toSequence, maxResults);
+
+        final List<HistoryRecord> records = new ArrayList<>(sequences.size());
+        for (int i = sequences.size() - 1; i >= 0; i--) {
+            records.addAll(read(sequences.get(i), sequences.get(i) + 1));
+        }
+        return records;
+    }
+
+    /**
+     * Writes what is pending through to the disk and closes the log. Called when the application exits.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                warn("The search index could not be written: " + e.getMessage());
+            }
+        }
+        try {
+            sync();
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            warn("The history could not be closed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Indexes the messages the index missed. An index that is ahead of the log covers messages the log lost,
+     * it is built again.
+     */
+    private void catchUpIndex() throws IOException {
+        if (index.nextSequence() > nextSequence()) {
+            index.clear();
+        }
+
+        for (long from = index.nextSequence(); from < nextSequence(); from += CATCH_UP_RECORDS) {
+            for (HistoryRecord record : read(from, Math.min(from + CATCH_UP_RECORDS, nextSequence()))) {
+                index(record.sequence(), record.sender(), record.text());
+            }
+        }
+    }
+
+    private void index(final long sequence, final String sender, final String text) {
+        if (index == null) {
+            return;
+        }
+
+        try {
+            index.add(sequence, sender, text);
+        } catch (IOException e) {
+            warn("The search index cannot be written and is no longer kept: " + e.getMessage());
+            index = null;
+        }
+    }
+
+    private long nextSequence() {
+        return segments.get(segments.size() - 1).nextSequence();
+    }
+
+    /**
+     * Reads the records of a range of sequence numbers, segment by segment.
+     */
+    private List<HistoryRecord> read(final long fromSequence, final long toSequence) throws IOException {
+        final List<HistoryRecord> records = new ArrayList<>();
+
+        for (int i = segmentOf(fromSequence); i < segments.size() && fromSequence < toSequence; i++) {
+            final Segment segment = segments.get(i);
+            final long from = Math.max(fromSequence, segment.baseSequence());
+            final long to = Math.min(toSequence, segment.nextSequence());
+            segment.read((int) (from - segment.baseSequence()), (int) (to - segment.baseSequence()), records);
+        }
+        return records;
+    }
+
+    /**
+     * Finds the segment that holds a sequence number, the last one that starts at or before it.
+     */
+    private int segmentOf(final long sequence) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (segments.get(middle).baseSequence() <= sequence) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the first record that is not older than a time, in the first segment whose last record is not older.
+     */
+    private long firstSequenceAtOrAfter(final long timestamp) {
+        int low = 0;
+        int high = segments.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final Segment segment = segments.get(middle);
+            if (segment.count() > 0 && segment.timestampAt(segment.count() - 1) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        if (low == segments.size()) {
+            return nextSequence();
+        }
+
+        final Segment segment = segments.get(low);
+        return segment.baseSequence() + segment.firstEntryAtOrAfter(timestamp);
+    }
+
+    private void sync() throws IOException {
+        if (unsyncedRecords > 0) {
+            segments.get(segments.size() - 1).force();
+            unsyncedRecords = 0;
+            FSYNCS.increment();
+        }
+    }
+
+    private void syncPeriodically() {
+        while (true) {
+            try {
+                Thread.sleep(FSYNC_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    sync();
+                } catch (IOException e) {
+                    warn("The history cannot be written and is no longer kept: " + e.getMessage());
+                    close();
+                }
+            }
+        }
+    }
+
+    private static void warn(final String text) {
+        ConsoleRenderer.println(ANSI_RED + text + ANSI_RESET);
+    }
+
+}
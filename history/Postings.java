@@ -0,0 +1,193 @@
+package chatapp_combined.history;
+
+import chatapp_combined.protocol.FrameCodec;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The type Postings.
+ * The postings list of one term, the records it occurs in and where, as it is being built. Every record is
+ * written as varints: its distance from the record before it (from the first sequence number of the index for
+ * the first record), the number of positions and the distances between the positions. The lists on the disk have
+ * the same layout and are read with a {@link Cursor}.
+ *
+ * @author Dimitar Kolev
+ */
+final class Postings {
+
+    private static final int MAX_VARINT_BYTES = 10;
+
+
+    private final long baseSequence;
+    private ByteBuffer data = ByteBuffer.allocate(16);
+    private long lastSequence;
+    private int count;
+
+
+    /**
+     * Instantiates a new Postings.
+     *
+     * @param baseSequence the first sequence number of the index the list belongs to
+     */
+    Postings(final long baseSequence) {
+        this.baseSequence = baseSequence;
+        this.lastSequence = baseSequence;
+    }
+
+
+    /**
+     * Adds a record, after all the records added so far.
+     *
+     * @param sequence      the sequence number of the record
+     * @param positions     the positions of the term in the record, ascending
+     * @param positionCount the number of positions
+     */
+    void add(final long sequence, final int[] positions, final int positionCount) {
+        ensureRoom((2 + positionCount) * MAX_VARINT_BYTES);
+
+        FrameCodec.writeVarint(data, sequence - lastSequence);
+        FrameCodec.writeVarint(data, positionCount);
+        int previous = 0;
+        for (int i = 0; i < positionCount; i++) {
+            FrameCodec.writeVarint(data, positions[i] - previous);
+            previous = positions[i];
+        }
+
+        lastSequence = sequence;
+        count++;
+    }
+
+    /**
+     * Gets the encoded list.
+     *
+     * @return a view of the list, ready to be read
+     */
+    ByteBuffer data() {
+        return data.duplicate().flip();
+    }
+
+    /**
+     * Gets the number of records in the list.
+     *
+     * @return the count
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * Opens a cursor over the list.
+     *
+     * @return the cursor
+     */
+    Cursor cursor() {
+        return new Cursor(data(), baseSequence, count);
+    }
+
+    private void ensureRoom(final int length) {
+        if (data.remaining() < length) {
+            data = ByteBuffer.allocate(Math.max(2 * data.capacity(), data.position() + length)).put(data.flip());
+        }
+    }
+
+
+    /**
+     * Reads a postings list record by record, in the order of the sequence numbers.
+     */
+    static final class Cursor {
+
+        private final ByteBuffer data;
+        private final int count;
+        private int read;
+        private long sequence;
+        private int[] positions = new int[8];
+        private int positionCount;
+
+
+        /**
+         * Instantiates a new Cursor.
+         *
+         * @param data         the encoded list
+         * @param baseSequence the first sequence number of the index the list belongs to
+         * @param count        the number of records in the list
+         */
+        Cursor(final ByteBuffer data, final long baseSequence, final int count) {
+            this.data = data;
+            this.sequence = baseSequence;
+            this.count = count;
+        }
+
+
+        /**
+         * Moves to the next record.
+         *
+         * @return false if there is none
+         * @throws ProtocolException If the list is corrupt.
+         */
+        boolean next() throws ProtocolException {
+            if (read == count) {
+                return false;
+            }
+
+            sequence += FrameCodec.readVarint(data);
+            positionCount = (int) FrameCodec.readVarint(data);
+            if (positions.length < positionCount) {
+                positions = Arrays.copyOf(positions, Math.max(positionCount, 2 * positions.length));
+            }
+            int position = 0;
+            for (int i = 0; i < positionCount; i++) {
+                position += (int) FrameCodec.readVarint(data);
+                positions[i] = position;
+            }
+
+            read++;
+            return true;
+        }
+
+        /**
+         * Moves to the first record at or after a sequence number, which may be the current one.
+         *
+         * @param target the sequence number
+         * @return false if there is none
+         * @throws ProtocolException If the list is corrupt.
+         */
+        boolean advance(final long target) throws ProtocolException {
+            while (read == 0 || sequence < target) {
+                if (!next()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long sequence() {
+            return sequence;
+        }
+
+        /**
+         * Tells whether the term occurs at a position of the current record.
+         *
+         * @param position the position
+         * @return true if it does
+         */
+        boolean hasPosition(final int position) {
+            return Arrays.binarySearch(positions, 0, positionCount, position) >= 0;
+        }
+
+        int positionCount() {
+            return positionCount;
+        }
+
+        int position(final int index) {
+            return positions[index];
+        }
+
+        int count() {
+            return count;
+        }
+
+    }
+
+}
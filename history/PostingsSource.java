@@ -0,0 +1,36 @@
+package chatapp_combined.history;
+
+import java.io.IOException;
+
+/**
+ * The type Postings source.
+ * A part of the search index that covers a range of sequence numbers, on the disk or still in memory.
+ *
+ * @author Dimitar Kolev
+ */
+interface PostingsSource {
+
+    /**
+     * Opens a cursor over the postings list of a term.
+     *
+     * @param term the term
+     * @return the cursor, or null if the term does not occur
+     * @throws IOException If the index cannot be read.
+     */
+    Postings.Cursor cursor(String term) throws IOException;
+
+    /**
+     * Gets the first sequence number covered.
+     *
+     * @return the sequence number
+     */
+    long firstSequence();
+
+    /**
+     * Gets the last sequence number covered.
+     *
+     * @return the sequence number
+     */
+    long lastSequence();
+
+}
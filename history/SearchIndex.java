@@ -0,0 +1,518 @@
+package chatapp_combined.history;
+
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+
+/**
+ * The type Search index.
+ * An inverted index of the history, updated as every message is appended. The messages are indexed in memory
+ * until -Dchatapp.history.indexFlushRecords of them (default 8192) are, then they are written as an immutable
+ * {@link IndexSegment} next to the history. Whenever 10 neighbouring segments of about the same size pile up,
+ * a background thread merges them into one, so there are only a few segments per power of ten of messages.
+ * <p>
+ * A query walks the segments from the newest one and stops once it has enough matches. It only reads the
+ * postings lists of its own terms, from the memory-mapped segments, and segments outside of its time range
+ * are skipped altogether.
+ *
+ * @author Dimitar Kolev
+ */
+final class SearchIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(SearchIndex.class.getName());
+
+    private static final int FLUSH_RECORDS = Math.max(1, getInt("history.indexFlushRecords", 8192));
+    private static final int MERGE_FACTOR = 10;
+    private static final long MAX_MERGED_SIZE = Integer.MAX_VALUE / 2;
+
+    private static final Counter SEGMENTS_WRITTEN = MetricsRegistry.counter("history.index.segments.written");
+    private static final Counter SEGMENTS_MERGED = MetricsRegistry.counter("history.index.segments.merged");
+
+
+    private final Path directory;
+    // Sorted by their first sequence number, replaced as a whole when a segment is added or merged
+    private List<IndexSegment> segments;
+    // The messages not written to a segment yet
+    private Map<String, Postings> buffer = new HashMap<>();
+    private long bufferFirstSequence = -1;
+    private long bufferLastSequence = -1;
+    private boolean merging;
+    private boolean closed;
+
+
+    private SearchIndex(final Path directory, final List<IndexSegment> segments) {
+        this.directory = directory;
+        this.segments = segments;
+    }
+
+
+    /**
+     * Opens the index in a directory, creating it if it does not exist. Files left behind by a merge that did
+     * not finish are deleted.
+     *
+     * @param directory the directory
+     * @return the index
+     * @throws IOException If the directory cannot be read.
+     */
+    static SearchIndex open(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+
+        final List<IndexSegment> found = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(IndexSegment.TEMPORARY_SUFFIX)) {
+                    Files.delete(file);
+                } else if (name.endsWith(IndexSegment.SUFFIX)) {
+                    found.add(IndexSegment.open(file));
+                }
+            }
+        }
+
+        // A merged segment whose parts were not deleted yet covers them
+        found.sort(Comparator.comparingLong(IndexSegment::firstSequence)
+                .thenComparing(Comparator.comparingLong(IndexSegment::lastSequence).reversed()));
+        final List<IndexSegment> segments = new ArrayList<>();
+        for (IndexSegment segment : found) {
+            if (!segments.isEmpty() && segment.lastSequence() <= segments.get(segments.size() - 1).lastSequence()) {
+                delete(segment);
+            } else {
+                segments.add(segment);
+            }
+        }
+        return new SearchIndex(directory, List.copyOf(segments));
+    }
+
+    /**
+     * Gets the sequence number of the first message that is not indexed yet.
+     *
+     * @return the sequence number
+     */
+    synchronized long nextSequence() {
+        if (bufferLastSequence >= 0) {
+            return bufferLastSequence + 1;
+        }
+        return segments.isEmpty() ? 0 : segments.get(segments.size() - 1).lastSequence() + 1;
+    }
+
+    /**
+     * Indexes a message, after all the messages indexed so far.
+     *
+     * @param sequence the sequence number of the message
+     * @param sender   the name of the sender
+     * @param text     the text of the message
+     * @throws IOException If the buffer is full and cannot be written.
+     */
+    synchronized void add(final long sequence, final String sender, final String text) throws IOException {
+        if (bufferFirstSequence < 0) {
+            bufferFirstSequence = sequence;
+        }
+        bufferLastSequence = sequence;
+
+        final List<String> terms = new ArrayList<>();
+        SearchQuery.tokenize(text, terms);
+
+        // The positions of every term, in the order the terms occur in
+        final Map<String, int[]> positions = new HashMap<>();
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int position = 0; position < terms.size(); position++) {
+            final String term = terms.get(position);
+            final int count = counts.getOrDefault(term, 0);
+            int[] termPositions = positions.get(term);
+            if (termPositions == null || termPositions.length == count) {
+                termPositions = termPositions == null ? new int[4] : Arrays.copyOf(termPositions, 2 * count);
+                positions.put(term, termPositions);
+            }
+            termPositions[count] = position;
+            counts.put(term, count + 1);
+        }
+
+        for (Map.Entry<String, int[]> entry : positions.entrySet()) {
+            postings(entry.getKey()).add(sequence, entry.getValue(), counts.get(entry.getKey()));
+        }
+        postings(SearchQuery.senderTerm(sender)).add(sequence, null, 0);
+
+        if (bufferLastSequence - bufferFirstSequence + 1 >= FLUSH_RECORDS) {
+            flush();
+        }
+    }
+
+    /**
+     * Finds the messages that match a query, the newest first.
+     *
+     * @param query        the query
+     * @param fromSequence the first sequence number to consider
+     * @param toSequence   the sequence number after the last one to consider
+     * @param maxResults   the number of messages to find at most
+     * @return the sequence numbers of the messages
+     * @throws IOException If the index cannot be read.
+     */
+    synchronized List<Long> search(final SearchQuery query, final long fromSequence, final long toSequence,
+                                   final int maxResults) throws IOException {
+        final List<PostingsSource> sources = new ArrayList<>(segments);
+        if (bufferFirstSequence >= 0) {
+            sources.add(bufferSource());
+        }
+
+        final List<Long> results = new ArrayList<>();
+        for (int i = sources.size() - 1; i >= 0 && results.size() < maxResults; i--) {
+            final PostingsSource source = sources.get(i);
+            if (source.firstSequence() >= toSequence || source.lastSequence() < fromSequence) {
+                continue;
+            }
+
+            final long[] matches = match(source, query, Math.max(fromSequence, source.firstSequence()),
+                    Math.min(toSequence, source.lastSequence() + 1), maxResults - results.size());
+            for (int j = matches.length - 1; j >= 0; j--) {
+                results.add(matches[j]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Writes what is still in memory, called when the history is closed.
+     *
+     * @throws IOException If the segment cannot be written.
+     */
+    synchronized void close() throws IOException {
+        if (!closed) {
+            flush();
+            closed = true;
+        }
+    }
+
+    /**
+     * Deletes every file of the index, e.g. when it covers messages the history has lost.
+     *
+     * @throws IOException If a file cannot be deleted.
+     */
+    synchronized void clear() throws IOException {
+        for (IndexSegment segment : segments) {
+            delete(segment);
+        }
+        segments = List.of();
+        buffer = new HashMap<>();
+        bufferFirstSequence = -1;
+        bufferLastSequence = -1;
+    }
+
+    private Postings postings(final String term) {
+        return buffer.computeIfAbsent(term, key -> new Postings(bufferFirstSequence));
+    }
+
+    private PostingsSource bufferSource() {
+        final Map<String, Postings> postings = buffer;
+        final long first = bufferFirstSequence;
+        final long last = bufferLastSequence;
+
+        return new PostingsSource() {
+            @Override
+            public Postings.Cursor cursor(final String term) {
+                final Postings list = postings.get(term);
+                return list == null ? null : list.cursor();
+            }
+
+            @Override
+            public long firstSequence() {
+                return first;
+            }
+
+            @Override
+            public long lastSequence() {
+                return last;
+            }
+        };
+    }
+
+    /**
+     * Writes the buffer as a new segment, sorted by the bytes of the terms, and merges segments if they piled up.
+     */
+    private void flush() throws IOException {
+        if (bufferFirstSequence < 0 || closed) {
+            return;
+        }
+
+        final List<Map.Entry<byte[], Postings>> terms = new ArrayList<>(buffer.size());
+        for (Map.Entry<String, Postings> entry : buffer.entrySet()) {
+            terms.add(Map.entry(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue()));
+        }
+        terms.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+
+        final IndexSegment.Writer writer = new IndexSegment.Writer(directory, bufferFirstSequence, bufferLastSequence);
+        try {
+            for (Map.Entry<byte[], Postings> term : terms) {
+                writer.add(term.getKey(), term.getValue().data(), term.getValue().count());
+            }
+            segments = append(segments, writer.finish());
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        SEGMENTS_WRITTEN.increment();
+
+        buffer = new HashMap<>();
+        bufferFirstSequence = -1;
+        bufferLastSequence = -1;
+
+        if (!merging && findMerge(segments) != null) {
+            merging = true;
+            final Thread merger = new Thread(this::mergeSegments, "History Merge Thread");
+            merger.setDaemon(true);
+            merger.start();
+        }
+    }
+
+    /**
+     * Merges neighbouring segments of the same size until none pile up any more. The merged segment is written
+     * without holding the lock, only the switch over to it does.
+     */
+    private void mergeSegments() {
+        while (true) {
+            final List<IndexSegment> parts;
+            synchronized (this) {
+                parts = closed ? null : findMerge(segments);
+                if (parts == null) {
+                    merging = false;
+                    return;
+                }
+            }
+
+            final IndexSegment merged;
+            try {
+                merged = merge(parts);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to merge the search index.", e);
+                synchronized (this) {
+                    merging = false;
+                }
+                return;
+            }
+
+            synchronized (this) {
+                final List<IndexSegment> replaced = new ArrayList<>(segments);
+                final int start = replaced.indexOf(parts.get(0));
+                replaced.subList(start, start + parts.size()).clear();
+                replaced.add(start, merged);
+                segments = List.copyOf(replaced);
+            }
+            SEGMENTS_MERGED.add(parts.size());
+            for (IndexSegment part : parts) {
+                delete(part);
+            }
+        }
+    }
+
+    /**
+     * Merges segments that follow each other: the terms are merged in the order of their bytes, and the postings
+     * lists of a term are joined and encoded again against the first sequence number of the merged segment.
+     */
+    private IndexSegment merge(final List<IndexSegment> parts) throws IOException {
+        final long firstSequence = parts.get(0).firstSequence();
+        final IndexSegment.Writer writer = new IndexSegment.Writer(directory, firstSequence,
+                parts.get(parts.size() - 1).lastSequence());
+
+        // The next term of every part, the smallest term first and for the same term the oldest part first
+        record Head(int part, int entry, byte[] term) {
+        }
+        final PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> {
+            final int comparison = Arrays.compareUnsigned(a.term(), b.term());
+            return comparison != 0 ? comparison : Integer.compare(a.part(), b.part());
+        });
+        for (int part = 0; part < parts.size(); part++) {
+            if (parts.get(part).termCount() > 0) {
+                heads.add(new Head(part, 0, parts.get(part).term(0)));
+            }
+        }
+
+        try {
+            while (!heads.isEmpty()) {
+                final byte[] term = heads.peek().term();
+                final Postings joined = new Postings(firstSequence);
+                int[] positions = new int[8];
+
+                while (!heads.isEmpty() && Arrays.equals(heads.peek().term(), term)) {
+                    final Head head = heads.poll();
+                    final IndexSegment part = parts.get(head.part());
+                    final Postings.Cursor cursor = part.cursor(head.entry());
+                    while (cursor.next()) {
+                        if (positions.length < cursor.positionCount()) {
+                            positions = new int[Math.max(cursor.positionCount(), 2 * positions.length)];
+                        }
+                        for (int i = 0; i < cursor.positionCount(); i++) {
+                            positions[i] = cursor.position(i);
+                        }
+                        joined.add(cursor.sequence(), positions, cursor.positionCount());
+                    }
+
+                    if (head.entry() + 1 < part.termCount()) {
+                        heads.add(new Head(head.part(), head.entry() + 1, part.term(head.entry() + 1)));
+                    }
+                }
+                writer.add(term, joined.data(), joined.count());
+            }
+            return writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Finds a run of at least 10 neighbouring segments whose sizes have the same power of ten.
+     *
+     * @return the run, or null if there is none
+     */
+    private static List<IndexSegment> findMerge(final List<IndexSegment> segments) {
+        int start = 0;
+        for (int i = 1; i <= segments.size(); i++) {
+            if (i == segments.size() || level(segments.get(i)) != level(segments.get(start))) {
+                if (i - start >= MERGE_FACTOR) {
+                    final List<IndexSegment> run = segments.subList(start, start + MERGE_FACTOR);
+                    long size = 0;
+                    for (IndexSegment segment : run) {
+                        size += segment.size();
+                    }
+                    if (size <= MAX_MERGED_SIZE) {
+                        return List.copyOf(run);
+                    }
+                }
+                start = i;
+            }
+        }
+        return null;
+    }
+
+    private static int level(final IndexSegment segment) {
+        final long records = segment.lastSequence() - segment.firstSequence() + 1;
+
+        return (int) Math.floor(Math.log10(Math.max(1.0, (double) records / FLUSH_RECORDS)));
+    }
+
+    /**
+     * Finds the messages of a part of the index that match every phrase of a query and its sender. The postings
+     * lists are walked side by side, each one skipping ahead to the next message all the others have, and only the
+     * newest matches are kept, so a common term never costs more memory than the results.
+     *
+     * @param fromSequence the first sequence number to consider
+     * @param toSequence   the sequence number after the last one to consider, greater than fromSequence
+     * @param maxResults   the number of matches to keep at most, the newest ones
+     * @return the sequence numbers, ascending
+     */
+    private static long[] match(final PostingsSource source, final SearchQuery query, final long fromSequence,
+                                final long toSequence, final int maxResults) throws IOException {
+        // One group per phrase, the sender and the terms on their own are groups of one
+        final List<Postings.Cursor[]> groups = new ArrayList<>();
+        if (query.sender() != null) {
+            groups.add(cursors(source, List.of(query.sender())));
+        }
+        for (List<String> phrase : query.phrases()) {
+            groups.add(cursors(source, phrase));
+        }
+        if (groups.isEmpty() || groups.contains(null)) {
+            return new long[0];
+        }
+        final Postings.Cursor[] cursors = groups.stream().flatMap(Arrays::stream).toArray(Postings.Cursor[]::new);
+
+        // The newest matches so far, the oldest one is overwritten once it is full
+        final long[] newest = new long[(int) Math.min(maxResults, toSequence - fromSequence)];
+        int count = 0;
+        long target = fromSequence;
+        candidates:
+        while (newest.length > 0) {
+            boolean agreed;
+            do {
+                agreed = true;
+                for (Postings.Cursor cursor : cursors) {
+                    if (!cursor.advance(target)) {
+                        break candidates;
+                    }
+                    if (cursor.sequence() > target) {
+                        target = cursor.sequence();
+                        agreed = false;
+                    }
+                }
+            } while (!agreed);
+            if (target >= toSequence) {
+                break;
+            }
+
+            if (hasPhrases(groups)) {
+                newest[count++ % newest.length] = target;
+            }
+            target++;
+        }
+
+        final long[] matches = new long[Math.min(count, newest.length)];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = newest[(count - matches.length + i) % newest.length];
+        }
+        return matches;
+    }
+
+    private static Postings.Cursor[] cursors(final PostingsSource source, final List<String> terms) throws IOException {
+        final Postings.Cursor[] cursors = new Postings.Cursor[terms.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = source.cursor(terms.get(i));
+            if (cursors[i] == null) {
+                return null;
+            }
+        }
+        return cursors;
+    }
+
+    private static boolean hasPhrases(final List<Postings.Cursor[]> groups) {
+        for (Postings.Cursor[] group : groups) {
+            if (group.length > 1 && !hasPhrase(group)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasPhrase(final Postings.Cursor[] cursors) {
+        starts:
+        for (int i = 0; i < cursors[0].positionCount(); i++) {
+            final int start = cursors[0].position(i);
+            for (int j = 1; j < cursors.length; j++) {
+                if (!cursors[j].hasPosition(start + j)) {
+                    continue starts;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static List<IndexSegment> append(final List<IndexSegment> segments, final IndexSegment segment) {
+        final List<IndexSegment> appended = new ArrayList<>(segments);
+        appended.add(segment);
+        return List.copyOf(appended);
+    }
+
+    private static void delete(final IndexSegment segment) {
+        try {
+            Files.deleteIfExists(segment.file());
+        } catch (IOException e) {
+            // Still mapped on some platforms, the next open deletes it
+            LOGGER.log(Level.FINE, "Failed to delete " + segment.file() + ".", e);
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package chatapp_combined.history;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The type Search query.
+ * A query of the "-s" command: words that must all occur, "quoted phrases" whose words must occur one after
+ * the other, and the filters from:name, after:date and before:date, where a date is e.g. 2024-05-01 or
+ * 2024-05-01T09:30 in the local time zone.
+ *
+ * @param phrases     the phrases, a single word is a phrase of one term
+ * @param sender      the term of the sender, null for any sender
+ * @param afterMillis the earliest time of a message in epoch milliseconds, inclusive
+ * @param beforeMillis the latest time of a message in epoch milliseconds, exclusive
+ * @author Dimitar Kolev
+ */
+public record SearchQuery(List<List<String>> phrases, String sender, long afterMillis, long beforeMillis) {
+
+    private static final String SENDER_FILTER = "from:";
+    private static final String AFTER_FILTER = "after:";
+    private static final String BEFORE_FILTER = "before:";
+    // Words are indexed up to this length, longer ones are cut
+    private static final int MAX_TERM_LENGTH = 64;
+
+
+    /**
+     * Parses the text of a query.
+     *
+     * @param text the text after the command
+     * @return the query
+     * @throws IllegalArgumentException If a date cannot be parsed.
+     */
+    public static SearchQuery parse(final String text) {
+        final List<List<String>> phrases = new ArrayList<>();
+        String sender = null;
+        long afterMillis = Long.MIN_VALUE;
+        long beforeMillis = Long.MAX_VALUE;
+
+        int position = 0;
+        while (position < text.length()) {
+            if (Character.isWhitespace(text.charAt(position))) {
+                position++;
+                continue;
+            }
+
+            final int end;
+            final String word;
+            if (text.charAt(position) == '"') {
+                final int closingQuote = text.indexOf('"', position + 1);
+                end = closingQuote < 0 ? text.length() : closingQuote + 1;
+                word = text.substring(position + 1, closingQuote < 0 ? text.length() : closingQuote);
+            } else {
+                int space = position;
+                while (space < text.length() && !Character.isWhitespace(text.charAt(space))) {
+                    space++;
+                }
+                end = space;
+                word = text.substring(position, end);
+            }
+            position = end;
+
+            final String lowerCase = word.toLowerCase(Locale.ROOT);
+            if (lowerCase.startsWith(SENDER_FILTER) && lowerCase.length() > SENDER_FILTER.length()) {
+                sender = senderTerm(word.substring(SENDER_FILTER.length()));
+            } else if (lowerCase.startsWith(AFTER_FILTER)) {
+                afterMillis = parseTime(word.substring(AFTER_FILTER.length()));
+            } else if (lowerCase.startsWith(BEFORE_FILTER)) {
+                beforeMillis = parseTime(word.substring(BEFORE_FILTER.length()));
+            } else {
+                // A word like "don't" is indexed as two terms, so it is searched as a phrase
+                final List<String> terms = new ArrayList<>();
+                tokenize(word, terms);
+                if (!terms.isEmpty()) {
+                    phrases.add(terms);
+                }
+            }
+        }
+        return new SearchQuery(phrases, sender, afterMillis, beforeMillis);
+    }
+
+    /**
+     * Tells whether the query can match anything, it needs a word or a sender.
+     *
+     * @return true if it does
+     */
+    public boolean isEmpty() {
+        return phrases.isEmpty() && sender == null;
+    }
+
+    /**
+     * Splits a text into its terms: the runs of letters and digits, in lower case.
+     *
+     * @param text  the text
+     * @param terms the list the terms are added to, in the order they occur in
+     */
+    static void tokenize(final String text, final List<String> terms) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean wordCharacter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordCharacter && start < 0) {
+                start = i;
+            } else if (!wordCharacter && start >= 0) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Gets the term a sender is indexed under. It has a colon, so it never matches a word of a message.
+     *
+     * @param sender the name of the sender
+     * @return the term
+     */
+    static String senderTerm(final String sender) {
+        return SENDER_FILTER + sender.toLowerCase(Locale.ROOT);
+    }
+
+    private static long parseTime(final String text) {
+        try {
+            final LocalDateTime time = text.contains("T") ? LocalDateTime.parse(text) : LocalDate.parse(text).atStartOfDay();
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + text, e);
+        }
+    }
+
+}
@@ -0,0 +1,378 @@
+package chatapp_combined.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * The type Segment.
+ * One file of the history log and its index. The log holds the records back to back, each one as the length of
+ * its body, the CRC32C of the body and the body: the sequence number, the timestamp, the flags, the length of the
+ * sender and the sender and the text in UTF-8.
+ * <p>
+ * The index is a memory-mapped file with an entry of 16 bytes for every record, its timestamp and its position in
+ * the log. The entry of a sequence number is found by its distance from the first sequence number of the segment,
+ * and since the timestamps never go back, the entry of a time is found by a binary search. An entry that was never
+ * written is all zeros.
+ *
+ * @author Dimitar Kolev
+ */
+final class Segment {
+
+    static final int RECORD_HEADER = 2 * Integer.BYTES;
+    static final int BODY_HEADER = 2 * Long.BYTES + 1 + Integer.BYTES;
+
+    private static final int ENTRY_SIZE = 2 * Long.BYTES;
+    private static final int MAX_BODY_LENGTH = 16 << 20;
+    private static final byte SENT_FLAG = 1;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+
+
+    private final long baseSequence;
+    private final FileChannel log;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private final int capacity;
+    private int count;
+    private long size;
+
+
+    private Segment(final long baseSequence, final FileChannel log, final FileChannel indexChannel,
+                    final MappedByteBuffer index, final int capacity) {
+        this.baseSequence = baseSequence;
+        this.log = log;
+        this.indexChannel = indexChannel;
+        this.index = index;
+        this.capacity = capacity;
+    }
+
+
+    /**
+     * Opens the segment that starts at a sequence number, creating its files if they do not exist.
+     * The last segment of the log is recovered: index entries whose records are not intact in the log are dropped,
+     * records the index missed are indexed again, and a record that was only partly written is cut off.
+     *
+     * @param directory    the directory of the log
+     * @param baseSequence the sequence number of the first record
+     * @param maxRecords   the number of entries of a new index
+     * @param last         whether it is the last segment, the one appended to
+     * @return the segment
+     * @throws IOException If the files cannot be opened or read.
+     */
+    static Segment open(final Path directory, final long baseSequence, final int maxRecords, final boolean last)
+            throws IOException {
+        final String name = fileName(baseSequence);
+        final FileChannel log = FileChannel.open(directory.resolve(name + LOG_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final FileChannel indexChannel = FileChannel.open(directory.resolve(name + INDEX_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            // An existing index keeps the size it was created with
+            final long indexSize = indexChannel.size();
+            final int capacity = indexSize > 0 ? (int) (indexSize / ENTRY_SIZE) : maxRecords;
+            final MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) capacity * ENTRY_SIZE);
+
+            final Segment segment = new Segment(baseSequence, log, indexChannel, index, capacity);
+            segment.count = segment.countEntries();
+            segment.size = log.size();
+            if (last) {
+                segment.recover();
+            }
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            indexChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Tells whether a file of the log directory is the log of a segment.
+     *
+     * @param fileName the name of the file
+     * @return the first sequence number of the segment, or -1 for any other file
+     */
+    static long baseSequenceOf(final String fileName) {
+        if (!fileName.endsWith(LOG_SUFFIX)) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Encodes a record of the log.
+     *
+     * @param buffer    the buffer, with room for the record
+     * @param sequence  the sequence number
+     * @param timestamp the timestamp
+     * @param sent      whether the message was sent by this user
+     * @param sender    the sender in UTF-8
+     * @param text      the text in UTF-8
+     */
+    static void encode(final ByteBuffer buffer, final long sequence, final long timestamp, final boolean sent,
+                       final byte[] sender, final byte[] text) {
+        final int start = buffer.position();
+        buffer.position(start + RECORD_HEADER);
+        buffer.putLong(sequence).putLong(timestamp).put(sent ? SENT_FLAG : 0).putInt(sender.length)
+                .put(sender).put(text);
+
+        final int bodyLength = buffer.position() - start - RECORD_HEADER;
+        final CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), buffer.arrayOffset() + start + RECORD_HEADER, bodyLength);
+        buffer.putInt(start, bodyLength).putInt(start + Integer.BYTES, (int) crc.getValue());
+    }
+
+    /**
+     * Appends an encoded record and indexes it.
+     *
+     * @param record    the record, its remaining bytes are written
+     * @param timestamp the timestamp of the record
+     * @throws IOException If the record cannot be written.
+     */
+    void append(final ByteBuffer record, final long timestamp) throws IOException {
+        final long position = size;
+        while (record.hasRemaining()) {
+            size += log.write(record, size);
+        }
+
+        // The position first, an entry is only seen once its timestamp is set
+        index.putLong(count * ENTRY_SIZE + Long.BYTES, position);
+        index.putLong(count * ENTRY_SIZE, timestamp);
+        count++;
+    }
+
+    /**
+     * Reads the records between two entries with one sequential read of the log.
+     *
+     * @param from    the first entry
+     * @param to      the entry after the last one
+     * @param records the list the records are added to
+     * @throws IOException If the log cannot be read or is corrupt.
+     */
+    void read(final int from, final int to, final List<HistoryRecord> records) throws IOException {
+        if (from >= to) {
+            return;
+        }
+
+        final long start = positionAt(from);
+        final long end = to < count ? positionAt(to) : size;
+        final ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("History segment " + fileName(baseSequence) + " ends early");
+            }
+        }
+
+        buffer.flip();
+        for (int i = from; i < to; i++) {
+            final int bodyLength = buffer.getInt();
+            buffer.getInt(); // The checksum, only verified when the log is recovered
+            records.add(decode(buffer.slice(buffer.position(), bodyLength)));
+            buffer.position(buffer.position() + bodyLength);
+        }
+    }
+
+    /**
+     * Finds the first record that is not older than a time.
+     *
+     * @param timestamp the time in epoch milliseconds
+     * @return the entry, or the number of records if they are all older
+     */
+    int firstEntryAtOrAfter(final long timestamp) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (timestampAt(middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Gets the timestamp of a record.
+     *
+     * @param entry the entry of the record
+     * @return the timestamp
+     */
+    long timestampAt(final int entry) {
+        return index.getLong(entry * ENTRY_SIZE);
+    }
+
+    /**
+     * Tells whether no more records fit, because the index is full or the log has reached its size.
+     *
+     * @param maxBytes the size of a full log
+     * @return true if the next record goes into a new segment
+     */
+    boolean isFull(final long maxBytes) {
+        return count == capacity || size >= maxBytes;
+    }
+
+    long baseSequence() {
+        return baseSequence;
+    }
+
+    long nextSequence() {
+        return baseSequence + count;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * Writes the log and the index through to the disk.
+     *
+     * @throws IOException If they cannot be written.
+     */
+    void force() throws IOException {
+        log.force(false);
+        index.force();
+    }
+
+    /**
+     * Closes the files of the segment. The mapped index stays valid until it is collected.
+     *
+     * @throws IOException If the files cannot be closed.
+     */
+    void close() throws IOException {
+        log.close();
+        indexChannel.close();
+    }
+
+    private long positionAt(final int entry) {
+        return index.getLong(entry * ENTRY_SIZE + Long.BYTES);
+    }
+
+    /**
+     * Counts the entries that were written, they are all at the start of the index.
+     */
+    private int countEntries() {
+        int low = 0;
+        int high = capacity;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (timestampAt(middle) != 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Checks the tail of the log against the index after the application stopped, possibly in the middle of
+     * a write. Only the records after the last indexed one are read.
+     */
+    private void recover() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        // The entries may have reached the disk before their records, which then read as zeros or are cut off
+        while (count > 0 && !isRecordAt(count - 1, header)) {
+            count--;
+        }
+        // The last good record is read again, the records the index missed follow it
+        if (count > 0) {
+            count--;
+        }
+
+        long position = count > 0 ? positionAt(count) : 0;
+        while (true) {
+            final ByteBuffer body = readRecord(position, header);
+            if (body == null || body.getLong(0) != nextSequence()) {
+                break;
+            }
+
+            index.putLong(count * ENTRY_SIZE + Long.BYTES, position);
+            index.putLong(count * ENTRY_SIZE, body.getLong(Long.BYTES));
+            count++;
+            position += RECORD_HEADER + body.capacity();
+        }
+
+        // Whatever follows the last good record was never completely written
+        log.truncate(position);
+        size = position;
+        for (int entry = count; entry < capacity && timestampAt(entry) != 0; entry++) {
+            index.putLong(entry * ENTRY_SIZE, 0).putLong(entry * ENTRY_SIZE + Long.BYTES, 0);
+        }
+    }
+
+    private boolean isRecordAt(final int entry, final ByteBuffer header) throws IOException {
+        final long position = positionAt(entry);
+        if (position >= size) {
+            return false;
+        }
+
+        final ByteBuffer body = readRecord(position, header);
+        return body != null && body.getLong(0) == baseSequence + entry;
+    }
+
+    /**
+     * Reads the body of a record and verifies its checksum.
+     *
+     * @return the body, or null if the record is incomplete or corrupt
+     */
+    private ByteBuffer readRecord(final long position, final ByteBuffer header) throws IOException {
+        if (!readFully(header.clear(), position)) {
+            return null;
+        }
+
+        final int bodyLength = header.getInt(0);
+        if (bodyLength < BODY_HEADER || bodyLength > MAX_BODY_LENGTH || position + RECORD_HEADER + bodyLength > size) {
+            return null;
+        }
+
+        final ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        if (!readFully(body, position + RECORD_HEADER)) {
+            return null;
+        }
+
+        final CRC32C crc = new CRC32C();
+        crc.update(body.array());
+        return (int) crc.getValue() == header.getInt(Integer.BYTES) ? body : null;
+    }
+
+    private boolean readFully(final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static HistoryRecord decode(final ByteBuffer body) {
+        final long sequence = body.getLong();
+        final long timestamp = body.getLong();
+        final boolean sent = body.get() == SENT_FLAG;
+        final int senderLength = body.getInt();
+
+        final byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return new HistoryRecord(sequence, timestamp, sent, new String(bytes, 0, senderLength, StandardCharsets.UTF_8),
+                new String(bytes, senderLength, bytes.length - senderLength, StandardCharsets.UTF_8));
+    }
+
+    private static String fileName(final long baseSequence) {
+        return String.format("%020d", baseSequence);
+    }
+
+}
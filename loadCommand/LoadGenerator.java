@@ -0,0 +1,397 @@
+package chatapp_combined.loadCommand;
+
+import chatapp_combined.Utility.ChecksumAlgorithm;
+import chatapp_combined.Utility.ConsoleRenderer;
+import chatapp_combined.messagesCommand.TaskExecutor;
+import chatapp_combined.metrics.Histogram;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.Handshake;
+import chatapp_combined.streamsCommand.TlsChannel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static chatapp_combined.Utility.CommonUtils.ANSI_CYAN;
+import static chatapp_combined.Utility.CommonUtils.ANSI_RESET;
+import static chatapp_combined.Utility.CommonUtils.ANSI_YELLOW;
+import static chatapp_combined.Utility.CommonUtils.getTimeString;
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+import static chatapp_combined.Utility.ConfigUtils.getLong;
+import static chatapp_combined.Utility.ConfigUtils.getString;
+
+/**
+ * The type Load generator.
+ * Puts a chat server under the load of many {@link SimulatedClient simulated clients} run in this process, with no
+ * console, and reports how it holds up. Every client logs in with its own name and sends at a fixed rate whatever
+ * the server does, so a server that falls behind makes the messages late instead of making the clients send less.
+ * The latency of a message or a file runs from the time it was due to be sent until it has been received, on the
+ * one clock all the clients share. The first seconds are a warmup and not measured, after the measured ones the
+ * clients stop sending and the messages still on their way are waited for.
+ * <p>
+ * The throughput is reported every few seconds and at the end, with the 50th, 99th and 99.9th percentile of the
+ * latencies. The test is set with:
+ * <ul>
+ *     <li>-Dchatapp.load.clients - the number of clients (default 10)</li>
+ *     <li>-Dchatapp.load.messagesPerSecond - how many messages and files each client sends a second (default 10)</li>
+ *     <li>-Dchatapp.load.messageBytes - the length of the text of a message, at least what it carries (default 64)</li>
+ *     <li>-Dchatapp.load.directPercent - the share of the messages sent to one other client, the rest go to all
+ *     of them (default 80)</li>
+ *     <li>-Dchatapp.load.filePercent - the share of the sends that are files instead of messages (default 0)</li>
+ *     <li>-Dchatapp.load.fileSizes - the sizes the files are picked from, separated by commas (default 65536)</li>
+ *     <li>-Dchatapp.load.churnMillis - how long a connection lasts on average before the client closes it and
+ *     connects again, 0 keeps it (default 0)</li>
+ *     <li>-Dchatapp.load.warmupSeconds - the time before the measurement (default 5)</li>
+ *     <li>-Dchatapp.load.durationSeconds - the time measured (default 60)</li>
+ *     <li>-Dchatapp.load.reportSeconds - the time between two reports (default 5)</li>
+ *     <li>-Dchatapp.load.namePrefix - what the names of the clients start with, followed by their number
+ *     (default load-)</li>
+ * </ul>
+ * The server is the one of -Dchatapp.host and -Dchatapp.port, with -Dchatapp.tls=true the clients connect over
+ * {@link TlsChannel TLS}. Run it with its mailboxes turned off, or the messages for churned clients are stored
+ * and only counted once they are delivered.
+ *
+ * @author Dimitar Kolev
+ */
+public final class LoadGenerator {
+
+    private static final int CLIENTS = Math.max(1, getInt("load.clients", 10));
+    private static final int MESSAGES_PER_SECOND = Math.max(1, getInt("load.messagesPerSecond", 10));
+    private static final int MESSAGE_BYTES = Math.max(0, getInt("load.messageBytes", 64));
+    private static final int DIRECT_PERCENT = Math.min(100, Math.max(0, getInt("load.directPercent", 80)));
+    private static final int FILE_PERCENT = Math.min(100, Math.max(0, getInt("load.filePercent", 0)));
+    private static final String FILE_SIZES = getString("load.fileSizes", "65536");
+    private static final long CHURN_MILLIS = Math.max(0, getLong("load.churnMillis", 0));
+    private static final long WARMUP_SECONDS = Math.max(0, getLong("load.warmupSeconds", 5));
+    private static final long DURATION_SECONDS = Math.max(1, getLong("load.durationSeconds", 60));
+    private static final long REPORT_SECONDS = Math.max(1, getLong("load.reportSeconds", 5));
+    private static final String NAME_PREFIX = getString("load.namePrefix", "load-");
+
+    private static final long DRAIN_MILLIS = 2000;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double BYTES_PER_MB = 1024.0 * 1024;
+
+    private static final Histogram MESSAGE_LATENCY = MetricsRegistry.histogram("load.message.latency.nanos");
+    private static final Histogram FILE_LATENCY = MetricsRegistry.histogram("load.file.latency.nanos");
+
+
+    /**
+     * What the clients have done so far, to tell the rates from the difference of two of them.
+     */
+    private record Totals(long messagesSent, long messagesReceived, long filesSent, long filesReceived,
+                          long bytesSent, long bytesReceived, long nanos) {
+
+        static Totals now() {
+            return new Totals(SimulatedClient.MESSAGES_SENT.getCount(), SimulatedClient.MESSAGES_RECEIVED.getCount(),
+                    SimulatedClient.FILES_SENT.getCount(), SimulatedClient.FILES_RECEIVED.getCount(),
+                    SimulatedClient.BYTES_SENT.getCount(), SimulatedClient.BYTES_RECEIVED.getCount(), System.nanoTime());
+        }
+
+        String ratesSince(final Totals earlier) {
+            final double seconds = Math.max(1, nanos - earlier.nanos) / 1e9;
+
+            return String.format("sent %.1f msg/s %.1f files/s %.2f MB/s, received %.1f msg/s %.1f files/s %.2f MB/s",
+                    (messagesSent - earlier.messagesSent) / seconds, (filesSent - earlier.filesSent) / seconds,
+                    (bytesSent - earlier.bytesSent) / BYTES_PER_MB / seconds,
+                    (messagesReceived - earlier.messagesReceived) / seconds,
+                    (filesReceived - earlier.filesReceived) / seconds,
+                    (bytesReceived - earlier.bytesReceived) / BYTES_PER_MB / seconds);
+        }
+
+    }
+
+
+    private final String host;
+    private final int port;
+    private final TaskExecutor executor;
+    private final String padding;
+    private final ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.fromConfig();
+    private final byte[][] fileContents;
+    private final byte[][] fileDigests;
+    private final List<SimulatedClient> clients = new ArrayList<>(CLIENTS);
+    private volatile boolean sending = true;
+    private volatile long measureStartNanos;
+
+
+    /**
+     * Instantiates a new Load generator. The content of the files is made up front, once per size.
+     *
+     * @param host     the host of the server
+     * @param port     the port of the server
+     * @param executor runs the threads of the clients
+     */
+    public LoadGenerator(final String host, final int port, final TaskExecutor executor) {
+        if (!Handshake.isEnabled()) {
+            throw new IllegalStateException("The load generator needs protocol version " + Handshake.VERSION_2);
+        }
+
+        this.host = host;
+        this.port = port;
+        this.executor = executor;
+        this.padding = "x".repeat(MESSAGE_BYTES);
+
+        final String[] sizes = FILE_SIZES.split(",");
+        this.fileContents = new byte[sizes.length][];
+        this.fileDigests = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            final int size;
+            try {
+                size = Integer.parseInt(sizes[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid file size for chatapp.load.fileSizes: " + sizes[i], e);
+            }
+
+            fileContents[i] = new byte[Math.max(0, size)];
+            ThreadLocalRandom.current().nextBytes(fileContents[i]);
+            final ChecksumAlgorithm.Hasher hasher = checksumAlgorithm.newHasher();
+            hasher.update(ByteBuffer.wrap(fileContents[i]));
+            fileDigests[i] = hasher.digest();
+        }
+    }
+
+
+    /**
+     * Runs the test: starts the clients, reports while it is measured, then closes the clients and reports the
+     * whole measurement.
+     *
+     * @throws InterruptedException If the thread is interrupted while the test is running.
+     */
+    public void run() throws InterruptedException {
+        ConsoleRenderer.println(ANSI_CYAN + getTimeString() + "Starting " + CLIENTS + " simulated clients against " +
+                host + ":" + port + (TlsChannel.isEnabled() ? " over TLS" : "") + ", " + WARMUP_SECONDS +
+                " s of warmup and " + DURATION_SECONDS + " s measured." + ANSI_RESET);
+
+        measureStartNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        for (int i = 0; i < CLIENTS; i++) {
+            final SimulatedClient client = new SimulatedClient(this, i);
+            clients.add(client);
+            executor.execute(nameOf(i) + " Sender", client::run);
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(measureStartNanos - System.nanoTime());
+            final Totals start = Totals.now();
+            final long endNanos = start.nanos() + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+
+            Totals previous = start;
+            long remainingNanos;
+            while ((remainingNanos = endNanos - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(TimeUnit.SECONDS.toNanos(REPORT_SECONDS), remainingNanos));
+
+                final Totals current = Totals.now();
+                ConsoleRenderer.println(ANSI_CYAN + getTimeString() + current.ratesSince(previous) + ", " +
+                        SimulatedClient.CONNECTIONS.getCount() + " connections, message latency " +
+                        percentiles(MESSAGE_LATENCY) + ANSI_RESET);
+                previous = current;
+            }
+
+            // The messages on their way when the clients stop are still measured
+            final Totals end = Totals.now();
+            sending = false;
+            Thread.sleep(DRAIN_MILLIS);
+            report(start, end);
+        } finally {
+            for (SimulatedClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    private void report(final Totals start, final Totals end) {
+        final long errors = SimulatedClient.ERRORS.getCount();
+
+        ConsoleRenderer.println(ANSI_CYAN + getTimeString() + "Load test of " + CLIENTS + " clients over " +
+                DURATION_SECONDS + " s: " + end.ratesSince(start) + "." + ANSI_RESET);
+        ConsoleRenderer.println(ANSI_CYAN + "Message latency of " + MESSAGE_LATENCY.getCount() + " messages: " +
+                percentiles(MESSAGE_LATENCY) + ANSI_RESET);
+        if (FILE_LATENCY.getCount() > 0) {
+            ConsoleRenderer.println(ANSI_CYAN + "File latency of " + FILE_LATENCY.getCount() + " files: " +
+                    percentiles(FILE_LATENCY) + ANSI_RESET);
+        }
+        ConsoleRenderer.println((errors > 0 ? ANSI_YELLOW : ANSI_CYAN) + SimulatedClient.CONNECTIONS.getCount() +
+                " connections, " + SimulatedClient.BACKLOG_RECEIVED.getCount() + " stored messages delivered, " +
+                errors + " errors." + ANSI_RESET);
+    }
+
+    private static String percentiles(final Histogram histogram) {
+        return String.format("p50=%.2f ms p99=%.2f ms p999=%.2f ms max=%.2f ms",
+                histogram.getP50() / NANOS_PER_MILLI, histogram.getP99() / NANOS_PER_MILLI,
+                histogram.getP999() / NANOS_PER_MILLI, histogram.getMax() / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Gets the host of the server.
+     *
+     * @return the host
+     */
+    String getHost() {
+        return host;
+    }
+
+    /**
+     * Gets the port of the server.
+     *
+     * @return the port
+     */
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets the executor that runs the threads of the clients.
+     *
+     * @return the executor
+     */
+    TaskExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Gets the name a client logs in with.
+     *
+     * @param index the index of the client
+     * @return the name
+     */
+    String nameOf(final int index) {
+        return NAME_PREFIX + index;
+    }
+
+    /**
+     * Picks the name of a client other than the given one, to send a direct message to.
+     *
+     * @param index  the index of the client that sends
+     * @param random the random numbers of the calling thread
+     * @return the name, or null if there is no other client
+     */
+    String pickOther(final int index, final ThreadLocalRandom random) {
+        if (CLIENTS < 2) {
+            return null;
+        }
+
+        final int other = random.nextInt(CLIENTS - 1);
+        return nameOf(other >= index ? other + 1 : other);
+    }
+
+    /**
+     * Tells whether the clients are to send, they stop once the measured time is over.
+     *
+     * @return true while they are
+     */
+    boolean isSending() {
+        return sending;
+    }
+
+    /**
+     * Gets the time between two sends of a client.
+     *
+     * @return the time in nanoseconds
+     */
+    long getSendIntervalNanos() {
+        return TimeUnit.SECONDS.toNanos(1) / MESSAGES_PER_SECOND;
+    }
+
+    /**
+     * Gets the share of the messages sent to one other client.
+     *
+     * @return the percentage
+     */
+    int getDirectPercent() {
+        return DIRECT_PERCENT;
+    }
+
+    /**
+     * Gets the share of the sends that are files.
+     *
+     * @return the percentage
+     */
+    int getFilePercent() {
+        return FILE_PERCENT;
+    }
+
+    /**
+     * Gets the text that fills a message up to its length.
+     *
+     * @return the text
+     */
+    String getPadding() {
+        return padding;
+    }
+
+    /**
+     * Gets the checksum the files are closed with.
+     *
+     * @return the checksum algorithm
+     */
+    ChecksumAlgorithm getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * Picks one of the files to send.
+     *
+     * @param random the random numbers of the calling thread
+     * @return the index of the file
+     */
+    int pickFile(final ThreadLocalRandom random) {
+        return random.nextInt(fileContents.length);
+    }
+
+    /**
+     * Gets the content of a file, shared by all the clients and not to be modified.
+     *
+     * @param file the index of the file
+     * @return the content
+     */
+    byte[] getFileContent(final int file) {
+        return fileContents[file];
+    }
+
+    /**
+     * Gets the checksum of a file.
+     *
+     * @param file the index of the file
+     * @return the checksum
+     */
+    byte[] getFileDigest(final int file) {
+        return fileDigests[file];
+    }
+
+    /**
+     * Gets the time a new connection of a client is closed at, a random one around the churn time.
+     *
+     * @return the time from {@link System#nanoTime()}, Long.MAX_VALUE without churn
+     */
+    long nextChurnNanos() {
+        if (CHURN_MILLIS == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        final long churnNanos = TimeUnit.MILLISECONDS.toNanos(CHURN_MILLIS);
+        return System.nanoTime() + churnNanos / 2 + ThreadLocalRandom.current().nextLong(churnNanos + 1);
+    }
+
+    /**
+     * Records the latency of a received message, unless it was sent during the warmup.
+     *
+     * @param dueNanos the time the message was due to be sent
+     */
+    void recordMessageLatency(final long dueNanos) {
+        if (dueNanos - measureStartNanos >= 0) {
+            MESSAGE_LATENCY.recordSince(dueNanos);
+        }
+    }
+
+    /**
+     * Records the latency of a received file, unless it was sent during the warmup.
+     *
+     * @param dueNanos the time the file was due to be sent
+     */
+    void recordFileLatency(final long dueNanos) {
+        if (dueNanos - measureStartNanos >= 0) {
+            FILE_LATENCY.recordSince(dueNanos);
+        }
+    }
+
+}
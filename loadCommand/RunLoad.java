@@ -0,0 +1,37 @@
+package chatapp_combined.loadCommand;
+
+import chatapp_combined.messagesCommand.Command;
+
+/**
+ * The type Run load.
+ * Class representing a command that runs a load test against a chat server until it is over.
+ *
+ * @author Dimitar Kolev
+ */
+public class RunLoad implements Command {
+
+    private final LoadGenerator generator;
+
+
+    /**
+     * Constructs a RunLoad command with the specified generator.
+     *
+     * @param generator The generator that runs the test.
+     */
+    public RunLoad(final LoadGenerator generator) {
+        this.generator = generator;
+    }
+
+    /**
+     * Executes the command to run the load test and blocks until it is over.
+     */
+    @Override
+    public void execute() {
+        try {
+            generator.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,433 @@
+package chatapp_combined.loadCommand;
+
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.Gauge;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.FrameHeader;
+import chatapp_combined.protocol.Handshake;
+import chatapp_combined.protocol.Headers;
+import chatapp_combined.protocol.Opcode;
+import chatapp_combined.streamsCommand.TlsChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static chatapp_combined.Utility.CommonUtils.getLength;
+import static chatapp_combined.Utility.ReceivingMessageUtils.getCommand;
+import static chatapp_combined.Utility.ReceivingMessageUtils.readText;
+import static chatapp_combined.Utility.SendingMessageUtils.encodeMessage;
+
+/**
+ * The type Simulated client.
+ * One user of a {@link LoadGenerator}, speaking the protocol of the real client without a console. It connects,
+ * sends a hello without options and its name as version 1 "-m" and "-n" frames, then writes version 2 frames at
+ * the rate of the generator: chat messages, to one other user or to all of them, and now and then a file as
+ * a multiplexed transfer. Every message and file carries the time it was due to be sent, so whoever receives
+ * it can tell how long it took.
+ * <p>
+ * A client has a sending thread for its whole life and a receiving thread per connection. Only the sending thread
+ * writes, the few frames the receiving thread has to answer with are handed over through a queue.
+ *
+ * @author Dimitar Kolev
+ */
+final class SimulatedClient {
+
+    static final Counter MESSAGES_SENT = MetricsRegistry.counter("load.messages.sent");
+    static final Counter MESSAGES_RECEIVED = MetricsRegistry.counter("load.messages.received");
+    static final Counter FILES_SENT = MetricsRegistry.counter("load.files.sent");
+    static final Counter FILES_RECEIVED = MetricsRegistry.counter("load.files.received");
+    static final Counter BYTES_SENT = MetricsRegistry.counter("load.bytes.sent");
+    static final Counter BYTES_RECEIVED = MetricsRegistry.counter("load.bytes.received");
+    static final Counter BACKLOG_RECEIVED = MetricsRegistry.counter("load.backlog.received");
+    static final Counter CONNECTIONS = MetricsRegistry.counter("load.connections");
+    static final Counter ERRORS = MetricsRegistry.counter("load.errors");
+    private static final Gauge CONNECTED = MetricsRegistry.gauge("load.connected");
+
+    // Every load message and the name of every load file start with it, followed by the time it was due
+    private static final String LOAD_MARKER = "load ";
+    private static final String FILE_MARKER = "load-";
+    private static final String FILE_SUFFIX = ".bin";
+    private static final String MESSAGE_COMMAND = "-m";
+    private static final String NAME_COMMAND = "-n";
+    private static final int MAX_TEXT_LENGTH = 1024 * 1024;
+    private static final int MAX_BATCH_LENGTH = 16 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+
+    /**
+     * One connection to the server, from the login until it is closed or lost.
+     */
+    private static final class Link {
+
+        private final ByteChannel channel;
+        private final DataInputStream inputStream;
+        private final DataOutputStream outputStream;
+        private final Queue<byte[]> replies = new ConcurrentLinkedQueue<>();
+        private final Map<Long, Long> incomingFiles = new HashMap<>();   // Due times by transfer id, receiving thread only
+        private volatile boolean closed;
+
+        private Link(final ByteChannel channel, final InputStream inputStream, final OutputStream outputStream) {
+            this.channel = channel;
+            this.inputStream = new DataInputStream(new BufferedInputStream(inputStream, CHUNK_SIZE));
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(outputStream, CHUNK_SIZE));
+        }
+
+    }
+
+
+    private final LoadGenerator generator;
+    private final int index;
+    private final String name;
+    private volatile boolean running = true;
+    private volatile Link link;
+    private volatile Thread sender;
+    private long transferIds;
+
+
+    /**
+     * Instantiates a new Simulated client.
+     *
+     * @param generator the generator that runs the test
+     * @param index     the index of the client, which its name is made from
+     */
+    SimulatedClient(final LoadGenerator generator, final int index) {
+        this.generator = generator;
+        this.index = index;
+        this.name = generator.nameOf(index);
+    }
+
+
+    /**
+     * Connects and sends until the client is closed, on the thread of the client. A lost connection is replaced
+     * after a short pause, and with churn every connection is closed and replaced once its time is up.
+     */
+    void run() {
+        sender = Thread.currentThread();
+
+        while (running) {
+            final Link connected;
+            try {
+                connected = connect();
+            } catch (IOException e) {
+                if (running) {
+                    ERRORS.increment();
+                    LockSupport.parkNanos(RETRY_NANOS);
+                }
+                continue;
+            }
+
+            try {
+                sendUntil(connected, generator.nextChurnNanos());
+            } catch (IOException e) {
+                if (running && !connected.closed) {
+                    ERRORS.increment();
+                }
+            } finally {
+                disconnect(connected);
+            }
+
+            // The server may still hold the name of the old connection for a moment
+            if (running) {
+                LockSupport.parkNanos(RETRY_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Closes the client and its connection.
+     */
+    void close() {
+        running = false;
+
+        final Link current = link;
+        if (current != null) {
+            disconnect(current);
+        }
+        LockSupport.unpark(sender);
+    }
+
+    private Link connect() throws IOException {
+        final SocketChannel socket = SocketChannel.open(new InetSocketAddress(generator.getHost(), generator.getPort()));
+        // Every frame is flushed whole, nothing is gained by waiting for more
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        ByteChannel channel = socket;
+        final Link connected;
+        try {
+            if (TlsChannel.isEnabled()) {
+                final TlsChannel tlsChannel = TlsChannel.client(socket, generator.getHost(), generator.getPort());
+                channel = tlsChannel;
+                tlsChannel.handshake();
+                connected = new Link(tlsChannel, tlsChannel.newInputStream(), tlsChannel.newOutputStream());
+            } else {
+                connected = new Link(socket, socket.socket().getInputStream(), socket.socket().getOutputStream());
+            }
+
+            // The server learns the name after the hello, like from the real client
+            connected.outputStream.write(encodeMessage(Handshake.bareHello(), Handshake.VERSION_1));
+            connected.outputStream.write(encodeMessage(NAME_COMMAND + " " + name, Handshake.VERSION_1));
+            connected.outputStream.flush();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        CONNECTIONS.increment();
+        CONNECTED.increment();
+        link = connected;
+        generator.getExecutor().execute(name + " Receiver", () -> receive(connected));
+        return connected;
+    }
+
+    private void disconnect(final Link connected) {
+        synchronized (connected) {
+            if (connected.closed) {
+                return;
+            }
+            connected.closed = true;
+        }
+
+        CONNECTED.decrement();
+        try {
+            connected.channel.close();
+        } catch (IOException e) {
+            // Closing is best effort, the connection is gone either way
+        }
+    }
+
+    /**
+     * Sends at the rate of the generator until the connection is lost or its time is up. The times are fixed in
+     * advance, a message that is late because the server held the client back still carries the time it was due,
+     * so the wait shows up in the latency instead of being left out of it.
+     */
+    private void sendUntil(final Link connected, final long churnAtNanos) throws IOException {
+        final long intervalNanos = generator.getSendIntervalNanos();
+        long dueNanos = System.nanoTime();
+
+        while (running && !connected.closed && (System.nanoTime() < churnAtNanos || !generator.isSending())) {
+            flushReplies(connected);
+
+            final long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0 || !generator.isSending()) {
+                LockSupport.parkNanos(Math.min(Math.max(waitNanos, 1), IDLE_NANOS));
+                if (!generator.isSending()) {
+                    dueNanos = System.nanoTime();
+                }
+                continue;
+            }
+
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextInt(100) < generator.getFilePercent()) {
+                sendFile(connected, dueNanos, random);
+            } else {
+                sendMessage(connected, dueNanos, random);
+            }
+            dueNanos += intervalNanos;
+        }
+    }
+
+    private void sendMessage(final Link connected, final long dueNanos, final ThreadLocalRandom random)
+            throws IOException {
+        final String target = random.nextInt(100) < generator.getDirectPercent() ? generator.pickOther(index, random)
+                : null;
+        final String head = (target != null ? "@" + target + " " : "") + LOAD_MARKER + dueNanos + " ";
+        final String padding = generator.getPadding();
+        final String text = head + padding.substring(Math.min(padding.length(), head.length()));
+        final byte[] frame = FrameCodec.encode(Opcode.MESSAGE, null, text);
+
+        connected.outputStream.write(frame);
+        connected.outputStream.flush();
+        MESSAGES_SENT.increment();
+        BYTES_SENT.add(frame.length);
+    }
+
+    /**
+     * Sends a file of one of the sizes of the generator as a multiplexed transfer to all the other users, its name
+     * carries the time it was due.
+     */
+    private void sendFile(final Link connected, final long dueNanos, final ThreadLocalRandom random)
+            throws IOException {
+        final int file = generator.pickFile(random);
+        final byte[] content = generator.getFileContent(file);
+        final Headers transfer = new Headers().putLong(Headers.TRANSFER_ID, ++transferIds);
+        final Headers start = generator.getChecksumAlgorithm().putInto(new Headers()
+                .putLong(Headers.TRANSFER_ID, transferIds)
+                .putString(Headers.FILE_NAME, FILE_MARKER + dueNanos + FILE_SUFFIX)
+                .putLong(Headers.FILE_LENGTH, content.length));
+
+        final DataOutputStream outputStream = connected.outputStream;
+        outputStream.write(FrameCodec.encode(Opcode.FILE_START, start, new byte[0]));
+        for (int offset = 0; offset < content.length; offset += CHUNK_SIZE) {
+            final int length = Math.min(CHUNK_SIZE, content.length - offset);
+            outputStream.write(FrameCodec.encodeHeader(Opcode.FILE_CHUNK, transfer, length));
+            outputStream.write(content, offset, length);
+        }
+        outputStream.write(FrameCodec.encode(Opcode.FILE_END, transfer, generator.getFileDigest(file)));
+        outputStream.flush();
+
+        FILES_SENT.increment();
+        BYTES_SENT.add(content.length);
+    }
+
+    private void flushReplies(final Link connected) throws IOException {
+        if (connected.replies.isEmpty()) {
+            return;
+        }
+
+        byte[] reply;
+        while ((reply = connected.replies.poll()) != null) {
+            connected.outputStream.write(reply);
+        }
+        connected.outputStream.flush();
+    }
+
+    /**
+     * Reads the frames of a connection until it is closed or lost, on its own thread.
+     */
+    private void receive(final Link connected) {
+        try {
+            while (!connected.closed) {
+                receiveFrame(connected);
+            }
+        } catch (IOException e) {
+            // A connection the client closed itself is not an error, nor one the server closed on a churned name
+            if (running && !connected.closed && !(e instanceof EOFException)) {
+                ERRORS.increment();
+            }
+        } finally {
+            disconnect(connected);
+            LockSupport.unpark(sender);
+        }
+    }
+
+    private void receiveFrame(final Link connected) throws IOException {
+        final DataInputStream inputStream = connected.inputStream;
+        final int firstByte = inputStream.readUnsignedByte();
+
+        if (!FrameCodec.isVersion2(firstByte)) {
+            // Only the hello of the server comes as a version 1 frame
+            final String command = getCommand(getLength(firstByte, inputStream), inputStream);
+            if (!MESSAGE_COMMAND.equals(command)) {
+                throw new ProtocolException("Unexpected version 1 frame: " + command);
+            }
+            readText(inputStream);
+            return;
+        }
+
+        final FrameHeader header = FrameCodec.readHeader(firstByte, inputStream);
+        switch (header.opcode()) {
+            case MESSAGE -> onMessage(FrameCodec.readPayloadText(header, MAX_TEXT_LENGTH, inputStream), false);
+            case BATCH -> onBacklog(connected, header);
+            case FILE_START -> {
+                final long dueNanos = parseDueNanos(header.headers().getString(Headers.FILE_NAME), FILE_MARKER);
+                if (dueNanos != Long.MIN_VALUE) {
+                    connected.incomingFiles.put(header.headers().getLong(Headers.TRANSFER_ID), dueNanos);
+                }
+                inputStream.skipNBytes(header.payloadLength());
+            }
+            case FILE_CHUNK -> {
+                inputStream.skipNBytes(header.payloadLength());
+                BYTES_RECEIVED.add(header.payloadLength());
+            }
+            case FILE_END -> {
+                final Long dueNanos = connected.incomingFiles.remove(header.headers().getLong(Headers.TRANSFER_ID));
+                inputStream.skipNBytes(header.payloadLength());
+                // An empty checksum is an aborted transfer
+                if (dueNanos != null && header.payloadLength() > 0) {
+                    FILES_RECEIVED.increment();
+                    generator.recordFileLatency(dueNanos);
+                }
+            }
+            default -> inputStream.skipNBytes(header.payloadLength());
+        }
+    }
+
+    /**
+     * Takes in a batch of the messages the server stored while the client was away, and acknowledges it like the real
+     * client. Their latency says how long the client was away, they are only counted.
+     */
+    private void onBacklog(final Link connected, final FrameHeader header) throws IOException {
+        final DataInputStream batch = new DataInputStream(new ByteArrayInputStream(
+                FrameCodec.readPayload(header, MAX_BATCH_LENGTH, connected.inputStream)));
+
+        while (batch.available() > 0) {
+            final int firstByte = batch.readUnsignedByte();
+            final FrameHeader message = FrameCodec.isVersion2(firstByte) ? FrameCodec.readHeader(firstByte, batch) : null;
+            if (message == null || message.opcode() != Opcode.MESSAGE) {
+                throw new ProtocolException("Unexpected frame in a batch");
+            }
+            onMessage(FrameCodec.readPayloadText(message, MAX_TEXT_LENGTH, batch), true);
+        }
+
+        final byte[] backlogOffset = header.headers().get(Headers.BACKLOG_OFFSET);
+        if (backlogOffset != null) {
+            final Headers headers = new Headers().put(Headers.BACKLOG_OFFSET, backlogOffset);
+            connected.replies.add(FrameCodec.encode(Opcode.BACKLOG_ACK, headers, new byte[0]));
+            LockSupport.unpark(sender);
+        }
+    }
+
+    private void onMessage(final String text, final boolean stored) {
+        // A direct message still starts with the name it was sent to
+        final int start = text.startsWith("@") ? text.indexOf(' ') + 1 : 0;
+        final long dueNanos = start < 0 ? Long.MIN_VALUE : parseDueNanos(text.substring(start), LOAD_MARKER);
+        if (dueNanos == Long.MIN_VALUE) {
+            return;     // A notice of the server
+        }
+
+        BYTES_RECEIVED.add(text.length());
+        if (stored) {
+            BACKLOG_RECEIVED.increment();
+        } else {
+            MESSAGES_RECEIVED.increment();
+            generator.recordMessageLatency(dueNanos);
+        }
+    }
+
+    /**
+     * Reads the time a load message or file was due from its text or name.
+     *
+     * @return the time, or Long.MIN_VALUE if it was not sent by a simulated client
+     */
+    private static long parseDueNanos(final String text, final String marker) {
+        if (text == null || !text.startsWith(marker)) {
+            return Long.MIN_VALUE;
+        }
+
+        int end = marker.length();
+        if (end < text.length() && text.charAt(end) == '-') {
+            end++;      // The clock may be negative
+        }
+        while (end < text.length() && Character.isDigit(text.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(text, marker.length(), end, 10);
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package chatapp_combined.messagesCommand;
+
+import chatapp_combined.Utility.TimingWheel;
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.Heartbeat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The type Heartbeats.
+ * Checks the {@link Heartbeat} of every conversation of the process on one daemon thread. The deadlines are kept in
+ * a {@link TimingWheel} of that thread, a conversation hands its first check over through a queue and every check
+ * schedules the next one. A conversation that is closed is not cancelled in the wheel, its next check finds it
+ * stopped and drops it.
+ *
+ * @author Dimitar Kolev
+ */
+final class Heartbeats {
+
+    private static final Counter REAPED = MetricsRegistry.counter("connections.reaped");
+
+    private static final Queue<Watch> REGISTRATIONS = new ConcurrentLinkedQueue<>();
+    private static final TimingWheel WHEEL = new TimingWheel(Heartbeat.TICK_MILLIS, Heartbeat.TIMEOUT_MILLIS);
+
+    static {
+        final Thread thread = new Thread(Heartbeats::run, "Heartbeat Thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * The heartbeat of one conversation.
+     */
+    static final class Watch {
+
+        private final Heartbeat heartbeat = new Heartbeat();
+        private final Runnable ping;
+        private final Runnable reap;
+        private volatile boolean stopped;
+
+        private Watch(final Runnable ping, final Runnable reap) {
+            this.ping = ping;
+            this.reap = reap;
+        }
+
+        /**
+         * Records that something was received from the peer.
+         */
+        void onActivity() {
+            heartbeat.onActivity();
+        }
+
+        /**
+         * Stops watching the conversation, it is closed.
+         */
+        void stop() {
+            stopped = true;
+        }
+
+        private void check() {
+            if (stopped) {
+                return;
+            }
+
+            final long delay = heartbeat.check(ping);
+            if (delay < 0) {
+                stopped = true;
+                REAPED.increment();
+                reap.run();
+                return;
+            }
+            WHEEL.schedule(this::check, delay);
+        }
+
+    }
+
+
+    /**
+     * Private constructor does not allow an instance to be created
+     */
+    private Heartbeats() {
+
+    }
+
+
+    /**
+     * Starts watching a conversation.
+     *
+     * @param ping sends a ping to the peer, must not block
+     * @param reap closes the conversation once the peer is taken as dead
+     * @return the watch, to record activity and to stop it
+     */
+    static Watch watch(final Runnable ping, final Runnable reap) {
+        final Watch watch = new Watch(ping, reap);
+        REGISTRATIONS.add(watch);
+        return watch;
+    }
+
+    private static void run() {
+        final long tickNanos = TimeUnit.MILLISECONDS.toNanos(Heartbeat.TICK_MILLIS);
+
+        while (true) {
+            Watch watch;
+            while ((watch = REGISTRATIONS.poll()) != null) {
+                WHEEL.schedule(watch::check, Heartbeat.INTERVAL_MILLIS);
+            }
+            WHEEL.advance();
+            LockSupport.parkNanos(tickNanos);
+        }
+    }
+
+}
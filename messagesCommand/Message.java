@@ -1,16 +1,56 @@
 package chatapp_combined.messagesCommand;
 
+import chatapp_combined.Utility.ConsoleRenderer;
+import chatapp_combined.Utility.FileReassembler;
+import chatapp_combined.Utility.OutgoingTransfers;
+import chatapp_combined.history.HistoryRecord;
+import chatapp_combined.history.MessageHistory;
+import chatapp_combined.history.SearchQuery;
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.Histogram;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.BufferPool;
+import chatapp_combined.protocol.Compression;
+import chatapp_combined.protocol.FlowControl;
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.FrameHeader;
+import chatapp_combined.protocol.Handshake;
+import chatapp_combined.protocol.Heartbeat;
+import chatapp_combined.protocol.Headers;
+import chatapp_combined.protocol.Opcode;
+import chatapp_combined.protocol.Session;
+import chatapp_combined.streamsCommand.CloseStream;
+import chatapp_combined.streamsCommand.OutboundQueue;
+import chatapp_combined.streamsCommand.Stream;
+import chatapp_combined.streamsCommand.TlsChannel;
+
 import java.io.*;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static chatapp_combined.Utility.CommonUtils.*;
+import static chatapp_combined.Utility.ConfigUtils.getInt;
 import static chatapp_combined.Utility.ReceivingFileUtils.receiveFile;
 import static chatapp_combined.Utility.ReceivingMessageUtils.getCommand;
-import static chatapp_combined.Utility.ReceivingMessageUtils.receiveMessage;
+import static chatapp_combined.Utility.ReceivingMessageUtils.printHistoryRecord;
+import static chatapp_combined.Utility.ReceivingMessageUtils.printMessage;
+import static chatapp_combined.Utility.ReceivingMessageUtils.readText;
+import static chatapp_combined.Utility.ReceivingMessageUtils.receiveName;
+import static chatapp_combined.Utility.SendingFileUtils.sendAttachment;
 import static chatapp_combined.Utility.SendingFileUtils.sendFileBytes;
-import static chatapp_combined.Utility.SendingMessageUtils.sendMessageBytes;
+import static chatapp_combined.Utility.SendingFileUtils.sendFileMultiplexed;
+import static chatapp_combined.Utility.SendingMessageUtils.encodeMessage;
 
 /**
  * Represents a message exchanged between users in the chat application.
@@ -29,14 +69,63 @@ public class Message implements Serializable {
 
     private static final String MESSAGE_COMMAND = "-m";
     private static final String FILE_COMMAND = "-f";
+    private static final String NAME_COMMAND = "-n";
+    private static final String SEARCH_COMMAND = "-s";  // Searches the history, never sent
+    private static final String JOIN_COMMAND = "-j";    // Joins a room on the server
+    private static final String LEAVE_COMMAND = "-l";   // Leaves a room on the server
+    private static final String ATTACH_COMMAND = "-a";  // Uploads a file to the attachment store of the server
+    private static final String GET_COMMAND = "-g";     // Downloads an attachment from the store
     private static final int START_IDX = 0;
-    private static final Set<String> COMMAND_STRINGS = Set.of(MESSAGE_COMMAND, FILE_COMMAND);
+    private static final int MAX_TEXT_LENGTH = 1 << 20;
+    private static final int MAX_BATCH_LENGTH = 16 << 20;
+    private static final Set<String> COMMAND_STRINGS = Set.of(MESSAGE_COMMAND, FILE_COMMAND, SEARCH_COMMAND,
+            JOIN_COMMAND, LEAVE_COMMAND, ATTACH_COMMAND, GET_COMMAND);
+    private static final int SEARCH_RESULTS = getInt("history.searchResults", 20);
+
+    private static final Counter MESSAGES_SENT = MetricsRegistry.counter("messages.sent");
+    private static final Counter MESSAGES_RECEIVED = MetricsRegistry.counter("messages.received");
+    private static final Histogram ENCODE_NANOS = MetricsRegistry.histogram("frames.encode.nanos");
+    private static final Histogram DECODE_NANOS = MetricsRegistry.histogram("frames.decode.nanos");
+    // From the first byte of a message frame until the message is shown
+    private static final Histogram RECEIVE_NANOS = MetricsRegistry.histogram("messages.receive.nanos");
 
 
-    private final DataInputStream inputStream;        // MAX capacity = 8192 bytes (8 kilobytes)
-    private final DataOutputStream outputStream;      // MAX capacity = 8192 bytes (8 kilobytes)
+    // The connection, replaced as a whole when the client reconnects
+    private transient volatile DataInputStream inputStream;     // MAX capacity = 8192 bytes (8 kilobytes)
+    private transient volatile DataOutputStream outputStream;   // MAX capacity = 8192 bytes (8 kilobytes)
+    private transient volatile ByteChannel channel;             // The channel behind the streams, if there is one
+    private transient volatile OutboundQueue outboundQueue;     // Every frame leaves through this single writer
+    private transient volatile FileReassembler fileReassembler; // The files of the multiplexed transfers being received
+    // The answers to the files being sent
+    private final transient OutgoingTransfers outgoingTransfers = new OutgoingTransfers();
+    private final transient MessageHistory history;             // Where the messages are kept, null if they are not
     private final String senderName;
-    private final Scanner scanner = new Scanner(System.in);
+    private final transient Scanner scanner = new Scanner(System.in);
+
+    // The name shown for received frames, a server announces the real sender with "-n" before relaying
+    private volatile String peerName;
+    // The protocol version agreed with the other side, version 1 until a hello says otherwise
+    private volatile int peerVersion = Handshake.VERSION_1;
+    private volatile boolean onServer;  // Whether the user logged in to a server, only a server has rooms
+    private volatile String username;   // The name the user logged in with, announced again after a reconnect
+    // Whether what is sent to the other side is compressed, agreed in the handshake
+    private volatile boolean peerCompression;
+    // Whether both sides grant credit for the files they receive, agreed in the handshake
+    private volatile boolean peerFlowControl;
+    // Pings a quiet peer and closes the connection once it is gone, null until both sides agreed to it
+    private transient volatile Heartbeats.Watch heartbeat;
+    // Keeps the messages whole across reconnects, null until the server agreed to it
+    private transient volatile Session session;
+    private volatile boolean reconnects;    // Whether a lost connection is replaced, instead of ending the chat
+    private final transient Semaphore disconnects = new Semaphore(0);
+    // Inflates the compressed frames, only used by the receive loop
+    private final transient Compression compression = new Compression();
+    private final transient AtomicBoolean helloSent = new AtomicBoolean();
+    private final transient AtomicLong transferIds = new AtomicLong();
+    // Runs the multiplexed transfers next to the send loop
+    private transient volatile TaskExecutor executor = TaskExecutor.platformThreads();
+    // When the first byte of the frame being received arrived, only used by the receive loop
+    private long frameStartNanos;
 
 
     /**
@@ -48,47 +137,172 @@ public class Message implements Serializable {
      * @param senderName   the sender name
      */
     public Message(final DataInputStream inputStream, final DataOutputStream outputStream, final String senderName) {
+        this(inputStream, outputStream, null, senderName);
+    }
+
+    /**
+     * Instantiates a new Message over a socket opened through a channel,
+     * which lets files be sent without copying them through the heap.
+     *
+     * @param inputStream  the in
+     * @param outputStream the out
+     * @param channel      the channel of the socket, or the {@link TlsChannel} over it
+     * @param senderName   the sender name
+     */
+    public Message(final DataInputStream inputStream, final DataOutputStream outputStream, final ByteChannel channel,
+                   final String senderName) {
+        this(inputStream, outputStream, channel, senderName, null);
+    }
+
+    /**
+     * Instantiates a new Message that keeps the messages it sends and receives in a history.
+     *
+     * @param inputStream  the in
+     * @param outputStream the out
+     * @param channel      the channel of the socket or the {@link TlsChannel} over it, may be null
+     * @param senderName   the sender name
+     * @param history      the history, null to keep none
+     */
+    public Message(final DataInputStream inputStream, final DataOutputStream outputStream, final ByteChannel channel,
+                   final String senderName, final MessageHistory history) {
         this.inputStream = inputStream;
+        this.channel = channel;
         this.outputStream = outputStream;
+        this.outboundQueue = new OutboundQueue(channel != null ? channel : Channels.newChannel(outputStream));
+        this.fileReassembler = new FileReassembler(inputStream, socketChannel(), outboundQueue);
+        this.history = history;
         this.senderName = senderName;
+        this.peerName = senderName;
     }
 
 
     /**
-     * Initiates the sending of messages.
+     * Initiates the sending of messages on a platform thread.
      */
     public void send() {
+        send(TaskExecutor.platformThreads());
+    }
+
+    /**
+     * Initiates the sending of messages on a thread of the given executor.
+     *
+     * @param executor the executor that runs the send loop
+     */
+    public void send(final TaskExecutor executor) {
         synchronized (this) {
-            new Thread(() -> {
-                Thread.currentThread().setName("Send Message Thread");
+            this.executor = executor;
+            outboundQueue.start(executor);
 
-                try {
-                    while (true) {
+            executor.execute("Send Message Thread", () -> {
+                while (true) {
+                    try {
                         sendToOtherUser();
+                    } catch (IOException e) {
+                        if (!reconnects) {
+                            throw new RuntimeException();
+                        }
+                        ConsoleRenderer.println(ANSI_RED + "Not connected, the command was not sent." + ANSI_RESET);
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException();
                 }
-            }).start();
+            });
         }
     }
 
     /**
-     * Initiates the receiving of messages.
+     * Initiates the receiving of messages on a platform thread.
      */
     public void receive() {
-        synchronized (this) {
-            new Thread(() -> {
-                Thread.currentThread().setName("Receive Message Thread");
+        receive(TaskExecutor.platformThreads());
+    }
 
+    /**
+     * Initiates the receiving of messages on a thread of the given executor.
+     *
+     * @param executor the executor that runs the receive loop
+     */
+    public void receive(final TaskExecutor executor) {
+        synchronized (this) {
+            executor.execute("Receive Message Thread", () -> {
                 try {
                     while (true) {
                         receiveFromOtherUser();
                     }
                 } catch (IOException e) {
-                    System.out.printf(ANSI_PURPLE + getTimeString() + "%s logged out!" + System.lineSeparator() + ANSI_RESET, senderName);
+                    ConsoleRenderer.println(ANSI_PURPLE + getTimeString() + senderName + " logged out!" + ANSI_RESET);
+                    outboundQueue.close();
+                    fileReassembler.abortAll();
+                    final Heartbeats.Watch watch = heartbeat;
+                    if (watch != null) {
+                        watch.stop();
+                    }
+                    final Session current = session;
+                    if (current != null) {
+                        current.detach();
+                    }
+                    disconnects.release();
                 }
-            }).start();
+            });
+        }
+    }
+
+    /**
+     * Keeps the chat going when the connection is lost, the caller replaces it with {@link #reconnect}.
+     */
+    public void enableReconnect() {
+        reconnects = true;
+    }
+
+    /**
+     * Waits until the connection is lost.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    public void awaitDisconnect() throws InterruptedException {
+        disconnects.acquire();
+    }
+
+    /**
+     * Goes on over a new connection to the same server, after the old one was lost. The handshake and the login
+     * start over, and the session is resumed once the server has answered the hello.
+     *
+     * @param newInputStream  the in of the new connection
+     * @param newOutputStream the out of the new connection
+     * @param newChannel      the channel of the new connection or the {@link TlsChannel} over it, may be null
+     * @throws IOException If the connection is gone again.
+     */
+    public void reconnect(final DataInputStream newInputStream, final DataOutputStream newOutputStream,
+                          final ByteChannel newChannel) throws IOException {
+        synchronized (this) {
+            inputStream = newInputStream;
+            outputStream = newOutputStream;
+            channel = newChannel;
+            outboundQueue = new OutboundQueue(newChannel != null ? newChannel : Channels.newChannel(newOutputStream));
+            fileReassembler = new FileReassembler(newInputStream, socketChannel(), outboundQueue);
+
+            peerVersion = Handshake.VERSION_1;
+            peerCompression = false;
+            peerFlowControl = false;
+            heartbeat = null;
+            helloSent.set(false);
+
+            outboundQueue.start(executor);
+            sendHello();
+            if (username != null) {
+                sendName(username);
+            }
+            receive(executor);
+        }
+    }
+
+    /**
+     * Offers the newest protocol version to the other side. Called by the side that opened the connection,
+     * the other side answers with its own hello when it receives this one.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public void sendHello() throws IOException {
+        if (Handshake.isEnabled() && helloSent.compareAndSet(false, true)) {
+            outboundQueue.enqueue(ByteBuffer.wrap(encodeMessage(Handshake.hello(), Handshake.VERSION_1)));
         }
     }
 
@@ -107,14 +321,128 @@ public class Message implements Serializable {
             msgArr = Arrays.copyOfRange(msgArr, 1, msgArr.length);
             msg = String.join(" ", msgArr);
 
+            if (SEARCH_COMMAND.equals(command)) {
+                searchHistory(msg);
+                return;
+            }
+            if (JOIN_COMMAND.equals(command) || LEAVE_COMMAND.equals(command)) {
+                sendRoomCommand(JOIN_COMMAND.equals(command) ? Opcode.ROOM_JOIN : Opcode.ROOM_LEAVE, msg.trim());
+                return;
+            }
+            if (ATTACH_COMMAND.equals(command) || GET_COMMAND.equals(command)) {
+                runAttachmentCommand(command, msg.trim());
+                return;
+            }
+
             if (MESSAGE_COMMAND.equals(command)) {
-                System.out.println(ANSI_BLUE + getTimeString() + "Me: " + msg + ANSI_RESET);
+                ConsoleRenderer.println(ANSI_BLUE + getTimeString() + "Me: " + msg + ANSI_RESET);
+                if (history != null) {
+                    history.append(true, senderName, msg);
+                }
             }
 
             runSendingCommand(command, messageToSend);
 
         } else {
-            System.out.println(ANSI_RED + "Invalid command! Try again." + ANSI_RESET);
+            ConsoleRenderer.println(ANSI_RED + "Invalid command! Try again." + ANSI_RESET);
+        }
+    }
+
+    /**
+     * Joins or leaves a room for the "-j" and "-l" commands. The server answers with a notice.
+     *
+     * @param opcode {@link Opcode#ROOM_JOIN} or {@link Opcode#ROOM_LEAVE}
+     * @param room   the name of the room
+     * @throws IOException If the connection is gone.
+     */
+    private void sendRoomCommand(final Opcode opcode, final String room) throws IOException {
+        if (!onServer || peerVersion < Handshake.VERSION_2) {
+            ConsoleRenderer.println(ANSI_RED + "Rooms are only available on a server." + ANSI_RESET);
+            return;
+        }
+        if (room.isEmpty()) {
+            ConsoleRenderer.println(ANSI_RED + "Usage: -j room, -l room, and -m #room text to write to it." + ANSI_RESET);
+            return;
+        }
+
+        outboundQueue.enqueue(ByteBuffer.wrap(FrameCodec.encode(opcode, null, room)));
+    }
+
+    /**
+     * Shares a file through the attachment store of the server for the "-a [#room|@name] path" command, or
+     * downloads one for the "-g hash" command.
+     *
+     * @param command  the command
+     * @param argument what follows the command
+     * @throws IOException If the connection is gone.
+     */
+    private void runAttachmentCommand(final String command, final String argument) throws IOException {
+        if (!onServer || peerVersion < Handshake.VERSION_2) {
+            ConsoleRenderer.println(ANSI_RED + "Attachments are only available on a server." + ANSI_RESET);
+            return;
+        }
+        if (argument.isEmpty()) {
+            ConsoleRenderer.println(ANSI_RED + "Usage: -a [#room|@name] path to share a file, -g hash to download it." +
+                    ANSI_RESET);
+            return;
+        }
+
+        if (GET_COMMAND.equals(command)) {
+            outboundQueue.enqueue(ByteBuffer.wrap(FrameCodec.encode(Opcode.ATTACHMENT_GET, null, argument)));
+            return;
+        }
+
+        // Shared with everyone, unless the path starts with a room or a user
+        final boolean addressed = argument.charAt(START_IDX) == '#' || argument.charAt(START_IDX) == '@';
+        final String[] parts = addressed ? argument.split(" ", 2) : new String[]{"", argument};
+        if (parts.length < 2) {
+            ConsoleRenderer.println(ANSI_RED + "Usage: -a [#room|@name] path to share a file, -g hash to download it." +
+                    ANSI_RESET);
+            return;
+        }
+
+        final long transferId = transferIds.incrementAndGet();
+        executor.execute("Send File Thread", () -> sendAttachment(parts[1].trim(), parts[0], outboundQueue,
+                outgoingTransfers, transferId));
+    }
+
+    /**
+     * Searches the history for the "-s" command and prints the messages found, oldest first.
+     *
+     * @param text the query
+     */
+    private void searchHistory(final String text) {
+        if (history == null) {
+            ConsoleRenderer.println(ANSI_RED + "No history is kept, there is nothing to search." + ANSI_RESET);
+            return;
+        }
+
+        final SearchQuery query;
+        try {
+            query = SearchQuery.parse(text);
+        } catch (IllegalArgumentException e) {
+            ConsoleRenderer.println(ANSI_RED + e.getMessage() + ANSI_RESET);
+            return;
+        }
+        if (query.isEmpty()) {
+            ConsoleRenderer.println(ANSI_RED + "Usage: -s words \"a phrase\" from:name after:2024-05-01 " +
+                    "before:2024-05-02T09:00" + ANSI_RESET);
+            return;
+        }
+
+        final List<HistoryRecord> records;
+        try {
+            records = history.search(query, SEARCH_RESULTS);
+        } catch (IOException e) {
+            ConsoleRenderer.println(ANSI_RED + "The history could not be searched: " + e.getMessage() + ANSI_RESET);
+            return;
+        }
+        if (records.isEmpty()) {
+            ConsoleRenderer.println(ANSI_RED + "No messages found." + ANSI_RESET);
+            return;
+        }
+        for (HistoryRecord record : records) {
+            printHistoryRecord(record);
         }
     }
 
@@ -124,11 +452,39 @@ public class Message implements Serializable {
      * @throws IOException If an I/O error occurs.
      */
     private void receiveFromOtherUser() throws IOException {
+        receiveFrame();
+
+        // The messages of a session are acknowledged once nothing more is waiting, or every few messages
+        final Session current = session;
+        if (current != null) {
+            final ByteBuffer ack = current.takeAck(inputStream.available() == 0);
+            if (ack != null) {
+                outboundQueue.enqueue(ack);
+            }
+        }
+    }
+
+    private void receiveFrame() throws IOException {
+        // A version 2 frame starts with its opcode, a version 1 frame with the 4-byte length of its command
+        final int firstByte = inputStream.readUnsignedByte();
+        frameStartNanos = System.nanoTime();
+        final Heartbeats.Watch watch = heartbeat;
+        if (watch != null) {
+            watch.onActivity();
+        }
+        if (FrameCodec.isVersion2(firstByte)) {
+            final FrameHeader header = FrameCodec.readHeader(firstByte, inputStream);
+            DECODE_NANOS.recordSince(frameStartNanos);
+            runReceivingFrame(header);
+            return;
+        }
+
         // Read the length of the command (4 bytes)
-        final int commandLength = getLength(inputStream);
+        final int commandLength = getLength(firstByte, inputStream);
 
         // Read the command bytes and construct a String representing the command
         final String command = getCommand(commandLength, inputStream);
+        DECODE_NANOS.recordSince(frameStartNanos);
 
         // Determine the action to take based on the received command
         runReceivingCommand(command);
@@ -142,13 +498,73 @@ public class Message implements Serializable {
      * @throws IOException If an I/O error occurs.
      */
     private void runSendingCommand(final String command, final String messageToSend) throws IOException {
+        // Messages are queued and written in batches. A version 2 file is sent in chunks on its own thread,
+        // interleaved with the messages and resumable, a version 1 file takes over the connection once the queue is drained.
+        final int version = peerVersion;
         switch (command) {
-            case MESSAGE_COMMAND -> sendMessageBytes(messageToSend, outputStream);
-            case FILE_COMMAND -> sendFileBytes(messageToSend, outputStream);
+            case MESSAGE_COMMAND -> sendMessage(messageToSend, version);
+            case FILE_COMMAND -> {
+                if (version >= Handshake.VERSION_2) {
+                    final long transferId = transferIds.incrementAndGet();
+                    final SocketChannel socketChannel = socketChannel();
+                    final InetAddress peerAddress = socketChannel != null ? socketChannel.socket().getInetAddress() : null;
+                    final boolean compress = peerCompression;
+                    executor.execute("Send File Thread", () -> sendFileMultiplexed(messageToSend, outboundQueue,
+                            outgoingTransfers, transferId, peerAddress, executor, compress));
+                } else {
+                    outboundQueue.runExclusive(() -> sendFileBytes(messageToSend, outputStream, socketChannel(), version));
+                }
+            }
             default -> throw new IllegalStateException("Unexpected value: " + command);
         }
     }
 
+    /**
+     * Encodes a message into a pooled buffer and queues it, the queue gives the buffer back once it is written.
+     *
+     * @param messageToSend The message as String to be sent to other user.
+     * @param version       The protocol version of the connection.
+     * @throws IOException If the connection is gone.
+     */
+    private void sendMessage(final String messageToSend, final int version) throws IOException {
+        final Session current = session;
+        if (current != null) {
+            sendSequenced(current, messageToSend);
+            return;
+        }
+
+        final long startNanos = System.nanoTime();
+        final ByteBuffer frame = encodeMessage(messageToSend, version, BufferPool.direct());
+        ENCODE_NANOS.recordSince(startNanos);
+
+        outboundQueue.enqueue(frame);
+        MESSAGES_SENT.increment();
+    }
+
+    /**
+     * Sends a message in the session, kept until the server acknowledges it. While the connection is lost the
+     * message only waits in the session, it is sent when the session is resumed.
+     *
+     * @param current       The session.
+     * @param messageToSend The message as String to be sent to other user.
+     */
+    private void sendSequenced(final Session current, final String messageToSend) {
+        final long startNanos = System.nanoTime();
+        final ByteBuffer frame = ByteBuffer.wrap(encodeMessage(messageToSend, Handshake.VERSION_2));
+        ENCODE_NANOS.recordSince(startNanos);
+
+        synchronized (current) {
+            if (current.retain(frame)) {
+                try {
+                    outboundQueue.enqueue(frame);
+                } catch (IOException e) {
+                    // Kept in the session, sent again after the reconnect
+                }
+            }
+        }
+        MESSAGES_SENT.increment();
+    }
+
     /**
      * Executes the appropriate action based on the received command.
      *
@@ -157,10 +573,214 @@ public class Message implements Serializable {
      */
     private void runReceivingCommand(final String command) throws IOException {
         switch (command) {
-            case MESSAGE_COMMAND -> receiveMessage(senderName, inputStream);
-            case FILE_COMMAND -> receiveFile(senderName, inputStream);
+            case MESSAGE_COMMAND -> onMessageText(readText(inputStream));
+            case FILE_COMMAND -> receiveFile(peerName, inputStream, channel);
+            case NAME_COMMAND -> peerName = receiveName(inputStream);
             default -> throw new IllegalStateException("Unexpected value: " + command);
         }
     }
 
+    /**
+     * Executes the appropriate action based on the opcode of a version 2 frame.
+     *
+     * @param header The header of the frame received from the other user.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void runReceivingFrame(final FrameHeader header) throws IOException {
+        // A relayed frame names its sender in a header instead of a separate "-n" frame
+        final String sender = header.headers().getString(Headers.SENDER);
+        if (sender != null) {
+            peerName = sender;
+        }
+
+        switch (header.opcode()) {
+            case MESSAGE -> {
+                final String text = readPayloadText(header);
+                // A message sent again after a reconnect may have arrived already
+                final Session current = session;
+                if (current == null || current.onReceived()) {
+                    showMessage(text);
+                }
+            }
+            case BATCH -> receiveBatch(header);
+            case FILE -> receiveFile(peerName, header, inputStream, channel);
+            case FILE_START -> fileReassembler.start(peerName, header);
+            case FILE_OFFER -> fileReassembler.offer(peerName, header);
+            case FILE_CHUNK -> fileReassembler.chunk(header);
+            case FILE_END -> fileReassembler.end(header);
+            case FILE_ACCEPT, FILE_NACK, FILE_ACK -> outgoingTransfers.onSignal(header);
+            case NAME -> peerName = readPayloadText(header);
+            case CREDIT -> outboundQueue.addCredit(FlowControl.readCredit(header));
+            case RESUME -> requireSession().onResume(header.headers().getLong(Headers.SESSION_ID),
+                    Session.readSequence(header), header.headers().getLong(Headers.FIRST_SEQUENCE));
+            case ACK -> requireSession().acknowledge(Session.readSequence(header));
+            case PING -> outboundQueue.enqueue(Heartbeat.pong());
+            case PONG -> {
+                // Only matters as activity, recorded when the frame started
+            }
+            default -> throw new ProtocolException("Unexpected frame: " + header.opcode());
+        }
+    }
+
+    /**
+     * Prints a received version 1 message, or completes the handshake if the message is a hello.
+     *
+     * @param text The text of the message.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void onMessageText(final String text) throws IOException {
+        if (!Handshake.isHello(text)) {
+            showMessage(text);
+            return;
+        }
+
+        sendHello();
+        peerVersion = Handshake.negotiate(text);
+
+        if (peerVersion >= Handshake.VERSION_2 && Compression.isEnabled() && Handshake.offersCompression(text) &&
+                !peerCompression) {
+            peerCompression = true;
+            outboundQueue.enableCompression();
+        }
+
+        if (peerVersion >= Handshake.VERSION_2 && FlowControl.isEnabled() && Handshake.offersFlowControl(text) &&
+                !peerFlowControl) {
+            peerFlowControl = true;
+            outboundQueue.enableFlowControl();
+            fileReassembler.enableFlowControl();
+        }
+
+        if (peerVersion >= Handshake.VERSION_2 && Heartbeat.isEnabled() && Handshake.offersHeartbeat(text) &&
+                heartbeat == null) {
+            heartbeat = Heartbeats.watch(this::ping, this::reap);
+        }
+
+        if (onServer && peerVersion >= Handshake.VERSION_2 && Session.isEnabled() && Handshake.offersSessions(text)) {
+            resumeSession();
+        }
+    }
+
+    /**
+     * Starts the session, or resumes it on a new connection: sends the {@link Opcode#RESUME} and the messages the
+     * server has not acknowledged yet, before any new message.
+     *
+     * @throws IOException If the connection is gone.
+     */
+    private void resumeSession() throws IOException {
+        if (session == null) {
+            session = new Session(0);
+        }
+
+        synchronized (session) {
+            if (session.isAttached()) {
+                return;
+            }
+            for (ByteBuffer frame : session.attach()) {
+                outboundQueue.enqueue(frame);
+            }
+        }
+    }
+
+    private Session requireSession() throws ProtocolException {
+        final Session current = session;
+        if (current == null) {
+            throw new ProtocolException("Frame of a session that was never started");
+        }
+        return current;
+    }
+
+    /**
+     * Pings the other side, called by the heartbeat thread.
+     */
+    private void ping() {
+        try {
+            outboundQueue.enqueue(Heartbeat.ping());
+        } catch (IOException e) {
+            // The connection is gone, the receive loop notices it
+        }
+    }
+
+    /**
+     * Closes the connection to the other side, which has not been heard from for the whole heartbeat timeout.
+     * The receive loop is blocked in a read, closing the socket under it ends it.
+     */
+    private void reap() {
+        ConsoleRenderer.println(ANSI_PURPLE + getTimeString() + "No answer from the other side for "
+                + Heartbeat.TIMEOUT_MILLIS / 1000 + " seconds, closing the connection." + ANSI_RESET);
+        final SocketChannel socketChannel = socketChannel();
+        new CloseStream(new Stream(null, socketChannel != null ? socketChannel.socket() : null, inputStream, outputStream))
+                .execute();
+    }
+
+    /**
+     * Gets the socket channel files can be moved to and from by the kernel, or over extra data connections.
+     *
+     * @return the channel, null if there is none or the connection is encrypted
+     */
+    private SocketChannel socketChannel() {
+        return channel instanceof SocketChannel socketChannel ? socketChannel : null;
+    }
+
+    /**
+     * Announces the name of the user to a server, after the hello so the server knows the protocol version
+     * by the time the user logs in.
+     *
+     * @param name the name of the user
+     * @throws IOException If the connection is gone.
+     */
+    public void sendName(final String name) throws IOException {
+        onServer = true;
+        username = name;
+        outboundQueue.enqueue(ByteBuffer.wrap(encodeMessage(NAME_COMMAND + " " + name, Handshake.VERSION_1)));
+    }
+
+    /**
+     * Inflates a {@link Opcode#BATCH} frame and shows its messages one by one, as if they had come alone.
+     * A batch of the messages a server stored while the user was offline is acknowledged once they are shown.
+     *
+     * @param header The header of the frame.
+     * @throws IOException If an I/O error occurs or the batch holds anything but messages.
+     */
+    private void receiveBatch(final FrameHeader header) throws IOException {
+        final DataInputStream batch = new DataInputStream(new ByteArrayInputStream(
+                compression.readPayload(header, MAX_BATCH_LENGTH, inputStream)));
+
+        while (batch.available() > 0) {
+            final int firstByte = batch.readUnsignedByte();
+            final FrameHeader message = FrameCodec.isVersion2(firstByte) ? FrameCodec.readHeader(firstByte, batch) : null;
+            if (message == null || message.opcode() != Opcode.MESSAGE) {
+                throw new ProtocolException("Unexpected frame in a batch");
+            }
+            final String sender = message.headers().getString(Headers.SENDER);
+            if (sender != null) {
+                peerName = sender;
+            }
+            showMessage(FrameCodec.readPayloadText(message, MAX_TEXT_LENGTH, batch));
+        }
+
+        final byte[] backlogOffset = header.headers().get(Headers.BACKLOG_OFFSET);
+        if (backlogOffset != null) {
+            final Headers headers = new Headers().put(Headers.BACKLOG_OFFSET, backlogOffset);
+            outboundQueue.enqueue(ByteBuffer.wrap(FrameCodec.encode(Opcode.BACKLOG_ACK, headers, new byte[0])));
+        }
+    }
+
+    /**
+     * Prints a received message, keeps it in the history and records how long it took from its first byte.
+     *
+     * @param text The text of the message.
+     */
+    private void showMessage(final String text) {
+        printMessage(peerName, text);
+        if (history != null) {
+            history.append(false, peerName, text);
+        }
+        MESSAGES_RECEIVED.increment();
+        RECEIVE_NANOS.recordSince(frameStartNanos);
+    }
+
+    private String readPayloadText(final FrameHeader header) throws IOException {
+        return FrameCodec.readPayloadText(header, MAX_TEXT_LENGTH, inputStream);
+    }
+
 }
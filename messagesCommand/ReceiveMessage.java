@@ -9,6 +9,7 @@ package chatapp_combined.messagesCommand;
 public class ReceiveMessage implements Command {
 
     private final Message message;
+    private final TaskExecutor executor;
 
 
     /**
@@ -17,7 +18,18 @@ public class ReceiveMessage implements Command {
      * @param message The message instance to be received.
      */
     public ReceiveMessage(final Message message) {
+        this(message, TaskExecutor.platformThreads());
+    }
+
+    /**
+     * Constructs a ReceiveMessage command that runs on a thread of the given executor.
+     *
+     * @param message  The message instance to be received.
+     * @param executor The executor that runs the command.
+     */
+    public ReceiveMessage(final Message message, final TaskExecutor executor) {
         this.message = message;
+        this.executor = executor;
     }
 
     /**
@@ -25,7 +37,7 @@ public class ReceiveMessage implements Command {
      */
     @Override
     public void execute() {
-        message.receive();
+        message.receive(executor);
     }
 
 }
@@ -9,6 +9,7 @@ package chatapp_combined.messagesCommand;
 public class SendMessage implements Command {
 
     private final Message message;
+    private final TaskExecutor executor;
 
 
     /**
@@ -17,7 +18,18 @@ public class SendMessage implements Command {
      * @param message The message instance to be sent.
      */
     public SendMessage(final Message message) {
+        this(message, TaskExecutor.platformThreads());
+    }
+
+    /**
+     * Constructs a SendMessage command that runs on a thread of the given executor.
+     *
+     * @param message  The message instance to be sent.
+     * @param executor The executor that runs the command.
+     */
+    public SendMessage(final Message message, final TaskExecutor executor) {
         this.message = message;
+        this.executor = executor;
     }
 
     /**
@@ -25,7 +37,7 @@ public class SendMessage implements Command {
      */
     @Override
     public void execute() {
-        message.send();
+        message.send(executor);
     }
 
 }
@@ -0,0 +1,62 @@
+package chatapp_combined.messagesCommand;
+
+import static chatapp_combined.Utility.ConfigUtils.getString;
+
+/**
+ * The interface Task executor.
+ * Decides which kind of thread runs the long-lived send and receive loops of a conversation.
+ * Select it with -Dchatapp.threads=platform (default) or -Dchatapp.threads=virtual.
+ *
+ * @author Dimitar Kolev
+ */
+@FunctionalInterface
+public interface TaskExecutor {
+
+    /**
+     * The name of the setting that selects the executor.
+     */
+    String THREADS_SETTING = "threads";
+
+    /**
+     * Runs the task on its own thread.
+     *
+     * @param name the name of the thread
+     * @param task the task
+     */
+    void execute(String name, Runnable task);
+
+    /**
+     * One platform (OS) thread per task, as the application always did.
+     *
+     * @return the task executor
+     */
+    static TaskExecutor platformThreads() {
+        return (name, task) -> new Thread(task, name).start();
+    }
+
+    /**
+     * One virtual thread per task. A virtual thread blocked in a socket read gives its carrier thread back,
+     * so an idle conversation costs a few hundred bytes of heap instead of an OS thread and its stack.
+     *
+     * @return the task executor
+     */
+    static TaskExecutor virtualThreads() {
+        return (name, task) -> Thread.ofVirtual().name(name).start(task);
+    }
+
+    /**
+     * The executor selected with -Dchatapp.threads.
+     *
+     * @return the task executor
+     */
+    static TaskExecutor fromConfig() {
+        final String threads = getString(THREADS_SETTING, "platform");
+
+        return switch (threads) {
+            case "platform" -> platformThreads();
+            case "virtual" -> virtualThreads();
+            default -> throw new IllegalStateException("Unexpected value: " + threads);
+        };
+    }
+
+}
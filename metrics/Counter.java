@@ -0,0 +1,45 @@
+package chatapp_combined.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The type Counter.
+ * A count that only goes up, e.g. the messages sent. Threads that count at the same time do not contend.
+ *
+ * @author Dimitar Kolev
+ */
+public final class Counter implements CounterMXBean {
+
+    private final LongAdder count = new LongAdder();
+
+
+    /**
+     * Instantiates a new Counter, see {@link MetricsRegistry#counter}.
+     */
+    Counter() {
+
+    }
+
+
+    /**
+     * Adds one.
+     */
+    public void increment() {
+        count.increment();
+    }
+
+    /**
+     * Adds an amount.
+     *
+     * @param amount the amount
+     */
+    public void add(final long amount) {
+        count.add(amount);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+}
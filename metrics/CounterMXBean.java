@@ -0,0 +1,18 @@
+package chatapp_combined.metrics;
+
+/**
+ * The interface Counter MX bean.
+ * How a {@link Counter} is seen over JMX.
+ *
+ * @author Dimitar Kolev
+ */
+public interface CounterMXBean {
+
+    /**
+     * Gets the count.
+     *
+     * @return the count since the start
+     */
+    long getCount();
+
+}
@@ -0,0 +1,53 @@
+package chatapp_combined.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The type Gauge.
+ * A level that goes up and down, e.g. the bytes waiting in the outbound queues. Every queue adds what it takes in
+ * and subtracts what it lets go, so one gauge shows the total over all the connections.
+ *
+ * @author Dimitar Kolev
+ */
+public final class Gauge implements GaugeMXBean {
+
+    private final LongAdder value = new LongAdder();
+
+
+    /**
+     * Instantiates a new Gauge, see {@link MetricsRegistry#gauge}.
+     */
+    Gauge() {
+
+    }
+
+
+    /**
+     * Adds one.
+     */
+    public void increment() {
+        value.increment();
+    }
+
+    /**
+     * Subtracts one.
+     */
+    public void decrement() {
+        value.decrement();
+    }
+
+    /**
+     * Adds an amount, negative to subtract.
+     *
+     * @param delta the amount
+     */
+    public void add(final long delta) {
+        value.add(delta);
+    }
+
+    @Override
+    public long getValue() {
+        return value.sum();
+    }
+
+}
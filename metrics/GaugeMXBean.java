@@ -0,0 +1,18 @@
+package chatapp_combined.metrics;
+
+/**
+ * The interface Gauge MX bean.
+ * How a {@link Gauge} is seen over JMX.
+ *
+ * @author Dimitar Kolev
+ */
+public interface GaugeMXBean {
+
+    /**
+     * Gets the current value.
+     *
+     * @return the value
+     */
+    long getValue();
+
+}
@@ -0,0 +1,53 @@
+package chatapp_combined.metrics;
+
+/**
+ * The interface Histogram MX bean.
+ * How a {@link Histogram} is seen over JMX.
+ *
+ * @author Dimitar Kolev
+ */
+public interface HistogramMXBean {
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return the count
+     */
+    long getCount();
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return the mean, 0 when nothing was recorded
+     */
+    double getMean();
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return the maximum
+     */
+    long getMax();
+
+    /**
+     * Gets the median.
+     *
+     * @return the 50th percentile
+     */
+    long getP50();
+
+    /**
+     * Gets the 99th percentile.
+     *
+     * @return the 99th percentile
+     */
+    long getP99();
+
+    /**
+     * Gets the 99.9th percentile.
+     *
+     * @return the 99.9th percentile
+     */
+    long getP999();
+
+}
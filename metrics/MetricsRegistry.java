@@ -0,0 +1,179 @@
+package chatapp_combined.metrics;
+
+import chatapp_combined.Utility.ConsoleRenderer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static chatapp_combined.Utility.CommonUtils.ANSI_CYAN;
+import static chatapp_combined.Utility.CommonUtils.ANSI_RED;
+import static chatapp_combined.Utility.CommonUtils.ANSI_RESET;
+import static chatapp_combined.Utility.CommonUtils.getTimeString;
+import static chatapp_combined.Utility.ConfigUtils.getBoolean;
+import static chatapp_combined.Utility.ConfigUtils.getLong;
+
+/**
+ * The type Metrics registry.
+ * The counters, gauges and histograms of the process, by name. A metric is created the first time it is asked for
+ * and lives as long as the process, so the classes that update it keep it in a static field. Every metric is
+ * registered as an MXBean named {@code chatapp_combined:type=<Counter|Gauge|Histogram>,name=<name>}, to be watched
+ * with jconsole or any JMX client. The registry is configured with:
+ * <ul>
+ *     <li>-Dchatapp.metrics.jmx - whether the metrics are registered with the platform MBean server (default true)</li>
+ *     <li>-Dchatapp.metrics.dumpSeconds - how often all the metrics are printed, 0 never (default 0)</li>
+ * </ul>
+ * The dump and the warnings go through the {@link ConsoleRenderer} like every other line of the console.
+ *
+ * @author Dimitar Kolev
+ */
+public final class MetricsRegistry {
+
+    private static final boolean JMX = getBoolean("metrics.jmx", true);
+    private static final long DUMP_SECONDS = getLong("metrics.dumpSeconds", 0);
+    private static final String DOMAIN = "chatapp_combined";
+
+    private static final Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> GAUGES = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final AtomicBoolean REPORTER_STARTED = new AtomicBoolean();
+
+
+    /**
+     * Private constructor does not allow an instance to be created
+     */
+    private MetricsRegistry() {
+
+    }
+
+
+    /**
+     * Gets the counter with the given name, creating it the first time.
+     *
+     * @param name the name, e.g. "messages.sent"
+     * @return the counter
+     */
+    public static Counter counter(final String name) {
+        return COUNTERS.computeIfAbsent(name, key -> register("Counter", key, new Counter()));
+    }
+
+    /**
+     * Gets the gauge with the given name, creating it the first time.
+     *
+     * @param name the name, e.g. "outbound.queued.bytes"
+     * @return the gauge
+     */
+    public static Gauge gauge(final String name) {
+        return GAUGES.computeIfAbsent(name, key -> register("Gauge", key, new Gauge()));
+    }
+
+    /**
+     * Gets the histogram with the given name, creating it the first time. The name ends with the unit
+     * of the values, e.g. "frames.decode.nanos".
+     *
+     * @param name the name
+     * @return the histogram
+     */
+    public static Histogram histogram(final String name) {
+        return HISTOGRAMS.computeIfAbsent(name, key -> register("Histogram", key, new Histogram()));
+    }
+
+    /**
+     * Starts printing all the metrics every -Dchatapp.metrics.dumpSeconds, on a daemon thread.
+     * Does nothing if the setting is 0 or the reporter is already running.
+     */
+    public static void startReporter() {
+        if (DUMP_SECONDS <= 0 || !REPORTER_STARTED.compareAndSet(false, true)) {
+            return;
+        }
+
+        final Thread reporter = new Thread(MetricsRegistry::reportPeriodically, "Metrics Dump Thread");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Formats all the metrics, one per line and sorted by name.
+     *
+     * @return the text
+     */
+    public static String dump() {
+        return dump(Map.of(), 0);
+    }
+
+    /**
+     * Formats all the metrics, with the rate of every counter since the previous dump.
+     *
+     * @param previousCounts the counts at the previous dump
+     * @param elapsedNanos   the time since the previous dump, 0 for no rates
+     * @return the text
+     */
+    private static String dump(final Map<String, Long> previousCounts, final long elapsedNanos) {
+        final Map<String, String> lines = new TreeMap<>();
+
+        COUNTERS.forEach((name, counter) -> {
+            final long count = counter.getCount();
+            String line = String.valueOf(count);
+            if (elapsedNanos > 0) {
+                final double seconds = elapsedNanos / 1e9;
+                line += String.format(" (%.1f/s)", (count - previousCounts.getOrDefault(name, 0L)) / seconds);
+            }
+            lines.put(name, line);
+        });
+        GAUGES.forEach((name, gauge) -> lines.put(name, String.valueOf(gauge.getValue())));
+        HISTOGRAMS.forEach((name, histogram) -> lines.put(name, String.format(
+                "count=%d mean=%.1f p50=%d p99=%d p999=%d max=%d", histogram.getCount(), histogram.getMean(),
+                histogram.getP50(), histogram.getP99(), histogram.getP999(), histogram.getMax())));
+
+        final StringBuilder text = new StringBuilder();
+        lines.forEach((name, line) -> text.append(name).append(' ').append(line).append(System.lineSeparator()));
+        return text.toString();
+    }
+
+    private static void reportPeriodically() {
+        Map<String, Long> previousCounts = new HashMap<>();
+        long previousNanos = System.nanoTime();
+
+        while (true) {
+            try {
+                TimeUnit.SECONDS.sleep(DUMP_SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            final long now = System.nanoTime();
+            final Map<String, Long> counts = new HashMap<>();
+            COUNTERS.forEach((name, counter) -> counts.put(name, counter.getCount()));
+
+            // One line of the console renderer, so the dump never interleaves with the chat
+            ConsoleRenderer.println(ANSI_CYAN + getTimeString() + "Metrics" + System.lineSeparator() +
+                    dump(previousCounts, now - previousNanos).stripTrailing() + ANSI_RESET);
+
+            previousCounts = counts;
+            previousNanos = now;
+        }
+    }
+
+    private static <T> T register(final String type, final String name, final T metric) {
+        if (!JMX) {
+            return metric;
+        }
+
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(metric, new ObjectName(DOMAIN + ":type=" + type + ",name=" + name));
+        } catch (JMException e) {
+            ConsoleRenderer.println(ANSI_RED + "The metric " + name + " cannot be registered with JMX: " + e.getMessage() +
+                    ANSI_RESET);
+        }
+        return metric;
+    }
+
+}
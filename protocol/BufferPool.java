@@ -0,0 +1,126 @@
+package chatapp_combined.protocol;
+
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.MetricsRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+
+/**
+ * The type Buffer pool.
+ * Reusable buffers for encoding and decoding frames, so a busy connection does not leave a few short-lived arrays
+ * behind for every message. A buffer is taken from the smallest size class that fits, 256B, 1KB, 4KB, 16KB or 64KB,
+ * and goes back once the frame in it is written or decoded. Larger requests are allocated and simply dropped again.
+ * Every class keeps at most -Dchatapp.buffers.perClass buffers (default 64), a class that runs dry allocates.
+ * <p>
+ * There is one pool of heap buffers, whose arrays the streams read into, and one of direct buffers,
+ * which a socket channel writes without copying them first.
+ *
+ * @author Dimitar Kolev
+ */
+public final class BufferPool {
+
+    private static final int SMALLEST_CLASS_SHIFT = 8;  // 256B
+    private static final int CLASS_SHIFT_STEP = 2;      // Every class is 4 times the previous one
+    private static final int CLASSES = 5;               // Up to 64KB
+    private static final int PER_CLASS = getInt("buffers.perClass", 64);
+
+    private static final Counter MISSES = MetricsRegistry.counter("buffers.pool.misses");
+
+    private static final BufferPool HEAP = new BufferPool(false);
+    private static final BufferPool DIRECT = new BufferPool(true);
+
+
+    private final boolean direct;
+    private final List<ArrayBlockingQueue<ByteBuffer>> classes = new ArrayList<>(CLASSES);
+
+
+    /**
+     * Instantiates a new Buffer pool.
+     *
+     * @param direct whether the buffers are direct
+     */
+    private BufferPool(final boolean direct) {
+        this.direct = direct;
+
+        for (int i = 0; i < CLASSES; i++) {
+            classes.add(new ArrayBlockingQueue<>(PER_CLASS));
+        }
+    }
+
+
+    /**
+     * Gets the pool of heap buffers.
+     *
+     * @return the pool
+     */
+    public static BufferPool heap() {
+        return HEAP;
+    }
+
+    /**
+     * Gets the pool of direct buffers.
+     *
+     * @return the pool
+     */
+    public static BufferPool direct() {
+        return DIRECT;
+    }
+
+    /**
+     * Takes a buffer with room for at least the given number of bytes. Safe to call from any thread.
+     *
+     * @param capacity the bytes needed
+     * @return a cleared buffer, its capacity can be larger than asked for
+     */
+    public ByteBuffer acquire(final int capacity) {
+        final int sizeClass = sizeClassOf(capacity);
+        if (sizeClass < 0) {
+            MISSES.increment();
+            return allocate(capacity);
+        }
+
+        final ByteBuffer buffer = classes.get(sizeClass).poll();
+        if (buffer == null) {
+            MISSES.increment();
+            return allocate(classCapacity(sizeClass));
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Gives a buffer back. The buffer must not be used afterwards. A buffer of another pool, of no size class
+     * or of a full class is left to the garbage collector.
+     *
+     * @param buffer the buffer taken with {@link #acquire}
+     */
+    public void release(final ByteBuffer buffer) {
+        final int sizeClass = sizeClassOf(buffer.capacity());
+
+        if (buffer.isDirect() == direct && sizeClass >= 0 && classCapacity(sizeClass) == buffer.capacity()) {
+            classes.get(sizeClass).offer(buffer);
+        }
+    }
+
+    private ByteBuffer allocate(final int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClassOf(final int capacity) {
+        for (int i = 0; i < CLASSES; i++) {
+            if (capacity <= classCapacity(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int classCapacity(final int sizeClass) {
+        return 1 << (SMALLEST_CLASS_SHIFT + sizeClass * CLASS_SHIFT_STEP);
+    }
+
+}
@@ -0,0 +1,287 @@
+package chatapp_combined.protocol;
+
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.MetricsRegistry;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+
+/**
+ * The type Compression.
+ * Deflate compression of the payloads of version 2 frames. Every client that understands it says so in its hello,
+ * and a side compresses what it sends only when the other side did and -Dchatapp.compression.level is 1 (fastest)
+ * to 9 (smallest), 0 turns it off and is the default. A compressed payload is marked by the
+ * {@link Headers#RAW_LENGTH} header, so the receiver knows how long it is once inflated.
+ * <p>
+ * The chunks of a file are compressed one by one, so every chunk can still be verified and sent again on its own.
+ * A few samples of the file are deflated first and a file that hardly shrinks, e.g. a JPEG or a ZIP, is sent as it
+ * is. Chat messages are compressed in the runs the outbound queue writes at once, as one {@link Opcode#BATCH} frame,
+ * a single short message would only grow. Whatever does not get smaller is sent as it is.
+ * <p>
+ * An instance owns a deflater and an inflater, created when they are first needed, and is used by one thread.
+ *
+ * @author Dimitar Kolev
+ */
+public final class Compression implements AutoCloseable {
+
+    private static final int LEVEL = Math.min(Deflater.BEST_COMPRESSION, Math.max(0, getInt("compression.level", 0)));
+    private static final int SAMPLES = 4;
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int MAX_SAMPLE_PERCENT = 90; // A file is compressed if its samples shrink to 90% or less
+    private static final int MIN_BATCH_BYTES = 256;    // Shorter runs of messages gain nothing
+    private static final byte MESSAGE_FIRST_BYTE = (byte) (FrameCodec.VERSION_BIT | Opcode.MESSAGE.getCode());
+
+    private static final Counter RAW_BYTES = MetricsRegistry.counter("compression.raw.bytes");
+    private static final Counter COMPRESSED_BYTES = MetricsRegistry.counter("compression.compressed.bytes");
+    private static final Counter FILES_SKIPPED = MetricsRegistry.counter("compression.files.skipped");
+
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+
+
+    /**
+     * Tells whether this side compresses what it sends to a peer that can inflate it.
+     *
+     * @return true if a compression level is set
+     */
+    public static boolean isEnabled() {
+        return LEVEL > 0;
+    }
+
+    /**
+     * Tells whether a queued frame is a chat message that may go into a {@link Opcode#BATCH}.
+     *
+     * @param frame the encoded frame
+     * @return true for a version 2 message frame
+     */
+    public static boolean isMessage(final ByteBuffer frame) {
+        return frame.hasRemaining() && frame.get(frame.position()) == MESSAGE_FIRST_BYTE;
+    }
+
+    /**
+     * Deflates a few samples spread over a file to tell whether compressing it is worth the time.
+     *
+     * @param fileChannel the channel of the file
+     * @param fileLength  the length of the file
+     * @return true if the samples shrink enough
+     * @throws IOException If the file cannot be read.
+     */
+    public boolean isCompressible(final FileChannel fileChannel, final long fileLength) throws IOException {
+        final int sampleLength = (int) Math.min(SAMPLE_SIZE, fileLength);
+        final int samples = fileLength > SAMPLE_SIZE ? SAMPLES : 1;
+        final ByteBuffer sample = ByteBuffer.wrap(input(sampleLength), 0, sampleLength);
+        long rawBytes = 0;
+        long compressedBytes = 0;
+
+        for (int i = 0; i < samples; i++) {
+            final long start = (fileLength - sampleLength) / samples * i;
+            sample.clear().limit(sampleLength);
+            int read = 0;
+            while (sample.hasRemaining() && read >= 0) {
+                read = fileChannel.read(sample, start + sample.position());
+            }
+
+            final int length = deflate(sample.flip());
+            rawBytes += sample.limit();
+            compressedBytes += length < 0 ? sample.limit() : length;
+        }
+
+        final boolean compressible = compressedBytes * 100 <= rawBytes * MAX_SAMPLE_PERCENT;
+        if (!compressible) {
+            FILES_SKIPPED.increment();
+        }
+        return compressible;
+    }
+
+    /**
+     * Encodes a frame with a deflated payload.
+     *
+     * @param opcode  the operation
+     * @param headers the headers, the {@link Headers#RAW_LENGTH} header is added to them
+     * @param payload the payload, its position is not moved
+     * @return the frame, or null if the payload does not get smaller
+     */
+    public byte[] encode(final Opcode opcode, final Headers headers, final ByteBuffer payload) {
+        final int rawLength = payload.remaining();
+        final int length = deflate(payload.duplicate());
+        if (length < 0) {
+            return null;
+        }
+
+        count(rawLength, length);
+        return FrameCodec.encode(opcode, headers.putInt(Headers.RAW_LENGTH, rawLength), output, 0, length);
+    }
+
+    /**
+     * Encodes queued chat messages as one {@link Opcode#BATCH} frame into a buffer of the pool.
+     *
+     * @param frames the queued frames, all of them messages
+     * @param from   the index of the first message
+     * @param to     the index after the last message
+     * @param pool   the pool the buffer is taken from
+     * @return the frame, or null if the messages are too short or do not get smaller
+     */
+    public ByteBuffer encodeBatch(final ByteBuffer[] frames, final int from, final int to, final BufferPool pool) {
+        int rawLength = 0;
+        for (int i = from; i < to; i++) {
+            rawLength += frames[i].remaining();
+        }
+        if (rawLength < MIN_BATCH_BYTES) {
+            return null;
+        }
+
+        final byte[] run = input(rawLength);
+        int position = 0;
+        for (int i = from; i < to; i++) {
+            final int frameLength = frames[i].remaining();
+            frames[i].get(frames[i].position(), run, position, frameLength);
+            position += frameLength;
+        }
+
+        final int length = deflate(ByteBuffer.wrap(run, 0, rawLength));
+        if (length < 0) {
+            return null;
+        }
+
+        count(rawLength, length);
+        final Headers headers = new Headers().putInt(Headers.RAW_LENGTH, rawLength);
+        return FrameCodec.encode(Opcode.BATCH, headers, output, length, pool);
+    }
+
+    /**
+     * Gets the length a frame inflates to.
+     *
+     * @param header    the header of the frame
+     * @param maxLength the longest inflated payload accepted
+     * @return the inflated length, or -1 if the payload is not compressed
+     * @throws ProtocolException If the length is out of range.
+     */
+    public static int rawLength(final FrameHeader header, final int maxLength) throws ProtocolException {
+        if (header.headers().get(Headers.RAW_LENGTH) == null) {
+            return -1;
+        }
+
+        final int rawLength = header.headers().getInt(Headers.RAW_LENGTH);
+        if (rawLength < 0 || rawLength > maxLength || header.payloadLength() > rawLength) {
+            throw new ProtocolException("Invalid compressed payload of " + rawLength + " bytes");
+        }
+        return rawLength;
+    }
+
+    /**
+     * Reads the payload of a frame whose header has been read, inflating it if it is compressed.
+     *
+     * @param header      the header
+     * @param maxLength   the longest payload accepted, once inflated
+     * @param inputStream the input stream
+     * @return the payload
+     * @throws IOException If an I/O error occurs or the payload is malformed.
+     */
+    public byte[] readPayload(final FrameHeader header, final int maxLength, final DataInputStream inputStream)
+            throws IOException {
+        final int rawLength = rawLength(header, maxLength);
+        final byte[] payload = FrameCodec.readPayload(header, maxLength, inputStream);
+        if (rawLength < 0) {
+            return payload;
+        }
+
+        final byte[] raw = new byte[rawLength];
+        inflate(ByteBuffer.wrap(payload), raw);
+        return raw;
+    }
+
+    /**
+     * Inflates a compressed payload.
+     *
+     * @param payload the compressed payload
+     * @param raw     the array the payload is inflated into, exactly as long as the inflated payload
+     * @throws ProtocolException If the payload is malformed or does not inflate to the expected length.
+     */
+    public void inflate(final ByteBuffer payload, final byte[] raw) throws ProtocolException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+
+        inflater.reset();
+        inflater.setInput(payload);
+        try {
+            int length = 0;
+            while (!inflater.finished() && length < raw.length) {
+                final int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+
+            if (length != raw.length || !inflater.finished() || payload.hasRemaining()) {
+                throw new ProtocolException("Compressed payload does not match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Malformed compressed payload: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Frees the native memory of the deflater and the inflater, the instance must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Deflates the remaining bytes of the data into the output array.
+     *
+     * @return the compressed length, or -1 if it is not smaller than the data
+     */
+    private int deflate(final ByteBuffer data) {
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL);
+        }
+
+        final int limit = data.remaining();
+        if (output.length < limit) {
+            output = new byte[limit];
+        }
+
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished() && length < limit) {
+            length += deflater.deflate(output, length, limit - length);
+        }
+        return deflater.finished() && length < limit ? length : -1;
+    }
+
+    private byte[] input(final int length) {
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        return input;
+    }
+
+    private static void count(final int rawLength, final int length) {
+        RAW_BYTES.add(rawLength);
+        COMPRESSED_BYTES.add(length);
+    }
+
+}
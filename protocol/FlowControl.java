@@ -0,0 +1,95 @@
+package chatapp_combined.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static chatapp_combined.Utility.ConfigUtils.getLong;
+
+/**
+ * The type Flow control.
+ * Credit-based flow control of the files sent over a connection. The receiver of the content of {@link Opcode#FILE_CHUNK}
+ * frames tells the sender how many bytes of it it can take with a {@link Opcode#CREDIT} frame, first a whole window
+ * and then again whatever it has written away. The sender only starts a chunk while it has credit left, so a fast
+ * sender never gets more than a window ahead of a slow receiver. Chat frames do not count and are never held back.
+ * <p>
+ * Every side that supports it says so in its hello, the credit is only used when both did. The window a side
+ * grants is set with -Dchatapp.flow.windowBytes (default 4 MB), 0 turns the flow control off. The credit is given
+ * back once a quarter of the window has been consumed, so a transfer costs one small frame per quarter of a window.
+ * <p>
+ * An instance counts what one receiver has consumed and is used by one thread.
+ *
+ * @author Dimitar Kolev
+ */
+public final class FlowControl {
+
+    /**
+     * The credit a receiver grants when the connection starts.
+     */
+    public static final long WINDOW = Math.max(0, getLong("flow.windowBytes", 4L * 1024 * 1024));
+
+    private static final long GRANT_THRESHOLD = Math.max(1, WINDOW / 4);
+
+
+    private long consumed;  // Consumed and not given back yet
+
+
+    /**
+     * Tells whether this side takes part in the flow control.
+     *
+     * @return true if a window is set
+     */
+    public static boolean isEnabled() {
+        return WINDOW > 0;
+    }
+
+    /**
+     * Encodes a {@link Opcode#CREDIT} frame.
+     *
+     * @param credit the number of bytes granted
+     * @return the frame
+     */
+    public static ByteBuffer encode(final long credit) {
+        return ByteBuffer.wrap(FrameCodec.encode(Opcode.CREDIT, new Headers().putLong(Headers.CREDIT, credit), new byte[0]));
+    }
+
+    /**
+     * Reads the credit a {@link Opcode#CREDIT} frame grants.
+     *
+     * @param header the header of the frame
+     * @return the number of bytes granted
+     * @throws ProtocolException If the frame is malformed.
+     */
+    public static long readCredit(final FrameHeader header) throws ProtocolException {
+        final long credit = header.headers().getLong(Headers.CREDIT);
+        if (credit <= 0 || header.payloadLength() != 0) {
+            throw new ProtocolException("Malformed " + Opcode.CREDIT + " frame");
+        }
+        return credit;
+    }
+
+    /**
+     * Records file content that was received and written away.
+     *
+     * @param bytes the number of bytes
+     */
+    public void consume(final long bytes) {
+        consumed += bytes;
+    }
+
+    /**
+     * Takes the credit to give back, once enough has been consumed for a {@link Opcode#CREDIT} frame to be worth it.
+     * A sender that ran out of credit has sent at least a window, so the receiver always gets to give it back.
+     *
+     * @return the number of bytes to grant, 0 to wait for more
+     */
+    public long takeCredit() {
+        if (consumed < GRANT_THRESHOLD) {
+            return 0;
+        }
+
+        final long credit = consumed;
+        consumed = 0;
+        return credit;
+    }
+
+}
@@ -0,0 +1,450 @@
+package chatapp_combined.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The type Frame codec.
+ * Encodes and decodes the version 2 frames:
+ * <pre>
+ * [0x80 | opcode] [flags] [varint payload length] ([varint headers length] [headers])? [payload]
+ * </pre>
+ * The headers are only present when {@link #FLAG_HEADERS} is set. A version 1 frame starts with the
+ * 4-byte length of its command, whose first byte is always 0, so both versions can share one stream.
+ *
+ * @author Dimitar Kolev
+ */
+public final class FrameCodec {
+
+    /**
+     * The bit set in the first byte of every version 2 frame.
+     */
+    public static final int VERSION_BIT = 0x80;
+    /**
+     * The flag telling that the frame carries headers.
+     */
+    public static final int FLAG_HEADERS = 0x01;
+
+    private static final int OPCODE_MASK = 0x7F;
+    private static final int MAX_HEADERS_LENGTH = 64 * 1024;
+    private static final int MAX_VARINT_BYTES = 10;
+    private static final int VARINT_DATA_MASK = 0x7F;
+    private static final int VARINT_CONTINUE_BIT = 0x80;
+    private static final int VARINT_SHIFT = 7;
+    private static final int MAX_SCRATCH_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1024]);
+
+
+    /**
+     * Private constructor does not allow an instance to be created
+     */
+    private FrameCodec() {
+
+    }
+
+
+    /**
+     * Tells whether a frame starting with this byte is a version 2 frame.
+     *
+     * @param firstByte the first byte of the frame
+     * @return true for a version 2 frame
+     */
+    public static boolean isVersion2(final int firstByte) {
+        return (firstByte & VERSION_BIT) != 0;
+    }
+
+    /**
+     * Encodes a complete frame.
+     *
+     * @param opcode  the operation
+     * @param headers the headers, or null
+     * @param payload the payload
+     * @return the frame
+     */
+    public static byte[] encode(final Opcode opcode, final Headers headers, final byte[] payload) {
+        return encode(opcode, headers, payload, 0, payload.length);
+    }
+
+    /**
+     * Encodes a complete frame whose payload is a part of an array.
+     *
+     * @param opcode  the operation
+     * @param headers the headers, or null
+     * @param payload the array holding the payload
+     * @param offset  the start of the payload in the array
+     * @param length  the length of the payload
+     * @return the frame
+     */
+    public static byte[] encode(final Opcode opcode, final Headers headers, final byte[] payload, final int offset,
+                                final int length) {
+        final ByteBuffer buffer = ByteBuffer.allocate(headerLength(headers, length) + length);
+        writeHeader(buffer, opcode, headers, length);
+        buffer.put(payload, offset, length);
+
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a complete frame whose payload is the start of an array into a buffer of the pool.
+     *
+     * @param opcode  the operation
+     * @param headers the headers, or null
+     * @param payload the array holding the payload
+     * @param length  the length of the payload
+     * @param pool    the pool the buffer is taken from
+     * @return the frame, ready to be read, to be given back to the pool once written
+     */
+    public static ByteBuffer encode(final Opcode opcode, final Headers headers, final byte[] payload, final int length,
+                                    final BufferPool pool) {
+        final ByteBuffer buffer = pool.acquire(headerLength(headers, length) + length);
+        writeHeader(buffer, opcode, headers, length);
+        buffer.put(payload, 0, length);
+
+        return buffer.flip();
+    }
+
+    /**
+     * Encodes a UTF-8 text frame.
+     *
+     * @param opcode  the operation
+     * @param headers the headers, or null
+     * @param text    the text
+     * @return the frame
+     */
+    public static byte[] encode(final Opcode opcode, final Headers headers, final String text) {
+        return encode(opcode, headers, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes a UTF-8 text frame straight into a buffer of the pool, the text is never copied into an array first.
+     *
+     * @param opcode  the operation
+     * @param headers the headers, or null
+     * @param text    the text
+     * @param start   the index of the first character of the text to encode
+     * @param pool    the pool the buffer is taken from
+     * @return the frame, ready to be read, to be given back to the pool once written
+     */
+    public static ByteBuffer encode(final Opcode opcode, final Headers headers, final CharSequence text, final int start,
+                                    final BufferPool pool) {
+        final int payloadLength = utf8Length(text, start);
+        final ByteBuffer buffer = pool.acquire(headerLength(headers, payloadLength) + payloadLength);
+        writeHeader(buffer, opcode, headers, payloadLength);
+        writeUtf8(buffer, text, start, payloadLength);
+
+        return buffer.flip();
+    }
+
+    /**
+     * Encodes everything of a frame but the payload, for payloads that are streamed after it.
+     *
+     * @param opcode        the operation
+     * @param headers       the headers, or null
+     * @param payloadLength the length of the payload
+     * @return the encoded header
+     */
+    public static byte[] encodeHeader(final Opcode opcode, final Headers headers, final long payloadLength) {
+        final ByteBuffer buffer = ByteBuffer.allocate(headerLength(headers, payloadLength));
+        writeHeader(buffer, opcode, headers, payloadLength);
+
+        return buffer.array();
+    }
+
+    /**
+     * Reads the rest of a frame header whose first byte has already been read.
+     *
+     * @param firstByte   the first byte of the frame
+     * @param inputStream the input stream
+     * @return the frame header
+     * @throws IOException If an I/O error occurs or the frame is malformed.
+     */
+    public static FrameHeader readHeader(final int firstByte, final DataInputStream inputStream) throws IOException {
+        final Opcode opcode = Opcode.fromCode(firstByte & OPCODE_MASK);
+        if (opcode == null) {
+            throw new ProtocolException("Unknown opcode: " + (firstByte & OPCODE_MASK));
+        }
+
+        final int flags = inputStream.readUnsignedByte();
+        final long payloadLength = readVarint(inputStream);
+        if (payloadLength < 0) {
+            throw new ProtocolException("Invalid payload length: " + payloadLength);
+        }
+
+        Headers headers = new Headers();
+        if ((flags & FLAG_HEADERS) != 0) {
+            final long headersLength = readVarint(inputStream);
+            if (headersLength < 0 || headersLength > MAX_HEADERS_LENGTH) {
+                throw new ProtocolException("Headers too long: " + headersLength);
+            }
+
+            final byte[] block = new byte[(int) headersLength];
+            inputStream.readFully(block);
+            headers = Headers.read(ByteBuffer.wrap(block));
+        }
+
+        return new FrameHeader(opcode, flags, headers, payloadLength);
+    }
+
+    /**
+     * Reads the payload of a frame whose header has been read.
+     *
+     * @param header      the header
+     * @param maxLength   the longest payload accepted
+     * @param inputStream the input stream
+     * @return the payload
+     * @throws IOException If an I/O error occurs or the payload is too long.
+     */
+    public static byte[] readPayload(final FrameHeader header, final int maxLength, final DataInputStream inputStream)
+            throws IOException {
+        if (header.payloadLength() > maxLength) {
+            throw new ProtocolException("Payload too long: " + header.payloadLength());
+        }
+
+        final byte[] payload = new byte[(int) header.payloadLength()];
+        inputStream.readFully(payload);
+
+        return payload;
+    }
+
+    /**
+     * Reads the payload of a frame whose header has been read as UTF-8 text. The bytes go through a buffer of
+     * the heap pool, only the string is allocated.
+     *
+     * @param header      the header
+     * @param maxLength   the longest payload accepted
+     * @param inputStream the input stream
+     * @return the text
+     * @throws IOException If an I/O error occurs or the payload is too long.
+     */
+    public static String readPayloadText(final FrameHeader header, final int maxLength, final DataInputStream inputStream)
+            throws IOException {
+        if (header.payloadLength() > maxLength) {
+            throw new ProtocolException("Payload too long: " + header.payloadLength());
+        }
+
+        return readText((int) header.payloadLength(), inputStream);
+    }
+
+    /**
+     * Reads UTF-8 text of a known length through a buffer of the heap pool.
+     *
+     * @param length      the number of bytes of the text
+     * @param inputStream the input stream
+     * @return the text
+     * @throws IOException If an I/O error occurs.
+     */
+    public static String readText(final int length, final DataInputStream inputStream) throws IOException {
+        final BufferPool pool = BufferPool.heap();
+        final ByteBuffer buffer = pool.acquire(length);
+
+        try {
+            inputStream.readFully(buffer.array(), 0, length);
+            return new String(buffer.array(), 0, length, StandardCharsets.UTF_8);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Gets the number of bytes of text encoded as UTF-8, without encoding it.
+     *
+     * @param text  the text
+     * @param start the index of the first character to count
+     * @return the length in bytes
+     */
+    public static int utf8Length(final CharSequence text, final int start) {
+        int length = 0;
+
+        for (int i = start; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes text as UTF-8. A lone surrogate is written as '?', like {@link String#getBytes} does.
+     * The text is encoded into an array, for a direct buffer into a scratch array of the thread that is then
+     * copied in one go, a direct buffer is slow to fill byte by byte.
+     *
+     * @param buffer the buffer, with room for the encoded text
+     * @param text   the text
+     * @param start  the index of the first character to write
+     * @param length the length of the encoded text, from {@link #utf8Length}
+     */
+    public static void writeUtf8(final ByteBuffer buffer, final CharSequence text, final int start, final int length) {
+        if (buffer.hasArray()) {
+            final int end = writeUtf8(buffer.array(), buffer.arrayOffset() + buffer.position(), text, start, length);
+            buffer.position(end - buffer.arrayOffset());
+            return;
+        }
+
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < length) {
+            scratch = new byte[length];
+            if (length <= MAX_SCRATCH_SIZE) {
+                SCRATCH.set(scratch);
+            }
+        }
+        writeUtf8(scratch, 0, text, start, length);
+        buffer.put(scratch, 0, length);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int writeUtf8(final byte[] array, final int offset, final CharSequence text, final int start,
+                                 final int length) {
+        // Plain ASCII is its own UTF-8, the string copies it out in bulk
+        if (text instanceof String string && length == string.length() - start) {
+            string.getBytes(start, string.length(), array, offset);
+            return offset + length;
+        }
+
+        int position = offset;
+
+        for (int i = start; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                array[position++] = (byte) c;
+            } else if (c < 0x800) {
+                array[position++] = (byte) (0xC0 | (c >> 6));
+                array[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                array[position++] = (byte) (0xF0 | (codePoint >> 18));
+                array[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                array[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                array[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                array[position++] = (byte) '?';
+            } else {
+                array[position++] = (byte) (0xE0 | (c >> 12));
+                array[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                array[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Reads the headers of a frame from their encoded block.
+     *
+     * @param block the block
+     * @return the headers
+     * @throws ProtocolException If the block is malformed.
+     */
+    public static Headers readHeaders(final ByteBuffer block) throws ProtocolException {
+        return Headers.read(block);
+    }
+
+    /**
+     * Gets the number of bytes of an unsigned varint.
+     *
+     * @param value the value
+     * @return the size
+     */
+    public static int varintSize(final long value) {
+        int size = 1;
+        long rest = value >>> VARINT_SHIFT;
+
+        while (rest != 0) {
+            size++;
+            rest >>>= VARINT_SHIFT;
+        }
+        return size;
+    }
+
+    /**
+     * Writes an unsigned varint, 7 bits per byte with the highest bit telling that more bytes follow.
+     *
+     * @param buffer the buffer
+     * @param value  the value
+     */
+    public static void writeVarint(final ByteBuffer buffer, final long value) {
+        long rest = value;
+
+        while ((rest & ~VARINT_DATA_MASK) != 0) {
+            buffer.put((byte) ((rest & VARINT_DATA_MASK) | VARINT_CONTINUE_BIT));
+            rest >>>= VARINT_SHIFT;
+        }
+        buffer.put((byte) rest);
+    }
+
+    /**
+     * Reads an unsigned varint from a stream.
+     *
+     * @param inputStream the input stream
+     * @return the value
+     * @throws IOException If an I/O error occurs or the varint is malformed.
+     */
+    public static long readVarint(final DataInputStream inputStream) throws IOException {
+        long value = 0;
+
+        for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+            final int b = inputStream.readUnsignedByte();
+            value |= (long) (b & VARINT_DATA_MASK) << (i * VARINT_SHIFT);
+
+            if ((b & VARINT_CONTINUE_BIT) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    /**
+     * Reads an unsigned varint from a buffer.
+     *
+     * @param buffer the buffer
+     * @return the value
+     * @throws ProtocolException If the varint is malformed.
+     */
+    public static long readVarint(final ByteBuffer buffer) throws ProtocolException {
+        long value = 0;
+
+        for (int i = 0; i < MAX_VARINT_BYTES && buffer.hasRemaining(); i++) {
+            final int b = buffer.get() & 0xFF;
+            value |= (long) (b & VARINT_DATA_MASK) << (i * VARINT_SHIFT);
+
+            if ((b & VARINT_CONTINUE_BIT) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    private static int headerLength(final Headers headers, final long payloadLength) {
+        int length = 2 + varintSize(payloadLength);
+
+        if (headers != null) {
+            final int headersLength = headers.encodedLength();
+            length += varintSize(headersLength) + headersLength;
+        }
+        return length;
+    }
+
+    private static void writeHeader(final ByteBuffer buffer, final Opcode opcode, final Headers headers,
+                                    final long payloadLength) {
+        buffer.put((byte) (VERSION_BIT | opcode.getCode()));
+        buffer.put((byte) (headers == null ? 0 : FLAG_HEADERS));
+        writeVarint(buffer, payloadLength);
+
+        if (headers != null) {
+            writeVarint(buffer, headers.encodedLength());
+            headers.writeTo(buffer);
+        }
+    }
+
+}
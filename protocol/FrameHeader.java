@@ -0,0 +1,14 @@
+package chatapp_combined.protocol;
+
+/**
+ * The type Frame header.
+ * Everything of a version 2 frame that comes before its payload.
+ *
+ * @param opcode        the operation
+ * @param flags         the flags
+ * @param headers       the optional headers, never null
+ * @param payloadLength the number of payload bytes that follow
+ * @author Dimitar Kolev
+ */
+public record FrameHeader(Opcode opcode, int flags, Headers headers, long payloadLength) {
+}
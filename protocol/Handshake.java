@@ -0,0 +1,180 @@
+package chatapp_combined.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+
+/**
+ * The type Handshake.
+ * Negotiates the protocol version of a connection. The side that connects sends a hello as an ordinary
+ * version 1 "-m" frame, a new peer answers with its own hello and both then use the lower of the two
+ * versions. A version 1 peer never answers, so the connection stays on version 1, but it cannot tell the hello
+ * from a chat message either: it shows the hello once as a message of the other user, "chatapp/2" and the options.
+ * The highest version offered is set with -Dchatapp.protocol (default 2, 1 disables the handshake and sends no
+ * hello, for a chat with such a peer).
+ * <p>
+ * The version in a hello may be followed by options separated by spaces, which a peer that does not know them
+ * ignores. A client adds "deflate" to tell that it inflates {@link Compression compressed} frames. The server relays
+ * frames without looking into their payload, so it never adds it and the connections to a server stay uncompressed.
+ * Both clients and the server add "credit" when they take part in the {@link FlowControl flow control} of files,
+ * and "heartbeat" when they answer the pings of the {@link Heartbeat}, and "resume" when they keep a
+ * {@link Session} across reconnects.
+ *
+ * @author Dimitar Kolev
+ */
+public final class Handshake {
+
+    /**
+     * The first protocol version, frames made of a length-prefixed "-m" / "-f" command.
+     */
+    public static final int VERSION_1 = 1;
+    /**
+     * The compact binary protocol of {@link FrameCodec}.
+     */
+    public static final int VERSION_2 = 2;
+
+    private static final int LOCAL_VERSION = Math.min(VERSION_2, Math.max(VERSION_1, getInt("protocol", VERSION_2)));
+
+    // A NUL first character never comes from the console, so the hello cannot be confused with a real message
+    private static final String HELLO_PREFIX = "\u0000chatapp/";
+    private static final String MESSAGE_COMMAND = "-m";
+    private static final String COMPRESSION_OPTION = "deflate";
+    private static final String FLOW_CONTROL_OPTION = "credit";
+    private static final String HEARTBEAT_OPTION = "heartbeat";
+    private static final String SESSION_OPTION = "resume";
+
+
+    /**
+     * Private constructor does not allow an instance to be created
+     */
+    private Handshake() {
+
+    }
+
+
+    /**
+     * Tells whether this side offers anything newer than version 1.
+     *
+     * @return true if a hello should be sent
+     */
+    public static boolean isEnabled() {
+        return LOCAL_VERSION > VERSION_1;
+    }
+
+    /**
+     * Builds the hello of a client in the "-m text" form expected by the version 1 message sender.
+     *
+     * @return the hello
+     */
+    public static String hello() {
+        return MESSAGE_COMMAND + " " + helloText() + " " + COMPRESSION_OPTION;
+    }
+
+    /**
+     * Builds the hello of a client that takes part in none of the options, in the "-m text" form. A server grants it
+     * no credit, never pings it and keeps no session for it, like the simulated clients of a load test.
+     *
+     * @return the hello
+     */
+    public static String bareHello() {
+        return MESSAGE_COMMAND + " " + HELLO_PREFIX + LOCAL_VERSION;
+    }
+
+    /**
+     * Builds the text of the hello message, with the options this side takes part in.
+     *
+     * @return the text of the hello
+     */
+    public static String helloText() {
+        return HELLO_PREFIX + LOCAL_VERSION + (FlowControl.isEnabled() ? " " + FLOW_CONTROL_OPTION : "")
+                + (Heartbeat.isEnabled() ? " " + HEARTBEAT_OPTION : "") + (Session.isEnabled() ? " " + SESSION_OPTION : "");
+    }
+
+    /**
+     * Tells whether a received message is a hello.
+     *
+     * @param text the text of the message
+     * @return true for a hello
+     */
+    public static boolean isHello(final String text) {
+        return text.startsWith(HELLO_PREFIX);
+    }
+
+    /**
+     * Tells whether a received message is a hello.
+     *
+     * @param text the UTF-8 bytes of the message
+     * @return true for a hello
+     */
+    public static boolean isHello(final byte[] text) {
+        return text.length > 0 && text[0] == 0 && isHello(new String(text, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tells whether the other side inflates compressed frames.
+     *
+     * @param helloText the text of the hello of the other side
+     * @return true if the hello carries the option
+     */
+    public static boolean offersCompression(final String helloText) {
+        return hasOption(helloText, COMPRESSION_OPTION);
+    }
+
+    /**
+     * Tells whether the other side takes part in the flow control of files.
+     *
+     * @param helloText the text of the hello of the other side
+     * @return true if the hello carries the option
+     */
+    public static boolean offersFlowControl(final String helloText) {
+        return hasOption(helloText, FLOW_CONTROL_OPTION);
+    }
+
+    /**
+     * Tells whether the other side answers pings.
+     *
+     * @param helloText the text of the hello of the other side
+     * @return true if the hello carries the option
+     */
+    public static boolean offersHeartbeat(final String helloText) {
+        return hasOption(helloText, HEARTBEAT_OPTION);
+    }
+
+    /**
+     * Tells whether the other side keeps a session across reconnects.
+     *
+     * @param helloText the text of the hello of the other side
+     * @return true if the hello carries the option
+     */
+    public static boolean offersSessions(final String helloText) {
+        return hasOption(helloText, SESSION_OPTION);
+    }
+
+    /**
+     * Picks the version both sides support.
+     *
+     * @param helloText the text of the hello of the other side
+     * @return the version to use
+     */
+    public static int negotiate(final String helloText) {
+        try {
+            final String version = helloText.substring(HELLO_PREFIX.length()).split(" ", 2)[0];
+
+            return Math.max(VERSION_1, Math.min(LOCAL_VERSION, Integer.parseInt(version)));
+        } catch (NumberFormatException e) {
+            return VERSION_1;
+        }
+    }
+
+    private static boolean hasOption(final String helloText, final String option) {
+        final String[] options = helloText.substring(HELLO_PREFIX.length()).split(" ");
+
+        for (int i = 1; i < options.length; i++) {
+            if (option.equals(options[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
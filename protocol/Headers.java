@@ -0,0 +1,260 @@
+package chatapp_combined.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The type Headers.
+ * The optional headers of a version 2 frame. Every header is a one-byte key followed by a varint length
+ * and the value, so a frame only pays for the headers it actually carries.
+ *
+ * @author Dimitar Kolev
+ */
+public final class Headers {
+
+    /**
+     * The name of the user who sent the frame.
+     */
+    public static final int SENDER = 1;
+    /**
+     * The name of the file carried by the frame.
+     */
+    public static final int FILE_NAME = 2;
+    /**
+     * The id of the multiplexed transfer a frame belongs to, unique per connection and direction.
+     */
+    public static final int TRANSFER_ID = 3;
+    /**
+     * The length of the file of a multiplexed transfer.
+     */
+    public static final int FILE_LENGTH = 4;
+    /**
+     * The position of a chunk in its file.
+     */
+    public static final int CHUNK_OFFSET = 5;
+    /**
+     * The CRC32C of the payload of a chunk.
+     */
+    public static final int CHECKSUM = 6;
+    /**
+     * The last modification time of an offered file, a partial copy of another version is not resumed.
+     */
+    public static final int FILE_VERSION = 7;
+    /**
+     * The number of data connections the sender of an offered file would like to stripe it over.
+     */
+    public static final int STRIPES = 8;
+    /**
+     * The port the receiver of a striped file accepts its data connections on.
+     */
+    public static final int DATA_PORT = 9;
+    /**
+     * The secret a data connection presents to join a striped transfer.
+     */
+    public static final int DATA_TOKEN = 10;
+    /**
+     * The id of the checksum that closes a file, MD5 when the header is missing.
+     */
+    public static final int CHECKSUM_ALGORITHM = 11;
+    /**
+     * The length of a deflated payload once it is inflated, only present on frames whose payload is compressed.
+     */
+    public static final int RAW_LENGTH = 12;
+    /**
+     * The position in the mailbox of a user up to which a batch of stored messages reaches.
+     */
+    public static final int BACKLOG_OFFSET = 13;
+    /**
+     * Marks an offered file as an attachment for the store of the server, the value is who it is shared with:
+     * "#room", "@name" or empty for everyone.
+     */
+    public static final int ATTACHMENT = 14;
+    /**
+     * The SHA-256 of the whole content of an offered attachment, the server skips the upload if it has the content.
+     */
+    public static final int CONTENT_HASH = 15;
+    /**
+     * The number of bytes of file content a {@link Opcode#CREDIT} frame allows the other side to send in addition.
+     */
+    public static final int CREDIT = 16;
+    /**
+     * The id of the {@link Session} a {@link Opcode#RESUME} frame resumes, 0 for a client that has none yet.
+     */
+    public static final int SESSION_ID = 17;
+    /**
+     * The number of the last message frame received in a {@link Session}.
+     */
+    public static final int SEQUENCE = 18;
+    /**
+     * The number of the first message frame that follows a {@link Opcode#RESUME} frame.
+     */
+    public static final int FIRST_SEQUENCE = 19;
+
+    private static final int MAX_KEYS = 32;
+    private static final byte[][] NO_VALUES = new byte[MAX_KEYS][];
+
+
+    // Shared by all the headers that are still empty, most frames carry none
+    private byte[][] values = NO_VALUES;
+
+
+    /**
+     * Sets a header.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return this headers
+     */
+    public Headers put(final int key, final byte[] value) {
+        if (values == NO_VALUES) {
+            values = new byte[MAX_KEYS][];
+        }
+        values[key] = value;
+        return this;
+    }
+
+    /**
+     * Sets a header to a UTF-8 string.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return this headers
+     */
+    public Headers putString(final int key, final String value) {
+        return put(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sets a header to an int, as 4 big-endian bytes.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return this headers
+     */
+    public Headers putInt(final int key, final int value) {
+        return put(key, ByteBuffer.allocate(Integer.BYTES).putInt(value).array());
+    }
+
+    /**
+     * Sets a header to a long, as 8 big-endian bytes.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return this headers
+     */
+    public Headers putLong(final int key, final long value) {
+        return put(key, ByteBuffer.allocate(Long.BYTES).putLong(value).array());
+    }
+
+    /**
+     * Gets a header.
+     *
+     * @param key the key
+     * @return the value, or null when the header is not present
+     */
+    public byte[] get(final int key) {
+        return values[key];
+    }
+
+    /**
+     * Gets a header as a UTF-8 string.
+     *
+     * @param key the key
+     * @return the value, or null when the header is not present
+     */
+    public String getString(final int key) {
+        final byte[] value = values[key];
+
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets a header as an int.
+     *
+     * @param key the key
+     * @return the value
+     * @throws ProtocolException If the header is not present or is not 4 bytes long.
+     */
+    public int getInt(final int key) throws ProtocolException {
+        final byte[] value = values[key];
+        if (value == null || value.length != Integer.BYTES) {
+            throw new ProtocolException("Missing or malformed header " + key);
+        }
+
+        return ByteBuffer.wrap(value).getInt();
+    }
+
+    /**
+     * Gets a header as a long.
+     *
+     * @param key the key
+     * @return the value
+     * @throws ProtocolException If the header is not present or is not 8 bytes long.
+     */
+    public long getLong(final int key) throws ProtocolException {
+        final byte[] value = values[key];
+        if (value == null || value.length != Long.BYTES) {
+            throw new ProtocolException("Missing or malformed header " + key);
+        }
+
+        return ByteBuffer.wrap(value).getLong();
+    }
+
+    /**
+     * Gets the number of bytes the headers take on the wire.
+     *
+     * @return the encoded length
+     */
+    int encodedLength() {
+        int length = 0;
+
+        for (int key = 0; key < MAX_KEYS; key++) {
+            if (values[key] != null) {
+                length += 1 + FrameCodec.varintSize(values[key].length) + values[key].length;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the headers.
+     *
+     * @param buffer the buffer
+     */
+    void writeTo(final ByteBuffer buffer) {
+        for (int key = 0; key < MAX_KEYS; key++) {
+            if (values[key] != null) {
+                buffer.put((byte) key);
+                FrameCodec.writeVarint(buffer, values[key].length);
+                buffer.put(values[key]);
+            }
+        }
+    }
+
+    /**
+     * Reads the headers from their encoded block.
+     *
+     * @param block the block
+     * @return the headers
+     * @throws ProtocolException If the block is malformed.
+     */
+    static Headers read(final ByteBuffer block) throws ProtocolException {
+        final Headers headers = new Headers();
+
+        while (block.hasRemaining()) {
+            final int key = block.get() & 0xFF;
+            final long length = FrameCodec.readVarint(block);
+
+            if (key >= MAX_KEYS || length < 0 || length > block.remaining()) {
+                throw new ProtocolException("Malformed header " + key);
+            }
+
+            final byte[] value = new byte[(int) length];
+            block.get(value);
+            headers.put(key, value);
+        }
+        return headers;
+    }
+
+}
@@ -0,0 +1,104 @@
+package chatapp_combined.protocol;
+
+import java.nio.ByteBuffer;
+
+import static chatapp_combined.Utility.ConfigUtils.getLong;
+
+/**
+ * The type Heartbeat.
+ * Notices a peer that has gone away without closing its connection. A side that hears nothing from its peer for an
+ * interval sends a {@link Opcode#PING}, which the peer answers with a {@link Opcode#PONG}. A peer that has sent
+ * nothing at all, not even the answer, for the whole timeout is taken as dead and its connection is closed.
+ * <p>
+ * Every side that supports it says so in its hello, a peer is only pinged once both did. The interval is set with
+ * -Dchatapp.heartbeat.intervalMillis (default 15000, 0 turns the heartbeats off) and the timeout with
+ * -Dchatapp.heartbeat.timeoutMillis (default 45000, at least two intervals). The deadlines are kept in a
+ * {@link chatapp_combined.Utility.TimingWheel} with ticks of a sixteenth of the interval.
+ * <p>
+ * An instance watches one connection. Activity is recorded by the thread that reads the connection, the checks
+ * run on the thread of the wheel.
+ *
+ * @author Dimitar Kolev
+ */
+public final class Heartbeat {
+
+    /**
+     * The time without activity after which a peer is pinged.
+     */
+    public static final long INTERVAL_MILLIS = Math.max(0, getLong("heartbeat.intervalMillis", 15_000));
+    /**
+     * The time without activity after which a peer is taken as dead.
+     */
+    public static final long TIMEOUT_MILLIS = Math.max(2 * INTERVAL_MILLIS, getLong("heartbeat.timeoutMillis", 45_000));
+    /**
+     * The length of a tick of the wheels that keep the deadlines.
+     */
+    public static final long TICK_MILLIS = Math.max(10, INTERVAL_MILLIS / 16);
+
+    private static final byte[] PING = FrameCodec.encode(Opcode.PING, new Headers(), new byte[0]);
+    private static final byte[] PONG = FrameCodec.encode(Opcode.PONG, new Headers(), new byte[0]);
+
+
+    private volatile long lastActivityMillis = System.currentTimeMillis();
+    private long pingedAtMillis;   // The activity the last ping was sent after
+
+
+    /**
+     * Tells whether this side takes part in the heartbeats.
+     *
+     * @return true if an interval is set
+     */
+    public static boolean isEnabled() {
+        return INTERVAL_MILLIS > 0;
+    }
+
+    /**
+     * Encodes a {@link Opcode#PING} frame.
+     *
+     * @return the frame
+     */
+    public static ByteBuffer ping() {
+        return ByteBuffer.wrap(PING);
+    }
+
+    /**
+     * Encodes a {@link Opcode#PONG} frame.
+     *
+     * @return the frame
+     */
+    public static ByteBuffer pong() {
+        return ByteBuffer.wrap(PONG);
+    }
+
+    /**
+     * Records that something was received from the peer.
+     */
+    public void onActivity() {
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks the peer, pinging it once if it has been quiet for an interval.
+     *
+     * @param ping sends a ping to the peer
+     * @return the time until the next check, or -1 if the peer is taken as dead
+     */
+    public long check(final Runnable ping) {
+        final long lastActivity = lastActivityMillis;
+        final long idle = System.currentTimeMillis() - lastActivity;
+
+        if (idle >= TIMEOUT_MILLIS) {
+            return -1;
+        }
+        if (idle < INTERVAL_MILLIS) {
+            return INTERVAL_MILLIS - idle;
+        }
+
+        if (pingedAtMillis != lastActivity) {
+            pingedAtMillis = lastActivity;
+            ping.run();
+        }
+        return Math.min(INTERVAL_MILLIS, TIMEOUT_MILLIS - idle);
+    }
+
+}
@@ -0,0 +1,144 @@
+package chatapp_combined.protocol;
+
+/**
+ * The enum Opcode.
+ * The one-byte operation code of a version 2 frame. On the wire the code is sent with its highest bit set,
+ * which is what tells a version 2 frame apart from a version 1 frame (those start with a 4-byte length).
+ *
+ * @author Dimitar Kolev
+ */
+public enum Opcode {
+
+    /**
+     * A chat message, the payload is the UTF-8 text.
+     */
+    MESSAGE(1),
+    /**
+     * The start of a file, the payload is the content of the file.
+     */
+    FILE(2),
+    /**
+     * The end of a file, the payload is the checksum of the content. With a {@link Headers#TRANSFER_ID} header
+     * it closes a multiplexed transfer, an empty checksum means the transfer was aborted.
+     */
+    FILE_END(3),
+    /**
+     * The name of the sender of the following frames, the payload is the UTF-8 name.
+     */
+    NAME(4),
+    /**
+     * The start of a multiplexed file, the headers carry the transfer id, the name and the length, no payload.
+     */
+    FILE_START(5),
+    /**
+     * A piece of a multiplexed file, the payload is the next part of the content of the transfer in the header.
+     * Chunks of several transfers and chat frames may be interleaved on one connection. The chunks of a resumable
+     * transfer also carry their {@link Headers#CHUNK_OFFSET} and {@link Headers#CHECKSUM}.
+     */
+    FILE_CHUNK(6),
+    /**
+     * The offer of a resumable file, the headers carry the transfer id, the name, the length and the version of the
+     * file, no payload. The sender waits for a {@link #FILE_ACCEPT} before it sends any chunk.
+     */
+    FILE_OFFER(7),
+    /**
+     * The answer to an offer, the {@link Headers#CHUNK_OFFSET} header is where the sender resumes the file.
+     */
+    FILE_ACCEPT(8),
+    /**
+     * A chunk of a resumable transfer failed its checksum, the chunk at {@link Headers#CHUNK_OFFSET} is sent again.
+     */
+    FILE_NACK(9),
+    /**
+     * Every chunk of a resumable transfer has been received and verified, the sender closes it with a {@link #FILE_END}.
+     */
+    FILE_ACK(10),
+    /**
+     * A run of chat messages written at once, the payload is their {@link #MESSAGE} frames deflated together.
+     * Only sent to a peer that can inflate it, see {@link Compression}. The messages a server stored for a user
+     * while the user was offline come as batches too, not deflated and with a {@link Headers#BACKLOG_OFFSET} header.
+     */
+    BATCH(11),
+    /**
+     * Acknowledges a batch of stored messages, the {@link Headers#BACKLOG_OFFSET} header is the one of the batch.
+     * The server forgets the messages up to it, no payload.
+     */
+    BACKLOG_ACK(12),
+    /**
+     * Joins a room on the server, the payload is the UTF-8 name of the room. The messages that start with
+     * "#room" go to all the members of the room.
+     */
+    ROOM_JOIN(13),
+    /**
+     * Leaves a room on the server, the payload is the UTF-8 name of the room.
+     */
+    ROOM_LEAVE(14),
+    /**
+     * Asks the server for an attachment of its store, the payload is the SHA-256 of the attachment in hex. The server
+     * sends it as a multiplexed transfer closed with the same SHA-256.
+     */
+    ATTACHMENT_GET(15),
+    /**
+     * Allows the other side to send more file content, the {@link Headers#CREDIT} header is the number of bytes,
+     * no payload. Only sent to a peer that has agreed to {@link FlowControl}.
+     */
+    CREDIT(16),
+    /**
+     * Asks the other side whether it is still there, answered with a {@link #PONG}. No headers, no payload.
+     * Only sent to a peer that has agreed to the {@link Heartbeat}.
+     */
+    PING(17),
+    /**
+     * The answer to a {@link #PING}. No headers, no payload.
+     */
+    PONG(18),
+    /**
+     * Resumes a {@link Session} on a new connection, the headers carry the id of the session and the numbers of
+     * the last message received and of the first message that follows, no payload. Only sent to a peer that has
+     * agreed to sessions.
+     */
+    RESUME(19),
+    /**
+     * Acknowledges the messages of a {@link Session}, the {@link Headers#SEQUENCE} header is the number of the
+     * last one received, no payload.
+     */
+    ACK(20);
+
+
+    private static final Opcode[] BY_CODE = new Opcode[128];
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+        }
+    }
+
+
+    private final int code;
+
+
+    Opcode(final int code) {
+        this.code = code;
+    }
+
+
+    /**
+     * Gets the code of the operation, without the version bit.
+     *
+     * @return the code
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Finds the operation of a code.
+     *
+     * @param code the code, without the version bit
+     * @return the operation, or null if the code is unknown
+     */
+    public static Opcode fromCode(final int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+
+}
@@ -0,0 +1,270 @@
+package chatapp_combined.protocol;
+
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.MetricsRegistry;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static chatapp_combined.Utility.ConfigUtils.getBoolean;
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+
+/**
+ * The type Session.
+ * Keeps the chat messages between a client and a server whole across reconnects. Every {@link Opcode#MESSAGE}
+ * frame a side sends after a {@link Opcode#RESUME} has the next sequence number, counted the same way on both ends
+ * like the records of TLS, so a frame that is encoded once for many receivers needs no header of its own. The
+ * receiver acknowledges what it has received with an {@link Opcode#ACK} carrying the number of the last frame,
+ * and the sender keeps every frame until it is acknowledged. A number beyond the last frame sent means the two ends
+ * counted different frames, the connection fails instead of dropping messages as duplicates.
+ * <p>
+ * After a reconnect both sides send a {@link Opcode#RESUME} with the id of the session, the number of the last
+ * frame they received and the number of the first frame that follows, then send again every frame that was not
+ * acknowledged. A frame whose number is not above the last one received is a duplicate and dropped, so each
+ * message is shown once. A server that no longer has the session answers with a new id, and both sides number
+ * the frames of the other one from the start again.
+ * <p>
+ * Every side that supports it says so in its hello with "resume", -Dchatapp.session.resume=false turns it off.
+ * A receiver acknowledges once it has nothing more to read, or after -Dchatapp.session.ackEvery frames
+ * (default 32). A sender keeps at most -Dchatapp.session.maxUnacked frames (default 4096) for a connected peer.
+ * <p>
+ * An instance is shared by the threads that send and receive on the connections of one session.
+ *
+ * @author Dimitar Kolev
+ */
+public final class Session {
+
+    /**
+     * The most frames kept for a connected peer that does not acknowledge them.
+     */
+    public static final int MAX_UNACKED = Math.max(1, getInt("session.maxUnacked", 4096));
+
+    private static final boolean ENABLED = getBoolean("session.resume", true);
+    private static final int ACK_EVERY = Math.max(1, getInt("session.ackEvery", 32));
+
+    private static final Counter DUPLICATES = MetricsRegistry.counter("session.duplicates");
+    private static final Counter RETRANSMITTED = MetricsRegistry.counter("session.retransmitted");
+
+
+    private long id;
+    private final ArrayDeque<ByteBuffer> unacked = new ArrayDeque<>();
+    private long sent;          // The number of the last frame sent
+    private long received;      // The number of the last frame received, in the numbering of the other side
+    private long incoming;      // The number of the frame being received, ahead of the last one for duplicates
+    private long acknowledged;  // The number the other side was last told
+    private boolean attached;   // Whether frames go out right away, or wait for the next connection
+    private boolean receiving;  // Whether the frames received are numbered, once the other side resumed
+    private long epoch;         // Counts the connections the session was attached to
+
+
+    /**
+     * Instantiates a new Session.
+     *
+     * @param id the id, 0 until the server has given one
+     */
+    public Session(final long id) {
+        this.id = id;
+    }
+
+
+    /**
+     * Tells whether this side resumes sessions.
+     *
+     * @return true if it does
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Creates the id of a new session.
+     *
+     * @return the id, never 0
+     */
+    public static long newId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Gets the id of the session.
+     *
+     * @return the id
+     */
+    public synchronized long getId() {
+        return id;
+    }
+
+    /**
+     * Keeps a frame until it is acknowledged and gives it the next number.
+     *
+     * @param frame the frame, not modified
+     * @return true if the frame is to be sent now, false if it is sent when the session is resumed
+     */
+    public synchronized boolean retain(final ByteBuffer frame) {
+        unacked.add(frame.duplicate());
+        sent++;
+        return attached;
+    }
+
+    /**
+     * Gets the number of frames waiting for their acknowledgement.
+     *
+     * @return the number of frames
+     */
+    public synchronized int unackedCount() {
+        return unacked.size();
+    }
+
+    /**
+     * Forgets the frames the other side has received.
+     *
+     * @param upTo the number of the last frame received
+     * @throws ProtocolException If the other side received more frames than were sent.
+     */
+    public synchronized void acknowledge(final long upTo) throws ProtocolException {
+        if (upTo > sent) {
+            throw new ProtocolException("Frame " + upTo + " acknowledged, only " + sent + " were sent");
+        }
+        while (!unacked.isEmpty() && firstUnacked() <= upTo) {
+            unacked.poll();
+        }
+    }
+
+    /**
+     * Attaches the session to a new connection.
+     *
+     * @return the {@link Opcode#RESUME} frame and the frames to send again, in the order they are sent
+     */
+    public synchronized List<ByteBuffer> attach() {
+        final Headers headers = new Headers()
+                .putLong(Headers.SESSION_ID, id)
+                .putLong(Headers.SEQUENCE, received)
+                .putLong(Headers.FIRST_SEQUENCE, firstUnacked());
+
+        final List<ByteBuffer> frames = new ArrayList<>(unacked.size() + 1);
+        frames.add(ByteBuffer.wrap(FrameCodec.encode(Opcode.RESUME, headers, new byte[0])));
+        for (ByteBuffer frame : unacked) {
+            frames.add(frame.duplicate());
+        }
+        RETRANSMITTED.add(unacked.size());
+
+        acknowledged = received;
+        attached = true;
+        epoch++;
+        return frames;
+    }
+
+    /**
+     * Detaches the session from its connection, which is gone. The frames sent from now on wait for the next one.
+     *
+     * @return the epoch of the connection, for {@link #isDetachedSince}
+     */
+    public synchronized long detach() {
+        attached = false;
+        receiving = false;
+        return epoch;
+    }
+
+    /**
+     * Tells whether the session has not been attached to a connection since it was detached.
+     *
+     * @param detachedEpoch what {@link #detach()} returned
+     * @return true if it has not
+     */
+    public synchronized boolean isDetachedSince(final long detachedEpoch) {
+        return !attached && epoch == detachedEpoch;
+    }
+
+    /**
+     * Tells whether the session is attached to a connection.
+     *
+     * @return true if it is
+     */
+    public synchronized boolean isAttached() {
+        return attached;
+    }
+
+    /**
+     * Takes in the {@link Opcode#RESUME} of the other side, whose frames are numbered from then on.
+     *
+     * @param sessionId     the id the other side resumes, a different one starts the numbering over
+     * @param upTo          the number of the last frame the other side received
+     * @param firstSequence the number of the first frame that follows
+     * @throws ProtocolException If the other side received more frames than were sent.
+     */
+    public synchronized void onResume(final long sessionId, final long upTo, final long firstSequence)
+            throws ProtocolException {
+        if (sessionId != id) {
+            id = sessionId;
+            received = 0;
+            acknowledged = 0;
+        }
+        acknowledge(upTo);
+
+        incoming = firstSequence - 1;
+        receiving = true;
+    }
+
+    /**
+     * Numbers a received frame.
+     *
+     * @return false if the frame is a duplicate and is to be dropped
+     */
+    public synchronized boolean onReceived() {
+        if (!receiving) {
+            return true;
+        }
+
+        incoming++;
+        if (incoming <= received) {
+            DUPLICATES.increment();
+            return false;
+        }
+        received = incoming;
+        return true;
+    }
+
+    /**
+     * Takes the acknowledgement of the frames received since the last one.
+     *
+     * @param idle whether nothing more is waiting to be read
+     * @return the {@link Opcode#ACK} frame, or null if none is due
+     */
+    public synchronized ByteBuffer takeAck(final boolean idle) {
+        if (!attached || received <= acknowledged || (!idle && received - acknowledged < ACK_EVERY)) {
+            return null;
+        }
+
+        acknowledged = received;
+        return ByteBuffer.wrap(FrameCodec.encode(Opcode.ACK, new Headers().putLong(Headers.SEQUENCE, received),
+                new byte[0]));
+    }
+
+    /**
+     * Reads the number an {@link Opcode#ACK} or a {@link Opcode#RESUME} frame acknowledges.
+     *
+     * @param header the header of the frame
+     * @return the number of the last frame received
+     * @throws ProtocolException If the frame is malformed.
+     */
+    public static long readSequence(final FrameHeader header) throws ProtocolException {
+        final long sequence = header.headers().getLong(Headers.SEQUENCE);
+        if (sequence < 0 || header.payloadLength() != 0) {
+            throw new ProtocolException("Malformed " + header.opcode() + " frame");
+        }
+        return sequence;
+    }
+
+    private long firstUnacked() {
+        return sent - unacked.size() + 1;
+    }
+
+}
@@ -0,0 +1,287 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * The type Attachment store.
+ * The files users share through the server, each content kept once in a file named by its SHA-256, next to a
+ * ".name" file with the name it was first uploaded under. An upload is written to a temporary file and hashed
+ * as it arrives, it only gets its name once the hash matches the one the uploader announced. A content the store
+ * already has is not uploaded again. The files are never modified once stored, so any number of downloads read
+ * the same file and share its pages in the page cache.
+ *
+ * @author Dimitar Kolev
+ */
+final class AttachmentStore {
+
+    private static final String NAME_SUFFIX = ".name";
+    private static final String UPLOAD_SUFFIX = ".upload";
+    private static final int HASH_LENGTH = 32; // SHA-256
+
+    private static final Counter STORED = MetricsRegistry.counter("server.attachments.stored");
+    private static final Counter DEDUPLICATED = MetricsRegistry.counter("server.attachments.deduplicated");
+
+
+    /**
+     * A stored attachment opened for a download.
+     *
+     * @param name    the name it was uploaded under
+     * @param hash    the SHA-256 of the content
+     * @param channel the channel of the file, closed by the download
+     * @param length  the length of the file
+     */
+    record Attachment(String name, byte[] hash, FileChannel channel, long length) {
+    }
+
+
+    private final Path directory;
+
+
+    /**
+     * Instantiates a new Attachment store. Uploads that were cut off when the server stopped are deleted.
+     *
+     * @param directory the directory of the store
+     * @throws IOException If the directory cannot be created or read.
+     */
+    AttachmentStore(final Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                if (file.getFileName().toString().endsWith(UPLOAD_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Starts an upload. If the store already has the content, nothing has to be uploaded.
+     *
+     * @param fileName    the name of the file
+     * @param fileLength  the length of the file
+     * @param address     who the attachment is shared with
+     * @param contentHash the SHA-256 the uploader announced
+     * @return the upload
+     * @throws IOException If the hash is invalid or the temporary file cannot be created.
+     */
+    Upload begin(final String fileName, final long fileLength, final String address, final byte[] contentHash)
+            throws IOException {
+        if (contentHash == null || contentHash.length != HASH_LENGTH) {
+            throw new IOException("Invalid attachment hash");
+        }
+
+        final Path file = directory.resolve(HexFormat.of().formatHex(contentHash));
+        if (Files.exists(file) && Files.size(file) == fileLength) {
+            DEDUPLICATED.increment();
+            return new Upload(fileName, fileLength, address, contentHash, null, null, file);
+        }
+
+        final Path temporaryFile = directory.resolve(UUID.randomUUID() + UPLOAD_SUFFIX);
+        return new Upload(fileName, fileLength, address, contentHash, temporaryFile,
+                FileChannel.open(temporaryFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), file);
+    }
+
+    /**
+     * Opens a stored attachment.
+     *
+     * @param hash the SHA-256 of the content in hex
+     * @return the attachment, or null if the store does not have it
+     * @throws IOException If the file cannot be opened.
+     */
+    Attachment open(final String hash) throws IOException {
+        final byte[] hashBytes;
+        try {
+            hashBytes = HexFormat.of().parseHex(hash);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (hashBytes.length != HASH_LENGTH) {
+            return null;
+        }
+
+        // Parsed and formatted again, so the name never points anywhere else
+        final Path file = directory.resolve(HexFormat.of().formatHex(hashBytes));
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        final Path nameFile = directory.resolve(file.getFileName() + NAME_SUFFIX);
+        final String name = Files.exists(nameFile) ? Files.readString(nameFile, StandardCharsets.UTF_8) : hash;
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        return new Attachment(name, hashBytes, channel, channel.size());
+    }
+
+
+    /**
+     * A file being uploaded to the store. Its chunks arrive in order, the content is hashed as it is written.
+     */
+    static final class Upload {
+
+        private final String fileName;
+        private final long fileLength;
+        private final String address;
+        private final byte[] contentHash;
+        private final Path temporaryFile;   // Null when the store already has the content
+        private final FileChannel channel;
+        private final Path file;
+        private final MessageDigest digest;
+        private long position;
+        private long chunkEnd;
+
+        private Upload(final String fileName, final long fileLength, final String address, final byte[] contentHash,
+                       final Path temporaryFile, final FileChannel channel, final Path file) {
+            this.fileName = fileName;
+            this.fileLength = fileLength;
+            this.address = address;
+            this.contentHash = contentHash;
+            this.temporaryFile = temporaryFile;
+            this.channel = channel;
+            this.file = file;
+            this.position = channel == null ? fileLength : 0;
+            this.chunkEnd = position;
+
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Gets where the uploader starts, the length of the file if the store already has it.
+         *
+         * @return the offset
+         */
+        long getPosition() {
+            return position;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        long getFileLength() {
+            return fileLength;
+        }
+
+        String getAddress() {
+            return address;
+        }
+
+        /**
+         * Gets the SHA-256 of the content in hex, the key of the attachment.
+         *
+         * @return the hash
+         */
+        String getHash() {
+            return HexFormat.of().formatHex(contentHash);
+        }
+
+        /**
+         * Tells whether the whole file has arrived.
+         *
+         * @return true if it has
+         */
+        boolean isComplete() {
+            return position == fileLength;
+        }
+
+        /**
+         * Starts a chunk, its data follows in {@link #write} calls.
+         *
+         * @param offset      the offset of the chunk
+         * @param chunkLength the length of the chunk
+         * @throws IOException If the chunk is not the next one.
+         */
+        void startChunk(final long offset, final long chunkLength) throws IOException {
+            if (offset != position || position != chunkEnd || chunkLength > fileLength - position) {
+                throw new IOException("Unexpected chunk at " + offset + " of the attachment " + fileName);
+            }
+            chunkEnd = position + chunkLength;
+        }
+
+        /**
+         * Writes a slice of the current chunk.
+         *
+         * @param data the slice, only valid during the call
+         * @throws IOException If the file cannot be written or the slice is past the end of the chunk.
+         */
+        void write(final ByteBuffer data) throws IOException {
+            if (data.remaining() > chunkEnd - position) {
+                throw new IOException("Chunk past its announced length in the attachment " + fileName);
+            }
+
+            digest.update(data.duplicate());
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+        }
+
+        /**
+         * Stores the file if its content matches the hash of the uploader and the checksum it closed the file with.
+         *
+         * @param fileHash the SHA-256 the uploader closed the file with
+         * @return false if the content did not match, nothing is stored
+         * @throws IOException If the file cannot be stored.
+         */
+        boolean finish(final byte[] fileHash) throws IOException {
+            if (channel == null) {
+                return Arrays.equals(fileHash, contentHash);
+            }
+
+            channel.force(false);
+            channel.close();
+            if (!isComplete() || !Arrays.equals(fileHash, contentHash) || !Arrays.equals(digest.digest(), contentHash)) {
+                Files.deleteIfExists(temporaryFile);
+                return false;
+            }
+
+            try {
+                Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+                Files.writeString(file.resolveSibling(file.getFileName() + NAME_SUFFIX), fileName, StandardCharsets.UTF_8);
+                STORED.increment();
+            } catch (FileAlreadyExistsException e) {
+                // The same content was uploaded by someone else at the same time
+                Files.deleteIfExists(temporaryFile);
+            }
+            return true;
+        }
+
+        /**
+         * Drops an upload that did not complete.
+         */
+        void abort() {
+            if (channel == null) {
+                return;
+            }
+
+            try {
+                channel.close();
+                Files.deleteIfExists(temporaryFile);
+            } catch (IOException e) {
+                // Deleted when the store is opened the next time
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,98 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.Handshake;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+
+/**
+ * The type Backlog.
+ * Delivers the messages stored in the {@link Mailbox} of a user while the user was offline, in batches of
+ * -Dchatapp.server.backlogBatchBytes (default 256 KB). A version 2 client acknowledges every batch and at most
+ * -Dchatapp.server.backlogWindow batches (default 4) wait for their acknowledgement, a batch that was not
+ * acknowledged when the connection closes is delivered again at the next login. A version 1 client cannot
+ * acknowledge, its batches count as delivered once they are queued.
+ * <p>
+ * Only the loop of the connection of the user uses an instance.
+ *
+ * @author Dimitar Kolev
+ */
+final class Backlog {
+
+    private static final int BATCH_BYTES = getInt("server.backlogBatchBytes", 256 * 1024);
+    private static final int WINDOW = Math.max(1, getInt("server.backlogWindow", 4));
+
+    private static final Counter MESSAGES_DELIVERED = MetricsRegistry.counter("server.mailbox.delivered");
+
+
+    private final Mailbox mailbox;
+    private long offset;            // The end of the last batch sent
+    private int batchesInFlight;    // The batches sent and not acknowledged yet
+
+
+    /**
+     * Instantiates a new Backlog, from the first message not delivered yet.
+     *
+     * @param mailbox the mailbox of the user
+     * @throws IOException If the mailbox cannot be compacted.
+     */
+    Backlog(final Mailbox mailbox) throws IOException {
+        this.mailbox = mailbox;
+        mailbox.compact();
+        this.offset = mailbox.getDeliveredOffset();
+    }
+
+
+    /**
+     * Sends the next batches, as long as the window allows.
+     *
+     * @param version the protocol version of the client
+     * @param sender  takes the frames of the batches
+     * @throws IOException If the mailbox cannot be read.
+     */
+    void sendNext(final int version, final Consumer<ByteBuffer> sender) throws IOException {
+        Mailbox.Batch batch;
+        while (batchesInFlight < WINDOW && (batch = mailbox.read(offset, BATCH_BYTES)) != null) {
+            sender.accept(FrameEncoder.backlog(batch, version));
+            offset = batch.endOffset();
+            MESSAGES_DELIVERED.add(batch.messages().size());
+
+            if (version >= Handshake.VERSION_2) {
+                batchesInFlight++;
+            } else {
+                mailbox.acknowledge(offset);
+            }
+        }
+    }
+
+    /**
+     * Takes in the acknowledgement of a batch.
+     *
+     * @param batchEnd the end of the batch
+     * @throws IOException If no batch waits for it, or the mailbox cannot be written.
+     */
+    void acknowledge(final long batchEnd) throws IOException {
+        if (batchesInFlight == 0 || batchEnd > offset) {
+            throw new ProtocolException("Unexpected backlog acknowledgement");
+        }
+
+        mailbox.acknowledge(batchEnd);
+        batchesInFlight--;
+    }
+
+    /**
+     * Compacts the mailbox once the connection is gone, what was not acknowledged is delivered at the next login.
+     *
+     * @throws IOException If the mailbox cannot be compacted.
+     */
+    void close() throws IOException {
+        mailbox.compact();
+    }
+
+}
@@ -0,0 +1,197 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.metrics.Gauge;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.FlowControl;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static chatapp_combined.Utility.ConfigUtils.getLong;
+
+/**
+ * The type Backpressure.
+ * Keeps the memory of one connection bounded however fast the others send to it. With a client that takes part in
+ * the {@link FlowControl flow control}, the files sent to it count against the credit it grants. The content of the
+ * files the client uploads is given back to it as credit once it is relayed, but only while none of the receivers
+ * is congested: its queue holds more than -Dchatapp.server.queueHighBytes (default 1 MB) or it has no credit left.
+ * A client that does not take part in it is not read from while a receiver is congested. A frame that would make
+ * the queue grow beyond -Dchatapp.server.queueMaxBytes (default 32 MB, never less than the high mark and a window)
+ * does not fit, and the connection is closed as a slow consumer.
+ * <p>
+ * Only the loop of the connection uses an instance, the loops that relay files to the connection only ask whether
+ * it is congested.
+ *
+ * @author Dimitar Kolev
+ */
+final class Backpressure {
+
+    private static final long QUEUE_HIGH_BYTES = getLong("server.queueHighBytes", 1 << 20);
+    // A window of credit may arrive after the high mark, so the limit is never below both
+    private static final long QUEUE_MAX_BYTES = Math.max(QUEUE_HIGH_BYTES + FlowControl.WINDOW,
+            getLong("server.queueMaxBytes", 32 << 20));
+
+    private static final Gauge QUEUED_BYTES = MetricsRegistry.gauge("server.outbound.queued.bytes");
+
+
+    // The flow control, null when the client does not take part in it
+    private FlowControl flowControl;    // The content of the uploads of the client, given back to it as credit
+    private long credit;                // What the client can still take of the files sent to it
+    private long queuedBytes;           // The bytes waiting in the outbound queue and the held frames
+    private boolean readPaused;         // Whether reading waits for the receivers of an upload
+    // Written on the loop of the connection, read by the loops that relay files to it
+    private volatile boolean congested;
+
+
+    /**
+     * Starts the flow control with a client that takes part in it.
+     *
+     * @return the {@link chatapp_combined.protocol.Opcode#CREDIT} frame that grants the client its first window
+     */
+    ByteBuffer enableFlowControl() {
+        flowControl = new FlowControl();
+        return FlowControl.encode(FlowControl.WINDOW);
+    }
+
+    /**
+     * Tells whether the client takes part in the flow control.
+     *
+     * @return true if it does
+     */
+    boolean hasFlowControl() {
+        return flowControl != null;
+    }
+
+    /**
+     * Tells whether a chunk of a file can be started for the client.
+     *
+     * @return true if the client has credit left, or does not take part in the flow control
+     */
+    boolean hasCredit() {
+        return flowControl == null || credit > 0;
+    }
+
+    /**
+     * Takes in the credit the client grants.
+     *
+     * @param granted the number of bytes granted
+     * @throws ProtocolException If the client does not take part in the flow control.
+     */
+    void onCredit(final long granted) throws ProtocolException {
+        if (flowControl == null) {
+            throw new ProtocolException("Unexpected credit");
+        }
+        credit += granted;
+    }
+
+    /**
+     * Counts file content sent to the client against its credit.
+     *
+     * @param content the number of bytes of file content
+     */
+    void spend(final long content) {
+        credit -= content;
+    }
+
+    /**
+     * Counts the content of a chunk the client uploaded, given back to it as credit once it is relayed.
+     *
+     * @param length the number of bytes of content
+     */
+    void consume(final long length) {
+        if (flowControl != null) {
+            flowControl.consume(length);
+        }
+    }
+
+    /**
+     * Takes the credit to give back to the client for its uploads.
+     *
+     * @param held whether a receiver of the uploads is congested
+     * @return the number of bytes to grant, 0 for none
+     */
+    long takeCredit(final boolean held) {
+        return held ? 0 : flowControl.takeCredit();
+    }
+
+    /**
+     * Stops or starts reading from a client without flow control, as the receivers of its uploads need.
+     *
+     * @param held whether a receiver of the uploads is congested
+     * @return true if reading was paused or resumed
+     */
+    boolean pauseReading(final boolean held) {
+        if (held == readPaused) {
+            return false;
+        }
+        readPaused = held;
+        return true;
+    }
+
+    /**
+     * Tells whether reading waits for the receivers of an upload.
+     *
+     * @return true if it does
+     */
+    boolean isReadPaused() {
+        return readPaused;
+    }
+
+    /**
+     * Counts a frame into the queue of the connection.
+     *
+     * @param bytes the size of the frame
+     * @return false if the frame does not fit, the connection is a slow consumer
+     */
+    boolean admit(final long bytes) {
+        if (queuedBytes + bytes > QUEUE_MAX_BYTES) {
+            return false;
+        }
+        queuedBytes += bytes;
+        QUEUED_BYTES.add(bytes);
+        return true;
+    }
+
+    /**
+     * Counts what was written out of the queue.
+     *
+     * @param bytes the number of bytes written
+     */
+    void written(final long bytes) {
+        queuedBytes -= bytes;
+        QUEUED_BYTES.add(-bytes);
+    }
+
+    /**
+     * Forgets the queue of a connection that is gone.
+     */
+    void clear() {
+        QUEUED_BYTES.add(-queuedBytes);
+        queuedBytes = 0;
+    }
+
+    /**
+     * Tells whether the relays to the connection have to wait. Safe to call from any thread.
+     *
+     * @return true if they do
+     */
+    boolean isCongested() {
+        return congested;
+    }
+
+    /**
+     * Works out again whether the relays to the connection have to wait.
+     *
+     * @param closed whether the connection is closed, nothing waits for it then
+     * @return true if they no longer have to, and can go on
+     */
+    boolean updateCongestion(final boolean closed) {
+        final boolean nowCongested = !closed && (queuedBytes > QUEUE_HIGH_BYTES || !hasCredit());
+        if (nowCongested == congested) {
+            return false;
+        }
+        congested = nowCongested;
+        return !nowCongested;
+    }
+
+}
@@ -0,0 +1,576 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.Utility.ConsoleRenderer;
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.Gauge;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.Session;
+import chatapp_combined.streamsCommand.TlsChannel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static chatapp_combined.Utility.CommonUtils.ANSI_CYAN;
+import static chatapp_combined.Utility.CommonUtils.ANSI_PURPLE;
+import static chatapp_combined.Utility.CommonUtils.ANSI_RESET;
+import static chatapp_combined.Utility.CommonUtils.getTimeString;
+import static chatapp_combined.Utility.ConfigUtils.getBoolean;
+import static chatapp_combined.Utility.ConfigUtils.getLong;
+import static chatapp_combined.Utility.ConfigUtils.getString;
+
+/**
+ * The type Chat server.
+ * Multi-user server built on a small pool of selector loops. One thread accepts the connections and
+ * hands them to the loops in turn, the loops decode the frames and route them between the users.
+ * A message starting with "@name" goes only to that user, everything else goes to all the others.
+ * <p>
+ * Users join and leave rooms by name, a room exists as long as it has members. A message starting with "#room"
+ * goes to the other members of the room, see {@link Room}. Only members can send to a room and the messages
+ * of a room are not stored for offline users.
+ * <p>
+ * Every user that logged in with a name once gets a mailbox under -Dchatapp.server.mailboxDir (default mailboxes).
+ * The messages for such a user that arrive while the user is offline are stored there, up to
+ * -Dchatapp.server.mailboxMaxBytes bytes (default 64 MB), and delivered when the user logs in again.
+ * -Dchatapp.server.mailboxFsync=true writes every stored message through to the disk, and
+ * -Dchatapp.server.mailboxes=false stores nothing. Files are only relayed to the users that are online.
+ * <p>
+ * Attachments are kept once per content in the {@link AttachmentStore} under -Dchatapp.server.attachmentDir
+ * (default attachments). Sharing one posts a message with its hash to the users it is shared with, each of them
+ * downloads it from the store when they like, online or not when it was shared.
+ * <p>
+ * The {@link Session} of a user outlives its connection by -Dchatapp.server.sessionMillis (default 120000), a client
+ * that reconnects within that time gets the messages that were sent to it but not acknowledged. What is sent to
+ * the user while it is away is stored in its mailbox like for any offline user. A client that is back before its lost
+ * connection was noticed takes its name over by resuming the session, the old connection is closed.
+ * <p>
+ * With -Dchatapp.tls=true every connection is encrypted, with the key and the certificate from
+ * -Dchatapp.tls.keyStore, see {@link TlsChannel}.
+ *
+ * @author Dimitar Kolev
+ */
+public final class ChatServer {
+
+    private static final Logger LOGGER = Logger.getLogger(ChatServer.class.getName());
+
+    static final String SERVER_NAME = "server";
+    private static final byte DIRECT_MESSAGE_PREFIX = '@';
+    private static final byte ROOM_PREFIX = '#';
+    private static final int MAX_ROOM_NAME_LENGTH = 64;
+
+    private static final boolean MAILBOXES_ENABLED = getBoolean("server.mailboxes", true);
+    private static final Path MAILBOX_DIR = Path.of(getString("server.mailboxDir", "mailboxes"));
+    private static final long MAILBOX_MAX_BYTES = getLong("server.mailboxMaxBytes", 64 << 20);
+    private static final boolean MAILBOX_FSYNC = getBoolean("server.mailboxFsync", false);
+    private static final Path ATTACHMENT_DIR = Path.of(getString("server.attachmentDir", "attachments"));
+    private static final long SESSION_MILLIS = getLong("server.sessionMillis", 120_000);
+
+    private static final Counter MESSAGES_STORED = MetricsRegistry.counter("server.mailbox.stored");
+    private static final Counter MESSAGES_DROPPED = MetricsRegistry.counter("server.mailbox.dropped");
+    private static final Gauge ROOMS = MetricsRegistry.gauge("server.rooms");
+    // The copies of the room messages handed to the members
+    private static final Counter ROOM_DELIVERIES = MetricsRegistry.counter("server.room.deliveries");
+    private static final Counter SESSIONS_RESUMED = MetricsRegistry.counter("server.sessions.resumed");
+    private static final Counter SESSIONS_EXPIRED = MetricsRegistry.counter("server.sessions.expired");
+    private static final Counter SESSIONS_TAKEN_OVER = MetricsRegistry.counter("server.sessions.takenOver");
+
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final Map<String, Connection> users = new ConcurrentHashMap<>();
+    private final AtomicLong transferIds = new AtomicLong();
+    // The files being relayed, by the id the receivers know them by
+    private final Map<Long, Connection.Relay> relays = new ConcurrentHashMap<>();
+    // The mailboxes of all the users that ever logged in with a name, online or not
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    // The sessions by user, kept for a while after the connection is gone
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final AttachmentStore attachments;
+
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+
+
+    /**
+     * Instantiates a new Chat server.
+     *
+     * @param port      the port to listen on
+     * @param loopCount the number of selector loops
+     * @throws IOException If a selector, a mailbox or the attachment store cannot be opened.
+     */
+    public ChatServer(final int port, final int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+
+        if (MAILBOXES_ENABLED) {
+            Mailbox.openAll(MAILBOX_DIR, MAILBOX_MAX_BYTES, MAILBOX_FSYNC, mailboxes);
+        }
+        this.attachments = new AttachmentStore(ATTACHMENT_DIR);
+
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(this, "Server Loop Thread " + i);
+        }
+    }
+
+
+    /**
+     * Binds the port and starts accepting users.
+     *
+     * @throws IOException If the port cannot be bound or TLS is on without a usable key store.
+     */
+    public void start() throws IOException {
+        if (TlsChannel.isEnabled()) {
+            TlsChannel.serverContext();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        acceptThread = new Thread(this::acceptUsers, "Server Accept Thread");
+        acceptThread.start();
+
+        ConsoleRenderer.println(ANSI_CYAN + getTimeString() + "Server started on port " + port + ANSI_RESET);
+    }
+
+    /**
+     * Waits until the server is stopped.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    public void awaitTermination() throws InterruptedException {
+        acceptThread.join();
+    }
+
+    /**
+     * Stops accepting users and closes all the connections.
+     */
+    public void stop() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close the server channel.", e);
+        }
+
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private void acceptUsers() {
+        int next = 0;
+
+        while (serverChannel.isOpen()) {
+            try {
+                final SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to accept a connection.", e);
+            }
+        }
+    }
+
+    /**
+     * Registers the user under the given name.
+     *
+     * @param connection the connection of the user
+     * @param username   the username
+     * @return false if the name is already taken
+     */
+    boolean login(final Connection connection, final String username) {
+        if (username.isBlank() || SERVER_NAME.equals(username) || users.putIfAbsent(username, connection) != null) {
+            return false;
+        }
+
+        ConsoleRenderer.println(ANSI_CYAN + getTimeString() + username + " has joined the chat!" + ANSI_RESET);
+        broadcastNotice(connection, username + " has joined the chat!");
+        return true;
+    }
+
+    /**
+     * Removes the user of a closed connection.
+     *
+     * @param connection the connection
+     */
+    void logout(final Connection connection) {
+        final String username = connection.getUsername();
+
+        if (username != null && users.remove(username, connection)) {
+            ConsoleRenderer.println(ANSI_PURPLE + getTimeString() + username + " logged out!" + ANSI_RESET);
+            broadcastNotice(connection, username + " logged out!");
+        }
+    }
+
+    /**
+     * Resumes the session of a user on a new connection, or starts a new one.
+     *
+     * @param username  the username
+     * @param sessionId the id of the session the client had, 0 for none
+     * @return the session
+     */
+    Session resumeSession(final String username, final long sessionId) {
+        final Session existing = sessions.get(username);
+        if (existing != null && sessionId != 0 && existing.getId() == sessionId && !existing.isAttached()) {
+            SESSIONS_RESUMED.increment();
+            return existing;
+        }
+
+        final Session session = new Session(Session.newId());
+        sessions.put(username, session);
+        return session;
+    }
+
+    /**
+     * Tells whether a user has a session, attached to a connection or kept for its return.
+     *
+     * @param username the username
+     * @return true if it has
+     */
+    boolean hasSession(final String username) {
+        return sessions.containsKey(username);
+    }
+
+    /**
+     * Hands the name of a user over to a connection that resumes the session of the user, while the connection
+     * holding the name is gone without anyone having noticed. The old connection is closed on its loop first,
+     * so that it is done with the session before the new one attaches it.
+     *
+     * @param connection the connection that resumes the session
+     * @param username   the username
+     * @param sessionId  the id of the session the connection resumes
+     * @param then       runs on the loop of the connection once the old one is closed
+     * @return false if it is not the session of the user, the name then stays where it is
+     */
+    boolean takeOver(final Connection connection, final String username, final long sessionId, final Runnable then) {
+        final Session session = sessions.get(username);
+        if (sessionId == 0 || session == null || session.getId() != sessionId) {
+            return false;
+        }
+
+        final Connection stale = users.get(username);
+        if (stale == null ? users.putIfAbsent(username, connection) != null : !users.replace(username, stale, connection)) {
+            return false;
+        }
+        SESSIONS_TAKEN_OVER.increment();
+        ConsoleRenderer.println(ANSI_CYAN + getTimeString() + username + " has reconnected!" + ANSI_RESET);
+
+        if (stale == null) {
+            connection.getLoop().execute(then);
+            return true;
+        }
+        stale.getLoop().execute(() -> {
+            stale.close();
+            connection.getLoop().execute(then);
+        });
+        return true;
+    }
+
+    /**
+     * Keeps the session of a closed connection for a while, in case the user comes back.
+     *
+     * @param loop     the loop of the connection
+     * @param username the username
+     * @param session  the session
+     */
+    void detachSession(final EventLoop loop, final String username, final Session session) {
+        final long epoch = session.detach();
+
+        loop.schedule(() -> {
+            if (session.isDetachedSince(epoch) && sessions.remove(username, session)) {
+                SESSIONS_EXPIRED.increment();
+            }
+        }, SESSION_MILLIS);
+    }
+
+    /**
+     * Sends a message to the users it is addressed to.
+     *
+     * @param source the connection the message comes from
+     * @param text   the UTF-8 bytes of the message
+     */
+    void routeMessage(final Connection source, final byte[] text) {
+        if (text.length > 1 && text[0] == ROOM_PREFIX) {
+            routeToRoom(source, text);
+            return;
+        }
+
+        // Encoded once per version, every receiver gets its own view of the same bytes
+        final VersionedFrame frame = FrameEncoder.message(source.getUsername(), text);
+
+        for (Connection target : recipients(source, text)) {
+            target.send(null, false, false, frame.forVersion(target.getVersion()));
+        }
+
+        if (!mailboxes.isEmpty()) {
+            storeForOfflineUsers(source, text);
+        }
+    }
+
+    /**
+     * Adds a user to a room, opening the room if nobody is in it.
+     *
+     * @param connection the connection of the user
+     * @param name       the name of the room
+     * @return the room, or null if the name cannot be used
+     */
+    Room joinRoom(final Connection connection, final String name) {
+        if (name.isBlank() || name.length() > MAX_ROOM_NAME_LENGTH || name.chars().anyMatch(Character::isWhitespace)) {
+            return null;
+        }
+
+        while (true) {
+            final Room room = rooms.computeIfAbsent(name, key -> {
+                ROOMS.increment();
+                return new Room(key);
+            });
+            // A room whose last member just left is closed, the next attempt opens a new one
+            if (room.join(connection)) {
+                room.broadcast(connection, notice(connection.getUsername() + " has joined #" + name + "!"));
+                return room;
+            }
+        }
+    }
+
+    /**
+     * Removes a user from a room, the room is gone once its last member leaves.
+     *
+     * @param connection the connection of the user
+     * @param room       the room
+     */
+    void leaveRoom(final Connection connection, final Room room) {
+        if (room.leave(connection)) {
+            if (rooms.remove(room.getName(), room)) {
+                ROOMS.decrement();
+            }
+            return;
+        }
+        room.broadcast(null, notice(connection.getUsername() + " has left #" + room.getName() + "!"));
+    }
+
+    /**
+     * Gets the store of the attachments.
+     *
+     * @return the store
+     */
+    AttachmentStore getAttachments() {
+        return attachments;
+    }
+
+    /**
+     * Posts a stored attachment like a message of its uploader, to the users it is shared with.
+     *
+     * @param source the connection of the uploader
+     * @param upload the stored attachment
+     */
+    void shareAttachment(final Connection source, final AttachmentStore.Upload upload) {
+        final String address = upload.getAddress();
+        final String prefix = address.length() > 1 && (address.charAt(0) == ROOM_PREFIX ||
+                address.charAt(0) == DIRECT_MESSAGE_PREFIX) ? address + " " : "";
+
+        routeMessage(source, (prefix + "shared " + upload.getFileName() + " (" + upload.getFileLength() +
+                " bytes), download it with -g " + upload.getHash()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets the mailbox of a user who logged in with a name, creating it the first time.
+     *
+     * @param username the username
+     * @return the mailbox, or null if no messages are stored
+     * @throws IOException If the mailbox cannot be created.
+     */
+    Mailbox openMailbox(final String username) throws IOException {
+        if (!MAILBOXES_ENABLED) {
+            return null;
+        }
+
+        final Mailbox mailbox = mailboxes.get(username);
+        if (mailbox != null) {
+            return mailbox;
+        }
+
+        final Mailbox created = Mailbox.open(MAILBOX_DIR, username, MAILBOX_MAX_BYTES, MAILBOX_FSYNC);
+        mailboxes.put(username, created);
+        return created;
+    }
+
+    /**
+     * Finds the users a message or a file goes to.
+     *
+     * @param source the connection the frame comes from
+     * @param text   the UTF-8 bytes of the message, null for a file
+     * @return the receivers
+     */
+    List<Connection> recipients(final Connection source, final byte[] text) {
+        if (text != null && text.length > 1 && text[0] == DIRECT_MESSAGE_PREFIX) {
+            final String message = new String(text, 1, text.length - 1, StandardCharsets.UTF_8);
+            final Connection target = users.get(message.split(" ", 2)[0]);
+
+            return target == null || target == source ? List.of() : List.of(target);
+        }
+
+        final List<Connection> targets = new ArrayList<>(users.size());
+        for (Connection connection : users.values()) {
+            if (connection != source) {
+                targets.add(connection);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Gives a relayed file the id the version 2 receivers know it by. The ids are unique on the server,
+     * so the transfers of different senders never collide on a receiving connection.
+     *
+     * @return the transfer id
+     */
+    long nextTransferId() {
+        return transferIds.incrementAndGet();
+    }
+
+    /**
+     * Makes a relayed file reachable for the answers of its receivers.
+     *
+     * @param relay the relay
+     */
+    void registerRelay(final Connection.Relay relay) {
+        relays.put(relay.getTransferId(), relay);
+    }
+
+    /**
+     * Forgets a relayed file once it is complete or its sender is gone.
+     *
+     * @param relay the relay
+     */
+    void unregisterRelay(final Connection.Relay relay) {
+        relays.remove(relay.getTransferId());
+    }
+
+    /**
+     * Finds a relayed file.
+     *
+     * @param transferId the id the receivers know the file by
+     * @return the relay, or null if the file is no longer relayed
+     */
+    Connection.Relay getRelay(final long transferId) {
+        return relays.get(transferId);
+    }
+
+    /**
+     * Tells the senders of the files a closed connection was receiving not to wait for its answers.
+     *
+     * @param connection the closed connection
+     */
+    void dropReceiver(final Connection connection) {
+        for (Connection.Relay relay : relays.values()) {
+            relay.dropTarget(connection);
+        }
+    }
+
+    /**
+     * Lets the senders of the files a connection receives go on, once it takes more again.
+     *
+     * @param connection the connection that is no longer congested
+     */
+    void resumeSenders(final Connection connection) {
+        for (Connection.Relay relay : relays.values()) {
+            relay.resume(connection);
+        }
+    }
+
+    /**
+     * Encodes a message from the server itself.
+     *
+     * @param text the text
+     * @return the frames to send
+     */
+    VersionedFrame notice(final String text) {
+        return FrameEncoder.message(SERVER_NAME, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a message to the other members of the room it starts with.
+     */
+    private void routeToRoom(final Connection source, final byte[] text) {
+        final String name = new String(text, 1, text.length - 1, StandardCharsets.UTF_8).split(" ", 2)[0];
+        final Room room = source.getRoom(name);
+        if (room == null) {
+            source.send(null, false, false, notice("You are not in #" + name + ", join it with -j " + name + ".")
+                    .forVersion(source.getVersion()));
+            return;
+        }
+
+        ROOM_DELIVERIES.add(room.broadcast(source, FrameEncoder.message(source.getUsername(), text)));
+    }
+
+    /**
+     * Stores a message for the users it is addressed to that are offline but have a mailbox.
+     */
+    private void storeForOfflineUsers(final Connection source, final byte[] text) {
+        if (text.length > 1 && text[0] == DIRECT_MESSAGE_PREFIX) {
+            final String username = new String(text, 1, text.length - 1, StandardCharsets.UTF_8).split(" ", 2)[0];
+            if (!users.containsKey(username) && store(username, source.getUsername(), text)) {
+                source.send(null, false, false, notice(username + " is offline, the message is delivered when " +
+                        username + " logs in.").forVersion(source.getVersion()));
+            }
+            return;
+        }
+
+        for (String username : mailboxes.keySet()) {
+            if (!users.containsKey(username) && !username.equals(source.getUsername())) {
+                store(username, source.getUsername(), text);
+            }
+        }
+    }
+
+    private boolean store(final String username, final String sender, final byte[] text) {
+        final Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null) {
+            return false;
+        }
+
+        try {
+            if (!mailbox.append(sender, text)) {
+                MESSAGES_DROPPED.increment();
+                return false;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to store a message for " + username + ".", e);
+            return false;
+        }
+        MESSAGES_STORED.increment();
+
+        // The user may have logged in since it was found offline, and started reading the mailbox before this message
+        final Connection target = users.get(username);
+        if (target != null) {
+            target.resumeBacklog();
+        }
+        return true;
+    }
+
+    private void broadcastNotice(final Connection source, final String text) {
+        final VersionedFrame frame = notice(text);
+
+        for (Connection target : recipients(source, null)) {
+            target.send(null, false, false, frame.forVersion(target.getVersion()));
+        }
+    }
+
+}
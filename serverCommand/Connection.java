@@ -0,0 +1,1235 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.Utility.ChecksumAlgorithm;
+import chatapp_combined.Utility.TimingWheel;
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.Gauge;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.Compression;
+import chatapp_combined.protocol.FlowControl;
+import chatapp_combined.protocol.Handshake;
+import chatapp_combined.protocol.Heartbeat;
+import chatapp_combined.protocol.Opcode;
+import chatapp_combined.protocol.Session;
+import chatapp_combined.streamsCommand.CloseStream;
+import chatapp_combined.streamsCommand.Stream;
+import chatapp_combined.streamsCommand.TlsChannel;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+
+/**
+ * The type Connection.
+ * The state the server keeps for one connected user: the frame decoder, the outbound queue and the
+ * files that are currently relayed through it. All the methods except {@link #send} run on the thread
+ * of the owning {@link EventLoop}. A version 2 receiver gets every file as a multiplexed transfer, so its
+ * chat frames go on while files arrive. A version 1 receiver gets one file at a time and anything else
+ * waits until the file is complete. For a resumable file the server answers the sender on behalf of all
+ * the receivers: it resumes where the receiver with the least of the file stopped, and is complete once
+ * every receiver has verified every chunk. A version 1 receiver can only check an MD5, so the server computes one
+ * over what it relays to it when the sender closes the file with another checksum.
+ * <p>
+ * At login the connection starts the {@link Backlog} of the user, and it writes the chunks of its {@link Downloads}
+ * when no other frame waits. What it queues and reads is held back by its {@link Backpressure}. It pings a client
+ * that answers pings, and numbers the chat messages of a client that keeps a {@link Session}.
+ *
+ * @author Dimitar Kolev
+ */
+final class Connection implements FrameDecoder.Listener {
+
+    private static final Logger LOGGER = Logger.getLogger(Connection.class.getName());
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // The same limits as the writer of the clients, see OutboundQueue
+    private static final int MAX_BATCH_BYTES = getInt("write.maxBatchBytes", 64 * 1024);
+    private static final int MAX_BATCH_FRAMES = getInt("write.maxBatchFrames", 64);
+
+    private static final Gauge CONNECTIONS = MetricsRegistry.gauge("server.connections");
+    // The buffers waiting in the outbound queues of all the connections
+    private static final Gauge QUEUED_BUFFERS = MetricsRegistry.gauge("server.outbound.queued.buffers");
+    private static final Counter SLOW_CONSUMERS = MetricsRegistry.counter("server.slowConsumers.disconnected");
+    private static final Counter REAPED = MetricsRegistry.counter("server.connections.reaped");
+    private static final Counter BYTES_READ = MetricsRegistry.counter("server.bytes.read");
+    private static final Counter BYTES_WRITTEN = MetricsRegistry.counter("server.bytes.written");
+
+
+    /**
+     * A frame for this connection. The owner is the relayed file the frame belongs to, null for all the frames
+     * that do not have to stay together with a version 1 file. The content is the number of bytes of file content
+     * in chunks the frame carries, what it costs of the credit of the client. A sequenced frame is a chat message,
+     * relayed or a notice of the server, that counts in the session of the client.
+     */
+    private record Delivery(Relay owner, ByteBuffer[] data, boolean relayStart, boolean relayEnd, long content,
+                            boolean sequenced) {
+
+        private long bytes() {
+            long bytes = 0;
+            for (ByteBuffer buffer : data) {
+                bytes += buffer.remaining();
+            }
+            return bytes;
+        }
+
+    }
+
+    /**
+     * A file a connection uploads, relayed to the users that were online when it started.
+     * Only the loop of the uploading connection changes it.
+     */
+    static final class Relay {
+
+        private final Connection source;
+        private final long sourceTransferId;  // The id the sender knows the transfer by
+        private final long transferId;        // The id the version 2 receivers know the transfer by
+        private final long fileLength;
+        private final boolean resumable;
+        private final ChecksumAlgorithm algorithm;
+        private final List<Connection> targets;
+        private final int[] versions;         // The version each receiver got the file in
+        // The receivers of a resumable file whose answers the sender still waits for
+        private final Set<Connection> awaitingAccept = new HashSet<>();
+        private final Set<Connection> awaitingAck = new HashSet<>();
+        private long resumeOffset;
+        private long nextOffset;              // The end of the chunks relayed in order, anything before is a resend
+        private boolean chunkInOrder = true;  // Whether the data being relayed belongs to an in-order chunk
+        private long chunkRemaining;          // The content of the chunk being relayed that has not been read yet
+        private boolean accepted;
+        private boolean acked;
+        private ChecksumAlgorithm.Hasher legacyDigest; // The MD5 for the version 1 receivers, if the sender uses another
+
+        private Relay(final Connection source, final long sourceTransferId, final long transferId, final long fileLength,
+                      final boolean resumable, final ChecksumAlgorithm algorithm, final List<Connection> targets) {
+            this.source = source;
+            this.sourceTransferId = sourceTransferId;
+            this.transferId = transferId;
+            this.fileLength = fileLength;
+            this.resumable = resumable;
+            this.algorithm = algorithm;
+            this.targets = targets;
+            this.versions = new int[targets.size()];
+            this.resumeOffset = fileLength;
+        }
+
+        /**
+         * Gets the id the receivers know the transfer by.
+         *
+         * @return the transfer id
+         */
+        long getTransferId() {
+            return transferId;
+        }
+
+        /**
+         * Passes the answer of a receiver to the loop of the sender. Safe to call from any thread.
+         *
+         * @param target the receiver
+         * @param opcode the answer, null when the receiver is gone
+         * @param offset the offset the answer is about
+         */
+        void answer(final Connection target, final Opcode opcode, final long offset) {
+            if (targets.contains(target)) {
+                source.loop.execute(() -> source.onTargetAnswer(this, target, opcode, offset));
+            }
+        }
+
+        /**
+         * Stops waiting for the answers of a receiver that is gone. Safe to call from any thread.
+         *
+         * @param target the receiver
+         */
+        void dropTarget(final Connection target) {
+            answer(target, null, 0);
+        }
+
+        /**
+         * Lets the sender go on once a receiver is no longer congested. Safe to call from any thread.
+         *
+         * @param target the receiver
+         */
+        void resume(final Connection target) {
+            if (targets.contains(target)) {
+                source.loop.execute(source::checkBackpressure);
+            }
+        }
+
+    }
+
+
+    private final ChatServer server;
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final TlsChannel tlsChannel;    // The TLS over the channel, null when it is not encrypted
+    private final FrameDecoder decoder = new FrameDecoder(this);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_FRAMES];
+    private final ArrayDeque<Delivery> held = new ArrayDeque<>();
+
+    private SelectionKey key;
+    private String username;
+    private boolean closed;
+    private boolean closeAfterFlush;
+    // Written on this loop, read by the loops that relay frames to this connection
+    private volatile int version = Handshake.VERSION_1;
+
+    // The version 1 file being written to this connection, frames of anything else have to wait
+    private Relay relayOwner;
+    // The files this connection is uploading, by the transfer id of the sender
+    private final Map<Long, Relay> relays = new HashMap<>();
+
+    // The messages stored for the user, null until the user has logged in with a name
+    private Backlog backlog;
+
+    // The rooms the user is in, by name
+    private final Map<String, Room> rooms = new HashMap<>();
+
+    // The attachments this connection uploads to the store, by the transfer id of the sender
+    private final Map<Long, AttachmentStore.Upload> uploads = new HashMap<>();
+    // The attachments this connection downloads
+    private final Downloads downloads = new Downloads();
+
+    private final Backpressure backpressure = new Backpressure();
+    private boolean slowConsumer;       // Whether the connection is about to be closed for not reading
+
+    // The heartbeat, null when the client does not answer pings
+    private Heartbeat heartbeat;
+    private TimingWheel.Timeout heartbeatTimeout;
+
+    // The session of the user, null until the client resumes it
+    private Session session;
+    private boolean resumes;            // Whether the client keeps a session, as its hello says
+    // A name held by another connection, given to this one if the RESUME that follows proves the session of the user
+    private String claimedName;
+    // The messages that arrive while the name is taken over, null otherwise
+    private List<byte[]> heldMessages;
+
+
+    /**
+     * Instantiates a new Connection.
+     *
+     * @param server  the server
+     * @param loop    the owning loop
+     * @param channel the channel
+     * @throws IOException If TLS cannot be set up for the channel.
+     */
+    Connection(final ChatServer server, final EventLoop loop, final SocketChannel channel) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.tlsChannel = TlsChannel.isEnabled() ? TlsChannel.server(channel) : null;
+    }
+
+
+    /**
+     * Attaches the selection key of the channel.
+     *
+     * @param selectionKey the selection key
+     */
+    void attach(final SelectionKey selectionKey) {
+        this.key = selectionKey;
+        CONNECTIONS.increment();
+    }
+
+    /**
+     * Gets the username, null until the user has logged in.
+     *
+     * @return the username
+     */
+    String getUsername() {
+        return username;
+    }
+
+    /**
+     * Gets the loop the connection belongs to.
+     *
+     * @return the loop
+     */
+    EventLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Gets a room the user is in.
+     *
+     * @param name the name of the room
+     * @return the room, or null if the user is not in it
+     */
+    Room getRoom(final String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Gets the protocol version agreed with the client.
+     *
+     * @return the version
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Queues a frame for this connection. Safe to call from any thread.
+     *
+     * @param owner      the version 1 file the frame belongs to, null for any other frame
+     * @param relayStart whether the frame starts the file
+     * @param relayEnd   whether the frame ends the file
+     * @param data       the frame, in one or more buffers that are not modified by the connection
+     */
+    void send(final Relay owner, final boolean relayStart, final boolean relayEnd, final ByteBuffer... data) {
+        // Only chat messages are numbered in the session, the frames of files are not
+        final boolean sequenced = owner == null && data.length == 1 && Compression.isMessage(data[0]);
+        loop.execute(() -> deliver(new Delivery(owner, data, relayStart, relayEnd, 0, sequenced)));
+    }
+
+    /**
+     * Queues a frame that carries file content for this connection. Safe to call from any thread.
+     *
+     * @param owner      the version 1 file the frame belongs to, null for any other frame
+     * @param relayStart whether the frame starts the file
+     * @param relayEnd   whether the frame ends the file
+     * @param content    the number of bytes of file content in chunks the frame carries
+     * @param data       the frame, in one or more buffers that are not modified by the connection
+     */
+    void send(final Relay owner, final boolean relayStart, final boolean relayEnd, final long content,
+              final ByteBuffer... data) {
+        loop.execute(() -> deliver(new Delivery(owner, data, relayStart, relayEnd, content, false)));
+    }
+
+    /**
+     * Reads whatever the channel has and feeds it to the decoder. Over TLS the records received at once may hold
+     * more than the buffer takes, they are all read, as the socket does not announce them again.
+     */
+    void onReadable() {
+        try {
+            int bytesRead;
+            do {
+                bytesRead = tlsChannel != null ? tlsChannel.read(readBuffer) : channel.read(readBuffer);
+                if (bytesRead < 0) {
+                    close();
+                    return;
+                }
+                BYTES_READ.add(bytesRead);
+                if (heartbeat != null) {
+                    heartbeat.onActivity();
+                }
+
+                readBuffer.flip();
+                decoder.decode(readBuffer);
+                readBuffer.clear();
+            } while (bytesRead > 0 && !closed && !backpressure.isReadPaused() && tlsChannel != null &&
+                    tlsChannel.hasBufferedInput());
+            if (closed) {
+                return;
+            }
+
+            // One acknowledgement for all the messages of the read
+            if (session != null) {
+                final ByteBuffer ack = session.takeAck(true);
+                if (ack != null) {
+                    reply(ack);
+                }
+            }
+            // The handshake answers as it reads, what the socket did not take goes out when it is writable
+            if (tlsChannel != null && tlsChannel.hasPendingOutput()) {
+                setInterest(true);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Connection failed.", e);
+            close();
+        }
+    }
+
+    /**
+     * Writes as much of the outbound queue as the socket takes, several frames in one gathering write.
+     * The chunks of the downloads go out when the queue is empty.
+     */
+    void onWritable() {
+        try {
+            boolean socketFull = tlsChannel != null && !tlsChannel.flush();
+            while (!socketFull) {
+                if (downloads.isWriting()) {
+                    socketFull = writeDownloadChunk();
+                } else if (!outbound.isEmpty()) {
+                    socketFull = writeBatch();
+                } else if (downloads.hasWaiting() && backpressure.hasCredit()) {
+                    backpressure.spend(downloads.startChunk());
+                } else {
+                    break;
+                }
+            }
+            updateCongestion();
+
+            // Otherwise the socket buffer is full, wait for the next OP_WRITE
+            if (!socketFull) {
+                if (closeAfterFlush) {
+                    close();
+                    return;
+                }
+                setInterest(false);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Connection failed.", e);
+            close();
+        }
+    }
+
+    /**
+     * Writes the head of the outbound queue.
+     *
+     * @return true if the socket did not take all of it
+     */
+    private boolean writeBatch() throws IOException {
+        final int count = fillBatch();
+        final long written = tlsChannel != null ? tlsChannel.write(batch, 0, count) : channel.write(batch, 0, count);
+        BYTES_WRITTEN.add(written);
+        backpressure.written(written);
+
+        final boolean socketFull = batch[count - 1].hasRemaining() || (tlsChannel != null && tlsChannel.hasPendingOutput());
+        Arrays.fill(batch, 0, count, null);
+
+        while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+            outbound.poll();
+            QUEUED_BUFFERS.decrement();
+        }
+        return socketFull;
+    }
+
+    /**
+     * Writes the current chunk of a download, the download closes once its last chunk is written.
+     *
+     * @return true if the socket did not take all of it
+     */
+    private boolean writeDownloadChunk() throws IOException {
+        BYTES_WRITTEN.add(downloads.write(channel, tlsChannel));
+        if (!downloads.isChunkWritten()) {
+            return true;
+        }
+
+        final ByteBuffer end = downloads.endChunk();
+        if (end != null) {
+            reply(end);
+        }
+        return tlsChannel != null && tlsChannel.hasPendingOutput();
+    }
+
+    /**
+     * Takes the head of the outbound queue, up to the batch limits, for one gathering write.
+     *
+     * @return the number of buffers in the batch
+     */
+    private int fillBatch() {
+        int count = 0;
+        long bytes = 0;
+
+        for (ByteBuffer buffer : outbound) {
+            if (count == MAX_BATCH_FRAMES || (count > 0 && bytes >= MAX_BATCH_BYTES)) {
+                break;
+            }
+            batch[count++] = buffer;
+            bytes += buffer.remaining();
+        }
+        return count;
+    }
+
+    /**
+     * Closes the connection and removes the user from the server.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            CONNECTIONS.decrement();
+        }
+        if (heartbeatTimeout != null) {
+            loop.cancel(heartbeatTimeout);
+        }
+        if (session != null) {
+            server.detachSession(loop, username, session);
+            session = null;
+        }
+        QUEUED_BUFFERS.add(-outbound.size());
+        outbound.clear();
+        backpressure.clear();
+
+        if (tlsChannel != null) {
+            try {
+                tlsChannel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close the TLS channel.", e);
+            }
+        }
+        final Stream stream = new Stream(null, channel.socket(), null, null);
+        final CloseStream closeStream = new CloseStream(stream);
+        closeStream.execute();
+
+        for (Relay relay : relays.values()) {
+            abortRelay(relay);
+        }
+        relays.clear();
+        for (AttachmentStore.Upload upload : uploads.values()) {
+            upload.abort();
+        }
+        uploads.clear();
+        downloads.close();
+
+        server.dropReceiver(this);
+        updateCongestion();
+        for (Room room : rooms.values()) {
+            server.leaveRoom(this, room);
+        }
+        rooms.clear();
+        server.logout(this);
+
+        if (backlog != null) {
+            try {
+                backlog.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to compact the mailbox of " + username + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Delivers the messages stored since the backlog was read. Safe to call from any thread.
+     */
+    void resumeBacklog() {
+        loop.execute(() -> {
+            if (backlog != null && !closed) {
+                sendBacklog();
+            }
+        });
+    }
+
+    @Override
+    public void onName(final String name) throws IOException {
+        if (username != null || claimedName != null) {
+            refuseName(name);
+            return;
+        }
+        if (!server.login(this, name)) {
+            if (resumes && server.hasSession(name)) {
+                // The user may be back before its lost connection was noticed, the RESUME that follows tells
+                claimedName = name;
+            } else {
+                refuseName(name);
+            }
+            return;
+        }
+        username = name;
+        openMailbox();
+    }
+
+    @Override
+    public void onMessage(final byte[] text) {
+        if (Handshake.isHello(text)) {
+            // Answer with the hello of the server, the client switches to the agreed version when it reads it
+            reply(FrameEncoder.hello());
+            final String helloText = new String(text, StandardCharsets.UTF_8);
+            version = Handshake.negotiate(helloText);
+
+            if (version >= Handshake.VERSION_2 && FlowControl.isEnabled() && Handshake.offersFlowControl(helloText) &&
+                    !backpressure.hasFlowControl()) {
+                reply(backpressure.enableFlowControl());
+                updateCongestion();
+            }
+            if (version >= Handshake.VERSION_2 && Heartbeat.isEnabled() && Handshake.offersHeartbeat(helloText) &&
+                    heartbeat == null) {
+                heartbeat = new Heartbeat();
+                heartbeatTimeout = loop.schedule(this::checkHeartbeat, Heartbeat.INTERVAL_MILLIS);
+            }
+            resumes = version >= Handshake.VERSION_2 && Session.isEnabled() && Handshake.offersSessions(helloText);
+            return;
+        }
+
+        if (heldMessages != null) {
+            heldMessages.add(text);
+            return;
+        }
+        if (claimedName != null) {
+            // A client that resumes its session sends nothing before the RESUME
+            refuseName(claimedName);
+            return;
+        }
+        if (session != null && !session.onReceived()) {
+            return;
+        }
+
+        ensureLoggedIn();
+        server.routeMessage(this, text);
+    }
+
+    @Override
+    public void onFileStart(final long transferId, final long fileLength, final byte[] fileName,
+                            final ChecksumAlgorithm algorithm) throws IOException {
+        final Relay relay = openRelay(transferId, fileLength, false, algorithm);
+        relayHeader(relay, FrameEncoder.file(username, relay.transferId, fileLength, fileName, algorithm));
+    }
+
+    @Override
+    public void onFileOffer(final long transferId, final long fileLength, final byte[] fileName, final long fileVersion,
+                            final ChecksumAlgorithm algorithm) throws IOException {
+        final Relay relay = openRelay(transferId, fileLength, true, algorithm);
+        relayHeader(relay, FrameEncoder.offer(username, relay.transferId, fileLength, fileName, fileVersion, algorithm));
+        checkAnswers(relay);
+    }
+
+    @Override
+    public void onFileChunk(final long transferId, final long chunkLength, final long offset, final byte[] checksum)
+            throws IOException {
+        final AttachmentStore.Upload upload = uploads.get(transferId);
+        if (upload != null) {
+            upload.startChunk(offset, chunkLength);
+            return;
+        }
+
+        final Relay relay = getRelay(transferId);
+        relay.chunkRemaining = chunkLength;
+
+        // A chunk before the in-order position is a resend, only the version 2 receivers can place it
+        relay.chunkInOrder = offset < 0 || offset == relay.nextOffset;
+        if (relay.chunkInOrder && offset >= 0) {
+            relay.nextOffset = offset + chunkLength;
+        }
+
+        ByteBuffer chunkHeader = null;
+        for (int i = 0; i < relay.targets.size(); i++) {
+            if (relay.versions[i] >= Handshake.VERSION_2) {
+                if (chunkHeader == null) {
+                    chunkHeader = FrameEncoder.chunkHeader(relay.transferId, chunkLength, offset, checksum);
+                }
+                relayChunkTo(relay, i, true, chunkLength == 0, 0, chunkHeader.duplicate());
+            }
+        }
+
+        checkAnswers(relay);
+    }
+
+    @Override
+    public void onFileData(final long transferId, final ByteBuffer data) throws IOException {
+        final int length = data.remaining();
+        final AttachmentStore.Upload upload = uploads.get(transferId);
+        if (upload != null) {
+            upload.write(data);
+            if (upload.isComplete()) {
+                reply(FrameEncoder.answer(Opcode.FILE_ACK, transferId, 0));
+            }
+        } else {
+            relayData(getRelay(transferId), transferId, data);
+        }
+
+        // Only the chunks count, a file sent in one piece is not held back by the client
+        if (transferId != FrameDecoder.SINGLE_TRANSFER) {
+            backpressure.consume(length);
+        }
+        checkBackpressure();
+    }
+
+    /**
+     * Relays a slice of a file to its receivers.
+     */
+    private void relayData(final Relay relay, final long transferId, final ByteBuffer data) {
+        final boolean chunkEnd = transferId != FrameDecoder.SINGLE_TRANSFER &&
+                (relay.chunkRemaining -= data.remaining()) == 0;
+        if (relay.targets.isEmpty()) {
+            return;
+        }
+
+        // The read buffer is reused, so the slice is copied once and shared by all the receivers
+        final ByteBuffer copy = ByteBuffer.allocate(data.remaining()).put(data).flip().asReadOnlyBuffer();
+        ByteBuffer sliceHeader = null;
+
+        if (relay.legacyDigest != null && relay.chunkInOrder) {
+            relay.legacyDigest.update(copy.duplicate());
+        }
+
+        for (int i = 0; i < relay.targets.size(); i++) {
+            if (relay.versions[i] < Handshake.VERSION_2) {
+                if (relay.chunkInOrder) {
+                    relayTo(relay, i, false, false, 0, copy.duplicate());
+                }
+            } else if (transferId != FrameDecoder.SINGLE_TRANSFER) {
+                // The header of the chunk has already been relayed
+                relayChunkTo(relay, i, false, chunkEnd, copy.remaining(), copy.duplicate());
+            } else {
+                // A file sent in one piece goes to version 2 receivers as one chunk per slice
+                if (sliceHeader == null) {
+                    sliceHeader = FrameEncoder.chunkHeader(relay.transferId, copy.remaining(), -1, null);
+                }
+                relayTo(relay, i, false, false, copy.remaining(), sliceHeader.duplicate(), copy.duplicate());
+            }
+        }
+    }
+
+    @Override
+    public void onFileEnd(final long transferId, final byte[] digest) throws IOException {
+        final AttachmentStore.Upload upload = uploads.remove(transferId);
+        if (upload != null) {
+            finishUpload(upload, digest);
+            return;
+        }
+
+        final Relay relay = getRelay(transferId);
+        relays.remove(transferId);
+        server.unregisterRelay(relay);
+        // What was held back for this file is given back, it no longer waits for the receivers
+        checkBackpressure();
+
+        if (digest.length == 0) {
+            abortRelay(relay);
+            return;
+        }
+
+        // Closed in the same version the file was announced in
+        final VersionedFrame trailer = relay.legacyDigest == null ? FrameEncoder.fileEnd(relay.transferId, digest)
+                : FrameEncoder.fileEnd(relay.transferId, digest, relay.legacyDigest.digest());
+        for (int i = 0; i < relay.targets.size(); i++) {
+            relayTo(relay, i, false, true, 0, trailer.forVersion(relay.versions[i]));
+        }
+    }
+
+    @Override
+    public void onFileAnswer(final Opcode opcode, final long transferId, final long offset) {
+        // An answer to a file that is no longer relayed is dropped
+        final Relay relay = server.getRelay(transferId);
+        if (relay != null) {
+            relay.answer(this, opcode, offset);
+        }
+    }
+
+    @Override
+    public void onRoomJoin(final String name) {
+        ensureLoggedIn();
+        if (rooms.containsKey(name)) {
+            sendNotice("You are already in #" + name + ".");
+            return;
+        }
+
+        final Room room = server.joinRoom(this, name);
+        if (room == null) {
+            sendNotice("The room name " + name + " cannot be used.");
+            return;
+        }
+        rooms.put(name, room);
+        sendNotice("You have joined #" + name + ", " + room.size() + " member(s). Write to it with #" + name + ".");
+    }
+
+    @Override
+    public void onRoomLeave(final String name) {
+        final Room room = rooms.remove(name);
+        if (room == null) {
+            sendNotice("You are not in #" + name + ".");
+            return;
+        }
+
+        server.leaveRoom(this, room);
+        sendNotice("You have left #" + name + ".");
+    }
+
+    @Override
+    public void onAttachmentOffer(final long transferId, final long fileLength, final byte[] fileName,
+                                  final String address, final byte[] contentHash) throws IOException {
+        ensureLoggedIn();
+        if (relays.containsKey(transferId) || uploads.containsKey(transferId)) {
+            throw new ProtocolException("Transfer " + transferId + " is already open");
+        }
+
+        final AttachmentStore.Upload upload = server.getAttachments().begin(new String(fileName, StandardCharsets.UTF_8),
+                fileLength, address, contentHash);
+        uploads.put(transferId, upload);
+
+        // A content the store already has is complete right away, the uploader sends nothing but the checksum
+        reply(FrameEncoder.answer(Opcode.FILE_ACCEPT, transferId, upload.getPosition()));
+        if (upload.isComplete()) {
+            reply(FrameEncoder.answer(Opcode.FILE_ACK, transferId, 0));
+        }
+    }
+
+    @Override
+    public void onAttachmentGet(final String hash) throws IOException {
+        final AttachmentStore.Attachment attachment = server.getAttachments().open(hash);
+        if (attachment == null) {
+            sendNotice("There is no attachment " + hash + ".");
+            return;
+        }
+
+        final long transferId = server.nextTransferId();
+        reply(FrameEncoder.file(ChatServer.SERVER_NAME, transferId, attachment.length(),
+                attachment.name().getBytes(StandardCharsets.UTF_8), ChecksumAlgorithm.SHA_256).forVersion(Handshake.VERSION_2));
+        final ByteBuffer end = downloads.add(transferId, attachment);
+        if (end != null) {
+            reply(end);
+        }
+    }
+
+    @Override
+    public void onPing() {
+        reply(Heartbeat.pong());
+    }
+
+    @Override
+    public void onCredit(final long granted) throws IOException {
+        backpressure.onCredit(granted);
+        if (downloads.hasWaiting()) {
+            setInterest(true);
+        }
+        updateCongestion();
+    }
+
+    @Override
+    public void onResume(final long sessionId, final long sequence, final long firstSequence) throws IOException {
+        if (version < Handshake.VERSION_2 || !Session.isEnabled() || session != null || heldMessages != null) {
+            throw new ProtocolException("Unexpected resume");
+        }
+        if (claimedName != null) {
+            takeOver(sessionId, sequence, firstSequence);
+            return;
+        }
+        // Only a user that logged in has a session
+        if (username == null || closeAfterFlush) {
+            return;
+        }
+
+        resumeSession(sessionId, sequence, firstSequence);
+    }
+
+    @Override
+    public void onAck(final long sequence) throws IOException {
+        if (session == null) {
+            throw new ProtocolException("Unexpected acknowledgement");
+        }
+
+        session.acknowledge(sequence);
+    }
+
+    @Override
+    public void onBacklogAck(final long offset) throws IOException {
+        if (backlog == null) {
+            throw new ProtocolException("Unexpected backlog acknowledgement");
+        }
+
+        backlog.acknowledge(offset);
+        sendBacklog();
+    }
+
+    /**
+     * Attaches the session of the user, sends the {@link Opcode#RESUME} and the messages the client has not
+     * acknowledged.
+     */
+    private void resumeSession(final long sessionId, final long sequence, final long firstSequence)
+            throws ProtocolException {
+        session = server.resumeSession(username, sessionId);
+        // What the client received of a session the server no longer has says nothing about the new one
+        session.onResume(session.getId(), session.getId() == sessionId ? sequence : 0, firstSequence);
+        for (ByteBuffer frame : session.attach()) {
+            // Numbered when they were first sent
+            deliver(new Delivery(null, new ByteBuffer[]{frame}, false, false, 0, false));
+        }
+    }
+
+    /**
+     * Takes the claimed name over from the connection that still holds it, if the session is the one of the user.
+     * The old connection may still number what it sends in the session until it is closed, so the session is only
+     * attached after that and the messages of the client wait until then.
+     */
+    private void takeOver(final long sessionId, final long sequence, final long firstSequence) {
+        final String name = claimedName;
+        claimedName = null;
+
+        username = name;
+        heldMessages = new ArrayList<>();
+        if (!server.takeOver(this, name, sessionId, () -> onTakenOver(sessionId, sequence, firstSequence))) {
+            username = null;
+            heldMessages = null;
+            refuseName(name);
+        }
+    }
+
+    private void onTakenOver(final long sessionId, final long sequence, final long firstSequence) {
+        final List<byte[]> messages = heldMessages;
+        heldMessages = null;
+        if (closed) {
+            return;
+        }
+
+        try {
+            openMailbox();
+            resumeSession(sessionId, sequence, firstSequence);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Connection failed.", e);
+            close();
+            return;
+        }
+        for (byte[] text : messages) {
+            onMessage(text);
+        }
+        final ByteBuffer ack = session.takeAck(true);
+        if (ack != null) {
+            reply(ack);
+        }
+    }
+
+    private void refuseName(final String name) {
+        sendNotice("The name " + name + " cannot be used.");
+        closeAfterFlush = true;
+    }
+
+    private void openMailbox() throws IOException {
+        final Mailbox mailbox = server.openMailbox(username);
+        if (mailbox != null) {
+            backlog = new Backlog(mailbox);
+            sendBacklog();
+        }
+    }
+
+    /**
+     * Sends the next batches of the backlog, as long as the window allows.
+     */
+    private void sendBacklog() {
+        try {
+            backlog.sendNext(version, this::reply);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the mailbox of " + username + ".", e);
+        }
+    }
+
+    /**
+     * Stores an uploaded attachment and tells the users it is shared with how to download it.
+     */
+    private void finishUpload(final AttachmentStore.Upload upload, final byte[] digest) {
+        if (digest.length == 0) {
+            upload.abort();
+            return;
+        }
+
+        try {
+            if (!upload.finish(digest)) {
+                sendNotice("The attachment " + upload.getFileName() + " did not arrive intact, send it again.");
+                return;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to store the attachment " + upload.getFileName() + ".", e);
+            sendNotice("The attachment " + upload.getFileName() + " could not be stored.");
+            return;
+        }
+
+        sendNotice(upload.getFileName() + " is stored, download it with -g " + upload.getHash() + ".");
+        server.shareAttachment(this, upload);
+    }
+
+    private Relay openRelay(final long transferId, final long fileLength, final boolean resumable,
+                            final ChecksumAlgorithm algorithm) throws ProtocolException {
+        ensureLoggedIn();
+        if (relays.containsKey(transferId)) {
+            throw new ProtocolException("Transfer " + transferId + " is already open");
+        }
+
+        final Relay relay = new Relay(this, transferId, server.nextTransferId(), fileLength, resumable, algorithm,
+                server.recipients(this, null));
+        relays.put(transferId, relay);
+        server.registerRelay(relay);
+        return relay;
+    }
+
+    private void relayHeader(final Relay relay, final VersionedFrame header) {
+        for (int i = 0; i < relay.targets.size(); i++) {
+            final Connection target = relay.targets.get(i);
+            relay.versions[i] = target.getVersion();
+
+            if (relay.versions[i] < Handshake.VERSION_2) {
+                relay.resumeOffset = 0; // A version 1 receiver needs the whole file
+                if (relay.algorithm != ChecksumAlgorithm.MD5 && relay.legacyDigest == null) {
+                    relay.legacyDigest = ChecksumAlgorithm.MD5.newHasher();
+                }
+            } else if (relay.resumable) {
+                relay.awaitingAccept.add(target);
+                relay.awaitingAck.add(target);
+            }
+            relayTo(relay, i, true, false, 0, header.forVersion(relay.versions[i]));
+        }
+    }
+
+    /**
+     * Handles the answer of a receiver on the loop of this, the sending connection.
+     */
+    private void onTargetAnswer(final Relay relay, final Connection target, final Opcode opcode, final long offset) {
+        if (closed || relays.get(relay.sourceTransferId) != relay) {
+            return;
+        }
+
+        if (opcode == null) {
+            relay.awaitingAccept.remove(target);
+            relay.awaitingAck.remove(target);
+        } else if (opcode == Opcode.FILE_ACCEPT) {
+            if (relay.awaitingAccept.remove(target)) {
+                relay.resumeOffset = Math.min(relay.resumeOffset, offset);
+            }
+        } else if (opcode == Opcode.FILE_NACK) {
+            if (relay.accepted) {
+                reply(FrameEncoder.answer(Opcode.FILE_NACK, relay.sourceTransferId, offset));
+            }
+        } else if (opcode == Opcode.FILE_ACK) {
+            relay.awaitingAck.remove(target);
+        }
+
+        checkAnswers(relay);
+    }
+
+    /**
+     * Answers the sender of a resumable file once every receiver has accepted it, and again once every
+     * receiver has verified all of it.
+     */
+    private void checkAnswers(final Relay relay) {
+        if (!relay.resumable) {
+            return;
+        }
+
+        if (!relay.accepted && relay.awaitingAccept.isEmpty()) {
+            relay.accepted = true;
+            relay.nextOffset = relay.resumeOffset;
+            reply(FrameEncoder.answer(Opcode.FILE_ACCEPT, relay.sourceTransferId, relay.resumeOffset));
+        }
+
+        if (relay.accepted && !relay.acked && relay.awaitingAck.isEmpty() && relay.nextOffset >= relay.fileLength) {
+            relay.acked = true;
+            reply(FrameEncoder.answer(Opcode.FILE_ACK, relay.sourceTransferId, 0));
+        }
+    }
+
+    /**
+     * Stops a relayed file. A version 2 receiver drops a file that stops in the middle, a version 1 receiver
+     * cannot and is disconnected.
+     */
+    private void abortRelay(final Relay relay) {
+        server.unregisterRelay(relay);
+        final VersionedFrame abort = FrameEncoder.fileEnd(relay.transferId, new byte[0]);
+
+        for (int i = 0; i < relay.targets.size(); i++) {
+            final Connection target = relay.targets.get(i);
+            // A version 2 receiver in the middle of a chunk cannot be given the rest of it either
+            if (relay.versions[i] < Handshake.VERSION_2 || relay.chunkRemaining > 0) {
+                target.loop.execute(target::close);
+            } else {
+                target.send(null, false, false, abort.forVersion(Handshake.VERSION_2));
+            }
+        }
+    }
+
+    private Relay getRelay(final long transferId) throws ProtocolException {
+        final Relay relay = relays.get(transferId);
+        if (relay == null) {
+            throw new ProtocolException("Unknown transfer " + transferId);
+        }
+        return relay;
+    }
+
+    /**
+     * Sends a frame of a relayed file to one of its receivers. All the frames of a version 1 file are owned by it,
+     * the start and the end of a multiplexed transfer are never held back, see {@link #relayChunkTo}.
+     */
+    private void relayTo(final Relay relay, final int target, final boolean relayStart, final boolean relayEnd,
+                         final long content, final ByteBuffer... data) {
+        if (relay.versions[target] < Handshake.VERSION_2) {
+            relay.targets.get(target).send(relay, relayStart, relayEnd, data);
+        } else {
+            relay.targets.get(target).send(null, false, false, content, data);
+        }
+    }
+
+    /**
+     * Sends the header or a slice of the content of a chunk to a version 2 receiver. The content of a chunk may
+     * take several reads, the chunk owns the receiver from its header until its last byte so that no other frame
+     * is written into the middle of it. The chunks of different transfers still interleave between each other.
+     */
+    private void relayChunkTo(final Relay relay, final int target, final boolean chunkStart, final boolean chunkEnd,
+                              final long content, final ByteBuffer... data) {
+        relay.targets.get(target).send(relay, chunkStart, chunkEnd, content, data);
+    }
+
+    /**
+     * Clients that never introduced themselves get a name from their address.
+     */
+    private void ensureLoggedIn() {
+        if (username == null) {
+            final String guestName = "guest-" + channel.socket().getPort();
+            if (server.login(this, guestName)) {
+                username = guestName;
+            }
+        }
+    }
+
+    private void sendNotice(final String text) {
+        reply(server.notice(text).forVersion(version));
+    }
+
+    private void reply(final ByteBuffer frame) {
+        // The client numbers every chat message it receives, the notices of the server too
+        deliver(new Delivery(null, new ByteBuffer[]{frame}, false, false, 0, Compression.isMessage(frame)));
+    }
+
+    /**
+     * Adds a frame to the outbound queue, unless another user's file or chunk is in the middle of being written.
+     * A frame that does not fit into the queue any more closes the connection.
+     */
+    private void deliver(final Delivery delivery) {
+        if (closed || slowConsumer) {
+            return;
+        }
+
+        if (!backpressure.admit(delivery.bytes())) {
+            disconnectSlowConsumer();
+            return;
+        }
+
+        if (relayOwner != null && relayOwner != delivery.owner()) {
+            held.add(delivery);
+            return;
+        }
+
+        accept(delivery);
+    }
+
+    private void accept(final Delivery delivery) {
+        if (delivery.relayStart()) {
+            relayOwner = delivery.owner();
+        }
+
+        outbound.addAll(Arrays.asList(delivery.data()));
+        QUEUED_BUFFERS.add(delivery.data().length);
+        if (delivery.sequenced() && session != null) {
+            session.retain(delivery.data()[0]);
+            if (session.unackedCount() > Session.MAX_UNACKED) {
+                disconnectSlowConsumer();
+            }
+        }
+        backpressure.spend(delivery.content());
+        setInterest(true);
+        updateCongestion();
+
+        if (delivery.relayEnd()) {
+            relayOwner = null;
+            releaseHeld();
+        }
+    }
+
+    /**
+     * Gives the content of the uploads back to the client as credit, or reads from a client without credit,
+     * as long as none of the receivers of its uploads is congested.
+     */
+    private void checkBackpressure() {
+        if (closed) {
+            return;
+        }
+
+        boolean held = false;
+        for (Relay relay : relays.values()) {
+            for (Connection target : relay.targets) {
+                held |= target.backpressure.isCongested();
+            }
+        }
+
+        if (backpressure.hasFlowControl()) {
+            final long granted = backpressure.takeCredit(held);
+            if (granted > 0) {
+                reply(FlowControl.encode(granted));
+            }
+        } else if (backpressure.pauseReading(held)) {
+            setInterest((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+            // What TLS had received before reading paused is not announced by the socket again
+            if (!backpressure.isReadPaused() && tlsChannel != null && tlsChannel.hasBufferedInput()) {
+                loop.executeLater(this::onReadable);
+            }
+        }
+    }
+
+    /**
+     * Tells whether the relays to this connection have to wait, and lets them go on once they do not.
+     */
+    private void updateCongestion() {
+        if (backpressure.updateCongestion(closed)) {
+            server.resumeSenders(this);
+        }
+    }
+
+    /**
+     * Closes a connection that does not read what is sent to it. Not right away, the frame that did not fit
+     * may come from a handler of this very connection.
+     */
+    private void disconnectSlowConsumer() {
+        slowConsumer = true;
+        SLOW_CONSUMERS.increment();
+        LOGGER.log(Level.INFO, "Disconnecting " + (username != null ? username : channel.socket().getRemoteSocketAddress()) +
+                ", it does not read what is sent to it.");
+        loop.executeLater(this::close);
+    }
+
+    /**
+     * Pings the client when it has been quiet for an interval and closes the connection when it stayed quiet
+     * for the whole timeout. Runs from the wheel of the loop.
+     */
+    private void checkHeartbeat() {
+        if (closed) {
+            return;
+        }
+        if (backpressure.isReadPaused()) {
+            // Quiet because the server does not read it, not because it is gone
+            heartbeat.onActivity();
+        }
+
+        final long delay = heartbeat.check(() -> reply(Heartbeat.ping()));
+        if (delay < 0) {
+            REAPED.increment();
+            LOGGER.log(Level.INFO, "Disconnecting " + (username != null ? username : channel.socket().getRemoteSocketAddress()) +
+                    ", it has not been heard from for " + Heartbeat.TIMEOUT_MILLIS + " ms.");
+            close();
+            return;
+        }
+        heartbeatTimeout = loop.schedule(this::checkHeartbeat, delay);
+    }
+
+    private void setInterest(final boolean write) {
+        key.interestOps((backpressure.isReadPaused() ? 0 : SelectionKey.OP_READ) | (write ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Moves the held frames to the outbound queue in their original order. The scan restarts every time
+     * a frame is taken, because a frame can hand the connection over to another relay.
+     */
+    private void releaseHeld() {
+        boolean progress = true;
+
+        while (progress) {
+            progress = false;
+
+            final Iterator<Delivery> iterator = held.iterator();
+            while (iterator.hasNext()) {
+                final Delivery delivery = iterator.next();
+                if (relayOwner == null || relayOwner == delivery.owner()) {
+                    iterator.remove();
+                    accept(delivery);
+                    progress = true;
+                    break;
+                }
+            }
+        }
+    }
+
+}
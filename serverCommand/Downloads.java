@@ -0,0 +1,235 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.Handshake;
+import chatapp_combined.streamsCommand.TlsChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+
+/**
+ * The type Downloads.
+ * The attachments one connection downloads from the {@link AttachmentStore}. They go out in chunks of
+ * -Dchatapp.server.downloadChunkSize (default 256 KB), moved from the stored file to the socket with
+ * {@link FileChannel#transferTo}, so the content never passes through the heap. Over TLS a chunk is mapped and
+ * encrypted from the file. Like the bulk lane of the clients, the connection only starts a chunk when no other
+ * frame waits, and the downloads take turns for a chunk each.
+ * <p>
+ * Only the loop of the connection uses an instance.
+ *
+ * @author Dimitar Kolev
+ */
+final class Downloads {
+
+    private static final Logger LOGGER = Logger.getLogger(Downloads.class.getName());
+
+    private static final int CHUNK_SIZE = Math.max(1, getInt("server.downloadChunkSize", 256 * 1024));
+
+    private static final Counter ATTACHMENTS_DOWNLOADED = MetricsRegistry.counter("server.attachments.downloaded");
+
+
+    /**
+     * An attachment sent to the connection from the store, one chunk at a time.
+     */
+    private static final class Download {
+
+        private final long transferId;
+        private final AttachmentStore.Attachment attachment;
+        private ByteBuffer chunkHeader;
+        private long position;   // Where the chunk being written continues
+        private long chunkEnd;
+        private ByteBuffer[] mappedChunk;   // The header and the mapped content of the chunk, over TLS
+
+        private Download(final long transferId, final AttachmentStore.Attachment attachment) {
+            this.transferId = transferId;
+            this.attachment = attachment;
+        }
+
+        /**
+         * Starts the next chunk.
+         *
+         * @return the length of the chunk
+         */
+        private long nextChunk() {
+            final long chunkLength = Math.min(CHUNK_SIZE, attachment.length() - position);
+            chunkHeader = FrameEncoder.chunkHeader(transferId, chunkLength, -1, null);
+            chunkEnd = position + chunkLength;
+            return chunkLength;
+        }
+
+        /**
+         * Writes as much of the current chunk as the socket takes.
+         *
+         * @return the number of bytes written
+         */
+        private long write(final SocketChannel channel) throws IOException {
+            long written = channel.write(chunkHeader);
+            if (chunkHeader.hasRemaining()) {
+                return written;
+            }
+
+            long transferred;
+            while (position < chunkEnd && (transferred = attachment.channel().transferTo(position, chunkEnd - position,
+                    channel)) > 0) {
+                position += transferred;
+                written += transferred;
+            }
+            return written;
+        }
+
+        /**
+         * Encrypts as much of the current chunk as the TLS channel takes, the header in the same record as the
+         * start of the content.
+         *
+         * @return the number of bytes written
+         */
+        private long write(final TlsChannel tlsChannel) throws IOException {
+            if (mappedChunk == null) {
+                mappedChunk = new ByteBuffer[]{chunkHeader,
+                        attachment.channel().map(FileChannel.MapMode.READ_ONLY, position, chunkEnd - position)};
+            }
+
+            final long written = tlsChannel.write(mappedChunk);
+            position = chunkEnd - mappedChunk[1].remaining();
+            if (isChunkWritten()) {
+                mappedChunk = null;
+            }
+            return written;
+        }
+
+        private boolean isChunkWritten() {
+            return !chunkHeader.hasRemaining() && position == chunkEnd;
+        }
+
+        private boolean isComplete() {
+            return position == attachment.length();
+        }
+
+        private ByteBuffer end() {
+            return FrameEncoder.fileEnd(transferId, attachment.hash()).forVersion(Handshake.VERSION_2);
+        }
+
+        private void close() {
+            try {
+                attachment.channel().close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close an attachment.", e);
+            }
+        }
+
+    }
+
+
+    // The downloads waiting for their next chunk, in turn
+    private final ArrayDeque<Download> waiting = new ArrayDeque<>();
+    private Download current;   // The download whose chunk is being written, nothing goes in between
+
+
+    /**
+     * Adds an attachment whose {@link chatapp_combined.protocol.Opcode#FILE} frame has been sent.
+     *
+     * @param transferId the id the connection knows the transfer by
+     * @param attachment the attachment
+     * @return the frame that ends an empty attachment, which is complete right away, or null
+     */
+    ByteBuffer add(final long transferId, final AttachmentStore.Attachment attachment) {
+        final Download download = new Download(transferId, attachment);
+        if (attachment.length() == 0) {
+            download.close();
+            return download.end();
+        }
+
+        waiting.add(download);
+        return null;
+    }
+
+    /**
+     * Tells whether a download waits for its next chunk.
+     *
+     * @return true if one does
+     */
+    boolean hasWaiting() {
+        return !waiting.isEmpty();
+    }
+
+    /**
+     * Tells whether a chunk is being written.
+     *
+     * @return true if one is
+     */
+    boolean isWriting() {
+        return current != null;
+    }
+
+    /**
+     * Starts the next chunk of the download whose turn it is.
+     *
+     * @return the length of the chunk, what it costs of the credit of the client
+     */
+    long startChunk() {
+        current = waiting.poll();
+        return current.nextChunk();
+    }
+
+    /**
+     * Writes as much of the chunk being written as the socket takes.
+     *
+     * @param channel    the channel of the connection
+     * @param tlsChannel the TLS over the channel, null when it is not encrypted
+     * @return the number of bytes written
+     * @throws IOException If an I/O error occurs.
+     */
+    long write(final SocketChannel channel, final TlsChannel tlsChannel) throws IOException {
+        return tlsChannel != null ? current.write(tlsChannel) : current.write(channel);
+    }
+
+    /**
+     * Tells whether the chunk being written is complete.
+     *
+     * @return true if it is
+     */
+    boolean isChunkWritten() {
+        return current.isChunkWritten();
+    }
+
+    /**
+     * Ends the chunk that has been written. The download takes its next turn, or closes after its last chunk.
+     *
+     * @return the frame that ends the download after its last chunk, null otherwise
+     */
+    ByteBuffer endChunk() {
+        final Download download = current;
+        current = null;
+        if (!download.isComplete()) {
+            waiting.add(download);
+            return null;
+        }
+
+        download.close();
+        ATTACHMENTS_DOWNLOADED.increment();
+        return download.end();
+    }
+
+    /**
+     * Closes all the downloads, the connection is gone.
+     */
+    void close() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        for (Download download : waiting) {
+            download.close();
+        }
+        waiting.clear();
+    }
+
+}
@@ -0,0 +1,193 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.Utility.TimingWheel;
+import chatapp_combined.protocol.Heartbeat;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The type Event loop.
+ * One selector thread that owns a share of the connections. Everything that touches a connection
+ * runs on the thread of its loop, other threads hand their work over with {@link #execute(Runnable)}.
+ * The timeouts of the connections are kept in a {@link TimingWheel} of the loop, the selector never waits
+ * longer than a tick while any is pending.
+ *
+ * @author Dimitar Kolev
+ */
+final class EventLoop implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(EventLoop.class.getName());
+
+    private final ChatServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final TimingWheel timeouts = new TimingWheel(Heartbeat.TICK_MILLIS, Heartbeat.TIMEOUT_MILLIS);
+
+    private volatile boolean running = true;
+
+
+    /**
+     * Instantiates a new Event loop.
+     *
+     * @param server the server
+     * @param name   the name of the loop thread
+     * @throws IOException If the selector cannot be opened.
+     */
+    EventLoop(final ChatServer server, final String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+
+    /**
+     * Starts the loop thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the loop and closes its connections.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread. Called from the loop thread itself the task runs right away,
+     * so the order of the tasks between two connections is always kept.
+     *
+     * @param task the task
+     */
+    void execute(final Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread once the work at hand is done, even when called from the loop thread itself.
+     *
+     * @param task the task
+     */
+    void executeLater(final Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread after a delay. Called from the loop thread only.
+     *
+     * @param task        the task
+     * @param delayMillis the delay
+     * @return the timeout, to cancel the task
+     */
+    TimingWheel.Timeout schedule(final Runnable task, final long delayMillis) {
+        return timeouts.schedule(task, delayMillis);
+    }
+
+    /**
+     * Cancels a task scheduled with {@link #schedule}. Called from the loop thread only.
+     *
+     * @param timeout the timeout of the task
+     */
+    void cancel(final TimingWheel.Timeout timeout) {
+        timeouts.cancel(timeout);
+    }
+
+    /**
+     * Hands a freshly accepted channel over to this loop.
+     *
+     * @param channel the channel
+     */
+    void register(final SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                final Connection connection = new Connection(server, this, channel);
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to register a connection.", e);
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (timeouts.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(timeouts.millisToNextTick());
+                }
+                runTasks();
+                timeouts.advance();
+                processSelectedKeys();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Selector failure.", e);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection) {
+                connection.close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close the selector.", e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void processSelectedKeys() {
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+        while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+
+            final Connection connection = (Connection) key.attachment();
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close a channel.", e);
+        }
+    }
+
+}
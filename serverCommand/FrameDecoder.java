@@ -0,0 +1,583 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.Utility.ChecksumAlgorithm;
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.Headers;
+import chatapp_combined.protocol.Opcode;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static chatapp_combined.Utility.CommonUtils.convertByteArrayToInt;
+import static chatapp_combined.Utility.CommonUtils.convertByteArrayToLong;
+
+/**
+ * The type Frame decoder.
+ * Incremental decoder of the "-n" / "-m" / "-f" frames for non-blocking connections.
+ * Bytes are pushed in as they arrive and the decoder reports every complete field to its listener,
+ * the body of a file is reported in slices so that it never has to be held in memory at once.
+ * Version 1 and version 2 frames are told apart by their first byte, so both can arrive on one connection.
+ * The chunks of multiplexed transfers are reported with the id of their transfer, like whole files are.
+ *
+ * @author Dimitar Kolev
+ */
+final class FrameDecoder {
+
+    private static final int BYTES_FOR_INTEGER = 4;
+    private static final int BYTES_FOR_LONG = 8;
+    private static final int DIGEST_SIZE = 16; // MD5 generates a hash of 16 bytes (128 bits)
+    private static final int MAX_COMMAND_LENGTH = 16;
+    private static final int MAX_TEXT_LENGTH = 1 << 20;
+    private static final int MAX_HEADERS_LENGTH = 64 * 1024;
+    private static final int MAX_VARINT_BYTES = 10;
+    private static final int OPCODE_MASK = 0x7F;
+
+    private static final String MESSAGE_COMMAND = "-m";
+    private static final String FILE_COMMAND = "-f";
+    private static final String NAME_COMMAND = "-n";
+
+    /**
+     * The transfer id reported for a file sent in one piece, which the sender cannot interleave with anything else.
+     */
+    static final long SINGLE_TRANSFER = 0;
+
+
+    /**
+     * Receives the decoded frames.
+     */
+    interface Listener {
+
+        /**
+         * Called when the other side announces its name.
+         *
+         * @param name the name
+         * @throws IOException If an I/O error occurs.
+         */
+        void onName(String name) throws IOException;
+
+        /**
+         * Called when a complete chat message has been read.
+         *
+         * @param text the UTF-8 bytes of the message
+         * @throws IOException If an I/O error occurs.
+         */
+        void onMessage(byte[] text) throws IOException;
+
+        /**
+         * Called when the header of a file has been read.
+         *
+         * @param transferId the id of the transfer, {@link #SINGLE_TRANSFER} for a file sent in one piece
+         * @param fileLength the length of the file
+         * @param fileName   the UTF-8 bytes of the file name
+         * @param algorithm  the checksum the file is closed with
+         * @throws IOException If an I/O error occurs.
+         */
+        void onFileStart(long transferId, long fileLength, byte[] fileName, ChecksumAlgorithm algorithm)
+                throws IOException;
+
+        /**
+         * Called when a resumable file is offered. Its chunks follow once the sender has been told where to resume.
+         *
+         * @param transferId  the id of the transfer
+         * @param fileLength  the length of the file
+         * @param fileName    the UTF-8 bytes of the file name
+         * @param fileVersion the version of the file
+         * @param algorithm   the checksum the file is closed with
+         * @throws IOException If an I/O error occurs.
+         */
+        void onFileOffer(long transferId, long fileLength, byte[] fileName, long fileVersion,
+                         ChecksumAlgorithm algorithm) throws IOException;
+
+        /**
+         * Called when the header of a chunk has been read, its data follows in {@link #onFileData} calls.
+         *
+         * @param transferId  the id of the transfer
+         * @param chunkLength the length of the chunk
+         * @param offset      the offset of the chunk in the file, -1 if the chunk does not carry it
+         * @param checksum    the checksum of the chunk, null if the chunk does not carry it
+         * @throws IOException If an I/O error occurs.
+         */
+        void onFileChunk(long transferId, long chunkLength, long offset, byte[] checksum) throws IOException;
+
+        /**
+         * Called when the receiver of a resumable file answers the sender.
+         *
+         * @param opcode     {@link Opcode#FILE_ACCEPT}, {@link Opcode#FILE_NACK} or {@link Opcode#FILE_ACK}
+         * @param transferId the id of the transfer
+         * @param offset     the offset the answer is about, 0 for an ack
+         * @throws IOException If an I/O error occurs.
+         */
+        void onFileAnswer(Opcode opcode, long transferId, long offset) throws IOException;
+
+        /**
+         * Called for every slice of the file body. The slice is only valid during the call.
+         *
+         * @param transferId the id of the transfer
+         * @param data       the data
+         * @throws IOException If an I/O error occurs.
+         */
+        void onFileData(long transferId, ByteBuffer data) throws IOException;
+
+        /**
+         * Called when the checksum that closes the file has been read.
+         *
+         * @param transferId the id of the transfer
+         * @param digest     the digest, empty if the sender aborted the transfer
+         * @throws IOException If an I/O error occurs.
+         */
+        void onFileEnd(long transferId, byte[] digest) throws IOException;
+
+        /**
+         * Called when the client acknowledges a batch of the messages stored for it.
+         *
+         * @param offset the end of the batch in the mailbox
+         * @throws IOException If an I/O error occurs.
+         */
+        void onBacklogAck(long offset) throws IOException;
+
+        /**
+         * Called when the client joins a room.
+         *
+         * @param room the name of the room
+         * @throws IOException If an I/O error occurs.
+         */
+        void onRoomJoin(String room) throws IOException;
+
+        /**
+         * Called when the client leaves a room.
+         *
+         * @param room the name of the room
+         * @throws IOException If an I/O error occurs.
+         */
+        void onRoomLeave(String room) throws IOException;
+
+        /**
+         * Called when the client offers a file for the attachment store. Its chunks and its end are reported like
+         * the ones of any other file.
+         *
+         * @param transferId  the id of the transfer
+         * @param fileLength  the length of the file
+         * @param fileName    the UTF-8 bytes of the file name
+         * @param address     who the attachment is shared with: "#room", "@name" or empty for everyone
+         * @param contentHash the SHA-256 of the content
+         * @throws IOException If an I/O error occurs.
+         */
+        void onAttachmentOffer(long transferId, long fileLength, byte[] fileName, String address, byte[] contentHash)
+                throws IOException;
+
+        /**
+         * Called when the client asks for an attachment of the store.
+         *
+         * @param hash the SHA-256 of the attachment in hex
+         * @throws IOException If an I/O error occurs.
+         */
+        void onAttachmentGet(String hash) throws IOException;
+
+        /**
+         * Called when the client grants credit for more file content.
+         *
+         * @param credit the number of bytes granted
+         * @throws IOException If an I/O error occurs.
+         */
+        void onCredit(long credit) throws IOException;
+
+        /**
+         * Called when the client asks whether the server is still there.
+         *
+         * @throws IOException If an I/O error occurs.
+         */
+        void onPing() throws IOException;
+
+        /**
+         * Called when the client resumes its session on this connection.
+         *
+         * @param sessionId     the id of the session, 0 for a new one
+         * @param sequence      the number of the last message the client received
+         * @param firstSequence the number of the first message that follows
+         * @throws IOException If an I/O error occurs.
+         */
+        void onResume(long sessionId, long sequence, long firstSequence) throws IOException;
+
+        /**
+         * Called when the client acknowledges the messages of its session.
+         *
+         * @param sequence the number of the last message received
+         * @throws IOException If an I/O error occurs.
+         */
+        void onAck(long sequence) throws IOException;
+
+    }
+
+
+    private enum State {
+        FRAME_START, COMMAND_LENGTH, COMMAND, TEXT_LENGTH, TEXT, FILE_LENGTH, FILE_NAME_LENGTH, FILE_NAME, FILE_BODY,
+        FILE_DIGEST, FLAGS, PAYLOAD_LENGTH, HEADERS_LENGTH, HEADERS, PAYLOAD
+    }
+
+
+    private final Listener listener;
+
+    private State state;
+    private byte[] field;
+    private int fieldPosition;
+    private int firstByte;
+    private String command;
+    private long fileLength;
+    private long bodyLeft;
+    private boolean version2File;
+    private long transferId;
+
+    // The version 2 frame being read
+    private Opcode opcode;
+    private int flags;
+    private long payloadLength;
+    private Headers headers;
+    private long varint;
+    private int varintBytes;
+
+
+    /**
+     * Instantiates a new Frame decoder.
+     *
+     * @param listener the listener
+     */
+    FrameDecoder(final Listener listener) {
+        this.listener = listener;
+        this.state = State.FRAME_START;
+        this.field = new byte[1];
+    }
+
+
+    /**
+     * Consumes all the bytes available in the buffer.
+     *
+     * @param in the buffer, ready to be read
+     * @throws IOException If the bytes do not form valid frames or the listener fails.
+     */
+    void decode(final ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            if (state == State.FILE_BODY) {
+                final int length = (int) Math.min(in.remaining(), bodyLeft);
+                final ByteBuffer slice = in.slice(in.position(), length);
+                in.position(in.position() + length);
+                bodyLeft -= length;
+
+                listener.onFileData(transferId, slice);
+
+                if (bodyLeft == 0) {
+                    endFileBody();
+                }
+                continue;
+            }
+
+            final int length = Math.min(in.remaining(), field.length - fieldPosition);
+            in.get(field, fieldPosition, length);
+            fieldPosition += length;
+
+            if (fieldPosition == field.length) {
+                onField();
+            }
+        }
+    }
+
+    private void onField() throws IOException {
+        switch (state) {
+            case FRAME_START -> onFrameStart(field[0] & 0xFF);
+            case COMMAND_LENGTH -> expect(State.COMMAND, checkLength(commandLength(), MAX_COMMAND_LENGTH));
+            case COMMAND -> onCommand(new String(field, StandardCharsets.UTF_8));
+            case TEXT_LENGTH -> expect(State.TEXT, checkLength(convertByteArrayToInt(field), MAX_TEXT_LENGTH));
+            case TEXT -> onText();
+            case FILE_LENGTH -> {
+                fileLength = convertByteArrayToLong(field);
+                if (fileLength < 0) {
+                    throw new ProtocolException("Invalid file length: " + fileLength);
+                }
+                expect(State.FILE_NAME_LENGTH, BYTES_FOR_INTEGER);
+            }
+            case FILE_NAME_LENGTH -> expect(State.FILE_NAME, checkLength(convertByteArrayToInt(field), MAX_TEXT_LENGTH));
+            case FILE_NAME -> startFileBody(field, ChecksumAlgorithm.MD5, false);
+            case FILE_DIGEST -> {
+                final byte[] digest = field;
+                expect(State.FRAME_START, 1);
+                listener.onFileEnd(SINGLE_TRANSFER, digest);
+            }
+            case FLAGS -> {
+                flags = field[0] & 0xFF;
+                expectVarint(State.PAYLOAD_LENGTH);
+            }
+            case PAYLOAD_LENGTH -> onVarintByte();
+            case HEADERS_LENGTH -> onVarintByte();
+            case HEADERS -> {
+                headers = FrameCodec.readHeaders(ByteBuffer.wrap(field));
+                onFrameHeader();
+            }
+            case PAYLOAD -> onPayload();
+            default -> throw new IllegalStateException("Unexpected value: " + state);
+        }
+    }
+
+    private void onFrameStart(final int receivedByte) throws IOException {
+        firstByte = receivedByte;
+
+        if (FrameCodec.isVersion2(receivedByte)) {
+            opcode = Opcode.fromCode(receivedByte & OPCODE_MASK);
+            if (opcode == null) {
+                throw new ProtocolException("Unknown opcode: " + (receivedByte & OPCODE_MASK));
+            }
+            expect(State.FLAGS, 1);
+        } else {
+            // The first of the 4 bytes of the command length
+            expect(State.COMMAND_LENGTH, BYTES_FOR_INTEGER - 1);
+        }
+    }
+
+    private int commandLength() {
+        final byte[] length = new byte[BYTES_FOR_INTEGER];
+        length[0] = (byte) firstByte;
+        System.arraycopy(field, 0, length, 1, BYTES_FOR_INTEGER - 1);
+
+        return convertByteArrayToInt(length);
+    }
+
+    private void onCommand(final String receivedCommand) throws IOException {
+        switch (receivedCommand) {
+            case MESSAGE_COMMAND, NAME_COMMAND -> {
+                command = receivedCommand;
+                expect(State.TEXT_LENGTH, BYTES_FOR_INTEGER);
+            }
+            case FILE_COMMAND -> {
+                transferId = SINGLE_TRANSFER;
+                expect(State.FILE_LENGTH, BYTES_FOR_LONG);
+            }
+            default -> throw new ProtocolException("Unexpected command: " + receivedCommand);
+        }
+    }
+
+    private void onText() throws IOException {
+        final byte[] text = field;
+        expect(State.FRAME_START, 1);
+
+        if (NAME_COMMAND.equals(command)) {
+            listener.onName(new String(text, StandardCharsets.UTF_8));
+        } else {
+            listener.onMessage(text);
+        }
+    }
+
+    private void startFileBody(final byte[] fileName, final ChecksumAlgorithm algorithm, final boolean version2)
+            throws IOException {
+        listener.onFileStart(transferId, fileLength, fileName, algorithm);
+        startBody(fileLength, version2);
+    }
+
+    private void startBody(final long length, final boolean version2) throws IOException {
+        version2File = version2;
+
+        if (length > 0) {
+            state = State.FILE_BODY;
+            bodyLeft = length;
+        } else {
+            endFileBody();
+        }
+    }
+
+    /**
+     * A version 1 file is followed by the raw checksum, a version 2 file or chunk by the next frame.
+     */
+    private void endFileBody() throws IOException {
+        if (version2File) {
+            expect(State.FRAME_START, 1);
+        } else {
+            expect(State.FILE_DIGEST, DIGEST_SIZE);
+        }
+    }
+
+    private void onVarintByte() throws IOException {
+        final int b = field[0] & 0xFF;
+        varint |= (long) (b & 0x7F) << (7 * varintBytes);
+        varintBytes++;
+
+        if ((b & 0x80) != 0) {
+            if (varintBytes == MAX_VARINT_BYTES) {
+                throw new ProtocolException("Malformed varint");
+            }
+            fieldPosition = 0;
+            return;
+        }
+
+        if (state == State.PAYLOAD_LENGTH) {
+            if (varint < 0) {
+                throw new ProtocolException("Invalid payload length: " + varint);
+            }
+            payloadLength = varint;
+            headers = new Headers();
+
+            if ((flags & FrameCodec.FLAG_HEADERS) != 0) {
+                expectVarint(State.HEADERS_LENGTH);
+            } else {
+                onFrameHeader();
+            }
+        } else {
+            expect(State.HEADERS, checkLength(varint, MAX_HEADERS_LENGTH));
+        }
+    }
+
+    private void onFrameHeader() throws IOException {
+        switch (opcode) {
+            case FILE -> {
+                transferId = SINGLE_TRANSFER;
+                fileLength = payloadLength;
+                startFileBody(getFileName(), ChecksumAlgorithm.fromHeaders(headers), true);
+            }
+            case FILE_START, FILE_OFFER -> {
+                fileLength = headers.getLong(Headers.FILE_LENGTH);
+                if (payloadLength != 0 || fileLength < 0) {
+                    throw new ProtocolException("Invalid start of transfer");
+                }
+
+                final long startedTransfer = getTransferId();
+                expect(State.FRAME_START, 1);
+                final ChecksumAlgorithm algorithm = ChecksumAlgorithm.fromHeaders(headers);
+                if (opcode == Opcode.FILE_START) {
+                    listener.onFileStart(startedTransfer, fileLength, getFileName(), algorithm);
+                } else if (headers.get(Headers.ATTACHMENT) != null) {
+                    listener.onAttachmentOffer(startedTransfer, fileLength, getFileName(),
+                            headers.getString(Headers.ATTACHMENT), headers.get(Headers.CONTENT_HASH));
+                } else {
+                    listener.onFileOffer(startedTransfer, fileLength, getFileName(), headers.getLong(Headers.FILE_VERSION),
+                            algorithm);
+                }
+            }
+            case FILE_CHUNK -> {
+                // The chunk is streamed to the listener like the body of a whole file
+                transferId = getTransferId();
+                final long offset = headers.get(Headers.CHUNK_OFFSET) == null ? -1 : headers.getLong(Headers.CHUNK_OFFSET);
+                listener.onFileChunk(transferId, payloadLength, offset, headers.get(Headers.CHECKSUM));
+                startBody(payloadLength, true);
+            }
+            case FILE_ACCEPT, FILE_NACK, FILE_ACK -> {
+                final long offset = opcode == Opcode.FILE_ACK ? 0 : headers.getLong(Headers.CHUNK_OFFSET);
+                if (payloadLength != 0 || offset < 0) {
+                    throw new ProtocolException("Malformed " + opcode + " frame");
+                }
+
+                final long answeredTransfer = getTransferId();
+                expect(State.FRAME_START, 1);
+                listener.onFileAnswer(opcode, answeredTransfer, offset);
+            }
+            case BACKLOG_ACK -> {
+                final long offset = headers.getLong(Headers.BACKLOG_OFFSET);
+                if (payloadLength != 0) {
+                    throw new ProtocolException("Malformed " + opcode + " frame");
+                }
+
+                expect(State.FRAME_START, 1);
+                listener.onBacklogAck(offset);
+            }
+            case CREDIT -> {
+                final long credit = headers.getLong(Headers.CREDIT);
+                if (payloadLength != 0 || credit <= 0) {
+                    throw new ProtocolException("Malformed " + opcode + " frame");
+                }
+
+                expect(State.FRAME_START, 1);
+                listener.onCredit(credit);
+            }
+            case RESUME -> {
+                final long sessionId = headers.getLong(Headers.SESSION_ID);
+                final long sequence = headers.getLong(Headers.SEQUENCE);
+                final long firstSequence = headers.getLong(Headers.FIRST_SEQUENCE);
+                if (payloadLength != 0 || sequence < 0 || firstSequence < 1) {
+                    throw new ProtocolException("Malformed " + opcode + " frame");
+                }
+
+                expect(State.FRAME_START, 1);
+                listener.onResume(sessionId, sequence, firstSequence);
+            }
+            case ACK -> {
+                final long sequence = headers.getLong(Headers.SEQUENCE);
+                if (payloadLength != 0 || sequence < 0) {
+                    throw new ProtocolException("Malformed " + opcode + " frame");
+                }
+
+                expect(State.FRAME_START, 1);
+                listener.onAck(sequence);
+            }
+            case PING, PONG -> {
+                if (payloadLength != 0) {
+                    throw new ProtocolException("Malformed " + opcode + " frame");
+                }
+
+                // A pong only matters as activity, which the connection records for everything it reads
+                expect(State.FRAME_START, 1);
+                if (opcode == Opcode.PING) {
+                    listener.onPing();
+                }
+            }
+            default -> expect(State.PAYLOAD, checkLength(payloadLength, MAX_TEXT_LENGTH));
+        }
+    }
+
+    private byte[] getFileName() throws ProtocolException {
+        final byte[] fileName = headers.get(Headers.FILE_NAME);
+        if (fileName == null) {
+            throw new ProtocolException("File frame without a file name");
+        }
+        return fileName;
+    }
+
+    private long getTransferId() throws ProtocolException {
+        final long id = headers.getLong(Headers.TRANSFER_ID);
+        if (id == SINGLE_TRANSFER) {
+            throw new ProtocolException("Invalid transfer id: " + id);
+        }
+        return id;
+    }
+
+    private void onPayload() throws IOException {
+        final byte[] payload = field;
+        expect(State.FRAME_START, 1);
+
+        switch (opcode) {
+            case MESSAGE -> listener.onMessage(payload);
+            case NAME -> listener.onName(new String(payload, StandardCharsets.UTF_8));
+            case ROOM_JOIN -> listener.onRoomJoin(new String(payload, StandardCharsets.UTF_8));
+            case ROOM_LEAVE -> listener.onRoomLeave(new String(payload, StandardCharsets.UTF_8));
+            case ATTACHMENT_GET -> listener.onAttachmentGet(new String(payload, StandardCharsets.UTF_8));
+            case FILE_END -> listener.onFileEnd(headers.get(Headers.TRANSFER_ID) == null ? SINGLE_TRANSFER : getTransferId(),
+                    payload);
+            default -> throw new ProtocolException("Unexpected frame: " + opcode);
+        }
+    }
+
+    private void expectVarint(final State nextState) {
+        state = nextState;
+        field = new byte[1];
+        fieldPosition = 0;
+        varint = 0;
+        varintBytes = 0;
+    }
+
+    /**
+     * Switches to the next state, a field of zero bytes is completed right away.
+     */
+    private void expect(final State nextState, final int fieldLength) throws IOException {
+        state = nextState;
+        field = new byte[fieldLength];
+        fieldPosition = 0;
+
+        if (fieldLength == 0) {
+            onField();
+        }
+    }
+
+    private static int checkLength(final long length, final int maxLength) throws ProtocolException {
+        if (length < 0 || length > maxLength) {
+            throw new ProtocolException("Invalid field length: " + length);
+        }
+        return (int) length;
+    }
+
+}
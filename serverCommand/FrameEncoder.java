@@ -0,0 +1,260 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.Utility.ChecksumAlgorithm;
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.Handshake;
+import chatapp_combined.protocol.Headers;
+import chatapp_combined.protocol.Opcode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The type Frame encoder.
+ * Builds the frames the server writes to its clients. The buffers are read-only, so one encoded frame
+ * can be handed to many connections with {@link ByteBuffer#duplicate()}.
+ *
+ * @author Dimitar Kolev
+ */
+final class FrameEncoder {
+
+    private static final String MESSAGE_COMMAND = "-m";
+    private static final String FILE_COMMAND = "-f";
+    private static final String NAME_COMMAND = "-n";
+
+
+    /**
+     * Private constructor does not allow an instance to be created
+     */
+    private FrameEncoder() {
+
+    }
+
+
+    /**
+     * Encodes a message of a user for both protocol versions. Version 1 needs a "-n" frame in front of the
+     * "-m" frame, version 2 carries the sender in a header of the message frame itself.
+     *
+     * @param sender the name of the sender
+     * @param text   the UTF-8 bytes of the message
+     * @return the frame
+     */
+    static VersionedFrame message(final String sender, final byte[] text) {
+        final Headers headers = new Headers().putString(Headers.SENDER, sender);
+
+        return new VersionedFrame(concat(nameFrame(sender), messageFrame(text)),
+                readOnly(FrameCodec.encode(Opcode.MESSAGE, headers, text)));
+    }
+
+    /**
+     * Encodes the start of a relayed file for both protocol versions. Version 1 gets the header of a "-f" frame,
+     * version 2 the start of a multiplexed transfer.
+     *
+     * @param sender     the name of the sender
+     * @param transferId the id of the transfer towards the version 2 receivers
+     * @param fileLength the length of the file
+     * @param fileName   the UTF-8 bytes of the file name
+     * @param algorithm  the checksum the version 2 receivers verify the file with
+     * @return the frame
+     */
+    static VersionedFrame file(final String sender, final long transferId, final long fileLength, final byte[] fileName,
+                               final ChecksumAlgorithm algorithm) {
+        final Headers headers = algorithm.putInto(new Headers().putString(Headers.SENDER, sender)
+                .putLong(Headers.TRANSFER_ID, transferId).put(Headers.FILE_NAME, fileName)
+                .putLong(Headers.FILE_LENGTH, fileLength));
+
+        return new VersionedFrame(concat(nameFrame(sender), fileHeader(fileLength, fileName)),
+                readOnly(FrameCodec.encode(Opcode.FILE_START, headers, new byte[0])));
+    }
+
+    /**
+     * Encodes the offer of a relayed resumable file for both protocol versions. Version 1 gets the header
+     * of a "-f" frame and the whole file, version 2 the offer.
+     *
+     * @param sender      the name of the sender
+     * @param transferId  the id of the transfer towards the version 2 receivers
+     * @param fileLength  the length of the file
+     * @param fileName    the UTF-8 bytes of the file name
+     * @param fileVersion the version of the file
+     * @param algorithm   the checksum the version 2 receivers verify the file with
+     * @return the frame
+     */
+    static VersionedFrame offer(final String sender, final long transferId, final long fileLength, final byte[] fileName,
+                                final long fileVersion, final ChecksumAlgorithm algorithm) {
+        final Headers headers = algorithm.putInto(new Headers().putString(Headers.SENDER, sender)
+                .putLong(Headers.TRANSFER_ID, transferId).put(Headers.FILE_NAME, fileName)
+                .putLong(Headers.FILE_LENGTH, fileLength).putLong(Headers.FILE_VERSION, fileVersion));
+
+        return new VersionedFrame(concat(nameFrame(sender), fileHeader(fileLength, fileName)),
+                readOnly(FrameCodec.encode(Opcode.FILE_OFFER, headers, new byte[0])));
+    }
+
+    /**
+     * Encodes the header of a version 2 chunk, the data of the chunk is written after it.
+     *
+     * @param transferId  the id of the transfer
+     * @param chunkLength the length of the data
+     * @param offset      the offset of the chunk, -1 to leave it out
+     * @param checksum    the checksum of the chunk, null to leave it out
+     * @return the header
+     */
+    static ByteBuffer chunkHeader(final long transferId, final long chunkLength, final long offset, final byte[] checksum) {
+        final Headers headers = new Headers().putLong(Headers.TRANSFER_ID, transferId).put(Headers.CHECKSUM, checksum);
+        if (offset >= 0) {
+            headers.putLong(Headers.CHUNK_OFFSET, offset);
+        }
+
+        return readOnly(FrameCodec.encodeHeader(Opcode.FILE_CHUNK, headers, chunkLength));
+    }
+
+    /**
+     * Encodes an answer to the sender of a resumable file, on behalf of all the receivers.
+     *
+     * @param opcode     {@link Opcode#FILE_ACCEPT}, {@link Opcode#FILE_NACK} or {@link Opcode#FILE_ACK}
+     * @param transferId the id the sender knows the transfer by
+     * @param offset     the offset the answer is about
+     * @return the frame
+     */
+    static ByteBuffer answer(final Opcode opcode, final long transferId, final long offset) {
+        final Headers headers = new Headers().putLong(Headers.TRANSFER_ID, transferId);
+        if (opcode != Opcode.FILE_ACK) {
+            headers.putLong(Headers.CHUNK_OFFSET, offset);
+        }
+
+        return readOnly(FrameCodec.encode(opcode, headers, new byte[0]));
+    }
+
+    /**
+     * Encodes the checksum that closes a relayed file, raw for version 1 and as a frame for version 2.
+     *
+     * @param transferId the id of the transfer towards the version 2 receivers
+     * @param digest     the checksum, empty to abort the transfer
+     * @return the frame
+     */
+    static VersionedFrame fileEnd(final long transferId, final byte[] digest) {
+        return fileEnd(transferId, digest, digest);
+    }
+
+    /**
+     * Encodes the checksum that closes a relayed file, with an MD5 of its own for the version 1 receivers
+     * when the sender closed it with another checksum.
+     *
+     * @param transferId the id of the transfer towards the version 2 receivers
+     * @param digest     the checksum of the sender
+     * @param md5        the MD5 for the version 1 receivers
+     * @return the frame
+     */
+    static VersionedFrame fileEnd(final long transferId, final byte[] digest, final byte[] md5) {
+        final Headers headers = new Headers().putLong(Headers.TRANSFER_ID, transferId);
+
+        return new VersionedFrame(readOnly(md5), readOnly(FrameCodec.encode(Opcode.FILE_END, headers, digest)));
+    }
+
+    /**
+     * Encodes a batch of stored messages for the protocol version of its receiver. Version 2 gets one
+     * {@link Opcode#BATCH} frame of message frames to acknowledge, version 1 a "-n" and a "-m" frame per message
+     * in one buffer.
+     *
+     * @param batch   the batch
+     * @param version the protocol version of the receiver
+     * @return the frames
+     */
+    static ByteBuffer backlog(final Mailbox.Batch batch, final int version) {
+        final ByteBuffer[] frames = new ByteBuffer[batch.messages().size()];
+        for (int i = 0; i < frames.length; i++) {
+            final Mailbox.StoredMessage message = batch.messages().get(i);
+            frames[i] = version < Handshake.VERSION_2 ? concat(nameFrame(message.sender()), messageFrame(message.text())) :
+                    ByteBuffer.wrap(FrameCodec.encode(Opcode.MESSAGE, new Headers().putString(Headers.SENDER,
+                            message.sender()), message.text()));
+        }
+        final ByteBuffer joined = concat(frames);
+        if (version < Handshake.VERSION_2) {
+            return joined;
+        }
+
+        final byte[] payload = new byte[joined.remaining()];
+        joined.get(payload);
+        final Headers headers = new Headers().putLong(Headers.BACKLOG_OFFSET, batch.endOffset());
+        return readOnly(FrameCodec.encode(Opcode.BATCH, headers, payload));
+    }
+
+    /**
+     * Encodes the hello of the server, always as a version 1 "-m" frame.
+     *
+     * @return the frame
+     */
+    static ByteBuffer hello() {
+        return messageFrame(Handshake.helloText().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes a "-n" frame announcing who sent the frames that follow.
+     *
+     * @param name the name of the sender
+     * @return the frame
+     */
+    static ByteBuffer nameFrame(final String name) {
+        return textFrame(NAME_COMMAND, name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes a "-m" frame.
+     *
+     * @param text the UTF-8 bytes of the message
+     * @return the frame
+     */
+    static ByteBuffer messageFrame(final byte[] text) {
+        return textFrame(MESSAGE_COMMAND, text);
+    }
+
+    /**
+     * Encodes the header of a "-f" frame, the body and the checksum are written after it.
+     *
+     * @param fileLength the length of the file
+     * @param fileName   the UTF-8 bytes of the file name
+     * @return the header
+     */
+    static ByteBuffer fileHeader(final long fileLength, final byte[] fileName) {
+        final byte[] command = FILE_COMMAND.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + command.length + Long.BYTES +
+                Integer.BYTES + fileName.length);
+
+        buffer.putInt(command.length).put(command).putLong(fileLength).putInt(fileName.length).put(fileName);
+
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Joins several frames in one buffer, so that they are delivered together.
+     *
+     * @param frames the frames
+     * @return the joined frames
+     */
+    static ByteBuffer concat(final ByteBuffer... frames) {
+        int length = 0;
+        for (ByteBuffer frame : frames) {
+            length += frame.remaining();
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (ByteBuffer frame : frames) {
+            buffer.put(frame.duplicate());
+        }
+
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer readOnly(final byte[] bytes) {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer textFrame(final String command, final byte[] text) {
+        final byte[] commandBytes = command.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + commandBytes.length + Integer.BYTES + text.length);
+
+        buffer.putInt(commandBytes.length).put(commandBytes).putInt(text.length).put(text);
+
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+}
@@ -0,0 +1,278 @@
+package chatapp_combined.serverCommand;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The type Mailbox.
+ * The messages stored on the server for a user while the user is offline, in a file of its own. The file starts
+ * with the offset up to which the messages have been delivered, followed by the messages back to back, each one as
+ * the length of its body, the CRC32C of the body and the body: the length of the sender, the sender and the text.
+ * Delivered messages are only dropped once all of them are, then the file starts over.
+ * <p>
+ * The senders of the messages and the receiver run on different loops, so every method is synchronized.
+ *
+ * @author Dimitar Kolev
+ */
+final class Mailbox {
+
+    private static final int HEADER_SIZE = Long.BYTES;
+    private static final int RECORD_HEADER = 2 * Integer.BYTES;
+    private static final String SUFFIX = ".mbox";
+
+
+    /**
+     * A stored message.
+     *
+     * @param sender the name of the sender
+     * @param text   the UTF-8 bytes of the message
+     */
+    record StoredMessage(String sender, byte[] text) {
+    }
+
+    /**
+     * The messages read for one batch.
+     *
+     * @param messages  the messages, oldest first
+     * @param endOffset the offset after the last message, what the receiver acknowledges
+     */
+    record Batch(List<StoredMessage> messages, long endOffset) {
+    }
+
+
+    private final FileChannel channel;
+    private final long maxBytes;
+    private final boolean fsync;
+    private long deliveredOffset;
+    private long size;
+
+
+    private Mailbox(final FileChannel channel, final long maxBytes, final boolean fsync) {
+        this.channel = channel;
+        this.maxBytes = maxBytes;
+        this.fsync = fsync;
+    }
+
+
+    /**
+     * Opens the mailboxes of all the users that have one.
+     *
+     * @param directory the directory of the mailboxes
+     * @param maxBytes  the most undelivered bytes a mailbox holds
+     * @param fsync     whether every stored message is written through to the disk
+     * @param mailboxes the map the mailboxes are put into, by username
+     * @throws IOException If a mailbox cannot be opened.
+     */
+    static void openAll(final Path directory, final long maxBytes, final boolean fsync,
+                        final Map<String, Mailbox> mailboxes) throws IOException {
+        Files.createDirectories(directory);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                final String fileName = file.getFileName().toString();
+                if (fileName.endsWith(SUFFIX)) {
+                    final String username = URLDecoder.decode(fileName.substring(0, fileName.length() - SUFFIX.length()),
+                            StandardCharsets.UTF_8);
+                    mailboxes.put(username, open(file, maxBytes, fsync));
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the mailbox of a user, creating it if it does not exist. A message that was only partly written
+     * when the server stopped is cut off.
+     *
+     * @param directory the directory of the mailboxes
+     * @param username  the username
+     * @param maxBytes  the most undelivered bytes the mailbox holds
+     * @param fsync     whether every stored message is written through to the disk
+     * @return the mailbox
+     * @throws IOException If the mailbox cannot be opened.
+     */
+    static Mailbox open(final Path directory, final String username, final long maxBytes, final boolean fsync)
+            throws IOException {
+        return open(directory.resolve(URLEncoder.encode(username, StandardCharsets.UTF_8) + SUFFIX), maxBytes, fsync);
+    }
+
+    /**
+     * Stores a message.
+     *
+     * @param sender the name of the sender
+     * @param text   the UTF-8 bytes of the message
+     * @return false if the mailbox is full and the message is dropped
+     * @throws IOException If the message cannot be written.
+     */
+    synchronized boolean append(final String sender, final byte[] text) throws IOException {
+        final byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        final int bodyLength = Integer.BYTES + senderBytes.length + text.length;
+        if (size - deliveredOffset + RECORD_HEADER + bodyLength > maxBytes) {
+            return false;
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + bodyLength);
+        record.putInt(bodyLength).putInt(0).putInt(senderBytes.length).put(senderBytes).put(text);
+        final CRC32C crc = new CRC32C();
+        crc.update(record.array(), RECORD_HEADER, bodyLength);
+        record.putInt(Integer.BYTES, (int) crc.getValue()).flip();
+
+        writeFully(record, size);
+        size += record.limit();
+        if (fsync) {
+            channel.force(false);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the messages of a batch with one read of the file.
+     *
+     * @param from     the offset to read from, the end of the previous batch
+     * @param maxBytes the size of a batch, at least one message is read however long it is
+     * @return the batch, or null if there is nothing more to deliver
+     * @throws IOException If the file cannot be read.
+     */
+    synchronized Batch read(final long from, final int maxBytes) throws IOException {
+        final long start = Math.max(from, deliveredOffset);
+        if (start >= size) {
+            return null;
+        }
+
+        final int firstLength = RECORD_HEADER + readFully(ByteBuffer.allocate(Integer.BYTES), start).getInt(0);
+        final ByteBuffer block = readFully(ByteBuffer.allocate((int) Math.min(size - start,
+                Math.max(maxBytes, firstLength))), start);
+
+        final List<StoredMessage> messages = new ArrayList<>();
+        while (block.remaining() >= RECORD_HEADER && block.remaining() >= RECORD_HEADER + block.getInt(block.position())) {
+            final int bodyLength = block.getInt();
+            block.getInt(); // The checksum, verified when the mailbox is opened
+            final int senderLength = block.getInt();
+            final String sender = new String(block.array(), block.position(), senderLength, StandardCharsets.UTF_8);
+            final byte[] text = new byte[bodyLength - Integer.BYTES - senderLength];
+            block.position(block.position() + senderLength).get(text);
+            messages.add(new StoredMessage(sender, text));
+        }
+        return new Batch(messages, start + block.position());
+    }
+
+    /**
+     * Marks the messages up to an offset as delivered.
+     *
+     * @param offset the end of an acknowledged batch
+     * @throws IOException If the offset cannot be written.
+     */
+    synchronized void acknowledge(final long offset) throws IOException {
+        if (offset > deliveredOffset && offset <= size) {
+            deliveredOffset = offset;
+            writeFully(ByteBuffer.allocate(HEADER_SIZE).putLong(0, deliveredOffset), 0);
+        }
+    }
+
+    /**
+     * Starts the file over if every message has been delivered. Only called while the user is not receiving
+     * a backlog, the offsets of a backlog would no longer match.
+     *
+     * @throws IOException If the file cannot be truncated.
+     */
+    synchronized void compact() throws IOException {
+        if (deliveredOffset == size && size > HEADER_SIZE) {
+            channel.truncate(HEADER_SIZE);
+            size = HEADER_SIZE;
+            deliveredOffset = HEADER_SIZE;
+            writeFully(ByteBuffer.allocate(HEADER_SIZE).putLong(0, deliveredOffset), 0);
+        }
+    }
+
+    /**
+     * Gets the offset up to which the messages have been delivered, where a new backlog starts.
+     *
+     * @return the offset
+     */
+    synchronized long getDeliveredOffset() {
+        return deliveredOffset;
+    }
+
+    private static Mailbox open(final Path file, final long maxBytes, final boolean fsync) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        final Mailbox mailbox = new Mailbox(channel, maxBytes, fsync);
+
+        try {
+            mailbox.recover();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return mailbox;
+    }
+
+    /**
+     * Reads the delivered offset and checks the messages after it, cutting the file off at the first one that
+     * is incomplete or corrupt.
+     */
+    private void recover() throws IOException {
+        size = channel.size();
+        if (size < HEADER_SIZE) {
+            size = HEADER_SIZE;
+            deliveredOffset = HEADER_SIZE;
+            writeFully(ByteBuffer.allocate(HEADER_SIZE).putLong(0, deliveredOffset), 0);
+            return;
+        }
+
+        deliveredOffset = readFully(ByteBuffer.allocate(HEADER_SIZE), 0).getLong(0);
+        if (deliveredOffset < HEADER_SIZE || deliveredOffset > size) {
+            throw new IOException("Corrupt mailbox, delivered up to " + deliveredOffset + " of " + size + " bytes");
+        }
+
+        long position = deliveredOffset;
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        while (position + RECORD_HEADER <= size) {
+            readFully(header.clear(), position);
+            final int bodyLength = header.getInt(0);
+            if (bodyLength < Integer.BYTES || position + RECORD_HEADER + bodyLength > size) {
+                break;
+            }
+
+            final ByteBuffer body = readFully(ByteBuffer.allocate(bodyLength), position + RECORD_HEADER);
+            final CRC32C crc = new CRC32C();
+            crc.update(body.array());
+            if ((int) crc.getValue() != header.getInt(Integer.BYTES) || body.getInt(0) > bodyLength - Integer.BYTES) {
+                break;
+            }
+            position += RECORD_HEADER + bodyLength;
+        }
+
+        if (position < size) {
+            channel.truncate(position);
+            size = position;
+        }
+    }
+
+    private ByteBuffer readFully(final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Mailbox ends early");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private void writeFully(final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package chatapp_combined.serverCommand;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The type Room.
+ * A named group of users on the server. The members are kept per loop in arrays that are copied on every join
+ * and leave, so a message to the room reads them without a lock. A message is encoded once, and each loop with
+ * members gets one task that hands every member of that loop its own view of the same bytes. A room with
+ * thousands of members costs one task per loop, not one per member.
+ *
+ * @author Dimitar Kolev
+ */
+final class Room {
+
+    private final String name;
+    // Replaced as a whole on every change, never modified
+    private volatile Map<EventLoop, Connection[]> membersByLoop = Map.of();
+    private int size;
+    private boolean closed;
+
+
+    /**
+     * Instantiates a new Room.
+     *
+     * @param name the name of the room
+     */
+    Room(final String name) {
+        this.name = name;
+    }
+
+
+    /**
+     * Gets the name of the room.
+     *
+     * @return the name
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of members.
+     *
+     * @return the number of members
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Adds a member.
+     *
+     * @param connection the connection of the member
+     * @return false if the room was closed when its last member left, the server opens a new one under the name
+     */
+    synchronized boolean join(final Connection connection) {
+        if (closed) {
+            return false;
+        }
+
+        final Map<EventLoop, Connection[]> members = new HashMap<>(membersByLoop);
+        final Connection[] ofLoop = members.getOrDefault(connection.getLoop(), new Connection[0]);
+        final Connection[] joined = Arrays.copyOf(ofLoop, ofLoop.length + 1);
+        joined[ofLoop.length] = connection;
+        members.put(connection.getLoop(), joined);
+
+        membersByLoop = members;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a member.
+     *
+     * @param connection the connection of the member
+     * @return true if the room is empty now and closed
+     */
+    synchronized boolean leave(final Connection connection) {
+        final Connection[] ofLoop = membersByLoop.get(connection.getLoop());
+        final int index = ofLoop == null ? -1 : Arrays.asList(ofLoop).indexOf(connection);
+        if (index < 0) {
+            return closed;
+        }
+
+        final Map<EventLoop, Connection[]> members = new HashMap<>(membersByLoop);
+        if (ofLoop.length == 1) {
+            members.remove(connection.getLoop());
+        } else {
+            final Connection[] left = new Connection[ofLoop.length - 1];
+            System.arraycopy(ofLoop, 0, left, 0, index);
+            System.arraycopy(ofLoop, index + 1, left, index, left.length - index);
+            members.put(connection.getLoop(), left);
+        }
+
+        membersByLoop = members;
+        size--;
+        closed = size == 0;
+        return closed;
+    }
+
+    /**
+     * Sends a frame to every member. Safe to call from any thread.
+     *
+     * @param source the member the frame comes from, who does not get it, or null
+     * @param frame  the frame
+     * @return the number of members the frame goes to
+     */
+    int broadcast(final Connection source, final VersionedFrame frame) {
+        int receivers = 0;
+
+        for (Map.Entry<EventLoop, Connection[]> entry : membersByLoop.entrySet()) {
+            final Connection[] members = entry.getValue();
+            // Runs on the loop of the members, where sending to them queues the frame right away
+            entry.getKey().execute(() -> {
+                for (Connection member : members) {
+                    if (member != source) {
+                        member.send(null, false, false, frame.forVersion(member.getVersion()));
+                    }
+                }
+            });
+            receivers += members.length;
+        }
+        return source == null ? receivers : receivers - 1;
+    }
+
+}
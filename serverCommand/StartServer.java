@@ -0,0 +1,45 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.messagesCommand.Command;
+
+import java.io.IOException;
+
+/**
+ * The type Start server.
+ * Class representing a command that runs the multi-user chat server until it is stopped.
+ *
+ * @author Dimitar Kolev
+ */
+public class StartServer implements Command {
+
+    private final ChatServer server;
+
+
+    /**
+     * Constructs a StartServer command with the specified server.
+     *
+     * @param server The server to be started.
+     */
+    public StartServer(final ChatServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Executes the command to start the server and blocks while it is running.
+     *
+     * @throws IOException If the server cannot be started.
+     */
+    @Override
+    public void execute() throws IOException {
+        server.start();
+
+        try {
+            server.awaitTermination();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.protocol.Handshake;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The type Versioned frame.
+ * The same frame encoded once for each protocol version, so that every receiver gets the bytes it understands
+ * without encoding the frame again per receiver.
+ *
+ * @param version1 the read-only version 1 encoding
+ * @param version2 the read-only version 2 encoding
+ * @author Dimitar Kolev
+ */
+record VersionedFrame(ByteBuffer version1, ByteBuffer version2) {
+
+    /**
+     * Gets a view of the encoding for the given version.
+     *
+     * @param version the protocol version of the receiver
+     * @return a new view of the shared bytes
+     */
+    ByteBuffer forVersion(final int version) {
+        return (version < Handshake.VERSION_2 ? version1 : version2).duplicate();
+    }
+
+}
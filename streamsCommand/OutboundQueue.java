@@ -0,0 +1,555 @@
+package chatapp_combined.streamsCommand;
+
+import chatapp_combined.messagesCommand.TaskExecutor;
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.Gauge;
+import chatapp_combined.metrics.Histogram;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.BufferPool;
+import chatapp_combined.protocol.Compression;
+import chatapp_combined.protocol.FlowControl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+import static chatapp_combined.Utility.ConfigUtils.getLong;
+
+/**
+ * The type Outbound queue.
+ * The single writer of a connection. Producers only enqueue encoded frames, one writer thread drains whatever
+ * is pending and hands it to the socket in one gathering write, so a burst of chat messages costs one system
+ * call instead of one per message. Frames of file transfers go to a second, bulk lane that is only served when
+ * no chat frame is waiting, one chunk at a time, so a message never waits for more than one chunk of a file.
+ * Once the peer can inflate them, the runs of chat messages in a batch are deflated together, see {@link Compression}.
+ * Once the peer takes part in the {@link FlowControl flow control}, a chunk only leaves while the peer has granted
+ * credit for it, the chunks behind it wait in the bulk lane and the producers block once it is full.
+ * Over a {@link TlsChannel} a batch becomes as few records as it fits in, and the chunks are encrypted from the mapped file.
+ * The batches are tuned with:
+ * <ul>
+ *     <li>-Dchatapp.write.lingerMicros - how long the writer waits for more frames before writing (default 0)</li>
+ *     <li>-Dchatapp.write.maxBatchBytes - the most bytes written at once (default 64KB)</li>
+ *     <li>-Dchatapp.write.maxBatchFrames - the most frames written at once (default 64)</li>
+ * </ul>
+ *
+ * @author Dimitar Kolev
+ */
+public final class OutboundQueue {
+
+    private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(getLong("write.lingerMicros", 0));
+    private static final int MAX_BATCH_BYTES = getInt("write.maxBatchBytes", 64 * 1024);
+    private static final int MAX_BATCH_FRAMES = getInt("write.maxBatchFrames", 64);
+    private static final int MAX_BULK_FRAMES = 8; // Chunks a transfer may queue ahead of the writer
+
+    // The depth of the queues of all the connections together
+    private static final Gauge QUEUED_BYTES = MetricsRegistry.gauge("outbound.queued.bytes");
+    private static final Gauge QUEUED_BULK_FRAMES = MetricsRegistry.gauge("outbound.queued.bulkFrames");
+    private static final Counter BYTES_WRITTEN = MetricsRegistry.counter("outbound.bytes.written");
+    // How often a chunk had to wait for the peer to grant credit
+    private static final Counter CREDIT_STALLS = MetricsRegistry.counter("outbound.credit.stalls");
+    private static final Histogram BATCH_FRAMES = MetricsRegistry.histogram("outbound.batch.frames");
+
+
+    /**
+     * A frame of a file transfer: the encoded frame header, optionally followed by a region of the file that
+     * is moved with {@link FileChannel#transferTo}. The content is the number of bytes of the file the frame
+     * carries, what it costs of the credit.
+     */
+    private record BulkFrame(ByteBuffer header, FileChannel file, long position, long length, long content,
+                             CompletableFuture<Void> written) {
+    }
+
+    /**
+     * An action that writes to the connection directly, e.g. the content of a file.
+     */
+    @FunctionalInterface
+    public interface ExclusiveWrite {
+
+        /**
+         * Writes to the connection.
+         *
+         * @throws IOException If an I/O error occurs.
+         */
+        void write() throws IOException;
+
+    }
+
+
+    private final WritableByteChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final Condition bulkSpace = lock.newCondition();
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    private final ArrayDeque<BulkFrame> bulkFrames = new ArrayDeque<>();
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_FRAMES];
+    private BulkFrame bulkFrame; // The bulk frame being written
+    private volatile Compression compression; // Only used by the writer thread
+    private boolean flowControl;
+    private long credit;     // May drop below zero, the chunk that started with the last credit is sent whole
+    private boolean stalled;
+
+    private long queuedBytes;
+    private boolean writing;
+    private boolean exclusive;
+    private IOException failure;
+
+
+    /**
+     * Instantiates a new Outbound queue.
+     *
+     * @param channel the channel of the connection
+     */
+    public OutboundQueue(final WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+
+    /**
+     * Starts the writer thread.
+     *
+     * @param executor the executor that runs the writer
+     */
+    public void start(final TaskExecutor executor) {
+        executor.execute("Write Message Thread", this::writeFrames);
+    }
+
+    /**
+     * Queues a frame. Returns right away, the frame is written by the writer thread.
+     * A direct buffer is taken to be from {@link BufferPool#direct()} and is given back to it once written.
+     *
+     * @param frame the encoded frame, not modified after this call
+     * @throws IOException If an earlier write failed, the connection is gone.
+     */
+    public void enqueue(final ByteBuffer frame) throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+
+            frames.add(frame);
+            queuedBytes += frame.remaining();
+            QUEUED_BYTES.add(frame.remaining());
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts compressing the runs of chat messages, called once the peer has said it can inflate them.
+     */
+    public void enableCompression() {
+        compression = new Compression();
+    }
+
+    /**
+     * Holds the chunks back until the peer grants credit for them, called once the peer has said it grants it.
+     */
+    public void enableFlowControl() {
+        lock.lock();
+        try {
+            flowControl = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the credit the peer has granted, a chunk that waited for it is written next.
+     *
+     * @param bytes the number of bytes granted
+     */
+    public void addCredit(final long bytes) {
+        lock.lock();
+        try {
+            credit += bytes;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a frame of a file transfer in the bulk lane.
+     *
+     * @param header the encoded frame
+     * @return completed once the frame is written
+     * @throws IOException If an earlier write failed, the connection is gone.
+     */
+    public CompletableFuture<Void> enqueueBulk(final ByteBuffer header) throws IOException {
+        return enqueueBulk(header, 0);
+    }
+
+    /**
+     * Queues a whole frame of a file transfer in the bulk lane, e.g. a compressed chunk.
+     *
+     * @param frame   the encoded frame
+     * @param content the number of bytes of the file in the frame, before any compression
+     * @return completed once the frame is written
+     * @throws IOException If an earlier write failed, the connection is gone.
+     */
+    public CompletableFuture<Void> enqueueBulk(final ByteBuffer frame, final long content) throws IOException {
+        return enqueueBulk(new BulkFrame(frame, null, 0, 0, content, new CompletableFuture<>()));
+    }
+
+    /**
+     * Queues a chunk of a file transfer in the bulk lane: the frame header, then a region of the file as the payload.
+     * Blocks while the lane is full, so a large file is never queued ahead of the socket.
+     *
+     * @param header   the encoded frame header
+     * @param file     the file, must stay open until the chunk is written
+     * @param position the position of the region in the file
+     * @param length   the length of the region
+     * @return completed once the chunk is written
+     * @throws IOException If an earlier write failed, the connection is gone.
+     */
+    public CompletableFuture<Void> enqueueBulk(final ByteBuffer header, final FileChannel file, final long position,
+                                               final long length) throws IOException {
+        return enqueueBulk(new BulkFrame(header, file, position, length, length, new CompletableFuture<>()));
+    }
+
+    private CompletableFuture<Void> enqueueBulk(final BulkFrame frame) throws IOException {
+        lock.lock();
+        try {
+            while (failure == null && bulkFrames.size() >= MAX_BULK_FRAMES) {
+                bulkSpace.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            bulkFrames.add(frame);
+            QUEUED_BULK_FRAMES.increment();
+            notEmpty.signal();
+            return frame.written();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until everything queued so far is written, then runs the action while the writer is held back.
+     * Frames queued in the meantime are written after the action.
+     *
+     * @param write the action
+     * @throws IOException If the action or an earlier write failed.
+     */
+    public void runExclusive(final ExclusiveWrite write) throws IOException {
+        lock.lock();
+        try {
+            while (failure == null && (!frames.isEmpty() || !bulkFrames.isEmpty() || writing)) {
+                drained.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            exclusive = true;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            write.write();
+        } finally {
+            lock.lock();
+            try {
+                exclusive = false;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stops the writer, frames that are still queued are dropped.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            fail(new ClosedChannelException());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of bytes waiting to be written.
+     *
+     * @return the queued bytes
+     */
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The writer loop: take a batch of chat frames or one bulk frame, write it without holding the lock, repeat.
+     */
+    private void writeFrames() {
+        try {
+            while (true) {
+                final int count = compressBatch(takeBatch());
+                if (count > 0) {
+                    writeBatch(count);
+                } else {
+                    writeBulkFrame();
+                }
+                finishBatch(count);
+            }
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                fail(e);
+                writing = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Records the failure and drops everything still queued. Called with the lock held.
+     */
+    private void fail(final IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+
+        frames.clear();
+        QUEUED_BYTES.add(-queuedBytes);
+        queuedBytes = 0;
+        for (BulkFrame frame : bulkFrames) {
+            frame.written().completeExceptionally(failure);
+        }
+        QUEUED_BULK_FRAMES.add(-bulkFrames.size());
+        bulkFrames.clear();
+        if (bulkFrame != null) {
+            bulkFrame.written().completeExceptionally(failure);
+        }
+
+        notEmpty.signalAll();
+        drained.signalAll();
+        bulkSpace.signalAll();
+    }
+
+    /**
+     * Takes the next work of the writer, chat frames first.
+     *
+     * @return the number of chat frames in the batch, 0 when a bulk frame was taken instead
+     */
+    private int takeBatch() throws IOException {
+        lock.lock();
+        try {
+            while (failure == null && ((frames.isEmpty() && !isBulkFrameReady()) || exclusive)) {
+                notEmpty.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            if (frames.isEmpty()) {
+                bulkFrame = bulkFrames.poll();
+                credit -= flowControl ? bulkFrame.content() : 0;
+                stalled = false;
+                QUEUED_BULK_FRAMES.decrement();
+                writing = true;
+                bulkSpace.signal();
+                return 0;
+            }
+
+            // Give a burst the chance to complete, so it leaves in one write
+            long lingerLeft = LINGER_NANOS;
+            while (lingerLeft > 0 && frames.size() < MAX_BATCH_FRAMES && queuedBytes < MAX_BATCH_BYTES) {
+                try {
+                    lingerLeft = notEmpty.awaitNanos(lingerLeft);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            int count = 0;
+            int bytes = 0;
+            while (!frames.isEmpty() && count < MAX_BATCH_FRAMES && (count == 0 || bytes < MAX_BATCH_BYTES)) {
+                final ByteBuffer frame = frames.poll();
+                bytes += frame.remaining();
+                batch[count++] = frame;
+            }
+
+            queuedBytes -= bytes;
+            QUEUED_BYTES.add(-bytes);
+            BATCH_FRAMES.record(count);
+            writing = true;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells whether the next bulk frame may be written: it does not carry content or the peer has credit left.
+     * Called with the lock held.
+     */
+    private boolean isBulkFrameReady() {
+        final BulkFrame next = bulkFrames.peek();
+        if (next == null || !flowControl || next.content() == 0 || credit > 0) {
+            return next != null;
+        }
+
+        if (!stalled) {
+            stalled = true;
+            CREDIT_STALLS.increment();
+        }
+        return false;
+    }
+
+    /**
+     * Replaces every run of chat messages in the batch that deflates well with one batch frame, the frames
+     * in between stay where they are.
+     *
+     * @return the number of frames left in the batch
+     */
+    private int compressBatch(final int count) {
+        final Compression batchCompression = compression;
+        if (batchCompression == null || count == 0) {
+            return count;
+        }
+
+        int kept = 0;
+        int first = 0;
+        while (first < count) {
+            int end = first;
+            while (end < count && Compression.isMessage(batch[end])) {
+                end++;
+            }
+
+            final ByteBuffer compressed = end > first ? batchCompression.encodeBatch(batch, first, end, BufferPool.direct()) : null;
+            if (compressed != null) {
+                for (int i = first; i < end; i++) {
+                    release(batch[i]);
+                }
+                batch[kept++] = compressed;
+                first = end;
+            } else {
+                // The run as it is, or the frame that ended it
+                final int stop = Math.max(end, first + 1);
+                while (first < stop) {
+                    batch[kept++] = batch[first++];
+                }
+            }
+        }
+
+        for (int i = kept; i < count; i++) {
+            batch[i] = null;
+        }
+        return kept;
+    }
+
+    private void writeBatch(final int count) throws IOException {
+        long written = 0;
+
+        if (channel instanceof GatheringByteChannel gatheringChannel) {
+            int first = 0;
+            while (first < count) {
+                written += gatheringChannel.write(batch, first, count - first);
+                while (first < count && !batch[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                while (batch[i].hasRemaining()) {
+                    written += channel.write(batch[i]);
+                }
+            }
+        }
+        BYTES_WRITTEN.add(written);
+    }
+
+    private void writeBulkFrame() throws IOException {
+        if (channel instanceof TlsChannel tlsChannel) {
+            writeEncryptedBulkFrame(tlsChannel);
+            return;
+        }
+
+        final ByteBuffer header = bulkFrame.header();
+        final int headerLength = header.remaining();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        long written = 0;
+        while (written < bulkFrame.length()) {
+            final long position = bulkFrame.position() + written;
+            final long transferred = bulkFrame.file().transferTo(position, bulkFrame.length() - written, channel);
+            // Nothing is transferred past the end, a file that shrank while it is sent would never be done
+            if (transferred == 0 && position >= bulkFrame.file().size()) {
+                throw new EOFException();
+            }
+            written += transferred;
+        }
+        BYTES_WRITTEN.add(headerLength + written);
+    }
+
+    /**
+     * Writes a bulk frame over TLS. The region of the file is mapped and encrypted in place together with the
+     * header, the same pages a zero-copy transfer would have handed to the kernel.
+     */
+    private void writeEncryptedBulkFrame(final TlsChannel tlsChannel) throws IOException {
+        final ByteBuffer content = bulkFrame.length() > 0
+                ? bulkFrame.file().map(FileChannel.MapMode.READ_ONLY, bulkFrame.position(), bulkFrame.length())
+                : ByteBuffer.allocate(0);
+        final ByteBuffer[] frame = {bulkFrame.header(), content};
+
+        long written = 0;
+        while (frame[0].hasRemaining() || content.hasRemaining()) {
+            written += tlsChannel.write(frame);
+        }
+        BYTES_WRITTEN.add(written);
+    }
+
+    private void finishBatch(final int count) {
+        for (int i = 0; i < count; i++) {
+            release(batch[i]);
+            batch[i] = null;
+        }
+
+        lock.lock();
+        try {
+            if (bulkFrame != null) {
+                bulkFrame.written().complete(null);
+                bulkFrame = null;
+            }
+            writing = false;
+            if (frames.isEmpty() && bulkFrames.isEmpty()) {
+                drained.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void release(final ByteBuffer frame) {
+        if (frame.isDirect()) {
+            BufferPool.direct().release(frame);
+        }
+    }
+
+}
@@ -0,0 +1,662 @@
+package chatapp_combined.streamsCommand;
+
+import chatapp_combined.metrics.Counter;
+import chatapp_combined.metrics.Histogram;
+import chatapp_combined.metrics.MetricsRegistry;
+import chatapp_combined.protocol.BufferPool;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static chatapp_combined.Utility.ConfigUtils.getBoolean;
+import static chatapp_combined.Utility.ConfigUtils.getInt;
+import static chatapp_combined.Utility.ConfigUtils.getString;
+
+/**
+ * The type Tls channel.
+ * Encrypts a connection with TLS, built on an {@link SSLEngine} over the socket channel. It is a channel like the
+ * socket's own: a client reads and writes it through {@link #newInputStream() streams} that never pin a virtual
+ * thread and its single writer gathers the frames of a batch into one record, and the loops of the server drive it
+ * without blocking, one read and one write at a time.
+ * <p>
+ * The buffers the records are received and sent in are taken from the pool of direct buffers and given back as
+ * soon as they are empty, so an idle connection holds none. What is decrypted goes straight into the buffer of the
+ * reader when it has room for a whole record. A kernel cannot encrypt, so the content of files is no longer moved
+ * with {@link java.nio.channels.FileChannel#transferTo}, it is mapped and encrypted straight from the file instead,
+ * see {@link #write(ByteBuffer[], int, int)}.
+ * <p>
+ * The sessions are kept in one context for the whole process, a client that connects to the same host and port
+ * again resumes its session and skips the costly part of the handshake.
+ * The transport is set with:
+ * <ul>
+ *     <li>-Dchatapp.tls - whether the connections are encrypted (default false)</li>
+ *     <li>-Dchatapp.tls.keyStore - the key store with the key and the certificate of the server</li>
+ *     <li>-Dchatapp.tls.keyStorePassword - its password</li>
+ *     <li>-Dchatapp.tls.trustStore - the certificates a client trusts (default the ones of the JDK)</li>
+ *     <li>-Dchatapp.tls.trustStorePassword - its password</li>
+ *     <li>-Dchatapp.tls.verifyHost - whether the certificate has to be for the host connected to (default true)</li>
+ *     <li>-Dchatapp.tls.sessionTimeoutSeconds - how long a session can be resumed (default 86400)</li>
+ * </ul>
+ * A read and a write may run at the same time on different threads, reads among themselves and writes among
+ * themselves may not.
+ *
+ * @author Dimitar Kolev
+ */
+public final class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final boolean ENABLED = getBoolean("tls", false);
+    private static final String KEY_STORE = getString("tls.keyStore", null);
+    private static final String KEY_STORE_PASSWORD = getString("tls.keyStorePassword", "");
+    private static final String TRUST_STORE = getString("tls.trustStore", null);
+    private static final String TRUST_STORE_PASSWORD = getString("tls.trustStorePassword", "");
+    private static final boolean VERIFY_HOST = getBoolean("tls.verifyHost", true);
+    private static final int SESSION_TIMEOUT_SECONDS = getInt("tls.sessionTimeoutSeconds", 24 * 60 * 60);
+
+    private static final Counter HANDSHAKES = MetricsRegistry.counter("tls.handshakes");
+    private static final Counter HANDSHAKES_RESUMED = MetricsRegistry.counter("tls.handshakes.resumed");
+    private static final Histogram HANDSHAKE_NANOS = MetricsRegistry.histogram("tls.handshake.nanos");
+
+    private static final ByteBuffer[] NOTHING = {ByteBuffer.allocate(0)};
+
+    private static SSLContext context;
+
+
+    private final SocketChannel socket;
+    private final SSLEngine engine;
+    private final int packetSize;
+    private final int applicationSize;
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final long handshakeStartNanos = System.nanoTime();
+    private final long handshakeStartMillis = System.currentTimeMillis();
+    private boolean handshakeFinished;
+
+    // Ready to be read from when not null, given back to the pool once empty
+    private ByteBuffer netIn;       // Records received and not decrypted yet
+    private ByteBuffer appIn;       // Decrypted and not taken by the reader yet, when the reader had too little room
+    private ByteBuffer netOut;      // Records encrypted and not written yet
+
+
+    private TlsChannel(final SocketChannel socket, final SSLEngine engine) throws SSLException {
+        this.socket = socket;
+        this.engine = engine;
+        this.packetSize = engine.getSession().getPacketBufferSize();
+        this.applicationSize = engine.getSession().getApplicationBufferSize();
+        engine.beginHandshake();
+    }
+
+
+    /**
+     * Tells whether the connections are encrypted.
+     *
+     * @return true if they are
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Opens the client side of an encrypted connection. A session of an earlier connection to the same host and port
+     * is resumed.
+     *
+     * @param socket the connected socket channel
+     * @param host   the host connected to, its certificate is checked against it
+     * @param port   the port connected to
+     * @return the channel, the handshake starts with the first read or write
+     * @throws IOException If TLS cannot be set up.
+     */
+    public static TlsChannel client(final SocketChannel socket, final String host, final int port) throws IOException {
+        final SSLEngine engine = context().createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        if (VERIFY_HOST) {
+            final SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        return new TlsChannel(socket, engine);
+    }
+
+    /**
+     * Opens the server side of an encrypted connection.
+     *
+     * @param socket the accepted socket channel
+     * @return the channel, the handshake starts with the first read
+     * @throws IOException If TLS cannot be set up, e.g. there is no key store.
+     */
+    public static TlsChannel server(final SocketChannel socket) throws IOException {
+        final SSLEngine engine = serverContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(socket, engine);
+    }
+
+    /**
+     * Sets up the context of the server side, so a missing or broken key store is found before the first user connects.
+     *
+     * @return the context
+     * @throws IOException If TLS cannot be set up.
+     */
+    public static SSLContext serverContext() throws IOException {
+        if (KEY_STORE == null) {
+            throw new IOException("A key store is needed for TLS, set -Dchatapp.tls.keyStore");
+        }
+        return context();
+    }
+
+    /**
+     * Completes the handshake. Only for a channel in blocking mode, a non-blocking one completes it as it is read.
+     *
+     * @throws IOException If the handshake fails.
+     */
+    public void handshake() throws IOException {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                readLock.lock();
+                try {
+                    // Whatever is decrypted along with the handshake waits in the buffer of the channel for the reader
+                    boolean underflow = netIn == null;
+                    if (!underflow) {
+                        final ByteBuffer target = ensureAppIn();
+                        target.compact();
+                        underflow = unwrap(target) < 0;
+                        target.flip();
+                        releaseAppInIfEmpty();
+                    }
+                    if (underflow && fill() < 0) {
+                        throw new EOFException("The connection was closed during the TLS handshake");
+                    }
+                } finally {
+                    readLock.unlock();
+                }
+            } else {
+                continueHandshake(status);
+            }
+            status = engine.getHandshakeStatus();
+        }
+    }
+
+    /**
+     * Opens a stream that reads from the channel in blocking mode. Unlike the one of
+     * {@link java.nio.channels.Channels#newInputStream}, it holds no monitor while it waits for a record, which would
+     * pin a virtual thread to its carrier.
+     *
+     * @return the stream, closing it closes the channel
+     */
+    public InputStream newInputStream() {
+        return new InputStream() {
+
+            private final byte[] single = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                Objects.checkFromIndexSize(offset, length, bytes.length);
+                return length == 0 ? 0 : TlsChannel.this.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+
+            @Override
+            public void close() throws IOException {
+                TlsChannel.this.close();
+            }
+
+        };
+    }
+
+    /**
+     * Opens a stream that writes to the channel in blocking mode, holding no monitor while the socket is full.
+     *
+     * @return the stream, closing it closes the channel
+     */
+    public OutputStream newOutputStream() {
+        return new OutputStream() {
+
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+                Objects.checkFromIndexSize(offset, length, bytes.length);
+                final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    TlsChannel.this.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                TlsChannel.this.close();
+            }
+
+        };
+    }
+
+    /**
+     * Reads what has been decrypted, receiving records from the socket while there is none.
+     *
+     * @param dst the buffer to read into
+     * @return the number of bytes read, 0 if a non-blocking socket has nothing, -1 at the end of the stream
+     * @throws IOException If an I/O error occurs or a record cannot be decrypted.
+     */
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        readLock.lock();
+        try {
+            while (true) {
+                if (appIn != null) {
+                    final int count = Math.min(appIn.remaining(), dst.remaining());
+                    dst.put(dst.position(), appIn, appIn.position(), count);
+                    dst.position(dst.position() + count);
+                    appIn.position(appIn.position() + count);
+                    releaseAppInIfEmpty();
+                    return count;
+                }
+                if (!dst.hasRemaining()) {
+                    return 0;
+                }
+                if (engine.isInboundDone()) {
+                    return -1;
+                }
+
+                if (netIn != null) {
+                    // Straight into the reader when a whole record fits, otherwise through the buffer of the channel
+                    final int produced;
+                    if (dst.remaining() >= applicationSize) {
+                        produced = unwrap(dst);
+                    } else {
+                        final ByteBuffer target = ensureAppIn();
+                        target.compact();
+                        produced = unwrap(target) < 0 ? -1 : 0;
+                        target.flip();
+                        releaseAppInIfEmpty();
+                    }
+                    if (produced > 0) {
+                        return produced;
+                    }
+                    if (produced == 0) {
+                        continue;
+                    }
+                }
+
+                final int received = fill();
+                if (received < 0) {
+                    return -1;
+                }
+                if (received == 0) {
+                    return 0;
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Tells whether something received is waiting to be read, which the socket will not announce again.
+     *
+     * @return true if there is
+     */
+    public boolean hasBufferedInput() {
+        return appIn != null || netIn != null;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts the buffers and writes the records, as many records at a time as a pooled buffer holds. The buffers
+     * are read in place, so a mapped region of a file is encrypted without being copied into the heap first.
+     * A socket in blocking mode takes everything, one in non-blocking mode may leave records behind, see
+     * {@link #hasPendingOutput()}.
+     *
+     * @return the number of bytes taken from the buffers
+     * @throws IOException If an I/O error occurs or the channel is closed.
+     */
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        writeLock.lock();
+        try {
+            long consumed = 0;
+            while (flushNetOut() && hasRemaining(srcs, offset, length)) {
+                netOut = BufferPool.direct().acquire(packetSize);
+
+                SSLEngineResult result;
+                do {
+                    result = engine.wrap(srcs, offset, length, netOut);
+                    consumed += result.bytesConsumed();
+                } while (result.getStatus() == SSLEngineResult.Status.OK && result.bytesConsumed() > 0
+                        && netOut.remaining() >= packetSize && hasRemaining(srcs, offset, length));
+                netOut.flip();
+
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new ClosedChannelException();
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new SSLException("Unexpected result of encrypting: " + result.getStatus());
+                }
+                if (result.bytesConsumed() == 0 && netOut.remaining() == 0) {
+                    // Waits for the handshake, which only the reader can move on
+                    releaseNetOutIfEmpty();
+                    break;
+                }
+                continueHandshake(result.getHandshakeStatus());
+            }
+            return consumed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the records left behind by a socket in non-blocking mode.
+     *
+     * @return true if nothing is left
+     * @throws IOException If an I/O error occurs.
+     */
+    public boolean flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (flushNetOut() && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                continueHandshake(SSLEngineResult.HandshakeStatus.NEED_WRAP);
+            }
+            return netOut == null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Tells whether encrypted records wait for the socket to take them. Only meaningful for the thread that writes.
+     *
+     * @return true if some do
+     */
+    public boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+    /**
+     * Tells the peer the connection is closing, if no write is under way, and closes the socket. The pooled buffers
+     * of a read or write under way are left to the garbage collector.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!socket.isOpen()) {
+            return;
+        }
+
+        try {
+            if (writeLock.tryLock()) {
+                try {
+                    engine.closeOutbound();
+                    if (flushNetOut()) {
+                        netOut = BufferPool.direct().acquire(packetSize);
+                        engine.wrap(NOTHING, netOut);
+                        netOut.flip();
+                        flushNetOut();
+                    }
+                } catch (IOException e) {
+                    // The peer does not get the close_notify, it sees the connection closed all the same
+                } finally {
+                    if (netOut != null) {
+                        BufferPool.direct().release(netOut);
+                        netOut = null;
+                    }
+                    writeLock.unlock();
+                }
+            }
+        } finally {
+            socket.close();
+            if (readLock.tryLock()) {
+                try {
+                    if (netIn != null) {
+                        BufferPool.direct().release(netIn);
+                        netIn = null;
+                    }
+                    if (appIn != null) {
+                        BufferPool.direct().release(appIn);
+                        appIn = null;
+                    }
+                } finally {
+                    readLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Decrypts the next record. Called with the read lock held and the received records in {@link #netIn}.
+     *
+     * @param target the buffer to decrypt into, ready to be written to
+     * @return the number of bytes decrypted, -1 if a whole record has not been received yet
+     */
+    private int unwrap(final ByteBuffer target) throws IOException {
+        final SSLEngineResult result = engine.unwrap(netIn, target);
+        releaseNetInIfEmpty();
+
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW -> {
+                return -1;
+            }
+            case BUFFER_OVERFLOW -> throw new SSLException("A record does not fit into " + target.remaining() + " bytes");
+            default -> {
+                continueHandshake(result.getHandshakeStatus());
+                return result.bytesProduced();
+            }
+        }
+    }
+
+    /**
+     * Receives records from the socket. Called with the read lock held.
+     *
+     * @return the number of bytes received, -1 at the end of the stream
+     */
+    private int fill() throws IOException {
+        if (netIn == null) {
+            netIn = BufferPool.direct().acquire(packetSize);
+            netIn.flip();
+        }
+        netIn.compact();
+        final int received = socket.read(netIn);
+        netIn.flip();
+        releaseNetInIfEmpty();
+
+        if (received < 0) {
+            try {
+                engine.closeInbound();
+            } catch (SSLException e) {
+                // Closed without a close_notify, the reader gets the end of the stream all the same
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Does what the handshake needs next, short of receiving records: runs its tasks and sends what it has to send.
+     */
+    private void continueHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK -> {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                }
+                case NEED_WRAP -> {
+                    writeLock.lock();
+                    try {
+                        if (!flushNetOut()) {
+                            return;     // The rest follows once the socket takes the records that wait
+                        }
+                        netOut = BufferPool.direct().acquire(packetSize);
+                        final SSLEngineResult result = engine.wrap(NOTHING, netOut);
+                        netOut.flip();
+                        flushNetOut();
+                        status = result.getHandshakeStatus();
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            return;
+                        }
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+                case FINISHED -> {
+                    onHandshakeFinished();
+                    return;
+                }
+                default -> {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void onHandshakeFinished() {
+        if (handshakeFinished) {
+            return;
+        }
+        handshakeFinished = true;
+
+        HANDSHAKES.increment();
+        HANDSHAKE_NANOS.record(System.nanoTime() - handshakeStartNanos);
+        // A resumed session was created by an earlier handshake
+        if (engine.getSession().getCreationTime() < handshakeStartMillis) {
+            HANDSHAKES_RESUMED.increment();
+        }
+    }
+
+    /**
+     * Writes what is in {@link #netOut}. Called with the write lock held.
+     *
+     * @return true if nothing is left
+     */
+    private boolean flushNetOut() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+
+        while (netOut.hasRemaining()) {
+            if (socket.write(netOut) == 0) {
+                return false;
+            }
+        }
+        releaseNetOutIfEmpty();
+        return true;
+    }
+
+    private ByteBuffer ensureAppIn() {
+        if (appIn == null) {
+            appIn = BufferPool.direct().acquire(applicationSize);
+            appIn.flip();
+        }
+        return appIn;
+    }
+
+    private void releaseAppInIfEmpty() {
+        if (appIn != null && !appIn.hasRemaining()) {
+            BufferPool.direct().release(appIn);
+            appIn = null;
+        }
+    }
+
+    private void releaseNetInIfEmpty() {
+        if (netIn != null && !netIn.hasRemaining()) {
+            BufferPool.direct().release(netIn);
+            netIn = null;
+        }
+    }
+
+    private void releaseNetOutIfEmpty() {
+        if (netOut != null && !netOut.hasRemaining()) {
+            BufferPool.direct().release(netOut);
+            netOut = null;
+        }
+    }
+
+    private static boolean hasRemaining(final ByteBuffer[] buffers, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static synchronized SSLContext context() throws IOException {
+        if (context == null) {
+            try {
+                final SSLContext created = SSLContext.getInstance("TLS");
+                created.init(keyManagers(), trustManagers(), null);
+                created.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+                created.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+                context = created;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to set up TLS: " + e.getMessage(), e);
+            }
+        }
+        return context;
+    }
+
+    private static KeyManager[] keyManagers() throws IOException, GeneralSecurityException {
+        if (KEY_STORE == null) {
+            return null;
+        }
+
+        final char[] password = KEY_STORE_PASSWORD.toCharArray();
+        final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(KeyStore.getInstance(new File(KEY_STORE), password), password);
+        return factory.getKeyManagers();
+    }
+
+    private static TrustManager[] trustManagers() throws IOException, GeneralSecurityException {
+        if (TRUST_STORE == null) {
+            return null;    // The ones of the JDK
+        }
+
+        final TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(KeyStore.getInstance(new File(TRUST_STORE), TRUST_STORE_PASSWORD.toCharArray()));
+        return factory.getTrustManagers();
+    }
+
+}
@@ -0,0 +1,157 @@
+package chatapp_combined.Utility;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The type Timing wheel test.
+ * Advances a wheel with short ticks on the thread of the test, the way an event loop does between its selects.
+ *
+ * @author Dimitar Kolev
+ */
+class TimingWheelTest {
+
+    private static final long TICK_MILLIS = 5;
+    private static final long WAIT_MILLIS = 5_000;
+
+
+    @Test
+    void aTaskNeverRunsBeforeItsDelay() throws InterruptedException {
+        final TimingWheel wheel = new TimingWheel(TICK_MILLIS, 100);
+        for (int i = 0; i < 20; i++) {
+            final long[] ranAt = new long[1];
+            final long scheduledAt = System.nanoTime();
+            wheel.schedule(() -> ranAt[0] = System.nanoTime(), 3 * TICK_MILLIS);
+
+            advanceUntil(wheel, () -> ranAt[0] != 0);
+            assertTrue(ranAt[0] - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(3 * TICK_MILLIS),
+                    "Ran after " + TimeUnit.NANOSECONDS.toMicros(ranAt[0] - scheduledAt) + " us");
+        }
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void aCancelledTaskNeverRuns() throws InterruptedException {
+        final TimingWheel wheel = new TimingWheel(TICK_MILLIS, 100);
+        final List<String> ran = new ArrayList<>();
+        final TimingWheel.Timeout cancelled = wheel.schedule(() -> ran.add("cancelled"), 2 * TICK_MILLIS);
+        final TimingWheel.Timeout kept = wheel.schedule(() -> ran.add("kept"), 4 * TICK_MILLIS);
+
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        assertFalse(wheel.isEmpty());
+
+        advanceUntil(wheel, () -> !ran.isEmpty());
+        assertEquals(List.of("kept"), ran);
+        assertFalse(wheel.cancel(kept));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void aTaskBeyondOneTurnWaitsForItsTurn() throws InterruptedException {
+        // Four slots, so the task passes its slot three times before it is due
+        final TimingWheel wheel = new TimingWheel(TICK_MILLIS, 4 * TICK_MILLIS);
+        final long delayMillis = 15 * TICK_MILLIS;
+        final long[] ranAt = new long[1];
+        final long scheduledAt = System.nanoTime();
+        wheel.schedule(() -> ranAt[0] = System.nanoTime(), delayMillis);
+
+        advanceUntil(wheel, () -> ranAt[0] != 0);
+        assertTrue(ranAt[0] - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    }
+
+    @Test
+    void tasksRunInTheOrderOfTheirDeadlines() throws InterruptedException {
+        final TimingWheel wheel = new TimingWheel(TICK_MILLIS, 8 * TICK_MILLIS);
+        final List<Integer> ran = new ArrayList<>();
+        for (int i = 5; i >= 1; i--) {
+            final int order = i;
+            wheel.schedule(() -> ran.add(order), 3 * i * TICK_MILLIS);
+        }
+
+        advanceUntil(wheel, wheel::isEmpty);
+        assertEquals(List.of(1, 2, 3, 4, 5), ran);
+    }
+
+    @Test
+    void everythingDueRunsAtOnceAfterALongPause() throws InterruptedException {
+        final TimingWheel wheel = new TimingWheel(TICK_MILLIS, 4 * TICK_MILLIS);
+        final List<Integer> ran = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            final int order = i;
+            wheel.schedule(() -> ran.add(order), i * TICK_MILLIS);
+        }
+        wheel.schedule(() -> ran.add(-1), 10_000);
+
+        // Several turns of the wheel go by without a tick being processed
+        Thread.sleep(20 * TICK_MILLIS);
+        assertEquals(10, wheel.advance());
+        assertEquals(10, ran.size());
+        assertFalse(ran.contains(-1));
+        assertFalse(wheel.isEmpty());
+    }
+
+    @Test
+    void aRunningTaskCanScheduleAndCancelOthers() throws InterruptedException {
+        final TimingWheel wheel = new TimingWheel(TICK_MILLIS, 100);
+        final List<String> ran = new ArrayList<>();
+        final TimingWheel.Timeout later = wheel.schedule(() -> ran.add("later"), 50 * TICK_MILLIS);
+        wheel.schedule(() -> {
+            ran.add("first");
+            wheel.cancel(later);
+            wheel.schedule(() -> ran.add("again"), TICK_MILLIS);
+        }, TICK_MILLIS);
+
+        advanceUntil(wheel, wheel::isEmpty);
+        assertEquals(List.of("first", "again"), ran);
+    }
+
+    @Test
+    void aTaskCanCancelAnotherThatFellDueInTheSameTick() throws InterruptedException {
+        // Like a connection that is reaped in the tick its ping falls due
+        final TimingWheel wheel = new TimingWheel(TICK_MILLIS, 100);
+        final List<String> ran = new ArrayList<>();
+        final boolean[] cancelled = new boolean[1];
+        final TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[2];
+        for (int i = 0; i < timeouts.length; i++) {
+            final int other = 1 - i;
+            final String name = "task " + i;
+            timeouts[i] = wheel.schedule(() -> {
+                ran.add(name);
+                cancelled[0] = wheel.cancel(timeouts[other]);
+            }, 2 * TICK_MILLIS);
+        }
+
+        // Both fall due in one advance, however late it comes
+        Thread.sleep(4 * TICK_MILLIS);
+        assertEquals(1, wheel.advance());
+        assertEquals(1, ran.size());
+        assertTrue(cancelled[0]);
+        assertFalse(wheel.cancel(timeouts[0]));
+        assertFalse(wheel.cancel(timeouts[1]));
+
+        Thread.sleep(4 * TICK_MILLIS);
+        assertEquals(0, wheel.advance());
+        assertEquals(1, ran.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+
+    private static void advanceUntil(final TimingWheel wheel, final BooleanSupplier done) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (!done.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "The wheel did not get there in time");
+            Thread.sleep(wheel.millisToNextTick());
+            wheel.advance();
+        }
+    }
+
+}
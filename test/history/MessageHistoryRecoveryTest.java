@@ -0,0 +1,203 @@
+package chatapp_combined.history;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * The type Message history recovery test.
+ * Writes a history, damages the tail of its segment the way a crash in the middle of an append can, and opens it
+ * again under -Dchatapp.history.dir, as the build sets it. Whatever was completely written before the damage has
+ * to come back, and nothing after it.
+ *
+ * @author Dimitar Kolev
+ */
+class MessageHistoryRecoveryTest {
+
+    private static final int RECORDS = 20;
+    private static final int ENTRY_SIZE = 2 * Long.BYTES;
+    private static final String SEGMENT = String.format("%020d", 0);
+
+
+    @Test
+    void aPartlyWrittenRecordIsCutOff(final TestInfo test) throws IOException {
+        final Path directory = writeHistory(test);
+        truncateLog(directory, entryPosition(directory, RECORDS - 1) + Segment.RECORD_HEADER + 5);
+
+        assertRecovered(directory, RECORDS - 1);
+    }
+
+    @Test
+    void aRecordWithoutItsHeaderIsCutOff(final TestInfo test) throws IOException {
+        final Path directory = writeHistory(test);
+        truncateLog(directory, entryPosition(directory, RECORDS - 1) + 3);
+
+        assertRecovered(directory, RECORDS - 1);
+    }
+
+    @Test
+    void anIndexAheadOfTheLogIsCutBack(final TestInfo test) throws IOException {
+        // The index entries of the last five records point at the end of the log or past it
+        final Path directory = writeHistory(test);
+        truncateLog(directory, entryPosition(directory, RECORDS - 5));
+
+        assertRecovered(directory, RECORDS - 5);
+    }
+
+    @Test
+    void recordsTheIndexMissedAreIndexedAgain(final TestInfo test) throws IOException {
+        final Path directory = writeHistory(test);
+        zeroIndex(directory, RECORDS - 8);
+
+        assertRecovered(directory, RECORDS);
+    }
+
+    @Test
+    void recordsTheIndexMissedAreIndexedUpToAPartlyWrittenOne(final TestInfo test) throws IOException {
+        final Path directory = writeHistory(test);
+        truncateLog(directory, entryPosition(directory, RECORDS - 1) + Segment.RECORD_HEADER + 5);
+        zeroIndex(directory, RECORDS - 8);
+
+        assertRecovered(directory, RECORDS - 1);
+    }
+
+    @Test
+    void aRecordWithABadChecksumIsCutOff(final TestInfo test) throws IOException {
+        final Path directory = writeHistory(test);
+        final long position = entryPosition(directory, RECORDS - 1) + Segment.RECORD_HEADER + Segment.BODY_HEADER;
+        overwriteLog(directory, position, new byte[]{'#'});
+
+        assertRecovered(directory, RECORDS - 1);
+    }
+
+    @Test
+    void aZeroedTailOfTheLogIsCutOff(final TestInfo test) throws IOException {
+        // The size of the log reached the disk but the last records did not, their index entries did
+        final Path directory = writeHistory(test);
+        final long position = entryPosition(directory, RECORDS - 3);
+        overwriteLog(directory, position, new byte[(int) (Files.size(logFile(directory)) - position)]);
+
+        assertRecovered(directory, RECORDS - 3);
+    }
+
+
+    /**
+     * Writes a new history of a user of its own.
+     */
+    private static Path writeHistory(final TestInfo test) throws IOException {
+        final String user = test.getTestMethod().orElseThrow().getName();
+        final Path directory = Path.of(System.getProperty("chatapp.history.dir"), user);
+        if (Files.exists(directory)) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+
+        final MessageHistory history = MessageHistory.open(user);
+        assertNotNull(history);
+        for (int i = 0; i < RECORDS; i++) {
+            history.append(i % 2 == 0, sender(i), text(i));
+        }
+        history.close();
+        return directory;
+    }
+
+    /**
+     * Opens the history again and checks that the first records came back, that they can be searched, and that
+     * the next record follows them.
+     */
+    private static void assertRecovered(final Path directory, final int count) throws IOException {
+        final String user = directory.getFileName().toString();
+        MessageHistory history = MessageHistory.open(user);
+        assertNotNull(history);
+
+        final List<HistoryRecord> last = history.last(RECORDS);
+        assertRecords(count, last);
+        assertRecords(count, history.range(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertRecords(count, history.range(last.get(0).timestamp(), last.get(count - 1).timestamp()));
+        assertEquals(last.subList(count - 3, count), history.last(3));
+        assertRecords(count, history.search(SearchQuery.parse("message"), RECORDS));
+
+        history.append(false, "carol", "after the crash");
+        history.close();
+
+        history = MessageHistory.open(user);
+        assertNotNull(history);
+        final List<HistoryRecord> reopened = history.last(RECORDS + 1);
+        assertEquals(count + 1, reopened.size());
+        assertEquals(last, reopened.subList(0, count));
+        assertEquals(count, reopened.get(count).sequence());
+        assertEquals("after the crash", reopened.get(count).text());
+        assertEquals(List.of(reopened.get(count)), history.search(SearchQuery.parse("crash"), RECORDS));
+        history.close();
+    }
+
+    private static void assertRecords(final int count, final List<HistoryRecord> records) {
+        final List<String> expected = new ArrayList<>();
+        final List<String> actual = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            expected.add(i + " " + (i % 2 == 0) + " " + sender(i) + " " + text(i));
+        }
+        for (HistoryRecord record : records) {
+            actual.add(record.sequence() + " " + record.sent() + " " + record.sender() + " " + record.text());
+        }
+        assertEquals(expected, actual);
+    }
+
+    private static String sender(final int i) {
+        return i % 2 == 0 ? "alice" : "bob";
+    }
+
+    private static String text(final int i) {
+        return "Message " + i + " of the history";
+    }
+
+    private static Path logFile(final Path directory) {
+        return directory.resolve(SEGMENT + ".log");
+    }
+
+    private static long entryPosition(final Path directory, final int entry) throws IOException {
+        try (FileChannel index = FileChannel.open(directory.resolve(SEGMENT + ".index"))) {
+            final ByteBuffer position = ByteBuffer.allocate(Long.BYTES);
+            index.read(position, (long) entry * ENTRY_SIZE + Long.BYTES);
+            return position.getLong(0);
+        }
+    }
+
+    private static void truncateLog(final Path directory, final long size) throws IOException {
+        try (FileChannel log = FileChannel.open(logFile(directory), StandardOpenOption.WRITE)) {
+            log.truncate(size);
+        }
+    }
+
+    private static void overwriteLog(final Path directory, final long position, final byte[] bytes) throws IOException {
+        try (FileChannel log = FileChannel.open(logFile(directory), StandardOpenOption.WRITE)) {
+            log.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    /**
+     * Zeroes the index entries from one on, as if they had never been written.
+     */
+    private static void zeroIndex(final Path directory, final int from) throws IOException {
+        try (FileChannel index = FileChannel.open(directory.resolve(SEGMENT + ".index"), StandardOpenOption.WRITE)) {
+            index.write(ByteBuffer.allocate((RECORDS - from) * ENTRY_SIZE), (long) from * ENTRY_SIZE);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package chatapp_combined.history;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The type Search index test.
+ * Indexes messages with segments of 16 of them, as the build sets -Dchatapp.history.indexFlushRecords, and checks
+ * every query against a scan of the messages while they are in memory, flushed, merged and opened again.
+ *
+ * @author Dimitar Kolev
+ */
+class SearchIndexTest {
+
+    private static final long WAIT_MILLIS = 5_000;
+
+    private static final List<String> QUERIES = List.of(
+            "apple",
+            "red apple",
+            "\"red apple\"",
+            "\"apple red\" pear",
+            "from:alice",
+            "from:Bob \"red apple\"",
+            "from:carol pear",
+            "\"apple pear\"",
+            "missing");
+
+    @TempDir
+    Path directory;
+
+    private final List<String> senders = new ArrayList<>();
+    private final List<String> texts = new ArrayList<>();
+
+
+    @Test
+    void queriesFindTheSameInMemoryAndInSegments() throws IOException, InterruptedException {
+        final SearchIndex index = SearchIndex.open(directory);
+
+        addMessages(index, 10);
+        assertEquals(0, segmentCount());
+        assertQueries(index);
+
+        // Six segments and some left in memory
+        addMessages(index, 90);
+        assertEquals(6, segmentCount());
+        assertQueries(index);
+
+        // 25 segments, merged into two of 160 messages and five of 16
+        addMessages(index, 300);
+        waitForSegments(7);
+        assertQueries(index);
+
+        index.close();
+        final SearchIndex reopened = SearchIndex.open(directory);
+        assertEquals(texts.size(), reopened.nextSequence());
+        assertQueries(reopened);
+        reopened.close();
+    }
+
+    @Test
+    void onlyTheNewestMatchesAreFound() throws IOException {
+        final SearchIndex index = SearchIndex.open(directory);
+        addMessages(index, 40);
+
+        final SearchQuery query = SearchQuery.parse("apple");
+        assertEquals(List.of(39L), index.search(query, 0, texts.size(), 1));
+        assertEquals(List.of(39L, 38L, 37L, 36L, 35L), index.search(query, 0, texts.size(), 5));
+        assertEquals(List.of(19L, 18L), index.search(query, 0, 20, 2));
+        assertEquals(List.of(), index.search(query, 0, texts.size(), 0));
+        assertEquals(List.of(), index.search(query, 20, 20, 5));
+        index.close();
+    }
+
+
+    private void addMessages(final SearchIndex index, final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            final int sequence = texts.size();
+            final String sender = sequence % 3 == 0 ? "Alice" : "Bob";
+            final String text = "Message " + sequence + (sequence % 5 == 0 ? ": red apple" : ", apple red") +
+                    (sequence % 7 == 0 ? " pear" : "");
+            index.add(sequence, sender, text);
+            senders.add(sender);
+            texts.add(text);
+        }
+    }
+
+    /**
+     * Runs every query over the whole history, a part of it and with a few limits.
+     */
+    private void assertQueries(final SearchIndex index) throws IOException {
+        final int size = texts.size();
+        final long[][] ranges = {{0, size}, {size / 3, 2 * size / 3}, {size - 1, size}, {0, 1}};
+        for (String text : QUERIES) {
+            final SearchQuery query = SearchQuery.parse(text);
+            for (long[] range : ranges) {
+                for (int maxResults : new int[]{1, 7, size}) {
+                    assertEquals(scan(query, range[0], range[1], maxResults),
+                            index.search(query, range[0], range[1], maxResults),
+                            text + " in [" + range[0] + ", " + range[1] + ") at most " + maxResults);
+                }
+            }
+        }
+    }
+
+    private List<Long> scan(final SearchQuery query, final long fromSequence, final long toSequence,
+                            final int maxResults) {
+        final List<Long> matches = new ArrayList<>();
+        for (int sequence = (int) toSequence - 1; sequence >= fromSequence && matches.size() < maxResults; sequence--) {
+            if (matches(query, senders.get(sequence), texts.get(sequence))) {
+                matches.add((long) sequence);
+            }
+        }
+        return matches;
+    }
+
+    private static boolean matches(final SearchQuery query, final String sender, final String text) {
+        if (query.sender() != null && !query.sender().equals(SearchQuery.senderTerm(sender))) {
+            return false;
+        }
+        final List<String> terms = new ArrayList<>();
+        SearchQuery.tokenize(text, terms);
+        for (List<String> phrase : query.phrases()) {
+            if (Collections.indexOfSubList(terms, phrase) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void waitForSegments(final int count) throws IOException, InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (segmentCount() != count) {
+            assertTrue(System.nanoTime() < deadline, "The segments were not merged in time");
+            Thread.sleep(10);
+        }
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(IndexSegment.SUFFIX)).count();
+        }
+    }
+
+}
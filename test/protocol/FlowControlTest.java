@@ -0,0 +1,101 @@
+package chatapp_combined.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The type Flow control test.
+ * Plays a receiver that consumes what a sender sends, and checks the credit it gives back.
+ *
+ * @author Dimitar Kolev
+ */
+class FlowControlTest {
+
+    private static final long QUARTER = Math.max(1, FlowControl.WINDOW / 4);
+
+
+    @Test
+    void aCreditFrameCarriesTheGrantedBytes() throws IOException {
+        assertTrue(FlowControl.isEnabled());
+        assertEquals(FlowControl.WINDOW, FlowControl.readCredit(header(FlowControl.encode(FlowControl.WINDOW))));
+        assertEquals(1, FlowControl.readCredit(header(FlowControl.encode(1))));
+    }
+
+    @Test
+    void aCreditFrameWithoutCreditIsMalformed() throws IOException {
+        assertThrows(ProtocolException.class, () -> FlowControl.readCredit(header(FlowControl.encode(0))));
+        assertThrows(ProtocolException.class, () -> FlowControl.readCredit(header(FlowControl.encode(-1))));
+
+        final ByteBuffer withPayload = ByteBuffer.wrap(FrameCodec.encode(Opcode.CREDIT,
+                new Headers().putLong(Headers.CREDIT, 1), new byte[1]));
+        assertThrows(ProtocolException.class, () -> FlowControl.readCredit(header(withPayload)));
+    }
+
+    @Test
+    void creditWaitsForAQuarterOfTheWindow() {
+        final FlowControl flowControl = new FlowControl();
+        assertEquals(0, flowControl.takeCredit());
+
+        flowControl.consume(QUARTER - 1);
+        assertEquals(0, flowControl.takeCredit());
+
+        flowControl.consume(1);
+        assertEquals(QUARTER, flowControl.takeCredit());
+        assertEquals(0, flowControl.takeCredit());
+    }
+
+    @Test
+    void everythingConsumedIsGivenBackOnce() {
+        final FlowControl flowControl = new FlowControl();
+        flowControl.consume(QUARTER);
+        flowControl.consume(QUARTER / 2);
+        flowControl.consume(7);
+        assertEquals(QUARTER + QUARTER / 2 + 7, flowControl.takeCredit());
+
+        flowControl.consume(QUARTER - 1);
+        assertEquals(0, flowControl.takeCredit());
+        flowControl.consume(QUARTER);
+        assertEquals(2 * QUARTER - 1, flowControl.takeCredit());
+    }
+
+    @Test
+    void aSenderNeverGetsMoreThanAWindowAhead() {
+        final FlowControl receiver = new FlowControl();
+        long credit = FlowControl.WINDOW;
+        long inFlight = 0;      // Sent and not consumed by the receiver yet
+        final long chunk = Math.max(1, FlowControl.WINDOW / 10);
+
+        for (int round = 0; round < 100; round++) {
+            // The sender starts a chunk while it has credit left, the last one may go beyond it
+            while (credit > 0) {
+                credit -= chunk;
+                inFlight += chunk;
+            }
+            assertTrue(inFlight < FlowControl.WINDOW + chunk);
+
+            // The receiver writes away half of what it has, and gives back what it can
+            final long consumed = Math.max(1, inFlight / 2);
+            inFlight -= consumed;
+            receiver.consume(consumed);
+            credit += receiver.takeCredit();
+        }
+    }
+
+
+    private static FrameHeader header(final ByteBuffer frame) throws IOException {
+        final byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        return FrameCodec.readHeader(in.readUnsignedByte(), in);
+    }
+
+}
@@ -0,0 +1,176 @@
+package chatapp_combined.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The type Frame codec test.
+ * Encodes version 2 frames and reads them back from a stream, the way the receive loop of a client does, and
+ * feeds it bytes that no encoder writes.
+ *
+ * @author Dimitar Kolev
+ */
+class FrameCodecTest {
+
+    private static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+
+
+    @Test
+    void aFrameWithoutHeadersSurvivesTheWire() throws IOException {
+        final DataInputStream in = stream(FrameCodec.encode(Opcode.MESSAGE, null, "hello"));
+        final int firstByte = in.readUnsignedByte();
+        assertTrue(FrameCodec.isVersion2(firstByte));
+
+        final FrameHeader header = FrameCodec.readHeader(firstByte, in);
+        assertEquals(Opcode.MESSAGE, header.opcode());
+        assertEquals(0, header.flags() & FrameCodec.FLAG_HEADERS);
+        assertEquals(5, header.payloadLength());
+        assertEquals("hello", FrameCodec.readPayloadText(header, MAX_PAYLOAD_LENGTH, in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void aFrameWithHeadersSurvivesTheWire() throws IOException {
+        final byte[] payload = new byte[200];
+        Arrays.fill(payload, (byte) 0xAB);
+        final Headers headers = new Headers().putLong(Headers.TRANSFER_ID, 42).putString(Headers.FILE_NAME, "a.bin");
+
+        final DataInputStream in = stream(FrameCodec.encode(Opcode.FILE_END, headers, payload, 10, 150));
+        final FrameHeader header = FrameCodec.readHeader(in.readUnsignedByte(), in);
+        assertEquals(Opcode.FILE_END, header.opcode());
+        assertEquals(42, header.headers().getLong(Headers.TRANSFER_ID));
+        assertEquals("a.bin", header.headers().getString(Headers.FILE_NAME));
+        assertArrayEquals(Arrays.copyOfRange(payload, 10, 160), FrameCodec.readPayload(header, MAX_PAYLOAD_LENGTH, in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void everyOpcodeSurvivesTheWire() throws IOException {
+        for (Opcode opcode : Opcode.values()) {
+            final DataInputStream in = stream(FrameCodec.encode(opcode, null, new byte[0]));
+            assertEquals(opcode, FrameCodec.readHeader(in.readUnsignedByte(), in).opcode());
+        }
+    }
+
+    @Test
+    void aStreamedPayloadFollowsItsHeader() throws IOException {
+        final long length = 5L << 32;   // Longer than any array
+        final DataInputStream in = stream(FrameCodec.encodeHeader(Opcode.FILE_CHUNK,
+                new Headers().putLong(Headers.TRANSFER_ID, 1), length));
+
+        final FrameHeader header = FrameCodec.readHeader(in.readUnsignedByte(), in);
+        assertEquals(length, header.payloadLength());
+        assertEquals(-1, in.read());
+        assertThrows(ProtocolException.class, () -> FrameCodec.readPayload(header, MAX_PAYLOAD_LENGTH, in));
+    }
+
+    @Test
+    void pooledTextIsTheSameAsTheTextOfAString() throws IOException {
+        // ASCII, two, three and four byte characters, and a lone surrogate
+        final String text = ">> aé€🙂\uD800z";
+        final byte[] expected = FrameCodec.encode(Opcode.MESSAGE, null, text);
+
+        for (BufferPool pool : new BufferPool[]{BufferPool.heap(), BufferPool.direct()}) {
+            final ByteBuffer frame = FrameCodec.encode(Opcode.MESSAGE, null, text, 0, pool);
+            final byte[] encoded = new byte[frame.remaining()];
+            frame.get(encoded);
+            pool.release(frame);
+            assertArrayEquals(expected, encoded);
+        }
+
+        assertEquals(text.getBytes(StandardCharsets.UTF_8).length, FrameCodec.utf8Length(text, 0));
+        assertEquals(text.substring(3).getBytes(StandardCharsets.UTF_8).length, FrameCodec.utf8Length(text, 3));
+    }
+
+    @Test
+    void varintsOfEverySizeSurviveTheWire() throws IOException {
+        final long[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, 1L << 56, Long.MAX_VALUE, -1};
+        for (long value : values) {
+            final ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.varintSize(value));
+            FrameCodec.writeVarint(buffer, value);
+            assertFalse(buffer.hasRemaining());
+
+            assertEquals(value, FrameCodec.readVarint(buffer.flip()));
+            assertEquals(value, FrameCodec.readVarint(stream(buffer.array())));
+        }
+    }
+
+    @Test
+    void anUnknownOpcodeIsMalformed() {
+        final DataInputStream in = stream(new byte[]{0, 0});
+        assertThrows(ProtocolException.class, () -> FrameCodec.readHeader(FrameCodec.VERSION_BIT | 0x7F, in));
+    }
+
+    @Test
+    void aVarintOfMoreThanTenBytesIsMalformed() {
+        final byte[] bytes = new byte[11];
+        Arrays.fill(bytes, (byte) 0x80);
+
+        assertThrows(ProtocolException.class, () -> FrameCodec.readVarint(stream(bytes)));
+        assertThrows(ProtocolException.class, () -> FrameCodec.readVarint(ByteBuffer.wrap(bytes)));
+        assertThrows(ProtocolException.class, () -> FrameCodec.readVarint(ByteBuffer.wrap(bytes, 0, 3)));
+    }
+
+    @Test
+    void tooLongHeadersAreMalformed() {
+        final DataInputStream in = stream(new byte[]{FrameCodec.FLAG_HEADERS, 0, (byte) 0x81, (byte) 0x80, 0x04});
+        assertThrows(ProtocolException.class, () -> FrameCodec.readHeader(messageByte(), in));
+    }
+
+    @Test
+    void aLengthThatOverflowsIsMalformed() {
+        // Ten varint bytes whose last one sets the sign bit, the length reads as negative
+        final byte[] negative = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01};
+
+        final DataInputStream headers = stream(concat(new byte[]{FrameCodec.FLAG_HEADERS, 0}, negative));
+        assertThrows(ProtocolException.class, () -> FrameCodec.readHeader(messageByte(), headers));
+
+        final DataInputStream payload = stream(concat(new byte[]{0}, negative));
+        assertThrows(ProtocolException.class, () -> FrameCodec.readHeader(messageByte(), payload));
+    }
+
+    @Test
+    void aFrameCutOffIsNotTakenForAShorterOne() throws IOException {
+        final byte[] frame = FrameCodec.encode(Opcode.FILE_END, new Headers().putLong(Headers.TRANSFER_ID, 3),
+                new byte[32]);
+
+        for (int length = 1; length < frame.length; length++) {
+            final DataInputStream in = stream(Arrays.copyOf(frame, length));
+            assertThrows(EOFException.class, () -> {
+                final FrameHeader header = FrameCodec.readHeader(in.readUnsignedByte(), in);
+                FrameCodec.readPayload(header, MAX_PAYLOAD_LENGTH, in);
+            }, "Cut off after " + length + " bytes");
+        }
+    }
+
+
+    private static int messageByte() {
+        return FrameCodec.VERSION_BIT | Opcode.MESSAGE.getCode();
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        final byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static DataInputStream stream(final byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+}
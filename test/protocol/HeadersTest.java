@@ -0,0 +1,100 @@
+package chatapp_combined.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The type Headers test.
+ * Writes headers the way a frame carries them and reads them back, and reads blocks no encoder would write.
+ *
+ * @author Dimitar Kolev
+ */
+class HeadersTest {
+
+    @Test
+    void everyKindOfValueSurvivesTheWire() throws ProtocolException {
+        final byte[] large = new byte[300];     // A length that takes two varint bytes
+        large[299] = 7;
+        final Headers headers = new Headers()
+                .putString(Headers.SENDER, "Zoë 🙂")
+                .putInt(Headers.DATA_PORT, -2)
+                .putLong(Headers.TRANSFER_ID, Long.MIN_VALUE)
+                .put(Headers.CHECKSUM, new byte[0])
+                .put(Headers.DATA_TOKEN, large);
+
+        final Headers read = Headers.read(write(headers));
+        assertEquals("Zoë 🙂", read.getString(Headers.SENDER));
+        assertEquals(-2, read.getInt(Headers.DATA_PORT));
+        assertEquals(Long.MIN_VALUE, read.getLong(Headers.TRANSFER_ID));
+        assertArrayEquals(new byte[0], read.get(Headers.CHECKSUM));
+        assertArrayEquals(large, read.get(Headers.DATA_TOKEN));
+        assertNull(read.get(Headers.FILE_NAME));
+        assertNull(read.getString(Headers.FILE_NAME));
+    }
+
+    @Test
+    void emptyHeadersTakeNoBytes() throws ProtocolException {
+        final Headers headers = new Headers();
+        assertEquals(0, headers.encodedLength());
+        assertNull(Headers.read(ByteBuffer.allocate(0)).get(Headers.SENDER));
+    }
+
+    @Test
+    void aMissingOrMisSizedNumberIsMalformed() {
+        final Headers headers = new Headers().put(Headers.CREDIT, new byte[Long.BYTES - 1])
+                .put(Headers.DATA_PORT, new byte[Integer.BYTES + 1]);
+
+        assertThrows(ProtocolException.class, () -> headers.getLong(Headers.CREDIT));
+        assertThrows(ProtocolException.class, () -> headers.getInt(Headers.DATA_PORT));
+        assertThrows(ProtocolException.class, () -> headers.getLong(Headers.SEQUENCE));
+        assertThrows(ProtocolException.class, () -> new Headers().getInt(Headers.STRIPES));
+    }
+
+    @Test
+    void aValueLongerThanTheBlockIsMalformed() {
+        assertThrows(ProtocolException.class, () -> Headers.read(block(Headers.SENDER, 5, 'a', 'b')));
+    }
+
+    @Test
+    void anUnknownKeyIsMalformed() {
+        assertThrows(ProtocolException.class, () -> Headers.read(block(32, 0)));
+        assertThrows(ProtocolException.class, () -> Headers.read(block(0xFF, 0)));
+    }
+
+    @Test
+    void aCutOffLengthIsMalformed() {
+        assertThrows(ProtocolException.class, () -> Headers.read(block(Headers.SENDER)));
+        assertThrows(ProtocolException.class, () -> Headers.read(block(Headers.SENDER, 0x80)));
+    }
+
+    @Test
+    void aLengthThatOverflowsIsMalformed() {
+        // Ten varint bytes whose last one sets the sign bit, the length reads as negative
+        assertThrows(ProtocolException.class, () -> Headers.read(block(Headers.SENDER,
+                0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01)));
+    }
+
+
+    private static ByteBuffer write(final Headers headers) {
+        final ByteBuffer buffer = ByteBuffer.allocate(headers.encodedLength());
+        headers.writeTo(buffer);
+        assertEquals(0, buffer.remaining());
+        return buffer.flip();
+    }
+
+    private static ByteBuffer block(final int... bytes) {
+        final ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        for (int b : bytes) {
+            buffer.put((byte) b);
+        }
+        return buffer.flip();
+    }
+
+}
@@ -0,0 +1,266 @@
+package chatapp_combined.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The type Session test.
+ * Plays both ends of a session, a client and a server, over a connection that can be lost at any frame.
+ *
+ * @author Dimitar Kolev
+ */
+class SessionTest {
+
+    private static final int MAX_TEXT_LENGTH = 1024;
+
+
+    @Test
+    void retainKeepsEveryFrameUntilItIsAcknowledged() throws ProtocolException {
+        final Session session = new Session(Session.newId());
+        session.attach();
+
+        assertTrue(session.retain(message("one")));
+        assertTrue(session.retain(message("two")));
+        assertTrue(session.retain(message("three")));
+        assertEquals(3, session.unackedCount());
+
+        session.acknowledge(2);
+        assertEquals(1, session.unackedCount());
+        session.acknowledge(2);
+        assertEquals(1, session.unackedCount());
+        session.acknowledge(3);
+        assertEquals(0, session.unackedCount());
+    }
+
+    @Test
+    void framesSentWhileDetachedWaitForTheNextConnection() throws IOException {
+        final Session session = new Session(Session.newId());
+        session.attach();
+        session.retain(message("sent"));
+        session.detach();
+
+        assertFalse(session.retain(message("waiting")));
+
+        final List<ByteBuffer> frames = session.attach();
+        assertEquals(3, frames.size());
+        assertEquals(Opcode.RESUME, header(frames.get(0)).opcode());
+        assertEquals(1, header(frames.get(0)).headers().getLong(Headers.FIRST_SEQUENCE));
+        assertEquals("sent", text(frames.get(1)));
+        assertEquals("waiting", text(frames.get(2)));
+    }
+
+    @Test
+    void unsequencedFramesInBetweenDoNotShiftTheNumbers() throws IOException {
+        final Peer server = new Peer(new Session(Session.newId()));
+        final Peer client = new Peer(new Session(0));
+        connect(client, server);
+
+        server.send(message("one"), Heartbeat.ping(), message("two"), FlowControl.encode(1024), message("three"));
+        client.receive(server.takeOutput());
+        assertEquals(List.of("one", "two", "three"), client.shown);
+
+        server.receive(List.of(client.session.takeAck(true)));
+        assertEquals(0, server.session.unackedCount());
+    }
+
+    @Test
+    void resumeSendsAgainOnlyWhatWasNotReceived() throws IOException {
+        final Peer server = new Peer(new Session(Session.newId()));
+        final Peer client = new Peer(new Session(0));
+        connect(client, server);
+
+        server.send(message("one"), Heartbeat.ping(), message("two"));
+        client.receive(server.takeOutput());
+        server.send(message("three"), Heartbeat.ping(), message("four"));
+        // The connection is lost after the first of them
+        client.receive(server.takeOutput().subList(0, 1));
+        server.session.detach();
+        client.session.detach();
+
+        connect(client, server);
+        server.send(message("five"));
+        client.receive(server.takeOutput());
+
+        assertEquals(List.of("one", "two", "three", "four", "five"), client.shown);
+    }
+
+    @Test
+    void framesSentAgainAfterTheyArrivedAreDropped() throws IOException {
+        final Peer server = new Peer(new Session(Session.newId()));
+        final Peer client = new Peer(new Session(0));
+        connect(client, server);
+
+        client.send(message("one"), message("two"));
+        server.receive(client.takeOutput());
+        // Lost before the acknowledgement went out
+        server.session.detach();
+        client.session.detach();
+
+        // The client sends both again before it hears from the server
+        server.receive(client.session.attach());
+        client.send(message("three"));
+        server.receive(client.takeOutput());
+        client.receive(server.session.attach());
+
+        assertEquals(List.of("one", "two", "three"), server.shown);
+        assertEquals(0, client.session.unackedCount());
+    }
+
+    @Test
+    void anAcknowledgementOfFramesNeverSentFails() {
+        final Session session = new Session(Session.newId());
+        session.attach();
+        session.retain(message("one"));
+
+        assertThrows(ProtocolException.class, () -> session.acknowledge(2));
+        assertThrows(ProtocolException.class, () -> session.onResume(session.getId(), 2, 1));
+        assertEquals(1, session.unackedCount());
+    }
+
+    @Test
+    void aFrameCountedOnlyByTheReceiverFailsTheAcknowledgement() throws IOException {
+        final Peer server = new Peer(new Session(Session.newId()));
+        final Peer client = new Peer(new Session(0));
+        connect(client, server);
+
+        // A chat message that goes around the session, like the notices of a server once did
+        server.send(message("one"));
+        client.receive(server.takeOutput());
+        client.receive(List.of(message("notice")));
+
+        final ByteBuffer ack = client.session.takeAck(true);
+        assertThrows(ProtocolException.class, () -> server.receive(List.of(ack)));
+    }
+
+    @Test
+    void aNewSessionIdStartsTheNumbersOver() throws IOException {
+        final Session client = new Session(0);
+        client.attach();
+
+        client.onResume(7, 0, 1);
+        assertTrue(client.onReceived());
+        assertTrue(client.onReceived());
+        assertEquals(7, client.getId());
+
+        // The server lost the session and numbers its frames from the start
+        client.detach();
+        client.attach();
+        client.onResume(8, 0, 1);
+        assertTrue(client.onReceived());
+        assertEquals(8, client.getId());
+    }
+
+    @Test
+    void theAcknowledgementWaitsForIdleOrEnoughFrames() throws IOException {
+        final Session session = new Session(Session.newId());
+        session.attach();
+        session.onResume(session.getId(), 0, 1);
+
+        assertNull(session.takeAck(true));
+        session.onReceived();
+        assertNull(session.takeAck(false));
+
+        final ByteBuffer ack = session.takeAck(true);
+        assertEquals(Opcode.ACK, header(ack).opcode());
+        assertEquals(1, Session.readSequence(header(ack)));
+        assertNull(session.takeAck(true));
+    }
+
+    /**
+     * Resumes the session on both ends of a new connection. The server answers the RESUME of the client like
+     * the connections of the server do, the frames each side sends again follow its own RESUME.
+     */
+    private static void connect(final Peer client, final Peer server) throws IOException {
+        final List<ByteBuffer> fromClient = client.session.attach();
+        final FrameHeader resume = header(fromClient.get(0));
+
+        server.session.onResume(server.session.getId(), Session.readSequence(resume),
+                resume.headers().getLong(Headers.FIRST_SEQUENCE));
+        final List<ByteBuffer> fromServer = server.session.attach();
+        server.receive(fromClient.subList(1, fromClient.size()));
+        client.receive(fromServer);
+    }
+
+    private static ByteBuffer message(final String text) {
+        return ByteBuffer.wrap(FrameCodec.encode(Opcode.MESSAGE, null, text));
+    }
+
+    private static FrameHeader header(final ByteBuffer frame) throws IOException {
+        final DataInputStream in = stream(frame);
+        return FrameCodec.readHeader(in.readUnsignedByte(), in);
+    }
+
+    private static String text(final ByteBuffer frame) throws IOException {
+        final DataInputStream in = stream(frame);
+        return FrameCodec.readPayloadText(FrameCodec.readHeader(in.readUnsignedByte(), in), MAX_TEXT_LENGTH, in);
+    }
+
+    private static DataInputStream stream(final ByteBuffer frame) {
+        final byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * One end of the connection: numbers the chat messages it sends, shows the ones it receives once.
+     */
+    private static final class Peer {
+
+        private final Session session;
+        private final List<ByteBuffer> output = new ArrayList<>();
+        private final List<String> shown = new ArrayList<>();
+
+        private Peer(final Session session) {
+            this.session = session;
+        }
+
+        private void send(final ByteBuffer... frames) {
+            for (ByteBuffer frame : frames) {
+                if (Compression.isMessage(frame) && !session.retain(frame)) {
+                    continue;
+                }
+                output.add(frame);
+            }
+        }
+
+        private List<ByteBuffer> takeOutput() {
+            final List<ByteBuffer> frames = new ArrayList<>(output);
+            output.clear();
+            return frames;
+        }
+
+        private void receive(final List<ByteBuffer> frames) throws IOException {
+            for (ByteBuffer frame : frames) {
+                final FrameHeader header = header(frame);
+                switch (header.opcode()) {
+                    case MESSAGE -> {
+                        if (session.onReceived()) {
+                            shown.add(text(frame));
+                        }
+                    }
+                    case RESUME -> session.onResume(header.headers().getLong(Headers.SESSION_ID),
+                            Session.readSequence(header), header.headers().getLong(Headers.FIRST_SEQUENCE));
+                    case ACK -> session.acknowledge(Session.readSequence(header));
+                    default -> {
+                        // Not part of the session
+                    }
+                }
+            }
+        }
+
+    }
+
+}
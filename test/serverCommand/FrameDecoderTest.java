@@ -0,0 +1,319 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.Utility.ChecksumAlgorithm;
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.Headers;
+import chatapp_combined.protocol.Opcode;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The type Frame decoder test.
+ * Pushes frames into a decoder in one piece and one byte at a time, the way a non-blocking socket may hand them
+ * over, and records what the decoder reports.
+ *
+ * @author Dimitar Kolev
+ */
+class FrameDecoderTest {
+
+    @Test
+    void version1FramesAreReported() throws IOException {
+        final byte[] digest = new byte[16];
+        Arrays.fill(digest, (byte) 9);
+        final byte[] frames = concat(
+                bytes(FrameEncoder.nameFrame("alice")),
+                bytes(FrameEncoder.messageFrame("hi ü".getBytes(StandardCharsets.UTF_8))),
+                bytes(FrameEncoder.fileHeader(3, "a.txt".getBytes(StandardCharsets.UTF_8))),
+                new byte[]{'a', 'b', 'c'},
+                digest,
+                bytes(FrameEncoder.fileHeader(0, "empty".getBytes(StandardCharsets.UTF_8))),
+                digest);
+
+        assertDecodes(frames, List.of(
+                "name alice",
+                "message hi ü",
+                "start 0 3 a.txt MD5",
+                "data 0 616263",
+                "end 0 " + hex(digest),
+                "start 0 0 empty MD5",
+                "end 0 " + hex(digest)));
+    }
+
+    @Test
+    void version2FramesAreReported() throws IOException {
+        final byte[] frames = concat(
+                FrameCodec.encode(Opcode.NAME, null, "bob"),
+                FrameCodec.encode(Opcode.MESSAGE, null, "hello"),
+                FrameCodec.encode(Opcode.FILE_START, ChecksumAlgorithm.SHA_256.putInto(new Headers()
+                        .putLong(Headers.TRANSFER_ID, 7).putLong(Headers.FILE_LENGTH, 4)
+                        .putString(Headers.FILE_NAME, "b.bin")), new byte[0]),
+                FrameCodec.encode(Opcode.FILE_CHUNK, new Headers().putLong(Headers.TRANSFER_ID, 7)
+                        .putLong(Headers.CHUNK_OFFSET, 0), new byte[]{1, 2, 3, 4}),
+                FrameCodec.encode(Opcode.FILE_END, new Headers().putLong(Headers.TRANSFER_ID, 7), new byte[]{5}),
+                FrameCodec.encode(Opcode.CREDIT, new Headers().putLong(Headers.CREDIT, 1024), new byte[0]),
+                FrameCodec.encode(Opcode.RESUME, new Headers().putLong(Headers.SESSION_ID, 11)
+                        .putLong(Headers.SEQUENCE, 2).putLong(Headers.FIRST_SEQUENCE, 5), new byte[0]),
+                FrameCodec.encode(Opcode.ACK, new Headers().putLong(Headers.SEQUENCE, 3), new byte[0]),
+                FrameCodec.encode(Opcode.PING, null, new byte[0]),
+                FrameCodec.encode(Opcode.ROOM_JOIN, null, "#ops"));
+
+        assertDecodes(frames, List.of(
+                "name bob",
+                "message hello",
+                "start 7 4 b.bin SHA_256",
+                "chunk 7 4 0",
+                "data 7 01020304",
+                "end 7 05",
+                "credit 1024",
+                "resume 11 2 5",
+                "ack 3",
+                "ping",
+                "join #ops"));
+    }
+
+    @Test
+    void bothVersionsShareOneStream() throws IOException {
+        final byte[] frames = concat(
+                bytes(FrameEncoder.messageFrame("one".getBytes(StandardCharsets.UTF_8))),
+                FrameCodec.encode(Opcode.MESSAGE, null, "two"),
+                bytes(FrameEncoder.messageFrame("three".getBytes(StandardCharsets.UTF_8))));
+
+        assertDecodes(frames, List.of("message one", "message two", "message three"));
+    }
+
+    @Test
+    void anUnknownCommandIsMalformed() {
+        final ByteBuffer frame = ByteBuffer.allocate(6).putInt(2).put((byte) '-').put((byte) 'x').flip();
+        assertMalformed(frame.array());
+    }
+
+    @Test
+    void aTooLongCommandIsMalformed() {
+        assertMalformed(ByteBuffer.allocate(4).putInt(17).array());
+    }
+
+    @Test
+    void aNegativeFileLengthIsMalformed() {
+        final byte[] command = "-f".getBytes(StandardCharsets.UTF_8);
+        assertMalformed(ByteBuffer.allocate(14).putInt(command.length).put(command).putLong(-1).array());
+    }
+
+    @Test
+    void anUnknownOpcodeIsMalformed() {
+        assertMalformed(new byte[]{(byte) (FrameCodec.VERSION_BIT | 0x7F)});
+    }
+
+    @Test
+    void aVarintOfMoreThanTenBytesIsMalformed() {
+        final byte[] frame = new byte[12];
+        Arrays.fill(frame, (byte) 0x80);
+        frame[0] = (byte) (FrameCodec.VERSION_BIT | Opcode.MESSAGE.getCode());
+        frame[1] = 0;
+        assertMalformed(frame);
+    }
+
+    @Test
+    void aNegativePayloadLengthIsMalformed() {
+        // The varint of -1 takes ten bytes, the last one sets the sign bit
+        final Headers headers = new Headers().putString(Headers.FILE_NAME, "x");
+        assertMalformed(FrameCodec.encodeHeader(Opcode.FILE, headers, -1));
+        assertMalformed(FrameCodec.encodeHeader(Opcode.FILE_CHUNK, headers.putLong(Headers.TRANSFER_ID, 1), -1));
+    }
+
+    @Test
+    void tooLongTextIsMalformed() {
+        assertMalformed(FrameCodec.encodeHeader(Opcode.MESSAGE, null, (1 << 20) + 1));
+    }
+
+    @Test
+    void malformedControlFramesAreRejected() {
+        assertMalformed(FrameCodec.encode(Opcode.CREDIT, new Headers().putLong(Headers.CREDIT, 0), new byte[0]));
+        assertMalformed(FrameCodec.encode(Opcode.CREDIT, null, new byte[0]));
+        assertMalformed(FrameCodec.encode(Opcode.ACK, new Headers().putLong(Headers.SEQUENCE, -1), new byte[0]));
+        assertMalformed(FrameCodec.encode(Opcode.PING, null, new byte[1]));
+        assertMalformed(FrameCodec.encode(Opcode.RESUME, new Headers().putLong(Headers.SESSION_ID, 1)
+                .putLong(Headers.SEQUENCE, 0).putLong(Headers.FIRST_SEQUENCE, 0), new byte[0]));
+    }
+
+    @Test
+    void malformedFileFramesAreRejected() {
+        // A transfer id of 0 belongs to the files sent in one piece
+        assertMalformed(FrameCodec.encodeHeader(Opcode.FILE_CHUNK, new Headers().putLong(Headers.TRANSFER_ID, 0), 1));
+        assertMalformed(FrameCodec.encode(Opcode.FILE, null, new byte[1]));
+        assertMalformed(FrameCodec.encode(Opcode.FILE_START, new Headers().putLong(Headers.TRANSFER_ID, 1)
+                .putLong(Headers.FILE_LENGTH, -1).putString(Headers.FILE_NAME, "x"), new byte[0]));
+        assertMalformed(FrameCodec.encode(Opcode.FILE_ACCEPT, new Headers().putLong(Headers.TRANSFER_ID, 1)
+                .putLong(Headers.CHUNK_OFFSET, -1), new byte[0]));
+    }
+
+    @Test
+    void aFrameTheServerNeverReceivesIsRejected() {
+        assertMalformed(FrameCodec.encode(Opcode.BATCH, null, new byte[0]));
+    }
+
+
+    /**
+     * Decodes the frames in one piece and one byte at a time, both have to report the same.
+     */
+    private static void assertDecodes(final byte[] frames, final List<String> expected) throws IOException {
+        final Recorder whole = new Recorder();
+        new FrameDecoder(whole).decode(ByteBuffer.wrap(frames));
+        assertEquals(expected, whole.events);
+
+        final Recorder byByte = new Recorder();
+        final FrameDecoder decoder = new FrameDecoder(byByte);
+        for (byte b : frames) {
+            decoder.decode(ByteBuffer.wrap(new byte[]{b}));
+        }
+        assertEquals(expected, byByte.events);
+    }
+
+    private static void assertMalformed(final byte[] frame) {
+        assertThrows(ProtocolException.class, () -> new FrameDecoder(new Recorder()).decode(ByteBuffer.wrap(frame)));
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static String hex(final byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+
+
+    /**
+     * Records what the decoder reports, file data merged per chunk so that the slicing does not show.
+     */
+    private static final class Recorder implements FrameDecoder.Listener {
+
+        private final List<String> events = new ArrayList<>();
+        private ByteArrayOutputStream data;
+        private long dataTransfer;
+
+        @Override
+        public void onName(final String name) {
+            record("name " + name);
+        }
+
+        @Override
+        public void onMessage(final byte[] text) {
+            record("message " + new String(text, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onFileStart(final long transferId, final long fileLength, final byte[] fileName,
+                                final ChecksumAlgorithm algorithm) {
+            record("start " + transferId + " " + fileLength + " " + new String(fileName, StandardCharsets.UTF_8) + " " +
+                    algorithm);
+        }
+
+        @Override
+        public void onFileOffer(final long transferId, final long fileLength, final byte[] fileName,
+                                final long fileVersion, final ChecksumAlgorithm algorithm) {
+            record("offer " + transferId + " " + fileLength + " " + new String(fileName, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onFileChunk(final long transferId, final long chunkLength, final long offset, final byte[] checksum) {
+            record("chunk " + transferId + " " + chunkLength + " " + offset);
+        }
+
+        @Override
+        public void onFileAnswer(final Opcode opcode, final long transferId, final long offset) {
+            record(opcode + " " + transferId + " " + offset);
+        }
+
+        @Override
+        public void onFileData(final long transferId, final ByteBuffer slice) {
+            if (data == null) {
+                data = new ByteArrayOutputStream();
+                dataTransfer = transferId;
+            }
+            data.writeBytes(bytes(slice));
+        }
+
+        @Override
+        public void onFileEnd(final long transferId, final byte[] digest) {
+            record("end " + transferId + " " + hex(digest));
+        }
+
+        @Override
+        public void onBacklogAck(final long offset) {
+            record("backlogAck " + offset);
+        }
+
+        @Override
+        public void onRoomJoin(final String room) {
+            record("join " + room);
+        }
+
+        @Override
+        public void onRoomLeave(final String room) {
+            record("leave " + room);
+        }
+
+        @Override
+        public void onAttachmentOffer(final long transferId, final long fileLength, final byte[] fileName,
+                                      final String address, final byte[] contentHash) {
+            record("attachment " + transferId + " " + address);
+        }
+
+        @Override
+        public void onAttachmentGet(final String hash) {
+            record("get " + hash);
+        }
+
+        @Override
+        public void onCredit(final long credit) {
+            record("credit " + credit);
+        }
+
+        @Override
+        public void onPing() {
+            record("ping");
+        }
+
+        @Override
+        public void onResume(final long sessionId, final long sequence, final long firstSequence) {
+            record("resume " + sessionId + " " + sequence + " " + firstSequence);
+        }
+
+        @Override
+        public void onAck(final long sequence) {
+            record("ack " + sequence);
+        }
+
+        private void record(final String event) {
+            // The data of a chunk or file ends with the next event
+            if (data != null) {
+                events.add("data " + dataTransfer + " " + hex(data.toByteArray()));
+                data = null;
+            }
+            events.add(event);
+        }
+
+    }
+
+}
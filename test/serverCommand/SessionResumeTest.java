@@ -0,0 +1,258 @@
+package chatapp_combined.serverCommand;
+
+import chatapp_combined.protocol.FrameCodec;
+import chatapp_combined.protocol.FrameHeader;
+import chatapp_combined.protocol.Handshake;
+import chatapp_combined.protocol.Headers;
+import chatapp_combined.protocol.Heartbeat;
+import chatapp_combined.protocol.Opcode;
+import chatapp_combined.protocol.Session;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static chatapp_combined.Utility.CommonUtils.getLength;
+import static chatapp_combined.Utility.ReceivingMessageUtils.getCommand;
+import static chatapp_combined.Utility.ReceivingMessageUtils.readText;
+import static chatapp_combined.Utility.SendingMessageUtils.encodeMessage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The type Session resume test.
+ * Runs a server and talks to it over sockets like the real clients, to check that the session of a user stays
+ * whole when the user reconnects.
+ *
+ * @author Dimitar Kolev
+ */
+class SessionResumeTest {
+
+    private static final int TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_TEXT_LENGTH = 64 * 1024;
+
+    private ChatServer server;
+    private int port;
+
+
+    @BeforeEach
+    void startServer() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new ChatServer(port, 2);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    void noticesKeepTheNumbersOfTheSessionAcrossAReconnect() throws IOException {
+        final Session session = new Session(0);
+        Client alice = Client.connect(port, "alice", session);
+        alice.awaitResume();
+
+        // Notices of the server go to alice alone, between the relayed messages
+        alice.send(FrameCodec.encode(Opcode.ROOM_JOIN, null, "lobby"));
+        alice.send(FrameCodec.encode(Opcode.ROOM_JOIN, null, "lobby"));
+        alice.awaitMessage("You are already in #lobby.");
+
+        final Client bob = Client.connect(port, "bob", null);
+        bob.send(encodeMessage("-m first", Handshake.VERSION_2));
+        alice.awaitMessage("first");
+
+        alice.close();
+        bob.awaitMessage("alice logged out!");
+        session.detach();
+
+        alice = Client.connect(port, "alice", session);
+        alice.awaitResume();
+        bob.send(encodeMessage("-m second", Handshake.VERSION_2));
+        assertEquals("second", alice.awaitMessage("second"));
+
+        alice.close();
+        bob.close();
+    }
+
+    @Test
+    void aSessionTheServerNoLongerHasStartsOver() throws IOException {
+        // Three messages received from a server that is gone since
+        final Session session = new Session(0);
+        session.attach();
+        session.onResume(42, 0, 1);
+        session.onReceived();
+        session.onReceived();
+        session.onReceived();
+        session.detach();
+
+        final Client alice = Client.connect(port, "alice", session);
+        alice.awaitResume();
+        final Client bob = Client.connect(port, "bob", null);
+        bob.send(encodeMessage("-m first", Handshake.VERSION_2));
+        assertEquals("first", alice.awaitMessage("first"));
+
+        alice.close();
+        bob.close();
+    }
+
+    @Test
+    void theSessionTakesTheNameOverFromAConnectionThatIsGone() throws IOException {
+        final Session session = new Session(0);
+        final Client lost = Client.connect(port, "alice", session);
+        lost.awaitResume();
+        final Client bob = Client.connect(port, "bob", null);
+        bob.send(encodeMessage("-m first", Handshake.VERSION_2));
+        lost.awaitMessage("first");
+
+        // The old connection is still open as far as the server knows
+        session.detach();
+        final Client alice = Client.connect(port, "alice", session);
+        alice.awaitResume();
+        lost.awaitClose();
+
+        bob.send(encodeMessage("-m second", Handshake.VERSION_2));
+        assertEquals("second", alice.awaitMessage("second"));
+
+        // Without the session the name is still refused
+        final Client other = Client.connect(port, "alice", new Session(0));
+        assertEquals("The name alice cannot be used.", other.awaitMessage("The name alice cannot be used."));
+        other.awaitClose();
+
+        alice.close();
+        bob.close();
+    }
+
+    /**
+     * A client with just enough of the protocol: the hello, the name and the session.
+     */
+    private static final class Client {
+
+        private final Socket socket;
+        private final DataInputStream inputStream;
+        private final DataOutputStream outputStream;
+        private final Session session;
+
+        private Client(final Socket socket, final Session session) throws IOException {
+            this.socket = socket;
+            this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.outputStream = new DataOutputStream(socket.getOutputStream());
+            this.session = session;
+        }
+
+        private static Client connect(final int port, final String name, final Session session) throws IOException {
+            final Socket socket = new Socket();
+            socket.connect(new InetSocketAddress("localhost", port), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+
+            final Client client = new Client(socket, session);
+            client.send(encodeMessage(session != null ? "-m " + Handshake.helloText() : Handshake.bareHello(),
+                    Handshake.VERSION_1));
+            client.send(encodeMessage("-n " + name, Handshake.VERSION_1));
+            return client;
+        }
+
+        private void send(final byte[] frame) throws IOException {
+            outputStream.write(frame);
+            outputStream.flush();
+        }
+
+        private void awaitResume() throws IOException {
+            while (receive() != Opcode.RESUME) {
+                // Whatever comes before it is not part of the session
+            }
+        }
+
+        /**
+         * Reads until the message arrives. A message the session takes for a duplicate is not shown, so waiting
+         * for it runs into the timeout of the socket.
+         */
+        private String awaitMessage(final String text) throws IOException {
+            String shown;
+            do {
+                shown = null;
+                final int firstByte = inputStream.readUnsignedByte();
+                if (!FrameCodec.isVersion2(firstByte)) {
+                    onHello(firstByte);
+                    continue;
+                }
+                final FrameHeader header = FrameCodec.readHeader(firstByte, inputStream);
+                if (header.opcode() == Opcode.MESSAGE) {
+                    shown = FrameCodec.readPayloadText(header, MAX_TEXT_LENGTH, inputStream);
+                    if (session != null && !session.onReceived()) {
+                        shown = null;
+                    }
+                } else {
+                    onFrame(header);
+                }
+            } while (!text.equals(shown));
+            return shown;
+        }
+
+        private Opcode receive() throws IOException {
+            final int firstByte = inputStream.readUnsignedByte();
+            if (!FrameCodec.isVersion2(firstByte)) {
+                onHello(firstByte);
+                return null;
+            }
+            final FrameHeader header = FrameCodec.readHeader(firstByte, inputStream);
+            if (header.opcode() == Opcode.MESSAGE) {
+                inputStream.skipNBytes(header.payloadLength());
+                if (session != null) {
+                    session.onReceived();
+                }
+            } else {
+                onFrame(header);
+            }
+            return header.opcode();
+        }
+
+        /**
+         * Resumes the session once the server answered the hello, like the real client.
+         */
+        private void onHello(final int firstByte) throws IOException {
+            final String command = getCommand(getLength(firstByte, inputStream), inputStream);
+            final String text = readText(inputStream);
+            if (!"-m".equals(command) || !Handshake.isHello(text)) {
+                throw new ProtocolException("Unexpected version 1 frame: " + command + " " + text);
+            }
+            if (session != null && Handshake.offersSessions(text)) {
+                for (ByteBuffer frame : session.attach()) {
+                    send(frame.array());
+                }
+            }
+        }
+
+        private void onFrame(final FrameHeader header) throws IOException {
+            switch (header.opcode()) {
+                case RESUME -> session.onResume(header.headers().getLong(Headers.SESSION_ID),
+                        Session.readSequence(header), header.headers().getLong(Headers.FIRST_SEQUENCE));
+                case ACK -> session.acknowledge(Session.readSequence(header));
+                case PING -> send(Heartbeat.pong().array());
+                default -> inputStream.skipNBytes(header.payloadLength());
+            }
+        }
+
+        private void awaitClose() throws IOException {
+            while (inputStream.read() >= 0) {
+                // What was sent before the close does not matter
+            }
+        }
+
+        private void close() throws IOException {
+            socket.close();
+        }
+
+    }
+
+}